@@ -0,0 +1,23 @@
+package metagene;
+
+import java.io.IOException;
+
+import nextgen.core.annotation.Gene;
+
+/**
+ * Region data type that can return data as a primitive array without boxing each value
+ * @author prussell
+ *
+ */
+public interface ArrayRegionDataType extends RegionDataType {
+	
+	/**
+	 * Get the data for the region as an array
+	 * @param region Region
+	 * @param reverseIfMinusOrientation Reverse data order if region is on minus strand
+	 * @return Data values
+	 * @throws IOException 
+	 */
+	public double[] getDataArray(Gene region, boolean reverseIfMinusOrientation) throws IOException;
+	
+}
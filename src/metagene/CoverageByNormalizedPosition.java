@@ -2,8 +2,9 @@ package metagene;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -19,10 +20,12 @@ import nextgen.core.readFilters.GenomicSpanFilter;
  * @author prussell
  *
  */
-public class CoverageByNormalizedPosition implements RegionDataType {
+public class CoverageByNormalizedPosition implements ArrayRegionDataType, ParallelRegionDataType {
 
 	private TranscriptomeSpaceAlignmentModel data;
 	private int size;
+	private String bam;
+	private Map<String, Collection<Gene>> transcriptome;
 	private static Logger logger = Logger.getLogger(CoverageByNormalizedPosition.class.getName());
 	private static int DEFAULT_GENOMIC_SPAN_FILTER = 300000;
 	
@@ -33,7 +36,19 @@ public class CoverageByNormalizedPosition implements RegionDataType {
 	 * @throws IOException
 	 */
 	public CoverageByNormalizedPosition(String bamFile, String transcriptomeBedFile, int normalizedRegionSize) throws IOException {
-		this(new TranscriptomeSpaceAlignmentModel(bamFile, new TranscriptomeSpace(BEDFileParser.loadDataByChr(new File(transcriptomeBedFile)))), normalizedRegionSize);
+		this(bamFile, BEDFileParser.loadDataByChr(new File(transcriptomeBedFile)), normalizedRegionSize);
+	}
+	
+	/**
+	 * @param bamFile Bam file
+	 * @param transcriptomeGenes Genes by chromosome for transcriptome space
+	 * @param normalizedRegionSize Normalized size for each region
+	 * @throws IOException
+	 */
+	public CoverageByNormalizedPosition(String bamFile, Map<String, Collection<Gene>> transcriptomeGenes, int normalizedRegionSize) throws IOException {
+		this(new TranscriptomeSpaceAlignmentModel(bamFile, new TranscriptomeSpace(transcriptomeGenes)), normalizedRegionSize);
+		bam = bamFile;
+		transcriptome = transcriptomeGenes;
 	}
 	
 	/**
@@ -50,18 +65,44 @@ public class CoverageByNormalizedPosition implements RegionDataType {
 	
 	@Override
 	public List<Double> getData(Gene region, boolean reverseIfMinusOrientation) throws IOException {
-		List<Double> fullCounts = data.getPositionCountList(region);
+		return Util.toList(getDataArray(region, reverseIfMinusOrientation));
+	}
+	
+	@Override
+	public double[] getDataArray(Gene region, boolean reverseIfMinusOrientation) throws IOException {
+		double[] fullCounts = Util.toArray(data.getPositionCountList(region));
 		if(reverseIfMinusOrientation && region.getOrientation().equals(Strand.NEGATIVE)) {
-			ArrayList<Double> copy = new ArrayList<Double>();
-			int s = fullCounts.size();
-			for(int i=0; i<s; i++) {
-				copy.add(new Double(fullCounts.get(i).doubleValue()));
-			}
-			for(int i=0; i<s; i++) {
-				fullCounts.set(i, copy.get(s-i-1));
-			}
+			Util.reverse(fullCounts);
 		}
-		return Util.expandOrContractList(fullCounts, size);
+		return Util.expandOrContractArray(fullCounts, size);
+	}
+	
+	/**
+	 * Open a new alignment model on the same bam file and transcriptome
+	 * Only possible if this object was constructed from a bam file
+	 */
+	@Override
+	public RegionDataType newHandle() throws IOException {
+		if(bam == null) {
+			throw new IllegalStateException("Can only open a new handle if constructed from a bam file.");
+		}
+		return new CoverageByNormalizedPosition(bam, transcriptome, size);
+	}
+	
+	/**
+	 * Drop the alignment model so its bam reader can be reclaimed
+	 * The alignment model has no close method of its own
+	 */
+	@Override
+	public void close() {
+		data = null;
+	}
+	
+	/**
+	 * @return Name and read filter settings, to identify data computed with this class
+	 */
+	public String getDescription() {
+		return getClass().getSimpleName() + "\tmaxGenomicSpan=" + DEFAULT_GENOMIC_SPAN_FILTER;
 	}
 	
 	@Override
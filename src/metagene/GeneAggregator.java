@@ -2,6 +2,7 @@ package metagene;
 
 import guttmanlab.core.util.CommandLineParser;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -10,7 +11,12 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -28,11 +34,18 @@ public class GeneAggregator {
 	private RegionDataType regionDataType;
 	private Map<String, Collection<Gene>> genes;
 	private Map<GeneComponent, Collection<Gene>> regionsByComponent;
-	private Map<GeneComponent, List<Double>> summedDataByComponent;
-	private Map<GeneComponent, Map<Gene, List<Double>>> data;
+	private Map<GeneComponent, double[]> summedDataByComponent;
+	private Map<GeneComponent, RegionDataMatrix> data;
+	private int numThreads;
+	private List<RegionDataType> handles;
 	
 	private static int DEFAULT_NORMALIZED_REGION_SIZE = 100;
 	private static double DEFAULT_NORMALIZED_VECTOR_SUM = 1;
+	/**
+	 * Number of consecutive regions summed into one partial total
+	 * Partial totals are always added in block order so totals do not depend on the number of threads
+	 */
+	private static int REGIONS_PER_BLOCK = 256;
 	private static Logger logger = Logger.getLogger(GeneAggregator.class.getName());
 	
 	/**
@@ -55,12 +68,97 @@ public class GeneAggregator {
 		regionDataType = dataType;
 		genes = genesByChr;
 		regionsByComponent = genePartition.getPartition(genes);
-		summedDataByComponent = new HashMap<GeneComponent, List<Double>>();
-		data = new HashMap<GeneComponent, Map<Gene, List<Double>>>();
+		summedDataByComponent = new HashMap<GeneComponent, double[]>();
+		data = new HashMap<GeneComponent, RegionDataMatrix>();
 		for(GeneComponent component : genePartition.getComponents()) {
-			data.put(component, new TreeMap<Gene, List<Double>>());
+			data.put(component, new RegionDataMatrix(regionsByComponent.get(component)));
 		}
-		
+		numThreads = 1;
+	}
+	
+	/**
+	 * Set the number of threads used to evaluate regions
+	 * More than one thread requires a data type that can open a separate handle for each thread
+	 * @param threads Number of threads
+	 * @throws IOException
+	 */
+	public void setNumThreads(int threads) throws IOException {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+		}
+		if(threads > 1 && !(regionDataType instanceof ParallelRegionDataType)) {
+			throw new IllegalArgumentException("Data type " + regionDataType.getClass().getSimpleName() + " does not support multiple threads.");
+		}
+		if(threads != numThreads) {
+			close();
+		}
+		numThreads = threads;
+	}
+	
+	/**
+	 * Get one handle on the data per thread, opening them the first time
+	 * The first handle is the original data type
+	 * @return Handles
+	 * @throws IOException
+	 */
+	private List<RegionDataType> getHandles() throws IOException {
+		if(handles == null) {
+			handles = new ArrayList<RegionDataType>();
+			handles.add(regionDataType);
+			try {
+				for(int i = 1; i < numThreads; i++) {
+					handles.add(((ParallelRegionDataType) regionDataType).newHandle());
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+		return handles;
+	}
+	
+	/**
+	 * Close the handles opened for worker threads
+	 * The original data type stays open
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(handles == null) {
+			return;
+		}
+		List<RegionDataType> toClose = handles;
+		handles = null;
+		for(int i = 1; i < toClose.size(); i++) {
+			((ParallelRegionDataType) toClose.get(i)).close();
+		}
+	}
+	
+	/**
+	 * Compute the data for all regions of all components in one pass over a bam file instead of querying each region
+	 * @param engine Streaming coverage engine
+	 */
+	public void computeAllRegions(StreamingCoverageEngine engine) {
+		engine.computeAll(data);
+	}
+	
+	/**
+	 * Load data for each component that is cached for the same regions
+	 * @param cache Cache
+	 * @throws IOException
+	 */
+	public void loadFromCache(RegionDataCache cache) throws IOException {
+		for(GeneComponent component : genePartition.getComponents()) {
+			cache.load(component, data.get(component));
+		}
+	}
+	
+	/**
+	 * Store data for each component whose regions have all been computed
+	 * @param cache Cache
+	 * @throws IOException
+	 */
+	public void storeInCache(RegionDataCache cache) throws IOException {
+		cache.store(data);
 	}
 	
 	/**
@@ -85,22 +183,21 @@ public class GeneAggregator {
 		logger.info("Writing tables for each region...");
 		for(GeneComponent component : genePartition.getComponents()) {
 			String outTable = outfilePrefix + "_" + component.getName();
-			Collection<Gene> regions = regionsByComponent.get(component);
-			logger.info("Writing table of " + regions.size() + " regions for gene component " + component.getName() + " to file " + outTable + "...");
-			FileWriter w = new FileWriter(outTable);
-			int numDone = 0;
-			for(Gene region : regions) {
-				numDone++;
-				if(numDone % 1000 == 0) {
-					logger.info("Finished " + numDone + " regions.");
+			RegionDataMatrix matrix = data.get(component);
+			// Evaluate all regions up front so they can be computed in parallel
+			getTotalOverAllRegions(component);
+			logger.info("Writing table of " + matrix.getNumRows() + " regions for gene component " + component.getName() + " to file " + outTable + "...");
+			BufferedWriter w = new BufferedWriter(new FileWriter(outTable));
+			for(int row = 0; row < matrix.getNumRows(); row++) {
+				if((row + 1) % 1000 == 0) {
+					logger.info("Finished " + (row + 1) + " regions.");
 				}
-				String line = region.getName() + "\t";
-				List<Double> dataList = getData(region, component);
+				String line = matrix.getRegion(row).getName() + "\t";
+				double[] dataArray = getData(row, component);
 				if(normalizeOverallSum) {
-					List<Double> normalizedData = Util.normalizeSum(dataList, newSum);
-					line += Util.listToString(normalizedData);
+					line += Util.arrayToString(Util.normalizeSum(dataArray, newSum));
 				} else {
-					line += Util.listToString(dataList);
+					line += Util.arrayToString(dataArray);
 				}
 				w.write(line + "\n");
 			}
@@ -117,15 +214,48 @@ public class GeneAggregator {
 	 * @return Data values for region
 	 * @throws IOException
 	 */
-	private List<Double> getData(Gene region, GeneComponent component) throws IOException {
-		if(data.get(component).containsKey(region)) {
-			return data.get(component).get(region);
+	@SuppressWarnings("unused")
+	private double[] getData(Gene region, GeneComponent component) throws IOException {
+		int row = data.get(component).getRow(region);
+		if(row < 0) {
+			throw new IllegalArgumentException("Region " + region.getName() + " is not in component " + component.getName());
+		}
+		return getData(row, component);
+	}
+	
+	/**
+	 * Get the vector of data values for one row of the component's data matrix
+	 * Get from the matrix or store in the matrix after computing
+	 * @param row Row number
+	 * @param component Gene component
+	 * @return Data values for the region in the row
+	 * @throws IOException
+	 */
+	private double[] getData(int row, GeneComponent component) throws IOException {
+		RegionDataMatrix matrix = data.get(component);
+		if(matrix.isComputed(row)) {
+			return matrix.getRowData(row);
 		}
-		List<Double> rtrn = regionDataType.getData(region, component.reverseDataIfMinusOrientation());
-		data.get(component).put(region, rtrn);
+		double[] rtrn = computeData(regionDataType, matrix.getRegion(row), component);
+		matrix.setRowData(row, rtrn);
 		return rtrn;
 	}
 	
+	/**
+	 * Compute the vector of data values for the region and component, without boxing if the data type supports it
+	 * @param dataType Data type or a separate handle on it
+	 * @param region The region
+	 * @param component Gene component
+	 * @return Data values for region
+	 * @throws IOException
+	 */
+	private static double[] computeData(RegionDataType dataType, Gene region, GeneComponent component) throws IOException {
+		if(dataType instanceof ArrayRegionDataType) {
+			return ((ArrayRegionDataType) dataType).getDataArray(region, component.reverseDataIfMinusOrientation());
+		}
+		return Util.toArray(dataType.getData(region, component.reverseDataIfMinusOrientation()));
+	}
+	
 	/**
 	 * Write overall total data vector for one gene component to file
 	 * @param component Gene component
@@ -150,11 +280,11 @@ public class GeneAggregator {
 		FileWriter w = new FileWriter(outFile);
 		if(normalizeOverallSum) {
 			logger.info("Normalizing vector sum to " + newSum);
-			List<Double> normalizedTotal = getNormalizedTotalOverAllRegions(component, newSum);
-			w.write(Util.listToTableByPos(normalizedTotal));
+			double[] normalizedTotal = getNormalizedTotalOverAllRegions(component, newSum);
+			w.write(Util.arrayToTableByPos(normalizedTotal));
 		} else {
-			List<Double> dataTotal = getTotalOverAllRegions(component);
-			w.write(Util.listToTableByPos(dataTotal));
+			double[] dataTotal = getTotalOverAllRegions(component);
+			w.write(Util.arrayToTableByPos(dataTotal));
 		}
 		w.close();
 		logger.info("Done writing file.");
@@ -191,10 +321,10 @@ public class GeneAggregator {
 	 * Get normalized total of data over all regions in the component
 	 * @param component The gene component to use
 	 * @param newOverallTotal The overall sum of the normalized result
-	 * @return A normalized list representing the sum of data for all regions
+	 * @return A normalized array representing the sum of data for all regions
 	 * @throws IOException
 	 */
-	private List<Double> getNormalizedTotalOverAllRegions(GeneComponent component, double newOverallTotal) throws IOException {
+	private double[] getNormalizedTotalOverAllRegions(GeneComponent component, double newOverallTotal) throws IOException {
 		logger.info("Getting normalized total over all regions for component " + component.getName());
 		return Util.normalizeSum(getTotalOverAllRegions(component), newOverallTotal);
 	}
@@ -202,33 +332,115 @@ public class GeneAggregator {
 	/**
 	 * Get total of data over all regions in the component
 	 * @param component The gene component to use
-	 * @return A list representing the sum of data for all regions
+	 * @return An array representing the sum of data for all regions
 	 * @throws IOException
 	 */
-	private List<Double> getTotalOverAllRegions(GeneComponent component) throws IOException {
+	private double[] getTotalOverAllRegions(GeneComponent component) throws IOException {
 		logger.info("Getting total over all regions for component " + component.getName());
 		// Check if the result is already cached
 		if(summedDataByComponent.containsKey(component)) {
 			return summedDataByComponent.get(component);
 		}
-		Collection<Gene> regions = regionsByComponent.get(component);
+		RegionDataMatrix matrix = data.get(component);
 		logger.info("");
-		logger.info("Calculating data total over " + regions.size() + " regions in component " + component.getName() + "...");
-		Collection<List<Double>> dataList = new ArrayList<List<Double>>();
-		int numDone = 0;
-		for(Gene region : regions) {
-			numDone++;
-			if(numDone % 1000 == 0) {
-				logger.info("Finished " + numDone + " regions.");
+		logger.info("Calculating data total over " + matrix.getNumRows() + " regions in component " + component.getName() + " with " + numThreads + " threads...");
+		if(matrix.getNumRows() == 0) {
+			throw new IllegalStateException("No regions in component " + component.getName());
+		}
+		int numBlocks = (matrix.getNumRows() + REGIONS_PER_BLOCK - 1) / REGIONS_PER_BLOCK;
+		double[][] blockTotals = new double[numBlocks][];
+		if(numThreads == 1) {
+			for(int block = 0; block < numBlocks; block++) {
+				blockTotals[block] = getBlockTotal(regionDataType, component, block);
 			}
-			dataList.add(getData(region, component));
+		} else {
+			computeBlockTotalsInParallel(component, blockTotals);
+		}
+		// Reduce in block order
+		double[] rtrn = blockTotals[0].clone();
+		for(int block = 1; block < numBlocks; block++) {
+			Util.addTo(rtrn, blockTotals[block]);
 		}
-		List<Double> rtrn = Util.sum(dataList);
 		// Cache the result
 		summedDataByComponent.put(component, rtrn);
 		return rtrn;
 	}
 	
+	/**
+	 * Compute the data for one block of consecutive rows, store in the matrix and return their sum
+	 * @param dataType Data type or a separate handle on it
+	 * @param component Gene component
+	 * @param block Block number
+	 * @return Sum of data vectors in the block
+	 * @throws IOException
+	 */
+	private double[] getBlockTotal(RegionDataType dataType, GeneComponent component, int block) throws IOException {
+		RegionDataMatrix matrix = data.get(component);
+		int from = block * REGIONS_PER_BLOCK;
+		int to = Math.min(matrix.getNumRows(), from + REGIONS_PER_BLOCK);
+		double[] rtrn = null;
+		for(int row = from; row < to; row++) {
+			double[] rowData;
+			if(matrix.isComputed(row)) {
+				rowData = matrix.getRowData(row);
+			} else {
+				rowData = computeData(dataType, matrix.getRegion(row), component);
+				matrix.setRowData(row, rowData);
+			}
+			if(rtrn == null) {
+				rtrn = new double[rowData.length];
+			}
+			Util.addTo(rtrn, rowData);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Compute block totals with a pool of worker threads, each with its own handle on the data
+	 * Handles are opened once and reused for every component
+	 * Workers take the next unfinished block until all blocks are done
+	 * @param component Gene component
+	 * @param blockTotals Array to store the total of each block
+	 * @throws IOException
+	 */
+	private void computeBlockTotalsInParallel(final GeneComponent component, final double[][] blockTotals) throws IOException {
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+		final AtomicInteger numDone = new AtomicInteger(0);
+		List<RegionDataType> threadHandles = getHandles();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for(final RegionDataType handle : threadHandles) {
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					int block;
+					while((block = nextBlock.getAndIncrement()) < blockTotals.length) {
+						blockTotals[block] = getBlockTotal(handle, component, block);
+						int done = numDone.incrementAndGet();
+						if(done % 10 == 0) {
+							logger.info("Finished " + done + " of " + blockTotals.length + " blocks of " + REGIONS_PER_BLOCK + " regions.");
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for(Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
 	/**
 	 * @param args
 	 * @throws IOException 
@@ -260,6 +472,10 @@ public class GeneAggregator {
 		p.addBooleanArg("--whole-gene", "Include whole gene", false, false);
 		p.addIntArg("-m5", "Minimum size of 5'-UTR to include", false, 0);
 		p.addIntArg("-m3", "Minimum size of 3'-UTR to include", false, 0);
+		p.addIntArg("-t", "Number of threads, each with its own handle on the bam file", false, 1);
+		p.addStringArg("-cache", "Directory for cache of region data keyed by bam file, annotation, region size and coverage engine settings", false, null);
+		p.addBooleanArg("-stream", "Compute coverage of all regions in one pass over the coordinate sorted bam file. Counts each mate as a read instead of counting fragments and skips secondary, supplementary, duplicate and QC failed records, so values differ from the default", false, false);
+		p.addIntArg("-mq", "Min mapping quality of reads to count with -stream", false, 0);
 		
 		
 		p.parse(args);
@@ -288,6 +504,10 @@ public class GeneAggregator {
 		boolean useWholeGene = p.getBooleanArg("--whole-gene");
 		int min5utr = p.getIntArg("-m5");
 		int min3utr = p.getIntArg("-m3");
+		int numThreads = p.getIntArg("-t");
+		boolean stream = p.getBooleanArg("-stream");
+		int minMappingQuality = p.getIntArg("-mq");
+		String cacheDir = p.getStringArg("-cache");
 		
 		
 		CoverageByNormalizedPosition c = new CoverageByNormalizedPosition(bamFile, bedFile, regionSize);
@@ -322,13 +542,31 @@ public class GeneAggregator {
 			logger.info(co.getName());
 		}
 		GeneAggregator a = new GeneAggregator(components, c, bedFile);
+		a.setNumThreads(numThreads);
+		StreamingCoverageEngine engine = stream ? new StreamingCoverageEngine(bamFile, regionSize, minMappingQuality) : null;
+		RegionDataCache cache = null;
+		if(cacheDir != null) {
+			cache = new RegionDataCache(cacheDir, bamFile, bedFile, regionSize, stream ? engine.getDescription() : c.getDescription());
+			a.loadFromCache(cache);
+		}
+		if(stream) {
+			a.computeAllRegions(engine);
+		}
 		
-		if(outTablePrefix != null) {
-			a.writeTables(outTablePrefix, normalizeSums, normalizedSum);
+		try {
+			if(outTablePrefix != null) {
+				a.writeTables(outTablePrefix, normalizeSums, normalizedSum);
+			}
+	
+			if(outFilePrefix != null) {
+				a.writeTotalOverAllRegions(outFilePrefix, normalizeSums, normalizedSum);
+			}
+		} finally {
+			a.close();
 		}
-
-		if(outFilePrefix != null) {
-			a.writeTotalOverAllRegions(outFilePrefix, normalizeSums, normalizedSum);
+		
+		if(cache != null) {
+			a.storeInCache(cache);
 		}
 
 		
@@ -0,0 +1,25 @@
+package metagene;
+
+import java.io.IOException;
+
+/**
+ * Region data type that can open independent handles on its underlying data so regions can be evaluated by several threads at once
+ * @author prussell
+ *
+ */
+public interface ParallelRegionDataType extends RegionDataType {
+
+	/**
+	 * Get a new instance with the same parameters and its own handle on the data, to be used by a single worker thread
+	 * @return New data type instance
+	 * @throws IOException
+	 */
+	public RegionDataType newHandle() throws IOException;
+	
+	/**
+	 * Release this instance's handle on the data; the instance cannot be used afterwards
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
+}
@@ -0,0 +1,255 @@
+package metagene;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent binary cache of the data matrices computed by GeneAggregator
+ * There is one cache file per combination of bam file, annotation, normalized region size and coverage engine settings, holding one block per gene component
+ * Blocks are memory mapped when loaded, so a later run with the same inputs can skip computing region data
+ * @author prussell
+ *
+ */
+public class RegionDataCache {
+
+	private File cacheFile;
+	private Map<String, BlockInfo> blocks;
+	private static Logger logger = Logger.getLogger(RegionDataCache.class.getName());
+	private static int MAGIC = 0x4d474331;
+	private static int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @param cacheDirectory Cache directory
+	 * @param bamFile Bam file; its path, size and modification time identify it
+	 * @param bedFile Bed annotation; its contents are hashed
+	 * @param normalizedRegionSize Normalized size for each region
+	 * @param engineDescription Coverage engine and its read filter settings, so data computed with different engines are never shared
+	 * @throws IOException
+	 */
+	public RegionDataCache(String cacheDirectory, String bamFile, String bedFile, int normalizedRegionSize, String engineDescription) throws IOException {
+		File dir = new File(cacheDirectory);
+		@SuppressWarnings("unused")
+		boolean madeDir = dir.mkdirs();
+		if(!dir.isDirectory()) {
+			throw new IOException("Could not create cache directory " + cacheDirectory);
+		}
+		File bam = new File(bamFile);
+		String key = bamFile + "\t" + bam.length() + "\t" + bam.lastModified() + "\t" + hashFile(bedFile) + "\t" + normalizedRegionSize + "\t" + engineDescription;
+		cacheFile = new File(dir, toHex(newDigest().digest(key.getBytes(StandardCharsets.UTF_8))) + ".metagene");
+		blocks = readIndex();
+		logger.info("Using metagene cache file " + cacheFile + " with " + blocks.size() + " cached components.");
+	}
+
+	/**
+	 * Location of one component's data in the cache file
+	 */
+	private static class BlockInfo {
+		String componentName;
+		long regionHash;
+		int numRows;
+		int numColumns;
+		long offset;
+		long getDataSize() {
+			return (long) numRows * numColumns * 8;
+		}
+	}
+
+	/**
+	 * Read the block headers of the cache file
+	 * @return Blocks by component name, in file order
+	 * @throws IOException
+	 */
+	private Map<String, BlockInfo> readIndex() throws IOException {
+		Map<String, BlockInfo> rtrn = new LinkedHashMap<String, BlockInfo>();
+		if(!cacheFile.exists()) {
+			return rtrn;
+		}
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		try {
+			if(raf.readInt() != MAGIC) {
+				logger.warn("Ignoring cache file with wrong format: " + cacheFile);
+				return rtrn;
+			}
+			int numBlocks = raf.readInt();
+			for(int i = 0; i < numBlocks; i++) {
+				BlockInfo block = new BlockInfo();
+				byte[] name = new byte[raf.readInt()];
+				raf.readFully(name);
+				block.componentName = new String(name, StandardCharsets.UTF_8);
+				block.regionHash = raf.readLong();
+				block.numRows = raf.readInt();
+				block.numColumns = raf.readInt();
+				block.offset = raf.getFilePointer();
+				raf.seek(block.offset + block.getDataSize());
+				rtrn.put(block.componentName, block);
+			}
+		} finally {
+			raf.close();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Fill a component's matrix from the cache
+	 * @param component Gene component
+	 * @param matrix Data matrix for the component
+	 * @return True iff the component was cached for exactly the regions in the matrix and has been loaded
+	 * @throws IOException
+	 */
+	public boolean load(GeneComponent component, RegionDataMatrix matrix) throws IOException {
+		BlockInfo block = blocks.get(component.getName());
+		if(block == null || block.regionHash != getRegionHash(matrix) || block.numRows != matrix.getNumRows()) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		try {
+			DoubleBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, block.offset, block.getDataSize()).asDoubleBuffer();
+			matrix.readValues(buffer, block.numColumns);
+		} finally {
+			raf.close();
+		}
+		logger.info("Loaded " + block.numRows + " regions for component " + component.getName() + " from cache.");
+		return true;
+	}
+
+	/**
+	 * Add complete matrices to the cache, replacing blocks for the same components and keeping blocks for other components
+	 * @param matrices Data matrix by gene component
+	 * @throws IOException
+	 */
+	public synchronized void store(Map<GeneComponent, RegionDataMatrix> matrices) throws IOException {
+		Map<String, RegionDataMatrix> toWrite = new LinkedHashMap<String, RegionDataMatrix>();
+		Map<String, Long> hashes = new LinkedHashMap<String, Long>();
+		for(GeneComponent component : matrices.keySet()) {
+			RegionDataMatrix matrix = matrices.get(component);
+			if(!matrix.isComplete() || matrix.getNumRows() == 0) {
+				continue;
+			}
+			long hash = getRegionHash(matrix);
+			BlockInfo cached = blocks.get(component.getName());
+			if(cached != null && cached.regionHash == hash && cached.numRows == matrix.getNumRows()) {
+				continue;
+			}
+			toWrite.put(component.getName(), matrix);
+			hashes.put(component.getName(), Long.valueOf(hash));
+		}
+		if(toWrite.isEmpty()) {
+			return;
+		}
+		List<BlockInfo> kept = new ArrayList<BlockInfo>();
+		for(BlockInfo block : blocks.values()) {
+			if(!toWrite.containsKey(block.componentName)) {
+				kept.add(block);
+			}
+		}
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		RandomAccessFile in = cacheFile.exists() ? new RandomAccessFile(cacheFile, "r") : null;
+		try {
+			out.setLength(0);
+			FileChannel outChannel = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.putInt(MAGIC).putInt(kept.size() + toWrite.size()).flip();
+			writeFully(outChannel, header);
+			// Copy retained blocks without decoding them
+			for(BlockInfo block : kept) {
+				writeFully(outChannel, getBlockHeader(block.componentName, block.regionHash, block.numRows, block.numColumns));
+				long copied = 0;
+				while(copied < block.getDataSize()) {
+					copied += in.getChannel().transferTo(block.offset + copied, block.getDataSize() - copied, outChannel);
+				}
+			}
+			for(String name : toWrite.keySet()) {
+				RegionDataMatrix matrix = toWrite.get(name);
+				writeFully(outChannel, getBlockHeader(name, hashes.get(name).longValue(), matrix.getNumRows(), matrix.getNumColumns()));
+				long dataSize = (long) matrix.getNumRows() * matrix.getNumColumns() * 8;
+				DoubleBuffer buffer = outChannel.map(FileChannel.MapMode.READ_WRITE, outChannel.position(), dataSize).asDoubleBuffer();
+				matrix.writeValues(buffer);
+				outChannel.position(outChannel.position() + dataSize);
+				logger.info("Cached " + matrix.getNumRows() + " regions for component " + name + ".");
+			}
+		} finally {
+			out.close();
+			if(in != null) {
+				in.close();
+			}
+		}
+		Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		blocks = readIndex();
+	}
+
+	private static ByteBuffer getBlockHeader(String componentName, long regionHash, int numRows, int numColumns) {
+		byte[] name = componentName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer rtrn = ByteBuffer.allocate(4 + name.length + 8 + 4 + 4);
+		rtrn.putInt(name.length).put(name).putLong(regionHash).putInt(numRows).putInt(numColumns).flip();
+		return rtrn;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Hash of the regions of a matrix in row order, so a block is only reused for exactly the same regions
+	 * @param matrix Data matrix
+	 * @return Hash
+	 */
+	private static long getRegionHash(RegionDataMatrix matrix) {
+		MessageDigest digest = newDigest();
+		for(int row = 0; row < matrix.getNumRows(); row++) {
+			digest.update(matrix.getRegion(row).toBED().getBytes(StandardCharsets.UTF_8));
+		}
+		return ByteBuffer.wrap(digest.digest()).getLong();
+	}
+
+	private static String hashFile(String file) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder rtrn = new StringBuilder();
+		for(byte b : bytes) {
+			rtrn.append(String.format("%02x", b));
+		}
+		return rtrn.toString();
+	}
+
+}
@@ -0,0 +1,159 @@
+package metagene;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nextgen.core.annotation.Gene;
+
+/**
+ * Dense matrix of data vectors for the regions of one gene component
+ * Row i holds the data vector of the i-th region in iteration order of the region collection
+ * Values are stored in one flat array, allocated when the first row is set
+ * @author prussell
+ *
+ */
+public class RegionDataMatrix {
+
+	private List<Gene> regions;
+	private Map<Gene, Integer> rowByRegion;
+	private int numColumns;
+	private double[] values;
+	private BitSet computed;
+
+	/**
+	 * @param regionSet Regions in the order of matrix rows
+	 */
+	public RegionDataMatrix(Collection<Gene> regionSet) {
+		regions = new ArrayList<Gene>(regionSet);
+		rowByRegion = new TreeMap<Gene, Integer>();
+		for(int i = 0; i < regions.size(); i++) {
+			rowByRegion.put(regions.get(i), Integer.valueOf(i));
+		}
+		numColumns = -1;
+		computed = new BitSet(regions.size());
+	}
+
+	/**
+	 * @return Number of rows
+	 */
+	public int getNumRows() {
+		return regions.size();
+	}
+
+	/**
+	 * @return Number of columns, or -1 if no row has been set
+	 */
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * @param row Row number
+	 * @return The region for the row
+	 */
+	public Gene getRegion(int row) {
+		return regions.get(row);
+	}
+
+	/**
+	 * @param region Region
+	 * @return Row number of the region or -1 if the region is not in the matrix
+	 */
+	public int getRow(Gene region) {
+		Integer row = rowByRegion.get(region);
+		return row == null ? -1 : row.intValue();
+	}
+
+	/**
+	 * @param row Row number
+	 * @return True iff the row has been set
+	 */
+	public synchronized boolean isComputed(int row) {
+		return computed.get(row);
+	}
+
+	/**
+	 * @param row Row number
+	 * @return Copy of the row's data vector
+	 */
+	public synchronized double[] getRowData(int row) {
+		if(!computed.get(row)) {
+			throw new IllegalStateException("Row " + row + " has not been computed.");
+		}
+		double[] rtrn = new double[numColumns];
+		System.arraycopy(values, row * numColumns, rtrn, 0, numColumns);
+		return rtrn;
+	}
+
+	/**
+	 * Add a row to a running total without copying it
+	 * @param row Row number
+	 * @param total Running total; modified
+	 */
+	public synchronized void addRowTo(int row, double[] total) {
+		if(!computed.get(row)) {
+			throw new IllegalStateException("Row " + row + " has not been computed.");
+		}
+		if(total.length != numColumns) {
+			throw new IllegalArgumentException("Arrays must have same size.");
+		}
+		int offset = row * numColumns;
+		for(int i = 0; i < numColumns; i++) {
+			total[i] += values[offset + i];
+		}
+	}
+
+	/**
+	 * @return True iff every row has been set
+	 */
+	public synchronized boolean isComplete() {
+		return computed.cardinality() == regions.size();
+	}
+
+	/**
+	 * Write all values in row order
+	 * @param buffer Buffer to write to
+	 */
+	public synchronized void writeValues(DoubleBuffer buffer) {
+		if(!isComplete()) {
+			throw new IllegalStateException("All rows must be computed.");
+		}
+		if(values != null) {
+			buffer.put(values);
+		}
+	}
+
+	/**
+	 * Set all rows from values in row order
+	 * @param buffer Buffer containing numRows * columns values
+	 * @param columns Number of columns
+	 */
+	public synchronized void readValues(DoubleBuffer buffer, int columns) {
+		numColumns = columns;
+		values = new double[regions.size() * numColumns];
+		buffer.get(values);
+		computed.set(0, regions.size());
+	}
+
+	/**
+	 * @param row Row number
+	 * @param data Data vector; all rows must have the same size
+	 */
+	public synchronized void setRowData(int row, double[] data) {
+		if(numColumns < 0) {
+			numColumns = data.length;
+			values = new double[regions.size() * numColumns];
+		}
+		if(data.length != numColumns) {
+			throw new IllegalArgumentException("All data vectors must have size " + numColumns + ": " + regions.get(row).getName() + " has size " + data.length);
+		}
+		System.arraycopy(data, 0, values, row * numColumns, numColumns);
+		computed.set(row);
+	}
+
+}
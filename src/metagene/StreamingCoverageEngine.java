@@ -0,0 +1,307 @@
+package metagene;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.samtools.AlignmentBlock;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+import org.apache.log4j.Logger;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.Gene;
+
+/**
+ * Computes normalized position coverage for the regions of all gene components in one pass over a coordinate sorted bam file
+ * Regions are sorted by start on each chromosome and swept along with the reads, so reads shared by overlapping regions are read once
+ * Each read's aligned blocks are added to a difference array over the transcript positions of every active region it overlaps;
+ * when the sweep passes the end of a region its coverage is scaled to the normalized size and stored in the component's data matrix
+ * Secondary, supplementary, duplicate and QC failed records and records below the min mapping quality are skipped; reads on both strands are counted
+ * Unlike CoverageByNormalizedPosition, each mate of a pair is counted as a separate read rather than as one fragment,
+ * and reads are not checked for compatibility with the transcript structure, so values are read coverage rather than fragment coverage
+ * @author prussell
+ *
+ */
+public class StreamingCoverageEngine {
+
+	private String bamFile;
+	private int size;
+	private int maxGenomicSpan;
+	private int minMappingQuality;
+	private static Logger logger = Logger.getLogger(StreamingCoverageEngine.class.getName());
+
+	/**
+	 * Reads spanning more than this many bases in the genome are skipped, as with the genomic span filter in CoverageByNormalizedPosition
+	 */
+	private static int DEFAULT_MAX_GENOMIC_SPAN = 300000;
+
+	/**
+	 * @param bam Coordinate sorted bam file
+	 * @param normalizedRegionSize Normalized size for each region
+	 */
+	public StreamingCoverageEngine(String bam, int normalizedRegionSize) {
+		this(bam, normalizedRegionSize, 0);
+	}
+
+	/**
+	 * @param bam Coordinate sorted bam file
+	 * @param normalizedRegionSize Normalized size for each region
+	 * @param minMapQ Min mapping quality of records to count
+	 */
+	public StreamingCoverageEngine(String bam, int normalizedRegionSize, int minMapQ) {
+		bamFile = bam;
+		size = normalizedRegionSize;
+		maxGenomicSpan = DEFAULT_MAX_GENOMIC_SPAN;
+		minMappingQuality = minMapQ;
+	}
+
+	/**
+	 * @return Name and read filter settings, to identify data computed with this engine
+	 */
+	public String getDescription() {
+		return getClass().getSimpleName() + "\tmaxGenomicSpan=" + maxGenomicSpan + "\tminMappingQuality=" + minMappingQuality;
+	}
+
+	/**
+	 * @param record Mapped record
+	 * @return True iff the record passes the read filters and should be counted
+	 */
+	private boolean isCounted(SAMRecord record) {
+		if(record.getNotPrimaryAlignmentFlag() || record.getSupplementaryAlignmentFlag()) {
+			return false;
+		}
+		if(record.getDuplicateReadFlag() || record.getReadFailsVendorQualityCheckFlag()) {
+			return false;
+		}
+		if(record.getMappingQuality() < minMappingQuality) {
+			return false;
+		}
+		return record.getAlignmentEnd() - record.getAlignmentStart() + 1 <= maxGenomicSpan;
+	}
+
+	/**
+	 * A region of one component being filled in by the sweep
+	 */
+	private class RegionTarget {
+
+		private RegionDataMatrix matrix;
+		private int row;
+		private boolean reverse;
+		private int start;
+		private int end;
+		private int[] exonStarts;
+		private int[] exonEnds;
+		private int[] exonOffsets;
+		private int length;
+		private int[] diff;
+
+		RegionTarget(RegionDataMatrix dataMatrix, int matrixRow, boolean reverseIfMinusOrientation) {
+			matrix = dataMatrix;
+			row = matrixRow;
+			Gene region = matrix.getRegion(row);
+			reverse = reverseIfMinusOrientation && region.getOrientation().equals(Strand.NEGATIVE);
+			List<Annotation> exons = new ArrayList<Annotation>(region.getExonSet());
+			Collections.sort(exons, new Comparator<Annotation>() {
+				@Override
+				public int compare(Annotation a1, Annotation a2) {
+					return Integer.compare(a1.getStart(), a2.getStart());
+				}
+			});
+			exonStarts = new int[exons.size()];
+			exonEnds = new int[exons.size()];
+			exonOffsets = new int[exons.size()];
+			length = 0;
+			for(int i = 0; i < exons.size(); i++) {
+				exonStarts[i] = exons.get(i).getStart();
+				exonEnds[i] = exons.get(i).getEnd();
+				exonOffsets[i] = length;
+				length += exonEnds[i] - exonStarts[i];
+			}
+			start = region.getStart();
+			end = region.getEnd();
+		}
+
+		/**
+		 * Add coverage of an aligned block
+		 * @param blockStart Zero based block start
+		 * @param blockEnd Block end, exclusive
+		 */
+		void addBlock(int blockStart, int blockEnd) {
+			if(diff == null) {
+				diff = new int[length + 1];
+			}
+			for(int i = 0; i < exonStarts.length; i++) {
+				if(exonStarts[i] >= blockEnd) {
+					break;
+				}
+				int from = Math.max(blockStart, exonStarts[i]);
+				int to = Math.min(blockEnd, exonEnds[i]);
+				if(from < to) {
+					diff[exonOffsets[i] + from - exonStarts[i]]++;
+					diff[exonOffsets[i] + to - exonStarts[i]]--;
+				}
+			}
+		}
+
+		/**
+		 * Convert accumulated coverage to a normalized data vector and store in the matrix
+		 */
+		void finish() {
+			double[] counts = new double[length];
+			if(diff != null) {
+				int running = 0;
+				for(int i = 0; i < length; i++) {
+					running += diff[i];
+					counts[i] = running;
+				}
+				diff = null;
+			}
+			if(reverse) {
+				Util.reverse(counts);
+			}
+			matrix.setRowData(row, Util.expandOrContractArray(counts, size));
+		}
+
+	}
+
+	/**
+	 * Compute and store the data for every region not yet computed in each matrix
+	 * @param matrices Data matrix by gene component
+	 */
+	public void computeAll(Map<GeneComponent, RegionDataMatrix> matrices) {
+
+		// Sort regions of all components by start on each chromosome
+		Map<String, List<RegionTarget>> targetsByChr = new HashMap<String, List<RegionTarget>>();
+		int numTargets = 0;
+		for(GeneComponent component : matrices.keySet()) {
+			RegionDataMatrix matrix = matrices.get(component);
+			for(int row = 0; row < matrix.getNumRows(); row++) {
+				if(matrix.isComputed(row)) {
+					continue;
+				}
+				String chr = matrix.getRegion(row).getChr();
+				if(!targetsByChr.containsKey(chr)) {
+					targetsByChr.put(chr, new ArrayList<RegionTarget>());
+				}
+				targetsByChr.get(chr).add(new RegionTarget(matrix, row, component.reverseDataIfMinusOrientation()));
+				numTargets++;
+			}
+		}
+		for(List<RegionTarget> targets : targetsByChr.values()) {
+			Collections.sort(targets, new Comparator<RegionTarget>() {
+				@Override
+				public int compare(RegionTarget t1, RegionTarget t2) {
+					return Integer.compare(t1.start, t2.start);
+				}
+			});
+		}
+		logger.info("");
+		logger.info("Computing coverage of " + numTargets + " regions in one pass over " + bamFile + "...");
+
+		SAMFileReader reader = new SAMFileReader(new File(bamFile));
+		if(!reader.getFileHeader().getSortOrder().equals(SortOrder.coordinate)) {
+			reader.close();
+			throw new IllegalArgumentException("Bam file must be sorted by coordinate: " + bamFile);
+		}
+		SAMRecordIterator iter = reader.iterator();
+		String currentChr = null;
+		List<RegionTarget> chrTargets = null;
+		int nextTarget = 0;
+		List<RegionTarget> active = new ArrayList<RegionTarget>();
+		int numRecords = 0;
+		int numFiltered = 0;
+
+		while(iter.hasNext()) {
+			SAMRecord record = iter.next();
+			numRecords++;
+			if(numRecords % 10000000 == 0) {
+				logger.info("Processed " + numRecords + " records.");
+			}
+			if(record.getReadUnmappedFlag()) {
+				continue;
+			}
+			if(!record.getReferenceName().equals(currentChr)) {
+				// Finish everything on the previous chromosome
+				finishAll(active, chrTargets, nextTarget);
+				active.clear();
+				currentChr = record.getReferenceName();
+				chrTargets = targetsByChr.remove(currentChr);
+				nextTarget = 0;
+			}
+			if(chrTargets == null) {
+				continue;
+			}
+			if(!isCounted(record)) {
+				numFiltered++;
+				continue;
+			}
+			int readStart = record.getAlignmentStart() - 1;
+			int readEnd = record.getAlignmentEnd();
+			// Activate regions starting before the end of the read
+			while(nextTarget < chrTargets.size() && chrTargets.get(nextTarget).start < readEnd) {
+				active.add(chrTargets.get(nextTarget));
+				nextTarget++;
+			}
+			// Retire regions ending before the start of the read; later reads start no earlier
+			Iterator<RegionTarget> activeIter = active.iterator();
+			while(activeIter.hasNext()) {
+				RegionTarget target = activeIter.next();
+				if(target.end <= readStart) {
+					target.finish();
+					activeIter.remove();
+				}
+			}
+			if(active.isEmpty()) {
+				continue;
+			}
+			for(AlignmentBlock block : record.getAlignmentBlocks()) {
+				int blockStart = block.getReferenceStart() - 1;
+				int blockEnd = blockStart + block.getLength();
+				for(RegionTarget target : active) {
+					if(target.start < blockEnd && target.end > blockStart) {
+						target.addBlock(blockStart, blockEnd);
+					}
+				}
+			}
+		}
+		iter.close();
+		reader.close();
+
+		finishAll(active, chrTargets, nextTarget);
+		// Regions on chromosomes with no reads
+		for(List<RegionTarget> targets : targetsByChr.values()) {
+			finishAll(Collections.<RegionTarget>emptyList(), targets, 0);
+		}
+		logger.info("Done computing coverage from " + numRecords + " records. Skipped " + numFiltered + " records that did not pass read filters.");
+
+	}
+
+	/**
+	 * Finish active regions and regions that were never activated on the current chromosome
+	 * @param active Active regions
+	 * @param chrTargets Sorted regions on the chromosome or null
+	 * @param nextTarget Index of first region that was not activated
+	 */
+	private static void finishAll(Collection<RegionTarget> active, List<RegionTarget> chrTargets, int nextTarget) {
+		for(RegionTarget target : active) {
+			target.finish();
+		}
+		if(chrTargets != null) {
+			for(int i = nextTarget; i < chrTargets.size(); i++) {
+				chrTargets.get(i).finish();
+			}
+		}
+	}
+
+}
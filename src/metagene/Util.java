@@ -173,6 +173,178 @@ public final class Util {
 		}
 		return rtrn;
 	}
+
+	/**
+	 * Get tab delimited string of all elements in array
+	 * @param array The array
+	 * @return String representation of array, formatted the same as listToString
+	 */
+	public static String arrayToString(double[] array) {
+		StringBuilder rtrn = new StringBuilder();
+		for(double d : array) {
+			rtrn.append(Double.toString(d)).append("\t");
+		}
+		return rtrn.toString();
+	}
+	
+	/**
+	 * Get table representing the array
+	 * First column is array position; second column is value
+	 * @param array Array of values
+	 * @return Table as string with newline characters
+	 */
+	public static String arrayToTableByPos(double[] array) {
+		StringBuilder rtrn = new StringBuilder();
+		for(int i=0; i<array.length; i++) {
+			rtrn.append(i).append("\t").append(Double.toString(array[i])).append("\n");
+		}
+		return rtrn.toString();
+	}
+	
+	/**
+	 * Add an array to a running total in place
+	 * @param total Running total; modified
+	 * @param array Array to add, same size as total
+	 */
+	public static void addTo(double[] total, double[] array) {
+		if(total.length != array.length) {
+			throw new IllegalArgumentException("Arrays must have same size.");
+		}
+		for(int i = 0; i < total.length; i++) {
+			total[i] += array[i];
+		}
+	}
+	
+	/**
+	 * Sum two arrays of equal size
+	 * @param array1 Array 1
+	 * @param array2 Array 2
+	 * @return Array of the sum by position
+	 */
+	public static double[] sum(double[] array1, double[] array2) {
+		double[] rtrn = array1.clone();
+		addTo(rtrn, array2);
+		return rtrn;
+	}
+	
+	/**
+	 * Get the sum of numbers in an array
+	 * @param array The array
+	 * @return The sum
+	 */
+	public static double sum(double[] array) {
+		double rtrn = 0;
+		for(double d : array) {
+			rtrn += d;
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Scale an array to control the sum of elements
+	 * @param array The array
+	 * @param newSum The desired sum
+	 * @return New normalized array
+	 */
+	public static double[] normalizeSum(double[] array, double newSum) {
+		double normalizationFactor = newSum / sum(array);
+		double[] rtrn = new double[array.length];
+		for(int i = 0; i < array.length; i++) {
+			rtrn[i] = array[i] * normalizationFactor;
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Reverse an array in place
+	 * @param array The array
+	 */
+	public static void reverse(double[] array) {
+		for(int i = 0, j = array.length - 1; i < j; i++, j--) {
+			double tmp = array[i];
+			array[i] = array[j];
+			array[j] = tmp;
+		}
+	}
+	
+	/**
+	 * Contract or expand an array to a specified size by averaging over multiple entries
+	 * Gives the same result as expandOrContractList without building a map of normalized positions
+	 * @param array The array to scale
+	 * @param resultSize The desired size
+	 * @return Array of the desired size that represents a smoothing of the original array; the original array if it already has the desired size
+	 */
+	public static double[] expandOrContractArray(double[] array, int resultSize) {
+		
+		if(array.length == resultSize) {
+			return array;
+		}
+		int n = array.length;
+		if(n == 0) {
+			throw new IllegalStateException("No previous or next key for normalized position 0");
+		}
+		
+		// Normalized position of each element relative to the result size, computed as in expandOrContractList
+		double[] normalizedPos = new double[n];
+		for(int k = 0; k < n; k++) {
+			normalizedPos[k] = resultSize * ((double)k / (double)n);
+		}
+		
+		double[] rtrn = new double[resultSize];
+		// First element with normalized position at least i
+		int first = 0;
+		for(int i=0; i<resultSize; i++) {
+			while(first < n && normalizedPos[first] < i) {
+				first++;
+			}
+			// Elements with normalized position between i and i+1 inclusive
+			int last = first;
+			double total = 0;
+			while(last < n && normalizedPos[last] <= i + 1) {
+				total += array[last];
+				last++;
+			}
+			if(last > first) {
+				rtrn[i] = total / (last - first);
+			} else if(first == 0) {
+				// If there is no previous element use the next element
+				rtrn[i] = array[first];
+			} else if(first == n) {
+				// If there is no next element use the previous element
+				rtrn[i] = array[n - 1];
+			} else {
+				// If there are both use the average of previous and next
+				rtrn[i] = (array[first - 1] + array[first]) / 2;
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Unbox a list of values
+	 * @param list The list
+	 * @return Array with the same values
+	 */
+	public static double[] toArray(List<Double> list) {
+		double[] rtrn = new double[list.size()];
+		for(int i = 0; i < rtrn.length; i++) {
+			rtrn[i] = list.get(i).doubleValue();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Box an array of values
+	 * @param array The array
+	 * @return List with the same values
+	 */
+	public static List<Double> toList(double[] array) {
+		List<Double> rtrn = new ArrayList<Double>(array.length);
+		for(double d : array) {
+			rtrn.add(Double.valueOf(d));
+		}
+		return rtrn;
+	}
 	
 
 }
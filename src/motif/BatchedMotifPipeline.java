@@ -57,7 +57,7 @@ public class BatchedMotifPipeline extends MotifPipeline {
 		p.addStringArg("-de", "Description", true);
 		p.addDoubleArg("-a", "Fimo alpha option: expected proportion of sequences with the motif", true);
 		p.addDoubleArg("-q", "Q value threshold", true);
-		p.addStringArg("-s", "Scheduler e.g. LSF or OGS", true);
+		p.addStringArg("-s", "Scheduler e.g. LSF, OGS or " + LocalJobExecutor.SCHEDULER_NAME, true);
 		p.parse(args);
 		String geneBed = p.getStringArg("-gb");
 		String featureBed = p.getStringArg("-fb");
@@ -67,6 +67,24 @@ public class BatchedMotifPipeline extends MotifPipeline {
 		String fimoExecutable = p.getStringArg("-f");
 		double alpha = p.getDoubleArg("-a");
 		double qvalThresh = p.getDoubleArg("-q");
+		
+		if(LocalJobExecutor.isLocal(p.getStringArg("-s"))) {
+			// Already running as a local job; run the steps in this process one at a time
+			LocalJobExecutor executor = new LocalJobExecutor(1, 8);
+			try {
+				BatchedMotifPipeline m = new BatchedMotifPipeline(geneBed, featureBed, genomeFasta, null);
+				if(dremeExecutable != null) {
+					m.runDremeLocally(dremeExecutable, DremeJob.ADDITIONAL_OPTIONS, description, 8, executor).join();
+				}
+				if(fimoExecutable != null) {
+					m.runFimoLocally(fimoExecutable, alpha, qvalThresh, FimoJob.ADDITIONAL_OPTIONS, description, 4, executor).join();
+				}
+			} finally {
+				executor.shutdown();
+			}
+			return;
+		}
+		
 		Scheduler scheduler = Scheduler.fromString(p.getStringArg("-s"));
 
 		Session drmaaSession = scheduler.equals(Scheduler.OGS) ? OGSUtils.getDrmaaSession() : null;
@@ -0,0 +1,117 @@
+/**
+ *
+ */
+package motif;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shared pool of buffered writers for bed tracks in one output directory
+ * At most a fixed number of files are open at once; the least recently used file is closed when another is needed
+ * A track is overwritten the first time it is written by the pool and appended to if it is reopened later
+ * @author prussell
+ *
+ */
+public class BedTrackWriterPool {
+
+	private String outDir;
+	private int maxOpenFiles;
+	private LinkedHashMap<String, BufferedWriter> openWriters;
+	private Set<String> startedTracks;
+	private static Logger logger = Logger.getLogger(BedTrackWriterPool.class.getName());
+
+	/**
+	 * Default maximum number of open files
+	 */
+	public static int DEFAULT_MAX_OPEN_FILES = 256;
+
+	/**
+	 * @param outputDir Output directory for bed files
+	 * @throws IOException
+	 */
+	public BedTrackWriterPool(String outputDir) throws IOException {
+		this(outputDir, DEFAULT_MAX_OPEN_FILES);
+	}
+
+	/**
+	 * @param outputDir Output directory for bed files
+	 * @param maxOpen Maximum number of files to keep open at once
+	 * @throws IOException
+	 */
+	public BedTrackWriterPool(String outputDir, int maxOpen) throws IOException {
+		if(maxOpen < 1) {
+			throw new IllegalArgumentException("Max open files must be positive: " + maxOpen);
+		}
+		File dir = new File(outputDir);
+		@SuppressWarnings("unused")
+		boolean madeDir = dir.mkdirs();
+		if(!dir.exists()) {
+			throw new IOException("Could not create directory " + outputDir);
+		}
+		outDir = outputDir;
+		maxOpenFiles = maxOpen;
+		openWriters = new LinkedHashMap<String, BufferedWriter>(16, 0.75f, true);
+		startedTracks = new HashSet<String>();
+	}
+
+	/**
+	 * @param trackName Track name
+	 * @return Bed file the track is written to
+	 */
+	public String getBedFileName(String trackName) {
+		return outDir + "/" + trackName + ".bed";
+	}
+
+	/**
+	 * Write one line to a track
+	 * @param trackName Track name; the file name is the track name plus .bed
+	 * @param line Line to write, without the newline
+	 * @throws IOException
+	 */
+	public synchronized void write(String trackName, String line) throws IOException {
+		BufferedWriter w = openWriters.get(trackName);
+		if(w == null) {
+			w = open(trackName);
+		}
+		w.write(line);
+		w.newLine();
+	}
+
+	private BufferedWriter open(String trackName) throws IOException {
+		if(openWriters.size() >= maxOpenFiles) {
+			Iterator<Map.Entry<String, BufferedWriter>> iter = openWriters.entrySet().iterator();
+			Map.Entry<String, BufferedWriter> eldest = iter.next();
+			eldest.getValue().close();
+			iter.remove();
+		}
+		boolean append = !startedTracks.add(trackName);
+		if(!append) {
+			logger.info("Writing bed track " + getBedFileName(trackName));
+		}
+		BufferedWriter w = new BufferedWriter(new FileWriter(getBedFileName(trackName), append));
+		openWriters.put(trackName, w);
+		return w;
+	}
+
+	/**
+	 * Close all open files
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		for(BufferedWriter w : openWriters.values()) {
+			w.close();
+		}
+		openWriters.clear();
+	}
+
+}
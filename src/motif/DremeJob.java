@@ -3,7 +3,9 @@
  */
 package motif;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import org.ggf.drmaa.DrmaaException;
 import org.ggf.drmaa.Session;
@@ -128,12 +130,7 @@ public class DremeJob {
 	public Job submitJob(String queue, int memoryRequest, Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
 		lsfJobID = description + "_" + System.currentTimeMillis();
 		String bsubOut = outDir + "/" + lsfJobID + ".bsub";
-		String command = "python " + executable + " ";
-		command += "-oc " + outDir + " ";
-		command += "-p " + positiveSeqFasta + " ";
-		command += "-n " + negativeSeqFasta + " ";
-		command += "-desc " + description + " ";
-		command += addlOptions;
+		String command = getCommand();
 		
 		switch(scheduler) {
 		case LSF:
@@ -149,5 +146,27 @@ public class DremeJob {
 		}
 	}
 	
+	/**
+	 * Run the job as a local process
+	 * @param executor Local executor
+	 * @param memoryRequest Memory request in gigabytes
+	 * @return Future exit code
+	 */
+	public CompletableFuture<Integer> runLocally(LocalJobExecutor executor, int memoryRequest) {
+		lsfJobID = description + "_" + System.currentTimeMillis();
+		new File(outDir).mkdirs();
+		String out = outDir + "/" + lsfJobID + ".out";
+		return executor.submit(lsfJobID, getCommand(), out, memoryRequest);
+	}
+	
+	private String getCommand() {
+		String command = "python " + executable + " ";
+		command += "-oc " + outDir + " ";
+		command += "-p " + positiveSeqFasta + " ";
+		command += "-n " + negativeSeqFasta + " ";
+		command += "-desc " + description + " ";
+		command += addlOptions;
+		return command;
+	}
 	
 }
@@ -9,9 +9,7 @@ import guttmanlab.core.util.StringParser;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
@@ -29,10 +27,14 @@ import nextgen.core.annotation.Gene;
 public class Fimo2Bed {
 
 	protected Map<String, Gene> genes;
-	private Map<String, Collection<MotifOccurrence>> motifs;
 	protected static Logger logger = Logger.getLogger(Fimo2Bed.class.getName());
 	
-	private Fimo2Bed(String fimoTxtFile, String bedFile) throws IOException {
+	/**
+	 * Load the genes once so any number of fimo.txt files can be converted against them
+	 * @param bedFile Bed file of the sequences FIMO was run on
+	 * @throws IOException
+	 */
+	public Fimo2Bed(String bedFile) throws IOException {
 		Map<String, Collection<Gene>> genesByChr = BEDFileParser.loadDataByChr(new File(bedFile));
 		genes = new TreeMap<String, Gene>();
 		for(String chr : genesByChr.keySet()) {
@@ -40,7 +42,17 @@ public class Fimo2Bed {
 				genes.put(gene.getName(), gene);
 			}
 		}
-		motifs = new TreeMap<String, Collection<MotifOccurrence>>();
+	}
+	
+	/**
+	 * Convert a fimo.txt file to one bed track per motif in a single pass
+	 * Occurrences are written as they are read, so the fimo file is never held in memory
+	 * @param fimoTxtFile fimo.txt file
+	 * @param identifier Identifier to prepend to bed file names
+	 * @param writers Writer pool for the output directory
+	 * @throws IOException
+	 */
+	public void writeBedTracks(String fimoTxtFile, String identifier, BedTrackWriterPool writers) throws IOException {
 		FileReader r = new FileReader(fimoTxtFile);
 		BufferedReader b = new BufferedReader(r);
 		StringParser s = new StringParser();
@@ -51,57 +63,28 @@ public class Fimo2Bed {
 			}
 			s.parse(line);
 			String motif = s.asString(0);
-			if(!motifs.containsKey(motif)) {
-				Collection<MotifOccurrence> motifOccurrences = new ArrayList<MotifOccurrence>();
-				motifs.put(motif, motifOccurrences);
-			}
 			String geneName = s.asString(1);
+			if(!genes.containsKey(geneName)) {
+				logger.warn("Couldn't find gene " + geneName);
+				continue;
+			}
 			int geneStart = s.asInt(2);
 			int geneEnd = s.asInt(3);
-			@SuppressWarnings("unused")
-			double pVal = s.asDouble(6);
 			double qVal = s.asDouble(7);
 			String sequence = s.asString(8);
-			try {
-				MotifOccurrence motifOccurrence = new MotifOccurrence(geneName, geneStart, geneEnd, qVal, sequence);
-				motifs.get(motif).add(motifOccurrence);
-			} catch (Exception e) {
-				logger.warn("Couldn't find gene " + geneName);
-				continue;
-			}
+			MotifOccurrence motifOccurrence = new MotifOccurrence(genes.get(geneName), geneStart, geneEnd, qVal, sequence);
+			Gene motifGenomicCoords = motifOccurrence.getMotifGenomicCoords();
+			motifGenomicCoords.setName(motifOccurrence.toString());
+			writers.write(identifier + "_" + motif, motifGenomicCoords.toBED(53, 146, 192));
 		}
 		r.close();
 		b.close();
 	}
 	
-	private void writeBedTracks(String outputDir, String identifier) throws IOException {
-		logger.info("Writing bed tracks in directory " + outputDir);
-		File outDir = new File(outputDir);
-		@SuppressWarnings("unused")
-		boolean madeDir = outDir.mkdir();
-		if(!outDir.exists()) {
-			throw new IOException("Could not create directory " + outputDir);
-		}
-		for(String motif : motifs.keySet()) {
-			logger.info(motif);
-			String bedFile = outputDir + "/" + identifier + "_" + motif + ".bed";
-			FileWriter w = new FileWriter(bedFile);
-			for(MotifOccurrence motifOccurrence : motifs.get(motif)) {
-				Gene motifGenomicCoords = motifOccurrence.getMotifGenomicCoords();
-				motifGenomicCoords.setName(motifOccurrence.toString());
-				w.write(motifGenomicCoords.toBED(53, 146, 192) + "\n");
-			}
-			w.close();
-		}
-	}
-	
-	private class MotifOccurrence {
+	private static class MotifOccurrence {
 
-		public MotifOccurrence(String geneName, int start, int end, double qVal, String seq) {
-			if(!genes.containsKey(geneName)) {
-				throw new IllegalArgumentException("Gene " + geneName + " not recognized.");
-			}
-			gene = genes.get(geneName);
+		public MotifOccurrence(Gene parent, int start, int end, double qVal, String seq) {
+			gene = parent;
 			geneStart = start;
 			geneEnd = end;
 			qValue = qVal;
@@ -109,17 +92,10 @@ public class Fimo2Bed {
 		}
 		
 		public Gene getMotifGenomicCoords() {
-			/*if(gene.getOrientation().equals(Strand.POSITIVE)) {
-				return gene.trimAbsolute(gene.getReferenceCoordinateAtPosition(geneStart-1), gene.getReferenceCoordinateAtPosition(geneEnd));
-			}
-			if(gene.getOrientation().equals(Strand.NEGATIVE)) {
-				return gene.trimAbsolute(gene.getReferenceCoordinateAtPosition(geneEnd), gene.getReferenceCoordinateAtPosition(geneStart-1));
-			}
-			throw new IllegalStateException("Gene must have orientation (" + gene.getName() + ").");*/
 			int deltaStart = geneStart - 1;
 			int deltaEnd = gene.getSize() - geneEnd;
 			Gene copy = gene.copy();
-			logger.info("Gene size " + gene.getSize() + " gene start " + geneStart + " gene end " + geneEnd + " delta start " + deltaStart + " delta end " + deltaEnd);
+			logger.debug("Gene size " + gene.getSize() + " gene start " + geneStart + " gene end " + geneEnd + " delta start " + deltaStart + " delta end " + deltaEnd);
 			copy.trim(deltaStart, deltaEnd);
 			return copy;
 		}
@@ -154,8 +130,11 @@ public class Fimo2Bed {
 		String outDir = p.getStringArg("-o");
 		String id = p.getStringArg("-id");
 		
-		Fimo2Bed ftb = new Fimo2Bed(fimoFile, bedFile);
-		ftb.writeBedTracks(outDir, id);
+		Fimo2Bed ftb = new Fimo2Bed(bedFile);
+		logger.info("Writing bed tracks in directory " + outDir);
+		BedTrackWriterPool writers = new BedTrackWriterPool(outDir);
+		ftb.writeBedTracks(fimoFile, id, writers);
+		writers.close();
 		
 
 	}
@@ -4,6 +4,7 @@
 package motif;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import org.ggf.drmaa.DrmaaException;
 import org.ggf.drmaa.Session;
@@ -53,11 +54,7 @@ public class Fimo2BedJob {
 	 * @throws DrmaaException 
 	 */
 	public Job submitJob(Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
-		String cmmd = "java -jar -Xmx3g -Xms2g -Xmn1g " + fimo2bedJar + " ";
-		cmmd += "-b " + bedAnnotation + " ";
-		cmmd += "-f " + fimoFile + " ";
-		cmmd += "-id " + id + " ";
-		cmmd += "-o " + outDir + " ";
+		String cmmd = getCommand();
 		switch(scheduler) {
 		case LSF:
 			String lsfJobID = id + "_" + System.currentTimeMillis();
@@ -74,4 +71,24 @@ public class Fimo2BedJob {
 		}
 	}
 	
+	/**
+	 * Run the job as a local process
+	 * @param executor Local executor
+	 * @return Future exit code
+	 */
+	public CompletableFuture<Integer> runLocally(LocalJobExecutor executor) {
+		String jobID = id + "_" + System.currentTimeMillis();
+		String out = outDir + "/fimo_to_bed_" + jobID + ".out";
+		return executor.submit(jobID, getCommand(), out, 4);
+	}
+	
+	private String getCommand() {
+		String cmmd = "java -jar -Xmx3g -Xms2g -Xmn1g " + fimo2bedJar + " ";
+		cmmd += "-b " + bedAnnotation + " ";
+		cmmd += "-f " + fimoFile + " ";
+		cmmd += "-id " + id + " ";
+		cmmd += "-o " + outDir + " ";
+		return cmmd;
+	}
+	
 }
@@ -3,7 +3,9 @@
  */
 package motif;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import org.ggf.drmaa.DrmaaException;
 import org.ggf.drmaa.Session;
@@ -128,13 +130,7 @@ where seq-name is the name of the sequence, starting pos. is the index of the fi
 	public Job submitJob(String queue, int memoryRequest, Scheduler scheduler, Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
 		lsfJobID = description + "_" + System.currentTimeMillis();
 		String bsubOut = outputDir + "/" + lsfJobID + ".bsub";
-		String command = executable + " ";
-		command += "-oc " + outputDir + " ";
-		command += "-alpha " + alpha + " ";
-		command += "--qv-thresh --thresh " + qvalThreshold + " ";
-		command += additionalOptions + " ";
-		command += motifFile + " ";
-		command += sequenceFasta;
+		String command = getCommand();
 		switch(scheduler) {
 		case LSF:
 			LSFJob job = new LSFJob(Runtime.getRuntime(), lsfJobID, command, bsubOut, queue, memoryRequest);
@@ -149,5 +145,28 @@ where seq-name is the name of the sequence, starting pos. is the index of the fi
 		}
 	}
 	
+	/**
+	 * Run the job as a local process
+	 * @param executor Local executor
+	 * @param memoryRequest Memory request in gigabytes
+	 * @return Future exit code
+	 */
+	public CompletableFuture<Integer> runLocally(LocalJobExecutor executor, int memoryRequest) {
+		lsfJobID = description + "_" + System.currentTimeMillis();
+		new File(outputDir).mkdirs();
+		String out = outputDir + "/" + lsfJobID + ".out";
+		return executor.submit(lsfJobID, getCommand(), out, memoryRequest);
+	}
+	
+	private String getCommand() {
+		String command = executable + " ";
+		command += "-oc " + outputDir + " ";
+		command += "-alpha " + alpha + " ";
+		command += "--qv-thresh --thresh " + qvalThreshold + " ";
+		command += additionalOptions + " ";
+		command += motifFile + " ";
+		command += sequenceFasta;
+		return command;
+	}
 	
 }
@@ -49,9 +49,33 @@ public class FimoPipeline {
 		logger.info("Done running FIMO.");
 	}
 	
+	/**
+	 * Scan the sequences with the native position weight matrix scanner instead of the FIMO executable
+	 * @param sequenceFasta Sequence fasta file
+	 * @param motifXml Motif xml file
+	 * @param qvalueThreshold Q value threshold
+	 * @param numThreads Number of threads
+	 * @throws IOException
+	 */
+	private void runNativeScanner(String sequenceFasta, String motifXml, double qvalueThreshold, int numThreads) throws IOException {
+		logger.info("");
+		logger.info("Running native motif scanner...");
+		// Scan given strand only, as with FIMO option --norc
+		PwmScanner scanner = new PwmScanner(motifXml, false, numThreads);
+		scanner.scanAndWrite(sequenceFasta, qvalueThreshold, outDir);
+		logger.info("Done running native motif scanner.");
+	}
+	
 	private void runFimo2Bed(String bedAnnotation, String fimo2BedJar, Scheduler scheduler) throws IOException, InterruptedException, DrmaaException {
 		logger.info("");
 		logger.info("Running Fimo2Bed...");
+		if(fimo2BedJar == null) {
+			BedTrackWriterPool writers = new BedTrackWriterPool(outDir);
+			new Fimo2Bed(bedAnnotation).writeBedTracks(fimoTxtFile, jobDescription, writers);
+			writers.close();
+			logger.info("Done running Fimo2Bed.");
+			return;
+		}
 		Fimo2BedJob f2b = new Fimo2BedJob(fimoTxtFile, bedAnnotation, jobDescription, outDir, fimo2BedJar, scheduler);
 		Job job = f2b.submitJob(session);
 		logger.info("Waiting for Fimo2Bed job to finish...");
@@ -68,7 +92,7 @@ public class FimoPipeline {
 	public static void main(String[] args) throws IOException, InterruptedException, DrmaaException {
 		
 		CommandLineParser p = new CommandLineParser();
-		p.addStringArg("-fe", "Fimo executable file", true);
+		p.addStringArg("-fe", "Fimo executable file; if not provided, motifs are scanned in this process", false, null);
 		p.addStringArg("-sf", "Sequence fasta file", true);
 		p.addStringArg("-mx", "Motif xml file", true);
 		p.addDoubleArg("-fa", "Fimo alpha option", true);
@@ -76,10 +100,11 @@ public class FimoPipeline {
 		p.addStringArg("-q", "LSF queue", false, "hour");
 		p.addIntArg("-mr", "Memory request", false, 4);
 		p.addStringArg("-ba", "Bed annotation", true);
-		p.addStringArg("-f2b", "Fimo2Bed jar file", true);
+		p.addStringArg("-f2b", "Fimo2Bed jar file; if not provided, FIMO output is converted to bed in this process", false, null);
 		p.addStringArg("-d", "Description", true);
 		p.addStringArg("-o", "Output directory", true);
 		p.addStringArg("-s", "Scheduler e.g. LSF or OGS", true);
+		p.addIntArg("-t", "Number of threads for native motif scanner if not using Fimo executable", false, Runtime.getRuntime().availableProcessors());
 		p.parse(args);
 		String fimoExecutable = p.getStringArg("-fe");
 		String sequenceFasta = p.getStringArg("-sf");
@@ -97,7 +122,11 @@ public class FimoPipeline {
 		Session drmaaSession = scheduler.equals(Scheduler.OGS) ? OGSUtils.getDrmaaSession() : null;
 		
 		FimoPipeline fp = new FimoPipeline(description, outDirectory, drmaaSession);
-		fp.runFimo(fimoExecutable, sequenceFasta, motifXml, fimoOptionAlpha, fimoOptionQvalueThreshold, FimoJob.ADDITIONAL_OPTIONS, queue, memoryRequest, scheduler);
+		if(fimoExecutable == null) {
+			fp.runNativeScanner(sequenceFasta, motifXml, fimoOptionQvalueThreshold, p.getIntArg("-t"));
+		} else {
+			fp.runFimo(fimoExecutable, sequenceFasta, motifXml, fimoOptionAlpha, fimoOptionQvalueThreshold, FimoJob.ADDITIONAL_OPTIONS, queue, memoryRequest, scheduler);
+		}
 		fp.runFimo2Bed(bedAnnotation, fimo2BedJar, scheduler);
 		
 		logger.info("");
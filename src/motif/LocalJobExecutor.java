@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package motif;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs pipeline commands as local processes instead of submitting them to LSF or OGS
+ * Jobs are executed by a fixed thread pool and each job reserves its memory request from a shared budget before it starts
+ * Each job is returned as a future, so later stages can be chained onto it without waiting for all jobs to finish;
+ * the future fails if the process exits with a non-zero code
+ * @author prussell
+ *
+ */
+public class LocalJobExecutor {
+
+	private ExecutorService pool;
+	private Semaphore memory;
+	private int totalMemory;
+	private static Logger logger = Logger.getLogger(LocalJobExecutor.class.getName());
+
+	/**
+	 * Scheduler name to pass on the command line to run jobs locally
+	 */
+	public static final String SCHEDULER_NAME = "LOCAL";
+
+	/**
+	 * @param numThreads Maximum number of jobs to run at once
+	 * @param memoryBudget Total memory in gigabytes available to all running jobs
+	 */
+	public LocalJobExecutor(int numThreads, int memoryBudget) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+		}
+		if(memoryBudget < 1) {
+			throw new IllegalArgumentException("Memory budget must be positive: " + memoryBudget);
+		}
+		pool = Executors.newFixedThreadPool(numThreads);
+		totalMemory = memoryBudget;
+		memory = new Semaphore(memoryBudget, true);
+		logger.info("Running jobs locally with " + numThreads + " threads and " + memoryBudget + "Gb of memory.");
+	}
+
+	/**
+	 * @param schedulerName Scheduler name from the command line
+	 * @return True iff the name requests local execution
+	 */
+	public static boolean isLocal(String schedulerName) {
+		return SCHEDULER_NAME.equalsIgnoreCase(schedulerName);
+	}
+
+	/**
+	 * Run a command as a local process once a thread and enough memory are available
+	 * @param jobID Job ID for logging
+	 * @param command Command; arguments are separated by whitespace
+	 * @param outFile File to write standard out and standard error to
+	 * @param memoryRequest Memory request in gigabytes; requests larger than the budget use the whole budget
+	 * @return Future exit code of the process, which is always zero; the future fails with a CompletionException if the process exits with a non-zero code
+	 */
+	public CompletableFuture<Integer> submit(final String jobID, final String command, final String outFile, int memoryRequest) {
+		final int reserve = Math.max(1, Math.min(memoryRequest, totalMemory));
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return run(jobID, command, outFile, reserve);
+			} catch (IOException | InterruptedException e) {
+				throw new CompletionException(e);
+			}
+		}, pool);
+	}
+
+	private int run(String jobID, String command, String outFile, int reserve) throws IOException, InterruptedException {
+		memory.acquire(reserve);
+		try {
+			logger.debug("Starting job " + jobID + ": " + command);
+			ProcessBuilder pb = new ProcessBuilder(command.trim().split("\\s+"));
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(new File(outFile));
+			Process process = pb.start();
+			int exitCode = process.waitFor();
+			if(exitCode != 0) {
+				throw new CompletionException(new IllegalStateException("Job " + jobID + " exited with code " + exitCode + ". See " + outFile));
+			}
+			logger.debug("Finished job " + jobID);
+			return exitCode;
+		} finally {
+			memory.release(reserve);
+		}
+	}
+
+	/**
+	 * Stop accepting jobs and wait for running jobs to finish
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+}
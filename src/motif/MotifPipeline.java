@@ -13,7 +13,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.apache.log4j.Logger;
 import org.ggf.drmaa.DrmaaException;
@@ -28,6 +33,7 @@ import guttmanlab.core.pipeline.LSFJob;
 import guttmanlab.core.pipeline.OGSJob;
 import guttmanlab.core.pipeline.Scheduler;
 import broad.core.math.EmpiricalDistribution;
+import broad.core.sequence.Sequence;
 import broad.pda.annotation.BEDFileParser;
 import nextgen.core.annotation.Gene;
 import nextgen.core.pipeline.util.OGSUtils;
@@ -64,8 +70,12 @@ public class MotifPipeline {
 	private static double DEFAULT_FIMO_QVAL_THRESHOLD = 0.05;
 
 	private static Logger logger = Logger.getLogger(MotifPipeline.class.getName());
-	private ArrayList<String> dremeJobDescriptions;
-	private ArrayList<String> fimoJobDescriptions;
+	private List<String> dremeJobDescriptions;
+	private List<String> fimoJobDescriptions;
+	private Fimo2Bed geneBedConverter;
+	private BedTrackWriterPool fimoBedWriters;
+	private MotifResultCache resultCache;
+	private Map<String, PendingCacheEntry> pendingCacheEntries;
 
 	/**
 	 * @param geneBedFile Bed file of genes
@@ -89,8 +99,10 @@ public class MotifPipeline {
 		File d4 = new File(FIMO_DIR);
 		@SuppressWarnings("unused")
 		boolean madeDir4 = d4.mkdir();
-		dremeJobDescriptions = new ArrayList<String>();
-		fimoJobDescriptions = new ArrayList<String>();
+		// Local job chains add descriptions from pool threads
+		dremeJobDescriptions = Collections.synchronizedList(new ArrayList<String>());
+		fimoJobDescriptions = Collections.synchronizedList(new ArrayList<String>());
+		pendingCacheEntries = new TreeMap<String, PendingCacheEntry>();
 
 		// Load genes, features and genome
 		logger.info("");
@@ -300,16 +312,8 @@ public class MotifPipeline {
 	 * @throws DrmaaException 
 	 */
 	private Job submitDremeOnGene(Gene gene, String dremeExecutable, String batchedMotifPipelineJar, Scheduler scheduler, Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
-		String cmmd = "java -jar -Xmx14g -Xms10g -Xmn8g ";
-		cmmd += batchedMotifPipelineJar + " ";
-		cmmd += "-gb " + getIndividualGeneBedFileName(gene) + " ";
-		cmmd += "-fb " + getIndividualGeneOverlappingFeaturesBedFileName(gene) + " ";
-		cmmd += "-g " + genomeFasta + " ";
-		cmmd += "-d " + dremeExecutable + " ";
-		cmmd += "-a " + ESTIMATE_FIMO_ALPHA_INDIVIDUAL_GENE + " ";
-		cmmd += "-q " + DEFAULT_FIMO_QVAL_THRESHOLD + " ";
+		String cmmd = getDremeOnGeneCommand(gene, dremeExecutable, batchedMotifPipelineJar);
 		String description = getJobDescription(gene);
-		cmmd += "-de " + description + " ";
 		dremeJobDescriptions.add(description);
 		String jobID = "dreme_" + description + "_" + System.currentTimeMillis();
 		switch(scheduler) {
@@ -329,6 +333,26 @@ public class MotifPipeline {
 		}
 	}
 	
+	/**
+	 * Command to run BatchedMotifPipeline with DREME on features within one gene, without the scheduler option
+	 * @param gene The gene
+	 * @param dremeExecutable DREME executable
+	 * @param batchedMotifPipelineJar BatchedMotifPipeline jar file
+	 * @return The command
+	 */
+	private String getDremeOnGeneCommand(Gene gene, String dremeExecutable, String batchedMotifPipelineJar) {
+		String cmmd = "java -jar -Xmx14g -Xms10g -Xmn8g ";
+		cmmd += batchedMotifPipelineJar + " ";
+		cmmd += "-gb " + getIndividualGeneBedFileName(gene) + " ";
+		cmmd += "-fb " + getIndividualGeneOverlappingFeaturesBedFileName(gene) + " ";
+		cmmd += "-g " + genomeFasta + " ";
+		cmmd += "-d " + dremeExecutable + " ";
+		cmmd += "-a " + ESTIMATE_FIMO_ALPHA_INDIVIDUAL_GENE + " ";
+		cmmd += "-q " + DEFAULT_FIMO_QVAL_THRESHOLD + " ";
+		cmmd += "-de " + getJobDescription(gene) + " ";
+		return cmmd;
+	}
+	
 	/**
 	 * Get job description for gene
 	 * @param gene Gene
@@ -351,16 +375,8 @@ public class MotifPipeline {
 	 * @throws DrmaaException 
 	 */
 	private Job submitFimoOnGene(Gene gene, String fimoExecutable, double fimoOptionAlpha, double qvalThreshold, String batchedMotifPipelineJar, Scheduler scheduler, Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
-		String cmmd = "java -jar -Xmx3g -Xms2g -Xmn1g ";
-		cmmd += batchedMotifPipelineJar + " ";
-		cmmd += "-f " + fimoExecutable + " ";
-		cmmd += "-gb " + getIndividualGeneBedFileName(gene) + " ";
-		cmmd += "-fb " + getIndividualGeneOverlappingFeaturesBedFileName(gene) + " ";
-		cmmd += "-g " + genomeFasta + " ";
-		cmmd += "-a " + fimoOptionAlpha + " ";
-		cmmd += "-q " + qvalThreshold + " ";
+		String cmmd = getFimoOnGeneCommand(gene, fimoExecutable, fimoOptionAlpha, qvalThreshold, batchedMotifPipelineJar);
 		String description = getJobDescription(gene);
-		cmmd += "-de " + description + " ";
 		fimoJobDescriptions.add(description);
 		String jobID = "fimo_" + description + "_" + System.currentTimeMillis();
 		switch(scheduler) {
@@ -380,6 +396,188 @@ public class MotifPipeline {
 		}
 	}
 	
+	/**
+	 * Command to run BatchedMotifPipeline with FIMO on motifs found within one gene, without the scheduler option
+	 * @param gene The gene
+	 * @param fimoExecutable Fimo executable
+	 * @param fimoOptionAlpha Expected proportion of sequences with the motif
+	 * @param qvalThreshold Q value threshold
+	 * @param batchedMotifPipelineJar BatchedMotifPipeline jar file
+	 * @return The command
+	 */
+	private String getFimoOnGeneCommand(Gene gene, String fimoExecutable, double fimoOptionAlpha, double qvalThreshold, String batchedMotifPipelineJar) {
+		String cmmd = "java -jar -Xmx3g -Xms2g -Xmn1g ";
+		cmmd += batchedMotifPipelineJar + " ";
+		cmmd += "-f " + fimoExecutable + " ";
+		cmmd += "-gb " + getIndividualGeneBedFileName(gene) + " ";
+		cmmd += "-fb " + getIndividualGeneOverlappingFeaturesBedFileName(gene) + " ";
+		cmmd += "-g " + genomeFasta + " ";
+		cmmd += "-a " + fimoOptionAlpha + " ";
+		cmmd += "-q " + qvalThreshold + " ";
+		cmmd += "-de " + getJobDescription(gene) + " ";
+		return cmmd;
+	}
+	
+	/**
+	 * Use a persistent cache of per-gene DREME and FIMO results
+	 * @param cache The cache
+	 */
+	public void setResultCache(MotifResultCache cache) {
+		resultCache = cache;
+	}
+	
+	/**
+	 * Cache key for DREME on features within one gene
+	 * @param gene The gene
+	 * @param dremeExecutable DREME executable
+	 * @return The key or null if not using a cache
+	 * @throws IOException
+	 */
+	private String getDremeOnGeneCacheKey(Gene gene, String dremeExecutable) throws IOException {
+		if(resultCache == null) {
+			return null;
+		}
+		ArrayList<String> inputs = new ArrayList<String>();
+		inputs.add(getIndividualGeneBedFileName(gene));
+		inputs.add(getIndividualGeneOverlappingFeaturesBedFileName(gene));
+		String options = DremeJob.ADDITIONAL_OPTIONS + "\t" + MotifResultCache.getFingerprint(genomeFasta);
+		return MotifResultCache.getKey(inputs, dremeExecutable, options);
+	}
+	
+	/**
+	 * Cache key for FIMO on motifs found within one gene
+	 * @param gene The gene
+	 * @param fimoExecutable Fimo executable
+	 * @return The key or null if not using a cache
+	 * @throws IOException
+	 */
+	private String getFimoOnGeneCacheKey(Gene gene, String fimoExecutable) throws IOException {
+		if(resultCache == null) {
+			return null;
+		}
+		ArrayList<String> inputs = new ArrayList<String>();
+		inputs.add(getIndividualGeneBedFileName(gene));
+		inputs.add(getIndividualGeneOverlappingFeaturesBedFileName(gene));
+		inputs.add(getMotifFile(getJobDescription(gene)));
+		String options = FimoJob.ADDITIONAL_OPTIONS + "\t" + ESTIMATE_FIMO_ALPHA_INDIVIDUAL_GENE + "\t" + DEFAULT_FIMO_QVAL_THRESHOLD + "\t" + MotifResultCache.getFingerprint(genomeFasta);
+		return MotifResultCache.getKey(inputs, fimoExecutable, options);
+	}
+	
+	/**
+	 * An output directory waiting to be cached once its job has finished
+	 */
+	private static class PendingCacheEntry {
+		String key;
+		String expectedOutputFile;
+		Job job;
+		PendingCacheEntry(String key, String expectedOutputFile) {
+			this.key = key;
+			this.expectedOutputFile = expectedOutputFile;
+		}
+	}
+	
+	/**
+	 * Restore an output directory from the cache, or remember to cache it once the job has run
+	 * @param key Cache key or null if not using a cache
+	 * @param outputDir Output directory
+	 * @param expectedOutputFile File the job must write for its output to be cached
+	 * @return True iff the result was restored from the cache
+	 * @throws IOException
+	 */
+	private boolean restoreFromCache(String key, String outputDir, String expectedOutputFile) throws IOException {
+		if(key == null) {
+			return false;
+		}
+		if(resultCache.restore(key, outputDir)) {
+			return true;
+		}
+		synchronized(pendingCacheEntries) {
+			pendingCacheEntries.put(outputDir, new PendingCacheEntry(key, expectedOutputFile));
+		}
+		return false;
+	}
+	
+	/**
+	 * Remember the batch job that writes an output directory waiting to be cached
+	 * @param outputDir Output directory
+	 * @param job The job
+	 */
+	private void setPendingCacheJob(String outputDir, Job job) {
+		synchronized(pendingCacheEntries) {
+			PendingCacheEntry entry = pendingCacheEntries.get(outputDir);
+			if(entry != null) {
+				entry.job = job;
+			}
+		}
+	}
+	
+	/**
+	 * Whether a successfully finished job left output that can be cached
+	 * @param outputDir Output directory
+	 * @param expectedOutputFile File the job must have written
+	 * @return True iff the job wrote the expected file
+	 */
+	private static boolean canCache(String outputDir, String expectedOutputFile) {
+		if(!new File(expectedOutputFile).isFile()) {
+			logger.warn("Not caching " + outputDir + ": missing " + expectedOutputFile + ".");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Add the output directories of successfully finished batch jobs to the cache
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void storeFinishedResultsInCache() throws IOException, InterruptedException, DrmaaException {
+		if(resultCache == null) {
+			return;
+		}
+		synchronized(pendingCacheEntries) {
+			for(String outputDir : pendingCacheEntries.keySet()) {
+				PendingCacheEntry entry = pendingCacheEntries.get(outputDir);
+				if(entry.job == null) {
+					continue;
+				}
+				// The job has already finished, so this returns its exit status
+				int exitCode = entry.job.waitFor();
+				if(exitCode != 0) {
+					logger.warn("Not caching " + outputDir + ": job exited with code " + exitCode + ".");
+					continue;
+				}
+				if(canCache(outputDir, entry.expectedOutputFile)) {
+					resultCache.store(entry.key, outputDir);
+				}
+			}
+			pendingCacheEntries.clear();
+		}
+	}
+	
+	/**
+	 * Add one finished output directory to the cache from inside a local job chain
+	 * Only reached when the job succeeded, because local jobs with a non-zero exit code complete exceptionally
+	 * @param outputDir Output directory
+	 */
+	private void storeFinishedResultInCache(String outputDir) {
+		if(resultCache == null) {
+			return;
+		}
+		PendingCacheEntry entry = null;
+		synchronized(pendingCacheEntries) {
+			entry = pendingCacheEntries.remove(outputDir);
+		}
+		if(entry == null || !canCache(outputDir, entry.expectedOutputFile)) {
+			return;
+		}
+		try {
+			resultCache.store(entry.key, outputDir);
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+	
 	/**
 	 * Whether the DREME run found any motifs
 	 * @param jobDescription DREME job description
@@ -447,7 +645,13 @@ public class MotifPipeline {
 					logger.warn("Gene " + gene.getName() + " has no overlapping features. Skipping.");
 					continue;
 				}
+				if(restoreFromCache(getDremeOnGeneCacheKey(gene, dremeExecutable), getDremeDirectory(getJobDescription(gene)), getDremeDirectory(getJobDescription(gene)) + "/dreme.txt")) {
+					logger.info("Using cached DREME results for gene " + gene.getName() + ".");
+					dremeJobDescriptions.add(getJobDescription(gene));
+					continue;
+				}
 				Job job = submitDremeOnGene(gene, dremeExecutable, batchedMotifPipelineJar, scheduler, session);
+				setPendingCacheJob(getDremeDirectory(getJobDescription(gene)), job);
 				jobs.add(job);
 			}
 		}
@@ -474,7 +678,13 @@ public class MotifPipeline {
 					logger.warn("Gene " + gene.getName() + " has no motifs. Skipping.");
 					continue;
 				}
+				if(restoreFromCache(getFimoOnGeneCacheKey(gene, fimoExecutable), getFimoDirectory(getJobDescription(gene)), getFimoDirectory(getJobDescription(gene)) + "/fimo.txt")) {
+					logger.info("Using cached FIMO results for gene " + gene.getName() + ".");
+					fimoJobDescriptions.add(getJobDescription(gene));
+					continue;
+				}
 				Job job = submitFimoOnGene(gene, fimoExecutable, ESTIMATE_FIMO_ALPHA_INDIVIDUAL_GENE, DEFAULT_FIMO_QVAL_THRESHOLD, batchedMotifPipelineJar, scheduler, session);
+				setPendingCacheJob(getFimoDirectory(getJobDescription(gene)), job);
 				jobs.add(job);
 			}
 		}
@@ -486,8 +696,8 @@ public class MotifPipeline {
 	
 	/**
 	 * Submit job to convert fimo.txt file to bed file for each gene
-	 * @param fimo2BedJar Fimo2Bed jar file
-	 * @return List of LSF job IDs
+	 * @param fimo2BedJar Fimo2Bed jar file or null to convert in this process
+	 * @return List of LSF job IDs; empty if converting in this process
 	 * @throws IOException
 	 * @throws InterruptedException
 	 * @throws DrmaaException 
@@ -511,6 +721,10 @@ public class MotifPipeline {
 				String fimoFile = fimoDir + "/fimo.txt";
 				String outDir = FIMO_DIR;
 				String id = "fimo_" + description;
+				if(fimo2BedJar == null) {
+					convertFimo2Bed(fimoFile, bed, id);
+					continue;
+				}
 				Fimo2BedJob f = new Fimo2BedJob(fimoFile, bed, id, outDir, fimo2BedJar, scheduler);
 				Job job = f.submitJob(session);
 				jobs.add(job);
@@ -532,6 +746,10 @@ public class MotifPipeline {
 			String fimoFile = fimoDir + "/fimo.txt";
 			String outDir = FIMO_DIR;
 			String id = description;
+			if(fimo2BedJar == null) {
+				convertFimo2Bed(fimoFile, geneBed, id);
+				continue;
+			}
 			Fimo2BedJob f = new Fimo2BedJob(fimoFile, geneBed, id, outDir, fimo2BedJar, scheduler);
 			Job job = f.submitJob(session);
 			jobs.add(job);
@@ -539,6 +757,64 @@ public class MotifPipeline {
 		return jobs;
 	}
 	
+	/**
+	 * Convert a fimo.txt file to bed tracks in this process
+	 * The full gene bed file is only loaded once and all tracks share one writer pool
+	 * @param fimoFile fimo.txt file
+	 * @param bed Bed file of the sequences FIMO was run on
+	 * @param id Identifier to prepend to bed file names
+	 * @throws IOException
+	 */
+	private void convertFimo2Bed(String fimoFile, String bed, String id) throws IOException {
+		Fimo2Bed converter = null;
+		synchronized(this) {
+			if(fimoBedWriters == null) {
+				fimoBedWriters = new BedTrackWriterPool(FIMO_DIR);
+			}
+			if(bed.equals(geneBed)) {
+				if(geneBedConverter == null) {
+					geneBedConverter = new Fimo2Bed(geneBed);
+				}
+				converter = geneBedConverter;
+			}
+		}
+		if(converter == null) {
+			converter = new Fimo2Bed(bed);
+		}
+		converter.writeBedTracks(fimoFile, id, fimoBedWriters);
+	}
+	
+	/**
+	 * Flush and close bed tracks written in this process
+	 * @throws IOException
+	 */
+	private synchronized void closeFimo2BedWriters() throws IOException {
+		if(fimoBedWriters != null) {
+			fimoBedWriters.close();
+		}
+	}
+	
+	/**
+	 * Convert FIMO output to bed tracks with a local Fimo2Bed process, or in this process if there is no jar file
+	 * @param fimoFile fimo.txt file
+	 * @param bed Bed file of the sequences FIMO was run on
+	 * @param id Identifier to prepend to bed file names
+	 * @param fimo2BedJar Fimo2Bed jar file or null
+	 * @param executor Local executor
+	 * @return Future that completes when the bed tracks are written
+	 */
+	private CompletableFuture<Void> runFimo2BedLocally(String fimoFile, String bed, String id, String fimo2BedJar, LocalJobExecutor executor) {
+		if(fimo2BedJar == null) {
+			try {
+				convertFimo2Bed(fimoFile, bed, id);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			return CompletableFuture.completedFuture(null);
+		}
+		Fimo2BedJob f = new Fimo2BedJob(fimoFile, bed, id, FIMO_DIR, fimo2BedJar, null);
+		return f.runLocally(executor).thenAccept(exitCode -> {});
+	}
 	
 	private static boolean fileHasData(String fileName) throws IOException {
 		FileReader r = new FileReader(fileName);
@@ -616,6 +892,70 @@ public class MotifPipeline {
 		return job;
 	}
 	
+	/**
+	 * Run DREME on features as a local process
+	 * @param dremeExecutable DREME executable
+	 * @param additionalDremeOptions Additional DREME options
+	 * @param jobDescription Job description
+	 * @param memoryRequest Memory request in Gb
+	 * @param executor Local executor
+	 * @return Future exit code
+	 */
+	protected CompletableFuture<Integer> runDremeLocally(String dremeExecutable, String additionalDremeOptions, String jobDescription, int memoryRequest, LocalJobExecutor executor) {
+		logger.info("");
+		logger.info("Running DREME locally...");
+		DremeJob d = new DremeJob(dremeExecutable, collapsedFeatureFasta, genesMinusCollapsedFeaturesWindowFasta, jobDescription, getDremeDirectory(jobDescription), additionalDremeOptions, null);
+		dremeJobDescriptions.add(jobDescription);
+		return d.runLocally(executor, memoryRequest);
+	}
+	
+	/**
+	 * Run FIMO as a local process
+	 * @param fimoExecutable Fimo executable
+	 * @param fimoOptionAlpha Expected proportion of sequences that harbor the motif
+	 * @param fimoOptionQvalThresh Q value threshold
+	 * @param additionalFimoOptions Additional Fimo options
+	 * @param jobDescription Job description
+	 * @param memoryRequest Memory request in Gb
+	 * @param executor Local executor
+	 * @return Future exit code
+	 */
+	protected CompletableFuture<Integer> runFimoLocally(String fimoExecutable, double fimoOptionAlpha, double fimoOptionQvalThresh, String additionalFimoOptions, String jobDescription, int memoryRequest, LocalJobExecutor executor) {
+		logger.info("");
+		logger.info("Running FIMO locally...");
+		FimoJob f = new FimoJob(fimoExecutable, collapsedFeatureFasta, getMotifFile(jobDescription), getFimoDirectory(jobDescription), fimoOptionAlpha, fimoOptionQvalThresh, additionalFimoOptions, jobDescription);
+		fimoJobDescriptions.add(jobDescription);
+		return f.runLocally(executor, memoryRequest);
+	}
+	
+	/**
+	 * Scan all features for motifs already found in individual genes with the native position weight matrix scanner
+	 * The feature sequences are loaded once and each motif file is scanned in one multithreaded pass
+	 * @param qvalThreshold Q value threshold
+	 * @param numThreads Number of threads
+	 * @throws IOException
+	 */
+	private void scanAllGenesWithIndividualGeneMotifs(double qvalThreshold, int numThreads) throws IOException {
+		logger.info("");
+		logger.info("Using native motif scanner to search for individual gene motifs among all genes...");
+		List<Sequence> featureSequences = PwmScanner.loadSequences(collapsedFeatureFasta);
+		for(String chr : genes.keySet()) {
+			for(Gene gene : genes.get(chr)) {
+				String geneJobDescription = getJobDescription(gene);
+				if(!dremeFoundMotif(geneJobDescription)) {
+					continue;
+				}
+				logger.info("Searching for motifs from gene " + gene.getName());
+				String jobDescription = ALL_FEATURES_JOB_DESCRIPTION + "_" + gene.getName() + "_motif";
+				// Scan given strand only, as with FIMO option --norc
+				PwmScanner scanner = new PwmScanner(getMotifFile(geneJobDescription), false, numThreads);
+				PwmScanner.writeFimoTxt(scanner.scan(featureSequences, qvalThreshold), getFimoDirectory(jobDescription));
+				fimoJobDescriptions.add(jobDescription);
+			}
+		}
+		logger.info("Done scanning.");
+	}
+	
 	/**
 	 * Run FIMO on all features with motifs already found in individual genes
 	 * @param fimoExecutable Fimo executable
@@ -649,6 +989,178 @@ public class MotifPipeline {
 		return jobs;
 	}
 	
+	/**
+	 * Run the whole pipeline as local processes
+	 * Each gene proceeds from DREME to FIMO to Fimo2Bed as soon as its own previous step finishes,
+	 * instead of waiting for all genes to finish each step
+	 * @param dremeExecutable DREME executable
+	 * @param batchedMotifPipelineJar BatchedMotifPipeline jar file
+	 * @param fimoExecutable Fimo executable
+	 * @param fimo2BedJar Fimo2Bed jar file or null to convert in this process
+	 * @param executor Local executor
+	 * @throws IOException
+	 * @throws IllegalStateException If any job failed, after all other jobs have finished
+	 */
+	private void runLocally(String dremeExecutable, String batchedMotifPipelineJar, String fimoExecutable, String fimo2BedJar, LocalJobExecutor executor) throws IOException {
+		ArrayList<CompletableFuture<Void>> runs = new ArrayList<CompletableFuture<Void>>();
+		
+		// DREME, FIMO and Fimo2Bed on all genes together
+		CompletableFuture<Integer> allGenesDreme = runDremeLocally(dremeExecutable, DremeJob.ADDITIONAL_OPTIONS, ALL_FEATURES_JOB_DESCRIPTION, 8, executor);
+		runs.add(allGenesDreme.thenCompose(exitCode -> 
+				continueWithFimoAndFimo2Bed(ALL_FEATURES_JOB_DESCRIPTION, fimoExecutable, fimo2BedJar, executor)).whenComplete((v, e) -> {
+					if(e != null) {
+						logger.error("Local pipeline failed for all features: " + e.getMessage());
+					}
+				}));
+		
+		// Each gene individually
+		logger.info("");
+		logger.info("Running DREME, FIMO and Fimo2Bed on each gene individually...");
+		for(String chr : genes.keySet()) {
+			for(Gene gene : genes.get(chr)) {
+				makeIndividualGeneBedFiles(gene);
+				if(!fileHasData(getIndividualGeneOverlappingFeaturesBedFileName(gene))) {
+					logger.warn("Gene " + gene.getName() + " has no overlapping features. Skipping.");
+					continue;
+				}
+				runs.add(runGeneLocally(gene, dremeExecutable, batchedMotifPipelineJar, fimoExecutable, fimo2BedJar, executor));
+			}
+		}
+		logger.info("All jobs submitted.");
+		
+		logger.info("");
+		logger.info("Waiting for all local jobs to finish...");
+		int numFailed = 0;
+		for(CompletableFuture<Void> run : runs) {
+			try {
+				run.join();
+			} catch (CompletionException e) {
+				numFailed++;
+			}
+		}
+		closeFimo2BedWriters();
+		if(numFailed > 0) {
+			throw new IllegalStateException(numFailed + " of " + runs.size() + " local pipeline runs failed. See log and job output in " + BSUB_DIR + ".");
+		}
+	}
+	
+	/**
+	 * Chain DREME, FIMO and Fimo2Bed for one gene, and FIMO on all features with the motifs from the gene
+	 * @param gene The gene
+	 * @param dremeExecutable DREME executable
+	 * @param batchedMotifPipelineJar BatchedMotifPipeline jar file
+	 * @param fimoExecutable Fimo executable
+	 * @param fimo2BedJar Fimo2Bed jar file or null to convert in this process
+	 * @param executor Local executor
+	 * @return Future that completes when all steps for the gene are done
+	 */
+	private CompletableFuture<Void> runGeneLocally(Gene gene, String dremeExecutable, String batchedMotifPipelineJar, String fimoExecutable, String fimo2BedJar, LocalJobExecutor executor) throws IOException {
+		String description = getJobDescription(gene);
+		dremeJobDescriptions.add(description);
+		CompletableFuture<Integer> dreme = null;
+		if(restoreFromCache(getDremeOnGeneCacheKey(gene, dremeExecutable), getDremeDirectory(description), getDremeDirectory(description) + "/dreme.txt")) {
+			logger.info("Using cached DREME results for gene " + gene.getName() + ".");
+			dreme = CompletableFuture.completedFuture(Integer.valueOf(0));
+		} else {
+			String jobID = "dreme_" + description + "_" + System.currentTimeMillis();
+			String cmmd = getDremeOnGeneCommand(gene, dremeExecutable, batchedMotifPipelineJar) + "-s " + LocalJobExecutor.SCHEDULER_NAME + " ";
+			dreme = executor.submit(jobID, cmmd, BSUB_DIR + "/" + jobID + ".out", 16).thenApply(exitCode -> {
+				storeFinishedResultInCache(getDremeDirectory(description));
+				return exitCode;
+			});
+		}
+		return dreme.thenCompose(exitCode -> {
+			if(!foundMotif(description, false)) {
+				logger.warn("Gene " + gene.getName() + " has no motifs. Skipping.");
+				return CompletableFuture.completedFuture(null);
+			}
+			// FIMO on the features within the gene
+			CompletableFuture<Integer> fimo = null;
+			boolean cached = false;
+			try {
+				cached = restoreFromCache(getFimoOnGeneCacheKey(gene, fimoExecutable), getFimoDirectory(description), getFimoDirectory(description) + "/fimo.txt");
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			if(cached) {
+				logger.info("Using cached FIMO results for gene " + gene.getName() + ".");
+				fimo = CompletableFuture.completedFuture(Integer.valueOf(0));
+			} else {
+				String fimoJobID = "fimo_" + description + "_" + System.currentTimeMillis();
+				String fimoCmmd = getFimoOnGeneCommand(gene, fimoExecutable, ESTIMATE_FIMO_ALPHA_INDIVIDUAL_GENE, DEFAULT_FIMO_QVAL_THRESHOLD, batchedMotifPipelineJar) + "-s " + LocalJobExecutor.SCHEDULER_NAME + " ";
+				fimo = executor.submit(fimoJobID, fimoCmmd, BSUB_DIR + "/" + fimoJobID + ".out", 4).thenApply(fimoExitCode -> {
+					storeFinishedResultInCache(getFimoDirectory(description));
+					return fimoExitCode;
+				});
+			}
+			CompletableFuture<Void> geneFimo = fimo.thenCompose(fimoExitCode -> {
+				if(!foundMotif(description, true)) {
+					logger.warn("Gene " + gene.getName() + " has no motif occurrences from FIMO. Skipping.");
+					return CompletableFuture.completedFuture(null);
+				}
+				String fimoFile = getFimoDirectory(description) + "/fimo.txt";
+				return runFimo2BedLocally(fimoFile, getIndividualGeneOverlappingCollapsedFeaturesBedFileName(gene), "fimo_" + description, fimo2BedJar, executor);
+			});
+			// FIMO on all features with the motifs found in this gene
+			String allFeaturesDescription = ALL_FEATURES_JOB_DESCRIPTION + "_" + gene.getName() + "_motif";
+			FimoJob f = new FimoJob(fimoExecutable, collapsedFeatureFasta, getMotifFile(description), getFimoDirectory(allFeaturesDescription), 0.001, DEFAULT_FIMO_QVAL_THRESHOLD, FimoJob.ADDITIONAL_OPTIONS, allFeaturesDescription);
+			CompletableFuture<Void> allFeaturesFimo = f.runLocally(executor, 4).thenCompose(fimoExitCode -> 
+					continueWithFimo2Bed(allFeaturesDescription, fimo2BedJar, executor));
+			return CompletableFuture.allOf(geneFimo, allFeaturesFimo);
+		}).whenComplete((v, e) -> {
+			if(e != null) {
+				logger.error("Local pipeline failed for gene " + gene.getName() + ": " + e.getMessage());
+			}
+		});
+	}
+	
+	/**
+	 * After DREME has finished, run FIMO on all collapsed features followed by Fimo2Bed
+	 * @param jobDescription Job description of the DREME run
+	 * @param fimoExecutable Fimo executable
+	 * @param fimo2BedJar Fimo2Bed jar file or null to convert in this process
+	 * @param executor Local executor
+	 * @return Future that completes when Fimo2Bed is done
+	 */
+	private CompletableFuture<Void> continueWithFimoAndFimo2Bed(String jobDescription, String fimoExecutable, String fimo2BedJar, LocalJobExecutor executor) {
+		if(!foundMotif(jobDescription, false)) {
+			logger.warn("DREME found no motifs for " + jobDescription + ". Skipping.");
+			return CompletableFuture.completedFuture(null);
+		}
+		return runFimoLocally(fimoExecutable, 0.001, DEFAULT_FIMO_QVAL_THRESHOLD, FimoJob.ADDITIONAL_OPTIONS, jobDescription, 8, executor)
+				.thenCompose(exitCode -> continueWithFimo2Bed(jobDescription, fimo2BedJar, executor));
+	}
+	
+	/**
+	 * After FIMO has finished, convert its output to bed tracks of the genes
+	 * @param jobDescription Job description of the FIMO run
+	 * @param fimo2BedJar Fimo2Bed jar file or null to convert in this process
+	 * @param executor Local executor
+	 * @return Future that completes when Fimo2Bed is done
+	 */
+	private CompletableFuture<Void> continueWithFimo2Bed(String jobDescription, String fimo2BedJar, LocalJobExecutor executor) {
+		if(!foundMotif(jobDescription, true)) {
+			logger.warn("There were no motif occurrences from FIMO for " + jobDescription + ". Skipping.");
+			return CompletableFuture.completedFuture(null);
+		}
+		String fimoFile = getFimoDirectory(jobDescription) + "/fimo.txt";
+		return runFimo2BedLocally(fimoFile, geneBed, jobDescription, fimo2BedJar, executor);
+	}
+	
+	/**
+	 * Check DREME or FIMO output from inside a local job chain
+	 * @param jobDescription Job description
+	 * @param fimo Check FIMO output if true, DREME output if false
+	 * @return True iff the output contains motifs
+	 */
+	private static boolean foundMotif(String jobDescription, boolean fimo) {
+		try {
+			return fimo ? fimoFoundMotif(jobDescription) : dremeFoundMotif(jobDescription);
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+	
 	/**
 	 * @param args
 	 * @throws IOException 
@@ -664,8 +1176,13 @@ public class MotifPipeline {
 		p.addStringArg("-d", "Dreme executable", true);
 		p.addStringArg("-bj", "BatchedMotifPipeline jar", true);
 		p.addStringArg("-f", "Fimo executable", true);
-		p.addStringArg("-f2b", "Fimo2Bed jar", true);
-		p.addStringArg("-s", "Name of scheduler e.g. LSF or OGS", true);
+		p.addStringArg("-f2b", "Fimo2Bed jar; if not provided, FIMO output is converted to bed in this process", false, null);
+		p.addStringArg("-s", "Name of scheduler e.g. LSF, OGS or " + LocalJobExecutor.SCHEDULER_NAME + " to run jobs as local processes", true);
+		p.addIntArg("-nt", "Number of local jobs to run at once if running locally", false, Runtime.getRuntime().availableProcessors());
+		p.addIntArg("-mem", "Memory budget in Gb for all local jobs if running locally", false, 64);
+		p.addStringArg("-cache", "Directory of cached per-gene DREME and FIMO results to reuse across runs", false, null);
+		p.addIntArg("-cachesize", "Maximum size of result cache in Gb", false, 50);
+		p.addBooleanArg("-nf", "Use native motif scanner instead of FIMO to search all features for individual gene motifs.", false, false);
 		p.parse(args);
 		String geneBed = p.getStringArg("-gb");
 		String featureBed = p.getStringArg("-fb");
@@ -674,10 +1191,28 @@ public class MotifPipeline {
 		String batchedJar = p.getStringArg("-bj");
 		String fimoExecutable = p.getStringArg("-f");
 		String fimo2bedJar = p.getStringArg("-f2b");
+		String cacheDir = p.getStringArg("-cache");
+		MotifResultCache cache = cacheDir == null ? null : new MotifResultCache(cacheDir, (long) p.getIntArg("-cachesize") * 1024 * 1024 * 1024);
+		
+		if(LocalJobExecutor.isLocal(p.getStringArg("-s"))) {
+			LocalJobExecutor executor = new LocalJobExecutor(p.getIntArg("-nt"), p.getIntArg("-mem"));
+			try {
+				MotifPipeline m = new MotifPipeline(geneBed, featureBed, genomeFasta, null);
+				m.setResultCache(cache);
+				m.runLocally(dremeExecutable, batchedJar, fimoExecutable, fimo2bedJar, executor);
+			} finally {
+				executor.shutdown();
+			}
+			logger.info("");
+			logger.info("All done.");
+			return;
+		}
+		
 		Scheduler scheduler = Scheduler.fromString(p.getStringArg("-s"));
 		Session drmaaSession = scheduler.equals(Scheduler.OGS) ? OGSUtils.getDrmaaSession() : null;
 		
 		MotifPipeline m = new MotifPipeline(geneBed, featureBed, genomeFasta, drmaaSession);
+		m.setResultCache(cache);
 
 		// Run DREME on all genes together
 		ArrayList<Job> allGenesDremeJob = new ArrayList<Job>();
@@ -690,11 +1225,16 @@ public class MotifPipeline {
 		logger.info("");
 		logger.info("Waiting for individual gene DREME jobs to finish...");
 		JobUtils.waitForAll(indGeneDremeJobIDs);
+		m.storeFinishedResultsInCache();
 		
 		// Run FIMO on all genes with motifs found in individual genes
 		ArrayList<Job> allGenesFimoJobs = new ArrayList<Job>();
-		ArrayList<Job> fJobs = m.submitFimoOnAllGenesWithIndividualGeneMotifs(fimoExecutable, 0.001, DEFAULT_FIMO_QVAL_THRESHOLD, FimoJob.ADDITIONAL_OPTIONS, scheduler);
-		allGenesFimoJobs.addAll(fJobs);
+		if(p.getBooleanArg("-nf")) {
+			m.scanAllGenesWithIndividualGeneMotifs(DEFAULT_FIMO_QVAL_THRESHOLD, Runtime.getRuntime().availableProcessors());
+		} else {
+			ArrayList<Job> fJobs = m.submitFimoOnAllGenesWithIndividualGeneMotifs(fimoExecutable, 0.001, DEFAULT_FIMO_QVAL_THRESHOLD, FimoJob.ADDITIONAL_OPTIONS, scheduler);
+			allGenesFimoJobs.addAll(fJobs);
+		}
 		
 		// Run FIMO on each gene individually
 		ArrayList<Job> indGeneFimoJobs = m.submitFimoOnEachGene(fimoExecutable, batchedJar, scheduler);
@@ -702,6 +1242,7 @@ public class MotifPipeline {
 		logger.info("");
 		logger.info("Waiting for individual gene FIMO jobs to finish...");
 		JobUtils.waitForAll(indGeneFimoJobs);
+		m.storeFinishedResultsInCache();
 
 		// Run Fimo2Bed on individual genes
 		logger.info("");
@@ -736,6 +1277,7 @@ public class MotifPipeline {
 		logger.info("");
 		logger.info("Waiting for Fimo2Bed to finish on all genes...");
 		JobUtils.waitForAll(allGeneFimo2BedJobs);
+		m.closeFimo2BedWriters();
 		
 		logger.info("");
 		logger.info("All done.");
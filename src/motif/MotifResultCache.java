@@ -0,0 +1,261 @@
+/**
+ *
+ */
+package motif;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent cache of DREME and FIMO output directories
+ * Entries are keyed by a hash of the input files, the executable version and the option string, so unchanged runs can be restored instead of resubmitted
+ * The total size of the cache directory is capped by evicting the least recently used entries
+ * Entry sizes are measured once when the cache is opened and when an entry is stored, and kept in memory
+ * @author prussell
+ *
+ */
+public class MotifResultCache {
+
+	private File cacheDir;
+	private long maxBytes;
+	private LinkedHashMap<String, Long> entrySizes; // Size of each entry in least to most recently used order
+	private long totalBytes;
+	private static Logger logger = Logger.getLogger(MotifResultCache.class.getName());
+	private static int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @param cacheDirectory Cache directory
+	 * @param maxSizeBytes Maximum total size of cached files in bytes
+	 * @throws IOException
+	 */
+	public MotifResultCache(String cacheDirectory, long maxSizeBytes) throws IOException {
+		if(maxSizeBytes <= 0) {
+			throw new IllegalArgumentException("Max cache size must be positive: " + maxSizeBytes);
+		}
+		cacheDir = new File(cacheDirectory);
+		@SuppressWarnings("unused")
+		boolean madeDir = cacheDir.mkdirs();
+		if(!cacheDir.isDirectory()) {
+			throw new IOException("Could not create cache directory " + cacheDirectory);
+		}
+		maxBytes = maxSizeBytes;
+		loadEntries();
+	}
+
+	/**
+	 * Scan the cache directory once for existing entries and their sizes
+	 * Later stores and evictions update the sizes without rescanning
+	 * @throws IOException
+	 */
+	private void loadEntries() throws IOException {
+		entrySizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		totalBytes = 0;
+		File[] entries = cacheDir.listFiles();
+		if(entries == null) {
+			return;
+		}
+		List<File> dirs = new ArrayList<File>();
+		for(File f : entries) {
+			if(f.isDirectory() && !f.getName().endsWith(".tmp")) {
+				dirs.add(f);
+			}
+		}
+		File[] byAge = dirs.toArray(new File[dirs.size()]);
+		Arrays.sort(byAge, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for(File f : byAge) {
+			long entrySize = size(f.toPath());
+			entrySizes.put(f.getName(), Long.valueOf(entrySize));
+			totalBytes += entrySize;
+		}
+	}
+
+	/**
+	 * Compute the cache key for a run
+	 * @param inputFiles Files whose contents determine the input sequences
+	 * @param executable Executable; its path, size and modification time stand in for its version
+	 * @param options Option string passed to the executable
+	 * @return Hex digest identifying the run
+	 * @throws IOException
+	 */
+	public static String getKey(Collection<String> inputFiles, String executable, String options) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for(String inputFile : inputFiles) {
+			digest.update(inputFile.getBytes(StandardCharsets.UTF_8));
+			File f = new File(inputFile);
+			if(!f.exists()) {
+				throw new IllegalArgumentException("Input file " + inputFile + " does not exist.");
+			}
+			InputStream in = new FileInputStream(f);
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+			in.close();
+		}
+		digest.update(getFingerprint(executable).getBytes(StandardCharsets.UTF_8));
+		digest.update(options.getBytes(StandardCharsets.UTF_8));
+		StringBuilder rtrn = new StringBuilder();
+		for(byte b : digest.digest()) {
+			rtrn.append(String.format("%02x", b));
+		}
+		return rtrn.toString();
+	}
+
+	/**
+	 * Cheap identifier for a large file whose contents are not hashed, e.g. a genome fasta
+	 * @param file File
+	 * @return String containing the path, size and modification time of the file
+	 */
+	public static String getFingerprint(String file) {
+		File f = new File(file);
+		return file + "\t" + f.length() + "\t" + f.lastModified();
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param key Cache key
+	 * @return True iff there is a cached result for the key
+	 */
+	public boolean contains(String key) {
+		return getEntry(key).isDirectory();
+	}
+
+	private File getEntry(String key) {
+		return new File(cacheDir, key);
+	}
+
+	/**
+	 * Copy a cached result into an output directory
+	 * @param key Cache key
+	 * @param outputDir Output directory to restore the cached files into
+	 * @return True iff the result was cached and has been restored
+	 * @throws IOException
+	 */
+	public synchronized boolean restore(String key, String outputDir) throws IOException {
+		File entry = getEntry(key);
+		if(!entry.isDirectory()) {
+			return false;
+		}
+		copyDirectory(entry.toPath(), Paths.get(outputDir));
+		// Mark entry as recently used, on disk and in the access ordered size map
+		@SuppressWarnings("unused")
+		boolean touched = entry.setLastModified(System.currentTimeMillis());
+		entrySizes.get(key);
+		logger.debug("Restored cached result " + key + " to " + outputDir);
+		return true;
+	}
+
+	/**
+	 * Add the contents of an output directory to the cache and evict old entries if the cache is too large
+	 * @param key Cache key
+	 * @param outputDir Output directory of a finished run
+	 * @throws IOException
+	 */
+	public synchronized void store(String key, String outputDir) throws IOException {
+		File entry = getEntry(key);
+		if(entry.isDirectory()) {
+			return;
+		}
+		File tmp = new File(cacheDir, key + ".tmp");
+		deleteRecursively(tmp.toPath());
+		copyDirectory(Paths.get(outputDir), tmp.toPath());
+		Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		@SuppressWarnings("unused")
+		boolean touched = entry.setLastModified(System.currentTimeMillis());
+		long entrySize = size(entry.toPath());
+		entrySizes.put(key, Long.valueOf(entrySize));
+		totalBytes += entrySize;
+		logger.debug("Cached " + outputDir + " as " + key);
+		evict();
+	}
+
+	/**
+	 * Delete least recently used entries until the cache is within its size limit
+	 * @throws IOException
+	 */
+	private void evict() throws IOException {
+		Iterator<Map.Entry<String, Long>> iter = entrySizes.entrySet().iterator();
+		while(totalBytes > maxBytes && iter.hasNext()) {
+			Map.Entry<String, Long> oldest = iter.next();
+			deleteRecursively(getEntry(oldest.getKey()).toPath());
+			totalBytes -= oldest.getValue().longValue();
+			iter.remove();
+			logger.info("Evicted cached result " + oldest.getKey());
+		}
+	}
+
+	private static long size(Path dir) throws IOException {
+		long rtrn = 0;
+		try(Stream<Path> paths = Files.walk(dir)) {
+			for(Path p : (Iterable<Path>) paths::iterator) {
+				if(Files.isRegularFile(p)) {
+					rtrn += Files.size(p);
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	private static void copyDirectory(Path from, Path to) throws IOException {
+		try(Stream<Path> paths = Files.walk(from)) {
+			for(Path p : (Iterable<Path>) paths::iterator) {
+				Path target = to.resolve(from.relativize(p).toString());
+				if(Files.isDirectory(p)) {
+					Files.createDirectories(target);
+				} else {
+					Files.copy(p, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+				}
+			}
+		}
+	}
+
+	private static void deleteRecursively(Path dir) throws IOException {
+		if(!Files.exists(dir)) {
+			return;
+		}
+		List<Path> paths = new ArrayList<Path>();
+		try(Stream<Path> walk = Files.walk(dir)) {
+			for(Path p : (Iterable<Path>) walk::iterator) {
+				paths.add(p);
+			}
+		}
+		// Delete children before parents
+		for(int i = paths.size() - 1; i >= 0; i--) {
+			Files.delete(paths.get(i));
+		}
+	}
+
+}
@@ -0,0 +1,288 @@
+/**
+ *
+ */
+package motif;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds occurrences of many consensus motifs, including degenerate IUPAC bases, in one pass over each sequence
+ * All motifs are compiled into a single bit-parallel automaton (multi-pattern shift-and): each motif occupies
+ * a block of bits, one per position, and each base of the sequence updates the state of every motif at once
+ * findMatches reports every occurrence, including overlapping occurrences of the same motif
+ * Counts are of non-overlapping occurrences, taking the leftmost first, as with a regex search
+ * @author prussell
+ *
+ */
+public class MultiMotifMatcher {
+
+	private int numMotifs;
+	private int numWords;
+	private long[][] baseMasks;
+	private long[] startMask;
+	private long[] endMask;
+	private int[] motifByEndBit;
+	private int[] motifLengths;
+	private static Logger logger = Logger.getLogger(MultiMotifMatcher.class.getName());
+
+	/**
+	 * Minimum number of sequences to scan in one fork/join task
+	 */
+	private static int MIN_SEQUENCES_PER_TASK = 64;
+
+	/**
+	 * @param motifs Consensus sequences of motifs, which may contain IUPAC degenerate bases
+	 */
+	public MultiMotifMatcher(List<String> motifs) {
+		numMotifs = motifs.size();
+		int totalLength = 0;
+		for(String motif : motifs) {
+			if(motif.length() == 0) {
+				throw new IllegalArgumentException("Motif must not be empty.");
+			}
+			totalLength += motif.length();
+		}
+		numWords = Math.max(1, (totalLength + 63) / 64);
+		baseMasks = new long[4][numWords];
+		startMask = new long[numWords];
+		endMask = new long[numWords];
+		motifByEndBit = new int[numWords * 64];
+		motifLengths = new int[numMotifs];
+		int bit = 0;
+		for(int m = 0; m < numMotifs; m++) {
+			String motif = motifs.get(m);
+			motifLengths[m] = motif.length();
+			setBit(startMask, bit);
+			for(int i = 0; i < motif.length(); i++) {
+				int allowed = getAllowedBases(motif.charAt(i));
+				for(int b = 0; b < 4; b++) {
+					if((allowed & (1 << b)) != 0) {
+						setBit(baseMasks[b], bit);
+					}
+				}
+				bit++;
+			}
+			setBit(endMask, bit - 1);
+			motifByEndBit[bit - 1] = m;
+		}
+		logger.debug("Compiled " + numMotifs + " motifs with total length " + totalLength + " into " + numWords + " words.");
+	}
+
+	private static void setBit(long[] words, int bit) {
+		words[bit / 64] |= 1L << (bit % 64);
+	}
+
+	/**
+	 * @param iupac IUPAC nucleotide code
+	 * @return Bit mask of allowed bases: A=1, C=2, G=4, T=8
+	 */
+	private static int getAllowedBases(char iupac) {
+		switch(Character.toUpperCase(iupac)) {
+		case 'A': return 1;
+		case 'C': return 2;
+		case 'G': return 4;
+		case 'T': case 'U': return 8;
+		case 'R': return 1 | 4;
+		case 'Y': return 2 | 8;
+		case 'S': return 2 | 4;
+		case 'W': return 1 | 8;
+		case 'K': return 4 | 8;
+		case 'M': return 1 | 2;
+		case 'B': return 2 | 4 | 8;
+		case 'D': return 1 | 4 | 8;
+		case 'H': return 1 | 2 | 8;
+		case 'V': return 1 | 2 | 4;
+		case 'N': return 1 | 2 | 4 | 8;
+		default: throw new IllegalArgumentException("Not an IUPAC nucleotide code: " + iupac);
+		}
+	}
+
+	/**
+	 * @param base Sequence base
+	 * @return Index of base in A, C, G, T or -1 if the base is anything else
+	 */
+	private static int getBaseIndex(char base) {
+		switch(base) {
+		case 'A': case 'a': return 0;
+		case 'C': case 'c': return 1;
+		case 'G': case 'g': return 2;
+		case 'T': case 't': case 'U': case 'u': return 3;
+		default: return -1;
+		}
+	}
+
+	/**
+	 * Receives motif occurrences
+	 */
+	public interface MatchHandler {
+		/**
+		 * @param motifIndex Index of the motif in the list passed to the constructor
+		 * @param start Zero based start position of the occurrence
+		 * @param end Position after the last base of the occurrence
+		 */
+		public void match(int motifIndex, int start, int end);
+	}
+
+	/**
+	 * Scan a sequence once and report every occurrence of every motif
+	 * @param sequence Sequence bases
+	 * @param handler Handler for occurrences
+	 */
+	public void findMatches(String sequence, MatchHandler handler) {
+		long[] state = new long[numWords];
+		int len = sequence.length();
+		for(int i = 0; i < len; i++) {
+			int base = getBaseIndex(sequence.charAt(i));
+			if(base < 0) {
+				// No motif position matches an ambiguous sequence base
+				for(int w = 0; w < numWords; w++) {
+					state[w] = 0;
+				}
+				continue;
+			}
+			long[] mask = baseMasks[base];
+			long carry = 0;
+			for(int w = 0; w < numWords; w++) {
+				long shifted = (state[w] << 1) | carry;
+				carry = state[w] >>> 63;
+				state[w] = (shifted | startMask[w]) & mask[w];
+				long ends = state[w] & endMask[w];
+				while(ends != 0) {
+					int bit = w * 64 + Long.numberOfTrailingZeros(ends);
+					int m = motifByEndBit[bit];
+					handler.match(m, i + 1 - motifLengths[m], i + 1);
+					ends &= ends - 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param sequence Sequence bases
+	 * @return Number of non-overlapping occurrences of each motif
+	 */
+	public long[] countMatches(String sequence) {
+		final long[] rtrn = new long[numMotifs];
+		// Occurrences of a motif are reported in order of position, so skipping any that start before the end of the last one counted keeps the leftmost
+		final int[] lastEnd = new int[numMotifs];
+		findMatches(sequence, new MatchHandler() {
+			@Override
+			public void match(int motifIndex, int start, int end) {
+				if(start >= lastEnd[motifIndex]) {
+					rtrn[motifIndex]++;
+					lastEnd[motifIndex] = end;
+				}
+			}
+		});
+		return rtrn;
+	}
+
+	/**
+	 * Occurrence counts over a set of sequences
+	 */
+	public static class MatchCounts {
+
+		private long[] countsByMotif;
+		private int numSequencesWithMatch;
+
+		MatchCounts(int numMotifs) {
+			countsByMotif = new long[numMotifs];
+		}
+
+		/**
+		 * @param motifIndex Index of the motif in the list passed to the constructor
+		 * @return Total non-overlapping occurrences of the motif
+		 */
+		public long getCount(int motifIndex) {
+			return countsByMotif[motifIndex];
+		}
+
+		/**
+		 * @return Total occurrences of all motifs
+		 */
+		public long getTotalCount() {
+			long rtrn = 0;
+			for(long c : countsByMotif) {
+				rtrn += c;
+			}
+			return rtrn;
+		}
+
+		/**
+		 * @return Number of sequences with at least one occurrence of any motif
+		 */
+		public int getNumSequencesWithMatch() {
+			return numSequencesWithMatch;
+		}
+
+		private void add(MatchCounts other) {
+			for(int i = 0; i < countsByMotif.length; i++) {
+				countsByMotif[i] += other.countsByMotif[i];
+			}
+			numSequencesWithMatch += other.numSequencesWithMatch;
+		}
+
+	}
+
+	/**
+	 * Count non-overlapping occurrences in all sequences, scanning sequences in parallel with a fork/join pool
+	 * @param sequences Sequence bases
+	 * @param numThreads Number of threads
+	 * @return Counts
+	 */
+	public MatchCounts countMatches(List<String> sequences, int numThreads) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			return pool.invoke(new CountTask(sequences, 0, sequences.size()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class CountTask extends RecursiveTask<MatchCounts> {
+
+		private List<String> sequences;
+		private int from;
+		private int to;
+
+		CountTask(List<String> seqs, int fromIndex, int toIndex) {
+			sequences = seqs;
+			from = fromIndex;
+			to = toIndex;
+		}
+
+		@Override
+		protected MatchCounts compute() {
+			if(to - from <= MIN_SEQUENCES_PER_TASK) {
+				MatchCounts rtrn = new MatchCounts(numMotifs);
+				for(int i = from; i < to; i++) {
+					long[] counts = countMatches(sequences.get(i));
+					boolean found = false;
+					for(int m = 0; m < numMotifs; m++) {
+						rtrn.countsByMotif[m] += counts[m];
+						if(counts[m] > 0) {
+							found = true;
+						}
+					}
+					if(found) {
+						rtrn.numSequencesWithMatch++;
+					}
+				}
+				return rtrn;
+			}
+			int mid = (from + to) >>> 1;
+			CountTask left = new CountTask(sequences, from, mid);
+			left.fork();
+			MatchCounts rtrn = new CountTask(sequences, mid, to).compute();
+			rtrn.add(left.join());
+			return rtrn;
+		}
+
+	}
+
+}
@@ -0,0 +1,344 @@
+/**
+ *
+ */
+package motif;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Position weight matrix for a DNA motif with precomputed log-odds lookup tables
+ * Scores are log2 odds of the motif versus a zero order background, as in FIMO
+ * P values come from the exact distribution of integer scaled scores under the background
+ * @author prussell
+ *
+ */
+public class PositionWeightMatrix {
+
+	private String id;
+	private String name;
+	private int width;
+	private double[] background;
+	private double[][] logOdds;
+	private int[][] scaledScores;
+	private int chunkSize;
+	private int[] chunkStarts;
+	private int[][] chunkScores;
+	private int minTotalScore;
+	private double[] tailProbability;
+	private static Logger logger = Logger.getLogger(PositionWeightMatrix.class.getName());
+
+	/**
+	 * Default pseudocount as in FIMO --motif-pseudo
+	 */
+	public static double DEFAULT_PSEUDOCOUNT = 0.1;
+
+	/**
+	 * Number of integer score units per bit
+	 */
+	private static double SCALE = 100;
+
+	/**
+	 * Number of sites to assume if the motif file does not say
+	 */
+	private static int DEFAULT_NUM_SITES = 20;
+
+	/**
+	 * Number of consecutive positions scored with one table lookup
+	 */
+	private static int CHUNK_SIZE = 5;
+
+	/**
+	 * @param motifId Motif ID
+	 * @param motifName Motif name, usually the consensus sequence
+	 * @param probabilities Probability of A, C, G and T at each position
+	 * @param backgroundFrequencies Background frequency of A, C, G and T
+	 * @param numSites Number of sites the motif was built from, used to weight the pseudocount
+	 * @param pseudocount Pseudocount added to each probability after multiplying by the background frequency
+	 */
+	public PositionWeightMatrix(String motifId, String motifName, double[][] probabilities, double[] backgroundFrequencies, int numSites, double pseudocount) {
+		if(probabilities.length == 0) {
+			throw new IllegalArgumentException("Motif " + motifId + " has no positions.");
+		}
+		if(backgroundFrequencies.length != 4) {
+			throw new IllegalArgumentException("Background must have 4 frequencies.");
+		}
+		id = motifId;
+		name = motifName;
+		width = probabilities.length;
+		background = backgroundFrequencies;
+		logOdds = new double[width][4];
+		scaledScores = new int[width][4];
+		for(int i = 0; i < width; i++) {
+			if(probabilities[i].length != 4) {
+				throw new IllegalArgumentException("Position " + i + " of motif " + motifId + " must have 4 probabilities.");
+			}
+			for(int b = 0; b < 4; b++) {
+				double p = (probabilities[i][b] * numSites + pseudocount * background[b]) / (numSites + pseudocount);
+				logOdds[i][b] = Math.log(p / background[b]) / Math.log(2);
+				scaledScores[i][b] = (int) Math.round(logOdds[i][b] * SCALE);
+			}
+		}
+		computeChunkScores();
+		computeScoreDistribution();
+	}
+
+	/**
+	 * Precompute the total scaled score of every combination of bases in each chunk of consecutive positions
+	 * The last chunk ends at the last position and only scores the positions the previous chunks do not cover
+	 */
+	private void computeChunkScores() {
+		chunkSize = Math.min(CHUNK_SIZE, width);
+		int numChunks = (width + chunkSize - 1) / chunkSize;
+		chunkStarts = new int[numChunks];
+		chunkScores = new int[numChunks][1 << (2 * chunkSize)];
+		for(int j = 0; j < numChunks; j++) {
+			chunkStarts[j] = Math.min(j * chunkSize, width - chunkSize);
+			int coveredTo = j * chunkSize;
+			for(int code = 0; code < chunkScores[j].length; code++) {
+				for(int t = 0; t < chunkSize; t++) {
+					int pos = chunkStarts[j] + t;
+					if(pos >= coveredTo) {
+						chunkScores[j][code] += scaledScores[pos][(code >>> (2 * (chunkSize - 1 - t))) & 3];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the probability of each total scaled score or higher under the background
+	 */
+	private void computeScoreDistribution() {
+		minTotalScore = 0;
+		int range = 0;
+		int[] colMin = new int[width];
+		for(int i = 0; i < width; i++) {
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for(int b = 0; b < 4; b++) {
+				min = Math.min(min, scaledScores[i][b]);
+				max = Math.max(max, scaledScores[i][b]);
+			}
+			colMin[i] = min;
+			minTotalScore += min;
+			range += max - min;
+		}
+		double[] dist = new double[range + 1];
+		dist[0] = 1;
+		int currentRange = 0;
+		for(int i = 0; i < width; i++) {
+			double[] next = new double[range + 1];
+			int colRange = 0;
+			for(int b = 0; b < 4; b++) {
+				int offset = scaledScores[i][b] - colMin[i];
+				colRange = Math.max(colRange, offset);
+				for(int k = 0; k <= currentRange; k++) {
+					if(dist[k] > 0) {
+						next[k + offset] += dist[k] * background[b];
+					}
+				}
+			}
+			currentRange += colRange;
+			dist = next;
+		}
+		tailProbability = new double[range + 1];
+		double sum = 0;
+		for(int k = range; k >= 0; k--) {
+			sum += dist[k];
+			tailProbability[k] = Math.min(1, sum);
+		}
+	}
+
+	/**
+	 * @return Motif ID
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return Motif name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Number of positions
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Scaled integer score of a window
+	 * Each window is scored with one table lookup per chunk of consecutive positions, indexed by the chunk's two bit packed bases
+	 * @param sequence Sequence
+	 * @param start Window start
+	 * @return Scaled score
+	 */
+	public int getScaledScore(TwoBitSequence sequence, int start) {
+		int score = 0;
+		for(int j = 0; j < chunkStarts.length; j++) {
+			score += chunkScores[j][sequence.getBases(start + chunkStarts[j], chunkSize)];
+		}
+		return score;
+	}
+
+	/**
+	 * Log odds score in bits of a window
+	 * @param sequence Sequence
+	 * @param start Window start
+	 * @return Score
+	 */
+	public double getScore(TwoBitSequence sequence, int start) {
+		double score = 0;
+		for(int i = 0; i < width; i++) {
+			score += logOdds[i][sequence.getBase(start + i)];
+		}
+		return score;
+	}
+
+	/**
+	 * @return Smallest possible scaled score of a window
+	 */
+	public int getMinScaledScore() {
+		return minTotalScore;
+	}
+
+	/**
+	 * @return Number of possible scaled scores from the smallest to the largest
+	 */
+	public int getNumScaledScores() {
+		return tailProbability.length;
+	}
+
+	/**
+	 * @param scaledScore Scaled integer score
+	 * @return Probability of this score or higher under the background
+	 */
+	public double getPvalue(int scaledScore) {
+		int index = scaledScore - minTotalScore;
+		if(index < 0) {
+			return 1;
+		}
+		if(index >= tailProbability.length) {
+			return tailProbability[tailProbability.length - 1];
+		}
+		return tailProbability[index];
+	}
+
+	/**
+	 * Load all motifs from a DREME or MEME xml file
+	 * The background is read from the motif file as with FIMO option --bgfile motif-file
+	 * @param xmlFile Motif xml file
+	 * @param pseudocount Pseudocount
+	 * @return The motifs in file order
+	 * @throws IOException
+	 */
+	public static List<PositionWeightMatrix> loadFromXml(String xmlFile, double pseudocount) throws IOException {
+		Document doc = null;
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setValidating(false);
+			factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			doc = builder.parse(new File(xmlFile));
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException(e);
+		} catch (SAXException e) {
+			throw new IOException("Could not parse motif file " + xmlFile, e);
+		}
+		String root = doc.getDocumentElement().getTagName();
+		if(root.equals("dreme")) {
+			return loadFromDremeXml(doc, pseudocount);
+		}
+		if(root.equals("MEME")) {
+			return loadFromMemeXml(doc, pseudocount);
+		}
+		throw new IllegalArgumentException("Motif file " + xmlFile + " is not DREME or MEME xml: root element " + root);
+	}
+
+	private static List<PositionWeightMatrix> loadFromDremeXml(Document doc, double pseudocount) {
+		double[] bg = {0.25, 0.25, 0.25, 0.25};
+		NodeList bgNodes = doc.getElementsByTagName("background");
+		if(bgNodes.getLength() > 0) {
+			Element bgElement = (Element) bgNodes.item(0);
+			bg = getBaseAttributes(bgElement);
+		}
+		List<PositionWeightMatrix> rtrn = new ArrayList<PositionWeightMatrix>();
+		NodeList motifNodes = doc.getElementsByTagName("motif");
+		for(int i = 0; i < motifNodes.getLength(); i++) {
+			Element motif = (Element) motifNodes.item(i);
+			NodeList posNodes = motif.getElementsByTagName("pos");
+			double[][] probs = new double[posNodes.getLength()][];
+			for(int j = 0; j < posNodes.getLength(); j++) {
+				probs[j] = getBaseAttributes((Element) posNodes.item(j));
+			}
+			int nsites = motif.hasAttribute("nsites") ? Integer.parseInt(motif.getAttribute("nsites")) : DEFAULT_NUM_SITES;
+			rtrn.add(new PositionWeightMatrix(motif.getAttribute("id"), motif.getAttribute("seq"), probs, bg, nsites, pseudocount));
+		}
+		logger.info("Loaded " + rtrn.size() + " DREME motifs.");
+		return rtrn;
+	}
+
+	private static List<PositionWeightMatrix> loadFromMemeXml(Document doc, double pseudocount) {
+		double[] bg = {0.25, 0.25, 0.25, 0.25};
+		NodeList bgNodes = doc.getElementsByTagName("background_frequencies");
+		if(bgNodes.getLength() > 0) {
+			bg = getAlphabetArray((Element) ((Element) bgNodes.item(0)).getElementsByTagName("alphabet_array").item(0));
+		}
+		List<PositionWeightMatrix> rtrn = new ArrayList<PositionWeightMatrix>();
+		NodeList motifNodes = doc.getElementsByTagName("motif");
+		for(int i = 0; i < motifNodes.getLength(); i++) {
+			Element motif = (Element) motifNodes.item(i);
+			Element probabilities = (Element) motif.getElementsByTagName("probabilities").item(0);
+			NodeList rows = probabilities.getElementsByTagName("alphabet_array");
+			double[][] probs = new double[rows.getLength()][];
+			for(int j = 0; j < rows.getLength(); j++) {
+				probs[j] = getAlphabetArray((Element) rows.item(j));
+			}
+			int nsites = motif.hasAttribute("sites") ? (int) Double.parseDouble(motif.getAttribute("sites")) : DEFAULT_NUM_SITES;
+			rtrn.add(new PositionWeightMatrix(motif.getAttribute("id"), motif.getAttribute("name"), probs, bg, nsites, pseudocount));
+		}
+		logger.info("Loaded " + rtrn.size() + " MEME motifs.");
+		return rtrn;
+	}
+
+	private static double[] getBaseAttributes(Element element) {
+		return new double[] {Double.parseDouble(element.getAttribute("A")), Double.parseDouble(element.getAttribute("C")),
+				Double.parseDouble(element.getAttribute("G")), Double.parseDouble(element.getAttribute("T"))};
+	}
+
+	private static double[] getAlphabetArray(Element alphabetArray) {
+		double[] rtrn = new double[4];
+		NodeList values = alphabetArray.getElementsByTagName("value");
+		for(int i = 0; i < values.getLength(); i++) {
+			Element value = (Element) values.item(i);
+			String letter = value.getAttribute("letter_id").replace("letter_", "");
+			double v = Double.parseDouble(value.getTextContent().trim());
+			switch(letter) {
+			case "A": rtrn[0] = v; break;
+			case "C": rtrn[1] = v; break;
+			case "G": rtrn[2] = v; break;
+			case "T": case "U": rtrn[3] = v; break;
+			default: throw new IllegalArgumentException("Letter " + letter + " not supported.");
+			}
+		}
+		return rtrn;
+	}
+
+}
@@ -0,0 +1,454 @@
+/**
+ *
+ */
+package motif;
+
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import broad.core.sequence.FastaSequenceIO;
+import broad.core.sequence.Sequence;
+
+/**
+ * In process replacement for running FIMO on a fasta file
+ * Scans all sequences against all motifs from a DREME or MEME xml file in one multithreaded pass
+ * and writes a fimo.txt file with the same columns, keeping occurrences that pass a q value threshold
+ * Sequences are scanned two bit encoded and q values are computed separately for each motif with the pi0 adjustment of FIMO
+ * @author prussell
+ *
+ */
+public class PwmScanner {
+
+	private List<PositionWeightMatrix> motifs;
+	private boolean scanReverseComplement;
+	private int numThreads;
+	private static Logger logger = Logger.getLogger(PwmScanner.class.getName());
+
+	/**
+	 * Number of sequences per scanning task
+	 */
+	private static int SEQUENCES_PER_TASK = 100;
+
+	/**
+	 * Step and largest value of the p value cutoffs tried when estimating pi0
+	 */
+	private static double LAMBDA_STEP = 0.05;
+	private static double MAX_LAMBDA = 0.5;
+
+	/**
+	 * @param motifSet Motifs
+	 * @param reverseComplement Also scan the reverse complement strand
+	 * @param threads Number of threads
+	 */
+	public PwmScanner(List<PositionWeightMatrix> motifSet, boolean reverseComplement, int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+		}
+		motifs = motifSet;
+		scanReverseComplement = reverseComplement;
+		numThreads = threads;
+	}
+
+	/**
+	 * @param motifXml DREME or MEME xml file
+	 * @param reverseComplement Also scan the reverse complement strand
+	 * @param threads Number of threads
+	 * @throws IOException
+	 */
+	public PwmScanner(String motifXml, boolean reverseComplement, int threads) throws IOException {
+		this(PositionWeightMatrix.loadFromXml(motifXml, PositionWeightMatrix.DEFAULT_PSEUDOCOUNT), reverseComplement, threads);
+	}
+
+	/**
+	 * One motif occurrence
+	 */
+	public class MotifHit {
+
+		private int motifIndex;
+		private String sequenceName;
+		private int start;
+		private int end;
+		private boolean reverse;
+		private double score;
+		private double pvalue;
+		private double qvalue;
+		private String matchedSequence;
+
+		MotifHit(int motif, String seqName, int windowStart, boolean reverseComplement, double windowScore, double windowPvalue, String bases) {
+			motifIndex = motif;
+			sequenceName = seqName;
+			start = windowStart + 1;
+			end = windowStart + motifs.get(motif).getWidth();
+			reverse = reverseComplement;
+			score = windowScore;
+			pvalue = windowPvalue;
+			String window = bases.substring(windowStart, windowStart + motifs.get(motif).getWidth()).toUpperCase();
+			matchedSequence = reverse ? reverseComplement(window) : window;
+		}
+
+		/**
+		 * @return The motif
+		 */
+		public PositionWeightMatrix getMotif() {
+			return motifs.get(motifIndex);
+		}
+
+		/**
+		 * @return P value
+		 */
+		public double getPvalue() {
+			return pvalue;
+		}
+
+		/**
+		 * @return Q value
+		 */
+		public double getQvalue() {
+			return qvalue;
+		}
+
+		/**
+		 * @return Line in the fimo.txt format
+		 */
+		public String toFimoLine() {
+			PositionWeightMatrix motif = getMotif();
+			return motif.getName() + "\t" + sequenceName + "\t" + start + "\t" + end + "\t" + (reverse ? "-" : "+") + "\t" +
+					String.format("%.5g", Double.valueOf(score)) + "\t" + String.format("%.3g", Double.valueOf(pvalue)) + "\t" +
+					String.format("%.3g", Double.valueOf(qvalue)) + "\t" + matchedSequence;
+		}
+
+	}
+
+	/**
+	 * Score counts or hits from scanning a batch of sequences
+	 */
+	private class ScanResult {
+		long[][] scoreCountsByMotif;
+		List<List<MotifHit>> hitsByMotif;
+		ScanResult(boolean keepHits) {
+			if(keepHits) {
+				hitsByMotif = new ArrayList<List<MotifHit>>();
+				for(int i = 0; i < motifs.size(); i++) {
+					hitsByMotif.add(new ArrayList<MotifHit>());
+				}
+			} else {
+				scoreCountsByMotif = new long[motifs.size()][];
+				for(int i = 0; i < motifs.size(); i++) {
+					scoreCountsByMotif[i] = new long[motifs.get(i).getNumScaledScores()];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scan all sequences against all motifs
+	 * The first pass only counts the windows with each scaled score, which determines the p value, so that
+	 * q values can be computed without holding every candidate window; the second pass keeps the windows that pass the q value threshold
+	 * @param sequences Sequences
+	 * @param qvalThreshold Q value threshold
+	 * @return Occurrences with q value at most the threshold, by motif then p value
+	 */
+	public List<MotifHit> scan(List<Sequence> sequences, final double qvalThreshold) {
+		logger.info("Scanning " + sequences.size() + " sequences for " + motifs.size() + " motifs with " + numThreads + " threads...");
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<MotifHit> rtrn = new ArrayList<MotifHit>();
+		try {
+			long[][] scoreCounts = new long[motifs.size()][];
+			for(int m = 0; m < motifs.size(); m++) {
+				scoreCounts[m] = new long[motifs.get(m).getNumScaledScores()];
+			}
+			for(ScanResult result : scanBatches(executor, sequences, null, qvalThreshold)) {
+				for(int m = 0; m < motifs.size(); m++) {
+					for(int i = 0; i < scoreCounts[m].length; i++) {
+						scoreCounts[m][i] += result.scoreCountsByMotif[m][i];
+					}
+				}
+			}
+			final double[][] qvalues = new double[motifs.size()][];
+			for(int m = 0; m < motifs.size(); m++) {
+				qvalues[m] = getQvalues(motifs.get(m), scoreCounts[m]);
+			}
+			List<List<MotifHit>> hitsByMotif = new ArrayList<List<MotifHit>>();
+			for(int m = 0; m < motifs.size(); m++) {
+				hitsByMotif.add(new ArrayList<MotifHit>());
+			}
+			for(ScanResult result : scanBatches(executor, sequences, qvalues, qvalThreshold)) {
+				for(int m = 0; m < motifs.size(); m++) {
+					hitsByMotif.get(m).addAll(result.hitsByMotif.get(m));
+				}
+			}
+			for(List<MotifHit> hits : hitsByMotif) {
+				Collections.sort(hits, new Comparator<MotifHit>() {
+					@Override
+					public int compare(MotifHit h1, MotifHit h2) {
+						return Double.compare(h1.pvalue, h2.pvalue);
+					}
+				});
+				rtrn.addAll(hits);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		logger.info("Found " + rtrn.size() + " motif occurrences with q value <= " + qvalThreshold + ".");
+		return rtrn;
+	}
+
+	/**
+	 * Scan batches of sequences on the executor
+	 * @param executor Executor
+	 * @param sequences All sequences
+	 * @param qvalues Q value of each scaled score by motif, or null to count scores instead of keeping hits
+	 * @param qvalThreshold Q value threshold for keeping hits
+	 * @return Results of the batches in order
+	 */
+	private List<ScanResult> scanBatches(ExecutorService executor, List<Sequence> sequences, final double[][] qvalues, final double qvalThreshold) {
+		List<Future<ScanResult>> futures = new ArrayList<Future<ScanResult>>();
+		for(int i = 0; i < sequences.size(); i += SEQUENCES_PER_TASK) {
+			final List<Sequence> batch = sequences.subList(i, Math.min(sequences.size(), i + SEQUENCES_PER_TASK));
+			futures.add(executor.submit(() -> scanBatch(batch, qvalues, qvalThreshold)));
+		}
+		List<ScanResult> rtrn = new ArrayList<ScanResult>();
+		try {
+			for(Future<ScanResult> future : futures) {
+				rtrn.add(future.get());
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+		return rtrn;
+	}
+
+	private ScanResult scanBatch(List<Sequence> batch, double[][] qvalues, double qvalThreshold) {
+		ScanResult rtrn = new ScanResult(qvalues != null);
+		for(Sequence seq : batch) {
+			String bases = seq.getSequenceBases();
+			TwoBitSequence forward = new TwoBitSequence(bases);
+			TwoBitSequence reverse = scanReverseComplement ? forward.reverseComplement() : null;
+			for(int m = 0; m < motifs.size(); m++) {
+				int width = motifs.get(m).getWidth();
+				// First position at which a window contains only valid bases
+				int validFrom = 0;
+				for(int i = 0; i < forward.length(); i++) {
+					if(!forward.isValid(i)) {
+						validFrom = i + 1;
+						continue;
+					}
+					int start = i - width + 1;
+					if(start < validFrom) {
+						continue;
+					}
+					scanWindow(rtrn, m, seq.getId(), bases, forward, start, start, false, qvalues, qvalThreshold);
+					if(reverse != null) {
+						scanWindow(rtrn, m, seq.getId(), bases, reverse, forward.length() - start - width, start, true, qvalues, qvalThreshold);
+					}
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param strand The forward sequence or its reverse complement
+	 * @param strandStart Window start on the strand
+	 * @param start Window start on the forward sequence
+	 */
+	private void scanWindow(ScanResult result, int motifIndex, String seqName, String bases, TwoBitSequence strand, int strandStart, int start, boolean reverse, double[][] qvalues, double qvalThreshold) {
+		PositionWeightMatrix motif = motifs.get(motifIndex);
+		int scaledScore = motif.getScaledScore(strand, strandStart);
+		int scoreIndex = getScoreIndex(motif, scaledScore);
+		if(qvalues == null) {
+			result.scoreCountsByMotif[motifIndex][scoreIndex]++;
+			return;
+		}
+		double qval = qvalues[motifIndex][scoreIndex];
+		if(qval <= qvalThreshold) {
+			MotifHit hit = new MotifHit(motifIndex, seqName, start, reverse, motif.getScore(strand, strandStart), motif.getPvalue(scaledScore), bases);
+			hit.qvalue = qval;
+			result.hitsByMotif.get(motifIndex).add(hit);
+		}
+	}
+
+	private static int getScoreIndex(PositionWeightMatrix motif, int scaledScore) {
+		return Math.max(0, Math.min(motif.getNumScaledScores() - 1, scaledScore - motif.getMinScaledScore()));
+	}
+
+	/**
+	 * Q values for one motif from the number of windows with each scaled score, as in FIMO
+	 * These are Benjamini-Hochberg q values multiplied by pi0, the estimated proportion of windows drawn from the background
+	 * Windows with higher scores have smaller p values, so the rank of a p value is the number of windows with at least its score;
+	 * tied windows all get the largest rank of the tie, as with sorting and taking the running minimum from the largest p value
+	 * @param motif The motif
+	 * @param scoreCounts Number of windows tested with each scaled score, indexed from the smallest possible score
+	 * @return Q value of each scaled score, indexed the same way
+	 */
+	private static double[] getQvalues(PositionWeightMatrix motif, long[] scoreCounts) {
+		long numTests = 0;
+		for(long count : scoreCounts) {
+			numTests += count;
+		}
+		double pi0 = estimatePi0(motif, scoreCounts, numTests);
+		double[] rtrn = new double[scoreCounts.length];
+		double minSoFar = 1;
+		// Number of windows with this score or higher
+		long rank = numTests;
+		for(int i = 0; i < scoreCounts.length; i++) {
+			if(scoreCounts[i] > 0) {
+				double q = pi0 * motif.getPvalue(motif.getMinScaledScore() + i) * numTests / rank;
+				minSoFar = Math.min(minSoFar, q);
+				rank -= scoreCounts[i];
+			}
+			rtrn[i] = minSoFar;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Estimate the proportion of windows drawn from the background following Storey, Taylor and Siegmund (2004)
+	 * For each cutoff lambda, pi0(lambda) is the fraction of p values above lambda divided by 1 - lambda; the cutoff with the smallest
+	 * bootstrap mean squared error against the smallest pi0(lambda) is used. The expected bootstrap error is computed exactly from the
+	 * binomial variance of the number of p values above lambda instead of by resampling
+	 * @param motif The motif
+	 * @param scoreCounts Number of windows tested with each scaled score, indexed from the smallest possible score
+	 * @param numTests Total number of windows
+	 * @return Estimate of pi0, at most 1
+	 */
+	private static double estimatePi0(PositionWeightMatrix motif, long[] scoreCounts, long numTests) {
+		if(numTests == 0) {
+			return 1;
+		}
+		int numLambdas = (int) Math.round(MAX_LAMBDA / LAMBDA_STEP) + 1;
+		double[] pi0ByLambda = new double[numLambdas];
+		double[] varianceByLambda = new double[numLambdas];
+		double minPi0 = Double.MAX_VALUE;
+		for(int l = 0; l < numLambdas; l++) {
+			double lambda = l * LAMBDA_STEP;
+			long numAbove = 0;
+			for(int i = 0; i < scoreCounts.length; i++) {
+				if(motif.getPvalue(motif.getMinScaledScore() + i) > lambda) {
+					numAbove += scoreCounts[i];
+				}
+			}
+			double fractionAbove = (double) numAbove / numTests;
+			pi0ByLambda[l] = fractionAbove / (1 - lambda);
+			varianceByLambda[l] = fractionAbove * (1 - fractionAbove) / numTests / ((1 - lambda) * (1 - lambda));
+			minPi0 = Math.min(minPi0, pi0ByLambda[l]);
+		}
+		int best = 0;
+		double bestError = Double.MAX_VALUE;
+		for(int l = 0; l < numLambdas; l++) {
+			double bias = pi0ByLambda[l] - minPi0;
+			double error = varianceByLambda[l] + bias * bias;
+			if(error < bestError) {
+				bestError = error;
+				best = l;
+			}
+		}
+		return Math.min(1, pi0ByLambda[best]);
+	}
+
+	/**
+	 * Write hits in fimo.txt format
+	 * @param hits Hits
+	 * @param outputDir Output directory; the file is called fimo.txt
+	 * @throws IOException
+	 */
+	public static void writeFimoTxt(List<MotifHit> hits, String outputDir) throws IOException {
+		File dir = new File(outputDir);
+		@SuppressWarnings("unused")
+		boolean madeDir = dir.mkdirs();
+		if(!dir.exists()) {
+			throw new IOException("Could not create directory " + outputDir);
+		}
+		String file = outputDir + "/fimo.txt";
+		logger.info("Writing " + hits.size() + " motif occurrences to " + file);
+		BufferedWriter w = new BufferedWriter(new FileWriter(file));
+		w.write("#pattern name\tsequence name\tstart\tstop\tstrand\tscore\tp-value\tq-value\tmatched sequence\n");
+		for(MotifHit hit : hits) {
+			w.write(hit.toFimoLine() + "\n");
+		}
+		w.close();
+	}
+
+	/**
+	 * Scan a fasta file and write fimo.txt
+	 * @param sequenceFasta Fasta file of sequences
+	 * @param qvalThreshold Q value threshold
+	 * @param outputDir Output directory
+	 * @throws IOException
+	 */
+	public void scanAndWrite(String sequenceFasta, double qvalThreshold, String outputDir) throws IOException {
+		writeFimoTxt(scan(loadSequences(sequenceFasta), qvalThreshold), outputDir);
+	}
+
+	/**
+	 * @param sequenceFasta Fasta file
+	 * @return The sequences as a list
+	 * @throws IOException
+	 */
+	public static List<Sequence> loadSequences(String sequenceFasta) throws IOException {
+		FastaSequenceIO fsio = new FastaSequenceIO(sequenceFasta);
+		Collection<Sequence> seqs = fsio.loadAll();
+		return new ArrayList<Sequence>(seqs);
+	}
+
+	private static String reverseComplement(String bases) {
+		StringBuilder rtrn = new StringBuilder(bases.length());
+		for(int i = bases.length() - 1; i >= 0; i--) {
+			char c = bases.charAt(i);
+			switch(c) {
+			case 'A': rtrn.append('T'); break;
+			case 'C': rtrn.append('G'); break;
+			case 'G': rtrn.append('C'); break;
+			case 'T': rtrn.append('A'); break;
+			case 'U': rtrn.append('A'); break;
+			default: rtrn.append(c);
+			}
+		}
+		return rtrn.toString();
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-m", "Motif xml file from DREME or MEME", true);
+		p.addStringArg("-s", "Sequence fasta file", true);
+		p.addStringArg("-o", "Output directory", true);
+		p.addDoubleArg("-q", "Q value threshold", false, 0.05);
+		p.addBooleanArg("-rc", "Also scan reverse complement strand", false, false);
+		p.addIntArg("-t", "Number of threads", false, Runtime.getRuntime().availableProcessors());
+		p.parse(args);
+		String motifXml = p.getStringArg("-m");
+		String sequenceFasta = p.getStringArg("-s");
+		String outDir = p.getStringArg("-o");
+		double qvalThreshold = p.getDoubleArg("-q");
+		boolean rc = p.getBooleanArg("-rc");
+		int threads = p.getIntArg("-t");
+
+		PwmScanner scanner = new PwmScanner(motifXml, rc, threads);
+		scanner.scanAndWrite(sequenceFasta, qvalThreshold, outDir);
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
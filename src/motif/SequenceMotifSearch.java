@@ -11,6 +11,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Level;
@@ -29,6 +31,7 @@ import broad.core.sequence.SequenceRegion;
 public class SequenceMotifSearch {
 	
 	private Collection<SequenceMotif> motifs;
+	private Map<SequenceMotif, String> consensusByMotif;
 	private Collection<Sequence> sequences;
 	private String mName;
 	private static Logger logger = Logger.getLogger(SequenceMotifSearch.class.getName());
@@ -45,12 +48,27 @@ public class SequenceMotifSearch {
 	}
 	
 	/**
+	 * Motifs given without their consensus sequences cannot be counted with the automaton
 	 * @param name Experiment/sample name
 	 * @param motifSet Motifs
 	 * @param sequenceSet Sequences to search
 	 */
 	public SequenceMotifSearch(String name, Collection<SequenceMotif> motifSet, Collection<Sequence> sequenceSet) {
+		this(name, motifSet, new HashMap<SequenceMotif, String>(), sequenceSet);
+	}
+	
+	/**
+	 * @param name Experiment/sample name
+	 * @param motifConsensus Motifs and the IUPAC consensus sequence each was built from, in iteration order
+	 * @param sequenceSet Sequences to search
+	 */
+	public SequenceMotifSearch(String name, Map<SequenceMotif, String> motifConsensus, Collection<Sequence> sequenceSet) {
+		this(name, motifConsensus.keySet(), motifConsensus, sequenceSet);
+	}
+	
+	private SequenceMotifSearch(String name, Collection<SequenceMotif> motifSet, Map<SequenceMotif, String> motifConsensus, Collection<Sequence> sequenceSet) {
 		motifs = motifSet;
+		consensusByMotif = motifConsensus;
 		sequences = sequenceSet;
 		mName = name;
 		logger.info("There are " + motifs.size() + " motifs and " + sequences.size() + " sequences to search: " + mName + ".");
@@ -88,6 +106,50 @@ public class SequenceMotifSearch {
 		return rtrn;
 	}
 	
+	/**
+	 * Count matches of all motifs with a single automaton, scanning each sequence once and sequences in parallel
+	 * Overlapping matches of the same motif are not counted, as in the regex search
+	 * @param numThreads Number of threads
+	 * @return Match counts by motif and number of sequences with at least one match
+	 */
+	public MultiMotifMatcher.MatchCounts countMatchesWithAutomaton(int numThreads) {
+		logger.info("Counting matches with automaton: " + mName + "...");
+		List<String> bases = new ArrayList<String>();
+		for(Sequence sequence : sequences) {
+			bases.add(sequence.getSequenceBases());
+		}
+		return getAutomaton().countMatches(bases, numThreads);
+	}
+	
+	/**
+	 * @return Automaton matching the IUPAC consensus of all motifs, in the iteration order of getMotifs()
+	 */
+	private MultiMotifMatcher getAutomaton() {
+		List<String> consensus = new ArrayList<String>();
+		for(SequenceMotif motif : motifs) {
+			if(!consensusByMotif.containsKey(motif)) {
+				throw new IllegalStateException("Consensus sequence of motif " + motif.getId() + " is not known. Construct with consensus sequences to count with the automaton.");
+			}
+			consensus.add(consensusByMotif.get(motif));
+		}
+		return new MultiMotifMatcher(consensus);
+	}
+	
+	/**
+	 * @param numThreads Number of threads
+	 * @return Number of matches of each motif, counted with the automaton
+	 */
+	public Map<SequenceMotif, Long> countMatchesByMotif(int numThreads) {
+		MultiMotifMatcher.MatchCounts counts = countMatchesWithAutomaton(numThreads);
+		Map<SequenceMotif, Long> rtrn = new HashMap<SequenceMotif, Long>();
+		int i = 0;
+		for(SequenceMotif motif : motifs) {
+			rtrn.put(motif, Long.valueOf(counts.getCount(i)));
+			i++;
+		}
+		return rtrn;
+	}
+	
 	private static Collection<SequenceMotifSearch> createFromFile(String file) throws IOException, SearchException {
 		logger.info("Creating from file " + file + "...");
 		FileReader r = new FileReader(file);
@@ -114,6 +176,21 @@ public class SequenceMotifSearch {
 	 * @throws IOException
 	 */
 	public static void writeCountTable(Collection<SequenceMotifSearch> sms, String outFile) throws IOException {
+		writeCountTable(sms, outFile, 0);
+	}
+	
+	/**
+	 * Write table of match counts
+	 * @param sms SequenceMotifSearch objects
+	 * @param outFile Output file
+	 * @param numThreads If positive, count matches with the multi-motif automaton using this many threads
+	 * @throws IOException
+	 */
+	public static void writeCountTable(Collection<SequenceMotifSearch> sms, String outFile, int numThreads) throws IOException {
+		if(numThreads > 0) {
+			writeCountTableWithAutomaton(sms, outFile, numThreads);
+			return;
+		}
 		logger.info("Writing motif count table to file " + outFile + "...");
 		Collection<SequenceMotif> allMotifs = new HashSet<SequenceMotif>();
 		FileWriter w = new FileWriter(outFile);
@@ -141,6 +218,33 @@ public class SequenceMotifSearch {
 		logger.info("Done writing file.");
 	}
 	
+	private static void writeCountTableWithAutomaton(Collection<SequenceMotifSearch> sms, String outFile, int numThreads) throws IOException {
+		logger.info("Writing motif count table to file " + outFile + "...");
+		Collection<SequenceMotif> allMotifs = new HashSet<SequenceMotif>();
+		FileWriter w = new FileWriter(outFile);
+		String header = "motif_id\tconsensus_sequence\tnum_possible_kmers";
+		Map<SequenceMotifSearch, Map<SequenceMotif, Long>> countsBySms = new HashMap<SequenceMotifSearch, Map<SequenceMotif, Long>>();
+		for(SequenceMotifSearch s : sms) {
+			allMotifs.addAll(s.getMotifs());
+			header += "\t" + s.getName();
+			countsBySms.put(s, s.countMatchesByMotif(numThreads));
+		}
+		w.write(header + "\n");
+		for(SequenceMotif motif : allMotifs) {
+			String line = motif.getId() + "\t" + motif.getMotif().toString() + "\t" + motif.getNumPossibleKmers();
+			for(SequenceMotifSearch s : sms) {
+				if(countsBySms.get(s).containsKey(motif)) {
+					line += "\t" + countsBySms.get(s).get(motif);
+				} else {
+					line += "\t-";
+				}
+			}
+			w.write(line + "\n");
+		}
+		w.close();
+		logger.info("Done writing file.");
+	}
+	
 	/**
 	 * @return The motifs
 	 */
@@ -200,8 +304,8 @@ public class SequenceMotifSearch {
 		return fsio.loadAll();
 	}
 	
-	private static Collection<SequenceMotif> getFileLinesAsMotifs(String file) throws IOException, SearchException {
-		Collection<SequenceMotif> rtrn = new ArrayList<SequenceMotif>();
+	private static Map<SequenceMotif, String> getFileLinesAsMotifs(String file) throws IOException, SearchException {
+		Map<SequenceMotif, String> rtrn = new LinkedHashMap<SequenceMotif, String>();
 		Collection<String> asStrings = getLinesFromFile(file);
 		StringParser s = new StringParser();
 		for(String str : asStrings) {
@@ -209,7 +313,7 @@ public class SequenceMotifSearch {
 			if(s.getFieldCount() == 0) continue;
 			String name = s.asString(0);
 			String motif = s.asString(1);
-			rtrn.add(new SequenceMotif(motif, name));
+			rtrn.put(new SequenceMotif(motif, name), motif);
 		}
 		return rtrn;
 	}
@@ -240,6 +344,7 @@ public class SequenceMotifSearch {
 		p.addStringArg("-m", "File containing one motif per line. Each line: <identifier>   <consensus_sequence>", false, null);
 		p.addBooleanArg("-d", "Debug logging", false, false);
 		p.addStringArg("-n", "Single identifier", false, null);
+		p.addIntArg("-t", "If positive, scan all motifs at once with an automaton using this many threads", false, 0);
 		p.parse(args);
 		boolean debug = p.getBooleanArg("-d");
 		if(debug) {
@@ -250,16 +355,22 @@ public class SequenceMotifSearch {
 		String name = p.getStringArg("-n");
 		String inputTable = p.getStringArg("-i");
 		String outputTable = p.getStringArg("-o");
+		int numThreads = p.getIntArg("-t");
 
 		if(sequenceFasta != null && motifFile != null && name != null) {
 			SequenceMotifSearch sms = new SequenceMotifSearch(name, motifFile, sequenceFasta);
-			int numMatches = sms.countAllMotifMatches();
-			int numSeqsWithMatch = sms.numSequencesWithMatch();
-			logger.info("There are " + numMatches + " total matches. " + numSeqsWithMatch + " sequences have at least one match.");
+			if(numThreads > 0) {
+				MultiMotifMatcher.MatchCounts counts = sms.countMatchesWithAutomaton(numThreads);
+				logger.info("There are " + counts.getTotalCount() + " total matches. " + counts.getNumSequencesWithMatch() + " sequences have at least one match.");
+			} else {
+				int numMatches = sms.countAllMotifMatches();
+				int numSeqsWithMatch = sms.numSequencesWithMatch();
+				logger.info("There are " + numMatches + " total matches. " + numSeqsWithMatch + " sequences have at least one match.");
+			}
 		}
 		
 		if(inputTable != null && outputTable != null) {
-			writeCountTable(createFromFile(inputTable), outputTable);
+			writeCountTable(createFromFile(inputTable), outputTable, numThreads);
 		}
 		
 	}
@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package motif;
+
+import java.util.BitSet;
+
+/**
+ * DNA sequence packed two bits per base for motif scanning
+ * A=0, C=1, G=2, T or U=3; other characters are stored as A and marked invalid
+ * The first base of each word is in its two highest bits so that consecutive bases can be read as one integer
+ * @author prussell
+ *
+ */
+public class TwoBitSequence {
+
+	private long[] packed;
+	private BitSet invalid;
+	private int length;
+
+	/**
+	 * Number of bases packed in each long
+	 */
+	private static int BASES_PER_WORD = 32;
+
+	/**
+	 * Largest number of bases that can be read as one integer
+	 */
+	public static int MAX_BASES_PER_READ = 15;
+
+	/**
+	 * @param bases Sequence bases
+	 */
+	public TwoBitSequence(String bases) {
+		this(bases.length());
+		for(int i = 0; i < length; i++) {
+			int code;
+			switch(bases.charAt(i)) {
+			case 'A': case 'a': code = 0; break;
+			case 'C': case 'c': code = 1; break;
+			case 'G': case 'g': code = 2; break;
+			case 'T': case 't': case 'U': case 'u': code = 3; break;
+			default: code = 0; invalid.set(i);
+			}
+			setBase(i, code);
+		}
+	}
+
+	private TwoBitSequence(int numBases) {
+		length = numBases;
+		packed = new long[(numBases + BASES_PER_WORD - 1) / BASES_PER_WORD];
+		invalid = new BitSet(numBases);
+	}
+
+	private void setBase(int position, int code) {
+		packed[position / BASES_PER_WORD] |= ((long) code) << (62 - 2 * (position % BASES_PER_WORD));
+	}
+
+	/**
+	 * @return Number of bases
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @param position Position
+	 * @return Whether the base at the position is A, C, G, T or U
+	 */
+	public boolean isValid(int position) {
+		return !invalid.get(position);
+	}
+
+	/**
+	 * @param position Position
+	 * @return Code of the base at the position
+	 */
+	public int getBase(int position) {
+		return (int) (packed[position / BASES_PER_WORD] >>> (62 - 2 * (position % BASES_PER_WORD))) & 3;
+	}
+
+	/**
+	 * Read consecutive bases as one integer with the first base in the highest bits
+	 * @param start First position
+	 * @param numBases Number of bases, at most MAX_BASES_PER_READ; positions past the end read as A
+	 * @return The bases as an integer between 0 and 4^numBases - 1
+	 */
+	public int getBases(int start, int numBases) {
+		int word = start / BASES_PER_WORD;
+		int offset = 2 * (start % BASES_PER_WORD);
+		long bits = packed[word] << offset;
+		if(offset + 2 * numBases > 64 && word + 1 < packed.length) {
+			bits |= packed[word + 1] >>> (64 - offset);
+		}
+		return (int) (bits >>> (64 - 2 * numBases));
+	}
+
+	/**
+	 * @return The reverse complement, with invalid positions mirrored
+	 */
+	public TwoBitSequence reverseComplement() {
+		TwoBitSequence rtrn = new TwoBitSequence(length);
+		for(int i = 0; i < length; i++) {
+			int mirror = length - 1 - i;
+			rtrn.setBase(mirror, 3 - getBase(i));
+			if(invalid.get(i)) {
+				rtrn.invalid.set(mirror);
+			}
+		}
+		return rtrn;
+	}
+
+}
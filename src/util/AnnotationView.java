@@ -0,0 +1,203 @@
+/**
+ *
+ */
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+
+/**
+ * Read only view of one record in a BinaryAnnotationStore
+ * Fields are read from the mapped columns as they are requested
+ * @author prussell
+ *
+ */
+public class AnnotationView {
+
+	private BinaryAnnotationStore store;
+	private int index;
+
+	AnnotationView(BinaryAnnotationStore store, int index) {
+		this.store = store;
+		this.index = index;
+	}
+
+	/**
+	 * @return Index of the record in the store
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return Chromosome
+	 */
+	public String getChr() {
+		return store.getChr(index);
+	}
+
+	/**
+	 * @return Zero based start
+	 */
+	public int getStart() {
+		return store.getStart(index);
+	}
+
+	/**
+	 * @return Exclusive end
+	 */
+	public int getEnd() {
+		return store.getEnd(index);
+	}
+
+	/**
+	 * @return Name
+	 */
+	public String getName() {
+		return store.getName(index);
+	}
+
+	/**
+	 * @return Score
+	 */
+	public double getScore() {
+		return store.getScore(index);
+	}
+
+	/**
+	 * @return Strand character from the bed file
+	 */
+	public char getStrandChar() {
+		return store.getStrand(index);
+	}
+
+	/**
+	 * @return Orientation
+	 */
+	public Strand getOrientation() {
+		switch(getStrandChar()) {
+		case '+':
+			return Strand.POSITIVE;
+		case '-':
+			return Strand.NEGATIVE;
+		default:
+			return Strand.UNKNOWN;
+		}
+	}
+
+	/**
+	 * @return Thick start
+	 */
+	public int getCDSStart() {
+		return store.getCDSStart(index);
+	}
+
+	/**
+	 * @return Thick end
+	 */
+	public int getCDSEnd() {
+		return store.getCDSEnd(index);
+	}
+
+	/**
+	 * @return Number of blocks
+	 */
+	public int getNumBlocks() {
+		return store.getNumBlocks(index);
+	}
+
+	/**
+	 * @param block Block number in order of position
+	 * @return Zero based start of the block
+	 */
+	public int getBlockStart(int block) {
+		return store.getBlockStart(index, block);
+	}
+
+	/**
+	 * @param block Block number in order of position
+	 * @return Exclusive end of the block
+	 */
+	public int getBlockEnd(int block) {
+		return store.getBlockEnd(index, block);
+	}
+
+	/**
+	 * @return Total size of the blocks
+	 */
+	public int getSize() {
+		int rtrn = 0;
+		int numBlocks = getNumBlocks();
+		for(int i = 0; i < numBlocks; i++) {
+			rtrn += getBlockEnd(i) - getBlockStart(i);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @param start Zero based start
+	 * @param end Exclusive end
+	 * @return True iff a block of the record overlaps the interval
+	 */
+	public boolean overlaps(String chr, int start, int end) {
+		if(getStart() >= end || getEnd() <= start || !getChr().equals(chr)) {
+			return false;
+		}
+		int numBlocks = getNumBlocks();
+		for(int i = 0; i < numBlocks; i++) {
+			if(getBlockStart(i) < end && getBlockEnd(i) > start) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Materialize the record as a gene
+	 * @return Gene with the blocks, name, CDS and score of the record
+	 */
+	public Gene toGene() {
+		String chr = getChr();
+		Strand orientation = getOrientation();
+		int numBlocks = getNumBlocks();
+		List<Annotation> blocks = new ArrayList<Annotation>(numBlocks);
+		for(int i = 0; i < numBlocks; i++) {
+			blocks.add(new BasicAnnotation(chr, getBlockStart(i), getBlockEnd(i), orientation));
+		}
+		Gene rtrn = new Gene(blocks, getName());
+		rtrn.setCDSStart(getCDSStart());
+		rtrn.setCDSEnd(getCDSEnd());
+		rtrn.setScore(getScore());
+		return rtrn;
+	}
+
+	/**
+	 * @return The record as a bed12 line
+	 */
+	public String toBED() {
+		int start = getStart();
+		int numBlocks = getNumBlocks();
+		StringBuilder sizes = new StringBuilder();
+		StringBuilder starts = new StringBuilder();
+		for(int i = 0; i < numBlocks; i++) {
+			sizes.append(getBlockEnd(i) - getBlockStart(i)).append(",");
+			starts.append(getBlockStart(i) - start).append(",");
+		}
+		float score = store.getScore(index);
+		String scoreString = score == (int) score ? Integer.toString((int) score) : Float.toString(score);
+		return getChr() + "\t" + start + "\t" + getEnd() + "\t" + getName() + "\t" + scoreString + "\t" + getStrandChar() + "\t"
+				+ getCDSStart() + "\t" + getCDSEnd() + "\t0\t" + numBlocks + "\t" + sizes + "\t" + starts;
+	}
+
+	@Override
+	public String toString() {
+		return toBED();
+	}
+
+}
@@ -0,0 +1,262 @@
+package util;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads BGZF (bgzip) compressed input
+ * Compressed blocks are read ahead of the consumer and decompressed on a thread pool, and the data is returned in order
+ * @author prussell
+ *
+ */
+public class BgzfInputStream extends InputStream {
+
+	/**
+	 * Maximum number of blocks per thread decompressed ahead of the consumer
+	 */
+	private static int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+	private InputStream in;
+	private ExecutorService executor;
+	private Deque<Future<byte[]>> pending;
+	private int maxPending;
+	private boolean inputDone;
+	private byte[] block;
+	private int blockPos;
+
+	/**
+	 * @param in Compressed stream
+	 * @param numThreads Number of threads to decompress blocks; with one thread blocks are decompressed on the calling thread
+	 */
+	public BgzfInputStream(InputStream in, int numThreads) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+		}
+		this.in = in;
+		pending = new ArrayDeque<Future<byte[]>>();
+		if(numThreads > 1) {
+			executor = Executors.newFixedThreadPool(numThreads);
+			maxPending = numThreads * BLOCKS_IN_FLIGHT_PER_THREAD;
+		} else {
+			maxPending = 1;
+		}
+		block = new byte[0];
+		blockPos = 0;
+	}
+
+	/**
+	 * @param file File
+	 * @return True iff the file starts with a BGZF block header
+	 * @throws IOException
+	 */
+	public static boolean isBgzf(String file) throws IOException {
+		InputStream s = new FileInputStream(file);
+		try {
+			byte[] header = new byte[BgzfOutputStream.HEADER_SIZE];
+			int n = 0;
+			while(n < header.length) {
+				int r = s.read(header, n, header.length - n);
+				if(r < 0) {
+					return false;
+				}
+				n += r;
+			}
+			return isBlockHeader(header);
+		} finally {
+			s.close();
+		}
+	}
+
+	private static boolean isBlockHeader(byte[] header) {
+		return header[0] == 0x1f && header[1] == (byte) 0x8b && header[2] == 0x08 && (header[3] & 0x04) != 0
+				&& header[10] == 0x06 && header[11] == 0x00 && header[12] == 'B' && header[13] == 'C' && header[14] == 0x02 && header[15] == 0x00;
+	}
+
+	/**
+	 * Read the next compressed block from the underlying stream
+	 * @return The compressed block or null at end of input
+	 * @throws IOException
+	 */
+	private byte[] readCompressedBlock() throws IOException {
+		byte[] header = new byte[BgzfOutputStream.HEADER_SIZE];
+		int n = readFully(header, 0, header.length);
+		if(n == 0) {
+			return null;
+		}
+		if(n < header.length || !isBlockHeader(header)) {
+			throw new IOException("Input is not in BGZF format; compress with bgzip");
+		}
+		int blockSize = ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+		byte[] rtrn = new byte[blockSize];
+		System.arraycopy(header, 0, rtrn, 0, header.length);
+		if(readFully(rtrn, header.length, blockSize - header.length) < blockSize - header.length) {
+			throw new EOFException("Truncated BGZF block");
+		}
+		return rtrn;
+	}
+
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int rtrn = 0;
+		while(rtrn < len) {
+			int r = in.read(b, off + rtrn, len - rtrn);
+			if(r < 0) {
+				break;
+			}
+			rtrn += r;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Decompress a complete BGZF block and check its CRC
+	 * @param compressed The block
+	 * @return Uncompressed data
+	 * @throws IOException
+	 */
+	static byte[] decompressBlock(byte[] compressed) throws IOException {
+		int footer = compressed.length - BgzfOutputStream.FOOTER_SIZE;
+		int expectedCrc = getInt(compressed, footer);
+		int size = getInt(compressed, footer + 4);
+		byte[] rtrn = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed, BgzfOutputStream.HEADER_SIZE, footer - BgzfOutputStream.HEADER_SIZE);
+			int n = 0;
+			while(n < size) {
+				int r = inflater.inflate(rtrn, n, size - n);
+				if(r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += r;
+			}
+			if(n != size) {
+				throw new IOException("BGZF block decompressed to " + n + " bytes; expected " + size);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt BGZF block", e);
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(rtrn, 0, size);
+		if((int) crc.getValue() != expectedCrc) {
+			throw new IOException("CRC mismatch in BGZF block");
+		}
+		return rtrn;
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8) | ((b[offset + 2] & 0xff) << 16) | ((b[offset + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * Submit blocks for decompression until the read ahead queue is full or the input is finished
+	 * @throws IOException
+	 */
+	private void fillQueue() throws IOException {
+		while(!inputDone && pending.size() < maxPending) {
+			final byte[] compressed = readCompressedBlock();
+			if(compressed == null) {
+				inputDone = true;
+				return;
+			}
+			Callable<byte[]> task = new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return decompressBlock(compressed);
+				}
+			};
+			if(executor == null) {
+				FutureTask<byte[]> future = new FutureTask<byte[]>(task);
+				future.run();
+				pending.addLast(future);
+			} else {
+				pending.addLast(executor.submit(task));
+			}
+		}
+	}
+
+	/**
+	 * Make the next non-empty block current
+	 * @return False at end of input
+	 * @throws IOException
+	 */
+	private boolean nextBlock() throws IOException {
+		while(blockPos == block.length) {
+			fillQueue();
+			if(pending.isEmpty()) {
+				return false;
+			}
+			block = getResult(pending.removeFirst());
+			blockPos = 0;
+		}
+		return true;
+	}
+
+	private static byte[] getResult(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!nextBlock()) {
+			return -1;
+		}
+		int rtrn = block[blockPos] & 0xff;
+		blockPos++;
+		return rtrn;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!nextBlock()) {
+			return -1;
+		}
+		int n = Math.min(len, block.length - blockPos);
+		System.arraycopy(block, blockPos, b, off, n);
+		blockPos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return block.length - blockPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+		in.close();
+	}
+
+}
@@ -0,0 +1,240 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF (bgzip) compressed output, readable by gzip, bgzip, tabix and htslib
+ * Data is cut into blocks of at most 65280 bytes, blocks are compressed on a thread pool and written in order,
+ * and the empty end of file block is written on close
+ * @author prussell
+ *
+ */
+public class BgzfOutputStream extends OutputStream {
+
+	/**
+	 * Maximum uncompressed bytes per block, as in bgzip
+	 */
+	static final int BLOCK_DATA_SIZE = 0xff00;
+
+	/**
+	 * Maximum total size of a block
+	 */
+	static final int MAX_BLOCK_SIZE = 0x10000;
+
+	static final int HEADER_SIZE = 18;
+	static final int FOOTER_SIZE = 8;
+
+	/**
+	 * The empty block that marks the end of a BGZF file
+	 */
+	static final byte[] EOF_BLOCK = new byte[] {
+		0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+		0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+	};
+
+	/**
+	 * Maximum number of blocks per thread compressed ahead of the output
+	 */
+	private static int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+	private OutputStream out;
+	private ExecutorService executor;
+	private Deque<Future<byte[]>> pending;
+	private int maxPending;
+	private byte[] buffer;
+	private int bufferSize;
+	private boolean closed;
+
+	/**
+	 * @param out Stream to write compressed data to
+	 * @param numThreads Number of threads to compress blocks; with one thread blocks are compressed on the calling thread
+	 */
+	public BgzfOutputStream(OutputStream out, int numThreads) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+		}
+		this.out = out;
+		if(numThreads > 1) {
+			executor = Executors.newFixedThreadPool(numThreads);
+			pending = new ArrayDeque<Future<byte[]>>();
+			maxPending = numThreads * BLOCKS_IN_FLIGHT_PER_THREAD;
+		}
+		buffer = new byte[BLOCK_DATA_SIZE];
+		bufferSize = 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[bufferSize] = (byte) b;
+		bufferSize++;
+		if(bufferSize == buffer.length) {
+			endBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = Math.min(len, buffer.length - bufferSize);
+			System.arraycopy(b, off, buffer, bufferSize, n);
+			bufferSize += n;
+			off += n;
+			len -= n;
+			if(bufferSize == buffer.length) {
+				endBlock();
+			}
+		}
+	}
+
+	/**
+	 * Compress the buffered data as one block
+	 * @throws IOException
+	 */
+	private void endBlock() throws IOException {
+		if(bufferSize == 0) {
+			return;
+		}
+		final byte[] data = buffer;
+		final int size = bufferSize;
+		buffer = new byte[BLOCK_DATA_SIZE];
+		bufferSize = 0;
+		if(executor == null) {
+			out.write(compressBlock(data, size));
+			return;
+		}
+		if(pending.size() >= maxPending) {
+			out.write(getResult(pending.removeFirst()));
+		}
+		pending.addLast(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compressBlock(data, size);
+			}
+		}));
+	}
+
+	private static byte[] getResult(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Compress data into a complete BGZF block
+	 * @param data Uncompressed data
+	 * @param size Number of bytes of data to use
+	 * @return The block
+	 */
+	static byte[] compressBlock(byte[] data, int size) {
+		byte[] compressed = new byte[MAX_BLOCK_SIZE];
+		int compressedSize = deflate(data, size, compressed, Deflater.DEFAULT_COMPRESSION);
+		if(compressedSize < 0) {
+			// Incompressible data; stored blocks always fit
+			compressedSize = deflate(data, size, compressed, Deflater.NO_COMPRESSION);
+		}
+		int blockSize = HEADER_SIZE + compressedSize + FOOTER_SIZE;
+		byte[] rtrn = new byte[blockSize];
+		rtrn[0] = 0x1f;
+		rtrn[1] = (byte) 0x8b;
+		rtrn[2] = 0x08; // Deflate
+		rtrn[3] = 0x04; // Extra field present
+		rtrn[9] = (byte) 0xff; // Unknown OS
+		rtrn[10] = 0x06; // Extra field length
+		rtrn[12] = 'B';
+		rtrn[13] = 'C';
+		rtrn[14] = 0x02; // Subfield length
+		putShort(rtrn, 16, blockSize - 1);
+		System.arraycopy(compressed, 0, rtrn, HEADER_SIZE, compressedSize);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, size);
+		putInt(rtrn, HEADER_SIZE + compressedSize, (int) crc.getValue());
+		putInt(rtrn, HEADER_SIZE + compressedSize + 4, size);
+		return rtrn;
+	}
+
+	/**
+	 * @return Compressed size, or -1 if the block would be too large
+	 */
+	private static int deflate(byte[] data, int size, byte[] compressed, int level) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, size);
+			deflater.finish();
+			int max = MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+			int rtrn = 0;
+			while(!deflater.finished()) {
+				if(rtrn == max) {
+					return -1;
+				}
+				rtrn += deflater.deflate(compressed, rtrn, max - rtrn);
+			}
+			return rtrn;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void putShort(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >>> 8);
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >>> 8);
+		b[offset + 2] = (byte) (value >>> 16);
+		b[offset + 3] = (byte) (value >>> 24);
+	}
+
+	/**
+	 * End the current block and write all compressed blocks
+	 */
+	@Override
+	public void flush() throws IOException {
+		endBlock();
+		if(pending != null) {
+			while(!pending.isEmpty()) {
+				out.write(getResult(pending.removeFirst()));
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write remaining data and the end of file block, and close the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flush();
+			out.write(EOF_BLOCK);
+		} finally {
+			if(executor != null) {
+				executor.shutdownNow();
+			}
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,555 @@
+/**
+ *
+ */
+package util;
+
+import guttmanlab.core.util.CommandLineParser;
+import guttmanlab.core.util.StringParser;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import nextgen.core.annotation.Gene;
+
+import org.apache.log4j.Logger;
+
+import broad.pda.annotation.BEDFileParser;
+
+/**
+ * Columnar binary store of a bed annotation in one memory mapped file
+ * Records are grouped by chromosome and sorted by start; starts, ends, CDS bounds, names, scores and block layouts are held in
+ * int and float columns, and names are interned in a table, so opening the store reads only the chromosome dictionary
+ * Records are read through lightweight AnnotationViews, and materialized as Genes only when needed
+ * @author prussell
+ *
+ */
+public class BinaryAnnotationStore {
+
+	private String fileName;
+	private ByteBuffer buffer;
+	private Map<String, Integer> chrIds;
+	private String[] chrs;
+	private int[] chrFirstRecord;
+	private int[] chrNumRecords;
+	private int numRecords;
+	private IntBuffer starts;
+	private IntBuffer ends;
+	private IntBuffer cdsStarts;
+	private IntBuffer cdsEnds;
+	private IntBuffer nameIndices;
+	private FloatBuffer scores;
+	private IntBuffer blockOffsets;
+	private IntBuffer blockStarts;
+	private IntBuffer blockEnds;
+	private IntBuffer nameOffsets;
+	private int strandsOffset;
+	private int nameBytesOffset;
+	private String[] names;
+	private static Logger logger = Logger.getLogger(BinaryAnnotationStore.class.getName());
+
+	private static int MAGIC = 0x42415331;
+	private static int VERSION = 1;
+	private static int HEADER_SIZE = 32;
+
+	/**
+	 * Memory map a store written by convert()
+	 * @param binaryFile Binary annotation file
+	 * @throws IOException
+	 */
+	public BinaryAnnotationStore(String binaryFile) throws IOException {
+		fileName = binaryFile;
+		RandomAccessFile raf = new RandomAccessFile(binaryFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Binary annotation file is too large: " + binaryFile);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+		if(buffer.getInt(0) != MAGIC) {
+			throw new IllegalArgumentException("Not a binary annotation file: " + binaryFile);
+		}
+		if(buffer.getInt(4) != VERSION) {
+			throw new IllegalArgumentException("Unsupported binary annotation file version " + buffer.getInt(4) + ": " + binaryFile);
+		}
+		int numChrs = buffer.getInt(8);
+		numRecords = buffer.getInt(12);
+		int totalBlocks = buffer.getInt(16);
+		int numNames = buffer.getInt(20);
+		// Chromosome dictionary
+		buffer.position(HEADER_SIZE);
+		chrIds = new HashMap<String, Integer>();
+		chrs = new String[numChrs];
+		chrFirstRecord = new int[numChrs];
+		chrNumRecords = new int[numChrs];
+		for(int i = 0; i < numChrs; i++) {
+			byte[] chrBytes = new byte[buffer.getShort() & 0xffff];
+			buffer.get(chrBytes);
+			chrs[i] = new String(chrBytes, StandardCharsets.UTF_8);
+			chrFirstRecord[i] = buffer.getInt();
+			chrNumRecords[i] = buffer.getInt();
+			chrIds.put(chrs[i], Integer.valueOf(i));
+		}
+		int offset = align(buffer.position());
+		starts = intColumn(offset, numRecords);
+		offset += 4 * numRecords;
+		ends = intColumn(offset, numRecords);
+		offset += 4 * numRecords;
+		cdsStarts = intColumn(offset, numRecords);
+		offset += 4 * numRecords;
+		cdsEnds = intColumn(offset, numRecords);
+		offset += 4 * numRecords;
+		nameIndices = intColumn(offset, numRecords);
+		offset += 4 * numRecords;
+		scores = floatColumn(offset, numRecords);
+		offset += 4 * numRecords;
+		blockOffsets = intColumn(offset, numRecords + 1);
+		offset += 4 * (numRecords + 1);
+		blockStarts = intColumn(offset, totalBlocks);
+		offset += 4 * totalBlocks;
+		blockEnds = intColumn(offset, totalBlocks);
+		offset += 4 * totalBlocks;
+		nameOffsets = intColumn(offset, numNames + 1);
+		offset += 4 * (numNames + 1);
+		strandsOffset = offset;
+		nameBytesOffset = strandsOffset + numRecords;
+		names = new String[numNames];
+		logger.info("Opened binary annotation " + binaryFile + " with " + numRecords + " records on " + numChrs + " chromosomes.");
+	}
+
+	private static int align(int offset) {
+		return (offset + 3) & ~3;
+	}
+
+	private IntBuffer intColumn(int offset, int length) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(offset);
+		b.limit(offset + 4 * length);
+		return b.slice().asIntBuffer();
+	}
+
+	private FloatBuffer floatColumn(int offset, int length) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(offset);
+		b.limit(offset + 4 * length);
+		return b.slice().asFloatBuffer();
+	}
+
+	/**
+	 * @param file File
+	 * @return True iff the file starts with the binary annotation magic number
+	 * @throws IOException
+	 */
+	public static boolean isBinaryAnnotationFile(String file) throws IOException {
+		File f = new File(file);
+		if(!f.isFile() || f.length() < HEADER_SIZE) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			return raf.readInt() == MAGIC;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return Chromosome names
+	 */
+	public Set<String> getChrs() {
+		return Collections.unmodifiableSet(new TreeSet<String>(chrIds.keySet()));
+	}
+
+	/**
+	 * @return Total number of records
+	 */
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @return Number of records on the chromosome
+	 */
+	public int getNumRecords(String chr) {
+		Integer id = chrIds.get(chr);
+		return id == null ? 0 : chrNumRecords[id.intValue()];
+	}
+
+	/**
+	 * @param index Record index
+	 * @return View of the record
+	 */
+	public AnnotationView getRecord(int index) {
+		if(index < 0 || index >= numRecords) {
+			throw new IndexOutOfBoundsException("Record " + index + " not in store of " + numRecords + " records");
+		}
+		return new AnnotationView(this, index);
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @return Views of the records on the chromosome in order of start, created as they are accessed
+	 */
+	public List<AnnotationView> getRecords(String chr) {
+		Integer id = chrIds.get(chr);
+		if(id == null) {
+			return Collections.emptyList();
+		}
+		final int first = chrFirstRecord[id.intValue()];
+		final int size = chrNumRecords[id.intValue()];
+		return new AbstractList<AnnotationView>() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public AnnotationView get(int i) {
+				if(i < 0 || i >= size) {
+					throw new IndexOutOfBoundsException("Index " + i + " not in list of " + size + " records");
+				}
+				return new AnnotationView(BinaryAnnotationStore.this, first + i);
+			}
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Find the chromosome of a record by binary search over the chromosome record ranges
+	 */
+	String getChr(int index) {
+		int lo = 0;
+		int hi = chrs.length - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(chrFirstRecord[mid] <= index) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return chrs[lo];
+	}
+
+	int getStart(int index) {
+		return starts.get(index);
+	}
+
+	int getEnd(int index) {
+		return ends.get(index);
+	}
+
+	int getCDSStart(int index) {
+		return cdsStarts.get(index);
+	}
+
+	int getCDSEnd(int index) {
+		return cdsEnds.get(index);
+	}
+
+	float getScore(int index) {
+		return scores.get(index);
+	}
+
+	char getStrand(int index) {
+		return (char) buffer.get(strandsOffset + index);
+	}
+
+	int getNumBlocks(int index) {
+		return blockOffsets.get(index + 1) - blockOffsets.get(index);
+	}
+
+	int getBlockStart(int index, int block) {
+		return blockStarts.get(blockOffsets.get(index) + block);
+	}
+
+	int getBlockEnd(int index, int block) {
+		return blockEnds.get(blockOffsets.get(index) + block);
+	}
+
+	/**
+	 * Names are decoded from the name table the first time they are requested
+	 */
+	String getName(int index) {
+		int nameIndex = nameIndices.get(index);
+		String rtrn = names[nameIndex];
+		if(rtrn == null) {
+			int start = nameOffsets.get(nameIndex);
+			int end = nameOffsets.get(nameIndex + 1);
+			byte[] b = new byte[end - start];
+			ByteBuffer d = buffer.duplicate();
+			d.position(nameBytesOffset + start);
+			d.get(b);
+			rtrn = new String(b, StandardCharsets.UTF_8);
+			names[nameIndex] = rtrn;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * A bed record being converted
+	 */
+	private static class BedRecord {
+		String chr;
+		int start;
+		int end;
+		String name;
+		float score;
+		char strand;
+		int cdsStart;
+		int cdsEnd;
+		int[] blockStarts;
+		int[] blockEnds;
+	}
+
+	private static Comparator<BedRecord> recordComparator = new Comparator<BedRecord>() {
+		@Override
+		public int compare(BedRecord r1, BedRecord r2) {
+			if(r1.start != r2.start) {
+				return Integer.compare(r1.start, r2.start);
+			}
+			return Integer.compare(r1.end, r2.end);
+		}
+	};
+
+	/**
+	 * Parse one line of a bed file with 3 to 12 fields
+	 * @param line Line
+	 * @param s Parser to reuse
+	 * @return The record
+	 */
+	private static BedRecord parseBedLine(String line, StringParser s) {
+		s.parse(line);
+		int numFields = s.getFieldCount();
+		if(numFields < 3) {
+			throw new IllegalArgumentException("Bed line must have at least 3 fields: " + line);
+		}
+		BedRecord rtrn = new BedRecord();
+		rtrn.chr = s.asString(0);
+		rtrn.start = s.asInt(1);
+		rtrn.end = s.asInt(2);
+		rtrn.name = numFields > 3 ? s.asString(3) : rtrn.chr + ":" + rtrn.start + "-" + rtrn.end;
+		rtrn.score = numFields > 4 ? (float) s.asDouble(4) : 0;
+		rtrn.strand = numFields > 5 ? s.asString(5).charAt(0) : '.';
+		rtrn.cdsStart = numFields > 7 ? s.asInt(6) : rtrn.start;
+		rtrn.cdsEnd = numFields > 7 ? s.asInt(7) : rtrn.end;
+		if(numFields > 11) {
+			int blockCount = s.asInt(9);
+			String[] sizes = s.asString(10).split(",");
+			String[] relativeStarts = s.asString(11).split(",");
+			if(sizes.length < blockCount || relativeStarts.length < blockCount) {
+				throw new IllegalArgumentException("Block count does not match block sizes and starts: " + line);
+			}
+			rtrn.blockStarts = new int[blockCount];
+			rtrn.blockEnds = new int[blockCount];
+			for(int i = 0; i < blockCount; i++) {
+				rtrn.blockStarts[i] = rtrn.start + Integer.parseInt(relativeStarts[i]);
+				rtrn.blockEnds[i] = rtrn.blockStarts[i] + Integer.parseInt(sizes[i]);
+			}
+		} else {
+			rtrn.blockStarts = new int[] {rtrn.start};
+			rtrn.blockEnds = new int[] {rtrn.end};
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Convert a bed file to a binary annotation file
+	 * @param bedFile Bed file with 3 to 12 fields
+	 * @param outFile Binary file to write
+	 * @throws IOException
+	 */
+	public static void convert(String bedFile, String outFile) throws IOException {
+		logger.info("Converting " + bedFile + " to binary annotation file " + outFile + "...");
+		Map<String, List<BedRecord>> recordsByChr = new TreeMap<String, List<BedRecord>>();
+		BufferedReader r = new BufferedReader(new FileReader(bedFile));
+		StringParser s = new StringParser();
+		int numRecords = 0;
+		int totalBlocks = 0;
+		String line;
+		while((line = r.readLine()) != null) {
+			if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+				continue;
+			}
+			BedRecord record = parseBedLine(line, s);
+			if(!recordsByChr.containsKey(record.chr)) {
+				recordsByChr.put(record.chr, new ArrayList<BedRecord>());
+			}
+			recordsByChr.get(record.chr).add(record);
+			numRecords++;
+			totalBlocks += record.blockStarts.length;
+		}
+		r.close();
+		// Intern names
+		Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+		List<byte[]> nameBytes = new ArrayList<byte[]>();
+		for(List<BedRecord> records : recordsByChr.values()) {
+			Collections.sort(records, recordComparator);
+			for(BedRecord record : records) {
+				if(!nameIndex.containsKey(record.name)) {
+					nameIndex.put(record.name, Integer.valueOf(nameBytes.size()));
+					nameBytes.add(record.name.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(recordsByChr.size());
+			out.writeInt(numRecords);
+			out.writeInt(totalBlocks);
+			out.writeInt(nameBytes.size());
+			out.writeInt(0);
+			out.writeInt(0);
+			int first = 0;
+			for(String chr : recordsByChr.keySet()) {
+				byte[] chrBytes = chr.getBytes(StandardCharsets.UTF_8);
+				out.writeShort(chrBytes.length);
+				out.write(chrBytes);
+				out.writeInt(first);
+				out.writeInt(recordsByChr.get(chr).size());
+				first += recordsByChr.get(chr).size();
+			}
+			while(out.size() % 4 != 0) {
+				out.writeByte(0);
+			}
+			List<BedRecord> all = new ArrayList<BedRecord>(numRecords);
+			for(List<BedRecord> records : recordsByChr.values()) {
+				all.addAll(records);
+			}
+			for(BedRecord record : all) {
+				out.writeInt(record.start);
+			}
+			for(BedRecord record : all) {
+				out.writeInt(record.end);
+			}
+			for(BedRecord record : all) {
+				out.writeInt(record.cdsStart);
+			}
+			for(BedRecord record : all) {
+				out.writeInt(record.cdsEnd);
+			}
+			for(BedRecord record : all) {
+				out.writeInt(nameIndex.get(record.name).intValue());
+			}
+			for(BedRecord record : all) {
+				out.writeFloat(record.score);
+			}
+			int blockOffset = 0;
+			for(BedRecord record : all) {
+				out.writeInt(blockOffset);
+				blockOffset += record.blockStarts.length;
+			}
+			out.writeInt(blockOffset);
+			for(BedRecord record : all) {
+				for(int i = 0; i < record.blockStarts.length; i++) {
+					out.writeInt(record.blockStarts[i]);
+				}
+			}
+			for(BedRecord record : all) {
+				for(int i = 0; i < record.blockEnds.length; i++) {
+					out.writeInt(record.blockEnds[i]);
+				}
+			}
+			int nameOffset = 0;
+			for(byte[] b : nameBytes) {
+				out.writeInt(nameOffset);
+				nameOffset += b.length;
+			}
+			out.writeInt(nameOffset);
+			for(BedRecord record : all) {
+				out.writeByte(record.strand);
+			}
+			for(byte[] b : nameBytes) {
+				out.write(b);
+			}
+		} finally {
+			out.close();
+		}
+		logger.info("Wrote " + numRecords + " records with " + totalBlocks + " blocks and " + nameBytes.size() + " distinct names.");
+	}
+
+	/**
+	 * Load genes by chromosome from a binary annotation file or a bed file
+	 * @param file Binary annotation file written by convert(), or bed file
+	 * @return Map of chromosome to sorted genes
+	 * @throws IOException
+	 */
+	public static Map<String, Collection<Gene>> loadDataByChr(String file) throws IOException {
+		if(!isBinaryAnnotationFile(file)) {
+			return BEDFileParser.loadDataByChr(new File(file));
+		}
+		BinaryAnnotationStore store = new BinaryAnnotationStore(file);
+		Map<String, Collection<Gene>> rtrn = new TreeMap<String, Collection<Gene>>();
+		for(String chr : store.getChrs()) {
+			Collection<Gene> genes = new TreeSet<Gene>();
+			for(AnnotationView record : store.getRecords(chr)) {
+				genes.add(record.toGene());
+			}
+			rtrn.put(chr, genes);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Load genes from a binary annotation file or a bed file
+	 * @param file Binary annotation file written by convert(), or bed file
+	 * @return Sorted genes
+	 * @throws IOException
+	 */
+	public static Collection<Gene> loadData(String file) throws IOException {
+		if(!isBinaryAnnotationFile(file)) {
+			return BEDFileParser.loadData(new File(file));
+		}
+		Collection<Gene> rtrn = new TreeSet<Gene>();
+		for(Collection<Gene> genes : loadDataByChr(file).values()) {
+			rtrn.addAll(genes);
+		}
+		return rtrn;
+	}
+
+	@Override
+	public String toString() {
+		return fileName;
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-b", "Bed file", true);
+		p.addStringArg("-o", "Output binary annotation file", true);
+		p.parse(args);
+		convert(p.getStringArg("-b"), p.getStringArg("-o"));
+		logger.info("");
+		logger.info("All done.");
+	}
+
+}
@@ -1,10 +1,21 @@
 package util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 public class FileUtils {
 	
@@ -18,4 +29,47 @@ public class FileUtils {
 		return rtrn;
 	}
 	
+	/**
+	 * Open a text file that may be compressed
+	 * BGZF files are decompressed on the given number of threads; other gzip files are decompressed on the calling thread
+	 * @param file Plain, gzip or bgzip file
+	 * @param numThreads Number of threads to decompress BGZF blocks
+	 * @return Reader over the uncompressed text
+	 * @throws IOException
+	 */
+	public static BufferedReader openReader(String file, int numThreads) throws IOException {
+		if(BgzfInputStream.isBgzf(file)) {
+			InputStream in = new BgzfInputStream(new BufferedInputStream(new FileInputStream(file)), numThreads);
+			return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		}
+		if(isGzip(file)) {
+			return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), 65536), StandardCharsets.UTF_8));
+		}
+		return new BufferedReader(new FileReader(file));
+	}
+	
+	private static boolean isGzip(String file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Open a text file for writing, compressed with bgzip if the name ends in .gz or .bgz
+	 * @param file File to write
+	 * @param numThreads Number of threads to compress BGZF blocks
+	 * @return Writer
+	 * @throws IOException
+	 */
+	public static BufferedWriter openWriter(String file, int numThreads) throws IOException {
+		if(file.endsWith(".gz") || file.endsWith(".bgz")) {
+			BgzfOutputStream out = new BgzfOutputStream(new BufferedOutputStream(new FileOutputStream(file)), numThreads);
+			return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+		}
+		return new BufferedWriter(new FileWriter(file));
+	}
+	
 }
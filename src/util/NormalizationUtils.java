@@ -2,19 +2,20 @@ package util;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
-import guttmanlab.core.pipeline.LSFJob;
-
 import broad.pda.annotation.BEDFileParser;
 
 import nextgen.core.annotation.Gene;
 import nextgen.core.normalize.NormalizedCount;
 import nextgen.core.writers.WigWriter;
+import util.programs.wig.BigWigWriter;
 
 /**
  * @author prussell
@@ -80,29 +81,36 @@ public class NormalizationUtils {
 		w.close();
 	}
 	
-	public static void makeBigWig(String wigPrefix, String wigToBigWig, String chrSizeFile) throws IOException, InterruptedException {
+	/**
+	 * Write a bigwig file for a wig file
+	 * @param wigPrefix Wig file without the .wig extension; the bigwig is written to the same prefix with extension .bw
+	 * @param chrSizeFile Chromosome size file
+	 * @throws IOException
+	 */
+	public static void makeBigWig(String wigPrefix, String chrSizeFile) throws IOException {
 		logger.info("");
 		logger.info("Making bigwig file for wig file " + wigPrefix + "...");
-		String wig = wigPrefix + ".wig";
-		String bw = wigPrefix + ".bw";
-		String cmmd = wigToBigWig + " " + wig + " " + chrSizeFile + " " + bw;
-		String jobID = Long.valueOf(System.currentTimeMillis()).toString();
-		String bsubOut = "make_bigwig_" + jobID + ".bsub";
-		logger.info("Running command " + cmmd);
-		LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bsubOut, "hour", 4);
-		job.submit();
-		logger.info("Waiting for job to finish...");
-		job.waitFor();
-		logger.info("Done writing bigwig to file " + bw + ".");
+		List<String> wigs = new ArrayList<String>();
+		wigs.add(wigPrefix + ".wig");
+		BigWigWriter.convert(wigs, chrSizeFile, wigPrefix + ".bw");
+		logger.info("Done writing bigwig to file " + wigPrefix + ".bw.");
 	}
 	
-
-	
-	public static void writePositionLevelDataAllGenes(NormalizedCount normalizedCount, Map<String, Collection<Gene>> features, String outFilePrefix, String wigToBigWig, String chrSizeFile) throws IOException, InterruptedException {
+	/**
+	 * Write position level normalized data for all genes to a wig file, and also to a bigwig file if chromosome sizes are provided
+	 * The bigwig is written from the same values as the wig, without reading the wig back
+	 * @param normalizedCount Normalization
+	 * @param features Genes by chromosome
+	 * @param outFilePrefix Output file prefix; files are written with extensions .wig and .bw
+	 * @param chrSizeFile Chromosome size file, or null if no bigwig
+	 * @throws IOException
+	 */
+	public static void writePositionLevelDataAllGenes(NormalizedCount normalizedCount, Map<String, Collection<Gene>> features, String outFilePrefix, String chrSizeFile) throws IOException {
 		String outFile = outFilePrefix + ".wig";
 		logger.info("");
 		logger.info("Writing position level data for all genes to file " + outFile + "...");
 		FileWriter w = new FileWriter(outFile);
+		BigWigWriter bw = chrSizeFile == null ? null : new BigWigWriter(outFilePrefix + ".bw", BigWigWriter.readChrSizes(chrSizeFile));
 		int numDone = 0;
 		for(String c : features.keySet()) {
 			logger.info("Calculating data for chromosome " + c + "...");
@@ -116,11 +124,14 @@ public class NormalizationUtils {
 			}
 			logger.info("Done calculating chromosome " + c + ". Writing...");
 			WigWriter.write(w, c, toWrite, false);
+			if(bw != null && !toWrite.isEmpty()) {
+				bw.add(c, toWrite);
+			}
 		}
 		w.close();
 		logger.info("Done writing wig file.");
-		if(wigToBigWig != null && chrSizeFile != null) {
-			makeBigWig(outFilePrefix, wigToBigWig, chrSizeFile);
+		if(bw != null) {
+			bw.close();
 		}
 	}
 
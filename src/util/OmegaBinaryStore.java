@@ -0,0 +1,327 @@
+/**
+ *
+ */
+package util;
+
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import broad.core.annotation.BasicLightweightAnnotation;
+import broad.core.annotation.LightweightGenomicAnnotation;
+import broad.core.siphy.EvolutionaryModel.OmegaFit;
+
+/**
+ * Columnar binary store of kmer omega scores with one memory mapped file per chromosome
+ * Each file holds four float columns indexed by kmer start position: omega, tree length, log odds score and P value
+ * Positions with no score in the text omega files have NaN in every column
+ * @author prussell
+ *
+ */
+public class OmegaBinaryStore {
+
+	private String dir;
+	private int k;
+	private Map<String, ChrColumns> columnsByChr;
+	private static Logger logger = Logger.getLogger(OmegaBinaryStore.class.getName());
+
+	private static int MAGIC = 0x4f4d4731;
+	private static int HEADER_SIZE = 16;
+	private static int NUM_COLUMNS = 4;
+	private static int OMEGA = 0;
+	private static int TREE_LENGTH = 1;
+	private static int LOG_ODDS = 2;
+	private static int PVAL = 3;
+
+	/**
+	 * @param binaryDirectory Directory containing one binary file per chromosome
+	 * @param kmerSize Kmer size
+	 */
+	public OmegaBinaryStore(String binaryDirectory, int kmerSize) {
+		dir = binaryDirectory;
+		k = kmerSize;
+		columnsByChr = new TreeMap<String, ChrColumns>();
+	}
+
+	/**
+	 * Memory mapped columns for one chromosome
+	 */
+	private static class ChrColumns {
+		int firstPos;
+		int numPositions;
+		FloatBuffer[] columns;
+
+		/**
+		 * @param pos Position
+		 * @return Index of the position in the columns or -1 if not covered
+		 */
+		int getIndex(int pos) {
+			int i = pos - firstPos;
+			return i >= 0 && i < numPositions ? i : -1;
+		}
+	}
+
+	/**
+	 * @param binaryDirectory Directory of binary files
+	 * @param chr Chromosome
+	 * @return Binary file for the chromosome
+	 */
+	public static String getFileName(String binaryDirectory, String chr) {
+		return binaryDirectory + "/" + chr + ".omegabin";
+	}
+
+	/**
+	 * Get the mapped columns for a chromosome, mapping the file the first time
+	 * @param chr Chromosome
+	 * @return The columns or null if there is no file for the chromosome
+	 * @throws IOException
+	 */
+	private synchronized ChrColumns getColumns(String chr) throws IOException {
+		if(columnsByChr.containsKey(chr)) {
+			return columnsByChr.get(chr);
+		}
+		String fileName = getFileName(dir, chr);
+		ChrColumns rtrn = null;
+		if(new File(fileName).exists()) {
+			RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+				if(header.getInt() != MAGIC) {
+					throw new IOException("Not an omega binary file: " + fileName);
+				}
+				int fileK = header.getInt();
+				if(fileK != k) {
+					throw new IllegalArgumentException("File " + fileName + " has kmer size " + fileK + ", not " + k + ".");
+				}
+				rtrn = new ChrColumns();
+				rtrn.firstPos = header.getInt();
+				rtrn.numPositions = header.getInt();
+				rtrn.columns = new FloatBuffer[NUM_COLUMNS];
+				long columnBytes = (long) rtrn.numPositions * 4;
+				for(int c = 0; c < NUM_COLUMNS; c++) {
+					rtrn.columns[c] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + c * columnBytes, columnBytes).asFloatBuffer();
+				}
+			} finally {
+				// The mapping stays valid after the file is closed
+				raf.close();
+			}
+			logger.debug("Mapped " + rtrn.numPositions + " positions for " + chr + " from " + fileName);
+		} else {
+			logger.warn("File " + fileName + " does not exist.");
+		}
+		columnsByChr.put(chr, rtrn);
+		return rtrn;
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @param pos Beginning position of kmer
+	 * @return Omega score of the kmer, or NaN if there is no score
+	 * @throws IOException
+	 */
+	public float getOmega(String chr, int pos) throws IOException {
+		return getValue(chr, pos, OMEGA);
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @param pos Beginning position of kmer
+	 * @return P value of the kmer, or NaN if there is no score
+	 * @throws IOException
+	 */
+	public float getPval(String chr, int pos) throws IOException {
+		return getValue(chr, pos, PVAL);
+	}
+
+	private float getValue(String chr, int pos, int column) throws IOException {
+		ChrColumns cols = getColumns(chr);
+		if(cols == null) {
+			return Float.NaN;
+		}
+		int i = cols.getIndex(pos);
+		return i < 0 ? Float.NaN : cols.columns[column].get(i);
+	}
+
+	/**
+	 * Get the OmegaFit object for the kmer starting at the position
+	 * @param chr Chromosome
+	 * @param pos Beginning position of kmer
+	 * @return OmegaFit for the kmer starting at the position, or null if there is no score
+	 * @throws IOException
+	 */
+	public OmegaFit getKmerScore(String chr, int pos) throws IOException {
+		ChrColumns cols = getColumns(chr);
+		if(cols == null) {
+			return null;
+		}
+		int i = cols.getIndex(pos);
+		if(i < 0 || Float.isNaN(cols.columns[OMEGA].get(i))) {
+			return null;
+		}
+		LightweightGenomicAnnotation region = new BasicLightweightAnnotation(chr, pos, pos + k);
+		return new OmegaFit(region, cols.columns[OMEGA].get(i), cols.columns[LOG_ODDS].get(i), cols.columns[PVAL].get(i), cols.columns[TREE_LENGTH].get(i));
+	}
+
+	/**
+	 * Add the omega scores of all kmers starting in an interval to a list, skipping positions with no score
+	 * @param chr Chromosome
+	 * @param start First kmer start position
+	 * @param end Last kmer start position, inclusive
+	 * @param list List to add to
+	 * @throws IOException
+	 */
+	public void addOmegas(String chr, int start, int end, List<Double> list) throws IOException {
+		ChrColumns cols = getColumns(chr);
+		if(cols == null) {
+			return;
+		}
+		int from = Math.max(start - cols.firstPos, 0);
+		int to = Math.min(end - cols.firstPos, cols.numPositions - 1);
+		FloatBuffer omegas = cols.columns[OMEGA];
+		for(int i = from; i <= to; i++) {
+			float omega = omegas.get(i);
+			if(!Float.isNaN(omega)) {
+				list.add(Double.valueOf(omega));
+			}
+		}
+	}
+
+	/**
+	 * Convert the text omega chunk files for a chromosome to a binary file
+	 * @param omegaDirectory Parent directory containing one subdirectory of text omega files per chromosome
+	 * @param chr Chromosome
+	 * @param kmerSize Kmer size
+	 * @param binaryDirectory Output directory for binary file
+	 * @throws IOException
+	 */
+	public static void convert(String omegaDirectory, String chr, int kmerSize, String binaryDirectory) throws IOException {
+		File subdir = new File(omegaDirectory + "/" + chr.replaceAll("chr", ""));
+		File[] files = subdir.listFiles();
+		if(files == null) {
+			throw new IllegalArgumentException("Directory " + subdir + " does not exist.");
+		}
+		// Chunk files are named chr_start-end.omega
+		List<File> chunkFiles = new ArrayList<File>();
+		int firstPos = Integer.MAX_VALUE;
+		int lastPos = -1;
+		for(File file : files) {
+			String name = file.getName();
+			if(!name.startsWith(chr + "_") || !name.endsWith(".omega")) {
+				continue;
+			}
+			String[] bounds = name.substring(chr.length() + 1, name.length() - ".omega".length()).split("-");
+			firstPos = Math.min(firstPos, Integer.parseInt(bounds[0]));
+			lastPos = Math.max(lastPos, Integer.parseInt(bounds[1]));
+			chunkFiles.add(file);
+		}
+		if(chunkFiles.isEmpty()) {
+			throw new IllegalArgumentException("No omega files for " + chr + " in " + subdir);
+		}
+		int numPositions = lastPos - firstPos + 1;
+		logger.info("Converting " + chunkFiles.size() + " omega files covering " + numPositions + " positions for " + chr + "...");
+		File dirFile = new File(binaryDirectory);
+		@SuppressWarnings("unused")
+		boolean madeDir = dirFile.mkdirs();
+		String outFile = getFileName(binaryDirectory, chr);
+		File tmp = new File(outFile + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.putInt(MAGIC).putInt(kmerSize).putInt(firstPos).putInt(numPositions);
+			long columnBytes = (long) numPositions * 4;
+			FloatBuffer[] columns = new FloatBuffer[NUM_COLUMNS];
+			for(int c = 0; c < NUM_COLUMNS; c++) {
+				columns[c] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + c * columnBytes, columnBytes).asFloatBuffer();
+				for(int i = 0; i < numPositions; i++) {
+					columns[c].put(i, Float.NaN);
+				}
+			}
+			for(File file : chunkFiles) {
+				BufferedReader b = new BufferedReader(new FileReader(file));
+				String line;
+				while((line = b.readLine()) != null) {
+					if(line.isEmpty()) {
+						continue;
+					}
+					String[] fields = line.split("\\s+");
+					int i = Integer.parseInt(fields[0]) - firstPos;
+					columns[OMEGA].put(i, Float.parseFloat(fields[1]));
+					columns[TREE_LENGTH].put(i, Float.parseFloat(fields[2]));
+					columns[LOG_ODDS].put(i, Float.parseFloat(fields[3]));
+					columns[PVAL].put(i, Float.parseFloat(fields[4]));
+				}
+				b.close();
+			}
+		} finally {
+			raf.close();
+		}
+		if(!tmp.renameTo(new File(outFile))) {
+			throw new IOException("Could not rename " + tmp + " to " + outFile);
+		}
+		logger.info("Wrote " + outFile);
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-w", "Omega directory containing one subdirectory of text omega files per chromosome", true);
+		p.addIntArg("-k", "Kmer size", true);
+		p.addStringArg("-o", "Output directory for binary files", true);
+		p.addStringArg("-chr", "Single chromosome to convert", false, null);
+		p.parse(args);
+		String omegaDirectory = p.getStringArg("-w");
+		int kmerSize = p.getIntArg("-k");
+		String outDir = p.getStringArg("-o");
+		String singleChr = p.getStringArg("-chr");
+
+		TreeSet<String> chrs = new TreeSet<String>();
+		if(singleChr != null) {
+			chrs.add(singleChr);
+		} else {
+			// Chromosome names are the prefix of the omega file names in each subdirectory
+			File[] subdirs = new File(omegaDirectory).listFiles();
+			if(subdirs != null) {
+				for(File subdir : subdirs) {
+					String[] names = subdir.list();
+					if(names == null) {
+						continue;
+					}
+					for(String name : names) {
+						if(name.endsWith(".omega") && name.contains("_")) {
+							chrs.add(name.substring(0, name.indexOf('_')));
+						}
+					}
+				}
+			}
+		}
+		for(String chr : chrs) {
+			convert(omegaDirectory, chr, kmerSize, outDir);
+		}
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
@@ -10,11 +10,16 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import nextgen.core.annotation.Annotation;
 import nextgen.core.annotation.Gene;
@@ -27,20 +32,23 @@ import broad.core.math.Statistics;
 import broad.core.siphy.EvolutionaryModel.OmegaFit;
 
 /**
+ * Reads kmer omega scores from omega files or a binary store
+ * Safe to use from multiple threads
  * @author prussell
  *
  */
 public class OmegaKmerFileReader {
 	
 	private int k;
-	private Map<String, Map<Integer, OmegaFit>> scores;
+	private ChunkCache chunkCache;
+	private Map<String, FutureTask<OmegaChunk>> chunksLoading;
 	@SuppressWarnings("javadoc")
 	public static Logger logger = Logger.getLogger(OmegaKmerFileReader.class.getName());
-	private StringParser stringParser;
+	private ThreadLocal<StringParser> stringParsers;
 	private int chunkSize;
 	private String dir;
-	private Collection<String> omegaFilesLoaded;
 	private boolean useCache;
+	private OmegaBinaryStore binaryStore;
 
 	/**
 	 * @param omegaDirectory Parent directory containing one subdirectory of omega files per chromosome
@@ -51,28 +59,59 @@ public class OmegaKmerFileReader {
 		this(omegaDirectory, kmerSize, fileChunkSize, true);
 	}
 	
+	/**
+	 * Default memory budget for cached chunks
+	 */
+	public static long DEFAULT_MAX_CACHE_BYTES = 1L << 30;
+	
 	/**
 	 * @param omegaDirectory Parent directory containing one subdirectory of omega files per chromosome
 	 * @param kmerSize Kmer size
 	 * @param fileChunkSize Omega file chunk size
-	 * @param useScoreCache Cache scores when reading from file so each file is only loaded once
+	 * @param useScoreCache Cache scores when reading from file so each file is only loaded once while it stays in the cache
 	 */
 	public OmegaKmerFileReader(String omegaDirectory, int kmerSize, int fileChunkSize, boolean useScoreCache) {
+		this(omegaDirectory, kmerSize, fileChunkSize, useScoreCache, DEFAULT_MAX_CACHE_BYTES);
+	}
+	
+	/**
+	 * @param omegaDirectory Parent directory containing one subdirectory of omega files per chromosome
+	 * @param kmerSize Kmer size
+	 * @param fileChunkSize Omega file chunk size
+	 * @param useScoreCache Cache scores when reading from file so each file is only loaded once while it stays in the cache
+	 * @param maxCacheBytes Memory budget for cached chunks; least recently used chunks are evicted beyond this
+	 */
+	public OmegaKmerFileReader(String omegaDirectory, int kmerSize, int fileChunkSize, boolean useScoreCache, long maxCacheBytes) {
 		k = kmerSize;
 		dir = omegaDirectory;
 		chunkSize = fileChunkSize;
-		stringParser = new StringParser();
-		scores = new TreeMap<String, Map<Integer, OmegaFit>>();
-		omegaFilesLoaded = new TreeSet<String>();
+		stringParsers = new ThreadLocal<StringParser>() {
+			@Override
+			protected StringParser initialValue() {
+				return new StringParser();
+			}
+		};
+		chunkCache = new ChunkCache(maxCacheBytes);
+		chunksLoading = new HashMap<String, FutureTask<OmegaChunk>>();
 		useCache = useScoreCache;
 		if(useCache) {
-			logger.warn("Using cache for omega scores");
+			logger.warn("Using cache for omega scores with memory budget " + maxCacheBytes + " bytes");
 		} else {
 			logger.warn("Not using cache for omega scores");
 		}
 	}
 	
+	/**
+	 * Read scores from a columnar binary store instead of the text omega files
+	 * @param store Binary store made from the same omega files with OmegaBinaryStore
+	 */
+	public void setBinaryStore(OmegaBinaryStore store) {
+		binaryStore = store;
+		logger.info("Reading omega scores from binary store");
+	}
+	
 	private OmegaFit getFromFile(String omegaFile, String chr, int pos) throws IOException {
+		StringParser stringParser = stringParsers.get();
 		if(!(pos >= getChunkBounds(omegaFile)[0] && pos <= getChunkBounds(omegaFile)[1])) {
 			throw new IllegalArgumentException("Position " + pos + " is not covered by file " + omegaFile + ".");
 		}
@@ -94,6 +133,7 @@ public class OmegaKmerFileReader {
 	}
 	
 	private OmegaFit createFromDataLine(String dataLine, String chr) {
+		StringParser stringParser = stringParsers.get();
 		stringParser.parse(dataLine);
 		int pos = stringParser.asInt(0);
 		LightweightGenomicAnnotation region = new BasicLightweightAnnotation(chr, pos, pos + k);
@@ -112,6 +152,7 @@ public class OmegaKmerFileReader {
 	 * @throws IOException
 	 */
 	private Map<Integer, OmegaFit> getFromFile(String omegaFile) throws IOException {
+		StringParser stringParser = stringParsers.get();
 		Map<Integer, OmegaFit> rtrn = new TreeMap<Integer, OmegaFit>();
 		File file = new File(omegaFile);
 		String chr = getChrName(omegaFile);
@@ -142,21 +183,216 @@ public class OmegaKmerFileReader {
 	}
 	
 	/**
-	 * Read an omega file and store the scores
+	 * Scores of one omega file in primitive arrays indexed by position minus the chunk start
+	 * Positions with no score in the file have NaN omega
+	 */
+	private static class OmegaChunk {
+		
+		private int start;
+		private double[] omega;
+		private double[] treeLength;
+		private double[] logOdds;
+		private double[] pval;
+		
+		OmegaChunk(int chunkStart, int chunkEnd) {
+			start = chunkStart;
+			int size = chunkEnd - chunkStart + 1;
+			omega = new double[size];
+			treeLength = new double[size];
+			logOdds = new double[size];
+			pval = new double[size];
+			Arrays.fill(omega, Double.NaN);
+		}
+		
+		/**
+		 * @param pos Position
+		 * @return True iff the position is in the interval covered by the chunk
+		 */
+		boolean contains(int pos) {
+			int i = pos - start;
+			return i >= 0 && i < omega.length;
+		}
+		
+		/**
+		 * @param pos Position
+		 * @return True iff the position is in the chunk and has a score
+		 */
+		boolean hasScore(int pos) {
+			return contains(pos) && !Double.isNaN(omega[pos - start]);
+		}
+		
+		long getSizeInBytes() {
+			return 4L * 8 * omega.length;
+		}
+		
+	}
+	
+	/**
+	 * Chunks by omega file name, evicting least recently used chunks beyond a memory budget
+	 */
+	private static class ChunkCache extends LinkedHashMap<String, OmegaChunk> {
+		
+		private static final long serialVersionUID = 1L;
+		private long maxBytes;
+		private long currentBytes;
+		private long hits;
+		private long misses;
+		private long evictions;
+		
+		ChunkCache(long maxSizeBytes) {
+			super(16, 0.75f, true);
+			if(maxSizeBytes <= 0) {
+				throw new IllegalArgumentException("Cache memory budget must be positive: " + maxSizeBytes);
+			}
+			maxBytes = maxSizeBytes;
+		}
+		
+		@Override
+		public OmegaChunk put(String omegaFile, OmegaChunk chunk) {
+			currentBytes += chunk.getSizeInBytes();
+			OmegaChunk old = super.put(omegaFile, chunk);
+			if(old != null) {
+				currentBytes -= old.getSizeInBytes();
+			}
+			// Evict in access order, always keeping the new chunk
+			Iterator<Map.Entry<String, OmegaChunk>> iter = entrySet().iterator();
+			while(currentBytes > maxBytes && size() > 1) {
+				OmegaChunk evicted = iter.next().getValue();
+				iter.remove();
+				currentBytes -= evicted.getSizeInBytes();
+				evictions++;
+			}
+			return old;
+		}
+		
+	}
+	
+	/**
+	 * Get the chunk for an omega file from the cache, reading it if necessary
 	 * @param omegaFile Omega file
+	 * @return Scores in the file
 	 * @throws IOException
 	 */
-	private void loadFile(String omegaFile) throws IOException {
-		if(omegaFilesLoaded.contains(omegaFile)) {
-			throw new IllegalArgumentException("File " + omegaFile + " has already been loaded.");
+	private OmegaChunk getChunk(final String omegaFile) throws IOException {
+		FutureTask<OmegaChunk> task;
+		boolean readHere = false;
+		synchronized(chunkCache) {
+			OmegaChunk chunk = chunkCache.get(omegaFile);
+			if(chunk != null) {
+				chunkCache.hits++;
+				return chunk;
+			}
+			// If another thread is already reading the file, wait for it instead of reading again
+			task = chunksLoading.get(omegaFile);
+			if(task == null) {
+				chunkCache.misses++;
+				task = new FutureTask<OmegaChunk>(new Callable<OmegaChunk>() {
+					@Override
+					public OmegaChunk call() throws IOException {
+						return readChunk(omegaFile);
+					}
+				});
+				chunksLoading.put(omegaFile, task);
+				readHere = true;
+			} else {
+				chunkCache.hits++;
+			}
 		}
-		String chr = getChrName(omegaFile);
-		if(!scores.containsKey(chr)) {
-			Map<Integer, OmegaFit> scoresThisChr = new TreeMap<Integer, OmegaFit>();
-			scores.put(chr, scoresThisChr);
+		if(readHere) {
+			task.run();
+		}
+		try {
+			OmegaChunk chunk = task.get();
+			if(readHere) {
+				synchronized(chunkCache) {
+					chunkCache.put(omegaFile, chunk);
+				}
+			}
+			return chunk;
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			if(readHere) {
+				synchronized(chunkCache) {
+					chunksLoading.remove(omegaFile);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Read all scores in an omega file into arrays
+	 * @param omegaFile Omega file
+	 * @return Scores in the file
+	 * @throws IOException
+	 */
+	private OmegaChunk readChunk(String omegaFile) throws IOException {
+		StringParser stringParser = stringParsers.get();
+		int[] bounds = getChunkBounds(omegaFile);
+		OmegaChunk rtrn = new OmegaChunk(bounds[0], bounds[1]);
+		File file = new File(omegaFile);
+		int numScores = 0;
+		if(!file.exists()) {
+			logger.warn("File " + omegaFile + " does not exist.");
+		} else {
+			logger.debug("Getting kmer scores from file " + omegaFile);
+			BufferedReader b = new BufferedReader(new FileReader(omegaFile));
+			while(b.ready()) {
+				String line = b.readLine();
+				stringParser.parse(line);
+				int i = stringParser.asInt(0) - rtrn.start;
+				rtrn.omega[i] = stringParser.asDouble(1);
+				rtrn.treeLength[i] = stringParser.asDouble(2);
+				rtrn.logOdds[i] = stringParser.asDouble(3);
+				rtrn.pval[i] = stringParser.asDouble(4);
+				numScores++;
+			}
+			b.close();
+		}
+		logger.debug("File contained " + numScores + " scores.");
+		return rtrn;
+	}
+	
+	/**
+	 * Log cache hits, misses and evictions
+	 */
+	public void logCacheStats() {
+		synchronized(chunkCache) {
+			logger.info("Omega chunk cache: " + chunkCache.hits + " hits, " + chunkCache.misses + " misses, " + chunkCache.evictions + " evictions, "
+					+ chunkCache.size() + " chunks using " + chunkCache.currentBytes + " bytes.");
+		}
+	}
+	
+	/**
+	 * @return Number of chunk lookups found in the cache
+	 */
+	public long getCacheHits() {
+		synchronized(chunkCache) {
+			return chunkCache.hits;
+		}
+	}
+	
+	/**
+	 * @return Number of chunk lookups that required reading a file
+	 */
+	public long getCacheMisses() {
+		synchronized(chunkCache) {
+			return chunkCache.misses;
+		}
+	}
+	
+	/**
+	 * @return Number of chunks evicted from the cache
+	 */
+	public long getCacheEvictions() {
+		synchronized(chunkCache) {
+			return chunkCache.evictions;
 		}
-		scores.get(chr).putAll(getFromFile(omegaFile));
-		omegaFilesLoaded.add(omegaFile);
 	}
 	
 	/**
@@ -165,6 +401,7 @@ public class OmegaKmerFileReader {
 	 * @return The chromosome name found in the file name
 	 */
 	private String getChrName(String omegaFileName) {
+		StringParser stringParser = stringParsers.get();
 		stringParser.parse(omegaFileName,"/");
 		String fileName = stringParser.asString(stringParser.getFieldCount() - 1);
 		stringParser.parse(fileName,"_");
@@ -181,6 +418,7 @@ public class OmegaKmerFileReader {
 	}
 	
 	private int[] getChunkBounds(String omegaFile) {
+		StringParser stringParser = stringParsers.get();
 		stringParser.parse(omegaFile,"/");
 		String tmp1 = stringParser.asString(stringParser.getFieldCount() - 1);
 		stringParser.parse(tmp1, "_");
@@ -208,6 +446,20 @@ public class OmegaKmerFileReader {
 		return rtrn;
 	}
 	
+	/**
+	 * Get full path of omega file containing the position without checking that it exists
+	 * @param chr Chromosome name
+	 * @param pos Position
+	 * @return Omega file path
+	 */
+	private String getPath(String chr, int pos) {
+		if(pos < 0) {
+			throw new IllegalArgumentException("Position must be > 0");
+		}
+		int chunkStart = pos - pos % chunkSize;
+		return dir + "/" + getSubdir(chr) + "/" + chr + "_" + chunkStart + "-" + (chunkStart + chunkSize - 1) + ".omega";
+	}
+	
 	/**
 	 * Get name of omega file containing the position
 	 * @param chr Chromosome name
@@ -242,18 +494,19 @@ public class OmegaKmerFileReader {
 	 * @throws IOException
 	 */
 	public OmegaFit getKmerScore(String chr, int pos) throws IOException {
+		if(binaryStore != null) {
+			return binaryStore.getKmerScore(chr, pos);
+		}
 		if (useCache) {
-			if (scores.containsKey(chr)) {
-				if (scores.get(chr).containsKey(Integer.valueOf(pos))) {
-					return scores.get(chr).get(Integer.valueOf(pos));
-				}
-			}
-			loadFile(getFileName(chr, pos, true));
-			if (!scores.get(chr).containsKey(Integer.valueOf(pos))) {
+			OmegaChunk chunk = getChunk(getPath(chr, pos));
+			if (!chunk.hasScore(pos)) {
 				logger.debug("Scores does not contain position " + chr + " "
 						+ pos);
+				return null;
 			}
-			return scores.get(chr).get(Integer.valueOf(pos));
+			int i = pos - chunk.start;
+			LightweightGenomicAnnotation region = new BasicLightweightAnnotation(chr, pos, pos + k);
+			return new OmegaFit(region, chunk.omega[i], chunk.logOdds[i], chunk.pval[i], chunk.treeLength[i]);
 		}
 		return getFromFile(getFileName(chr, pos, true), chr, pos);
 	}
@@ -279,6 +532,32 @@ public class OmegaKmerFileReader {
 	 */
 	public List<Double> getOmegaScoreList(Gene region) throws IOException {
 		//logger.debug("Getting list of omega scores for region " + region.getName());
+		if(binaryStore != null) {
+			List<Double> rtrn = new ArrayList<Double>();
+			for (Annotation block : region.getBlocks()) {
+				if (block.getSize() < k) {
+					continue;
+				}
+				binaryStore.addOmegas(region.getChr(), block.getStart(), block.getEnd() - k, rtrn);
+			}
+			return rtrn;
+		}
+		if(useCache) {
+			// Read omega directly from the chunk arrays without creating score objects
+			List<Double> rtrn = new ArrayList<Double>();
+			OmegaChunk chunk = null;
+			for (Annotation block : region.getBlocks()) {
+				for (int pos = block.getStart(); pos <= block.getEnd() - k; pos++) {
+					if(chunk == null || !chunk.contains(pos)) {
+						chunk = getChunk(getPath(region.getChr(), pos));
+					}
+					if(chunk.hasScore(pos)) {
+						rtrn.add(Double.valueOf(chunk.omega[pos - chunk.start]));
+					}
+				}
+			}
+			return rtrn;
+		}
 		Map<Integer, OmegaFit> omegaByPos = getAllKmerScores(region);
 		List<Double> rtrn = new ArrayList<Double>();
 		for(OmegaFit of : omegaByPos.values()) {
@@ -310,7 +589,7 @@ public class OmegaKmerFileReader {
 				positions.add(Integer.valueOf(pos));
 			}
 		}
-		if (useCache) {
+		if (useCache || binaryStore != null) {
 			for(Integer pos : positions) {
 				OmegaFit of = getKmerScore(chr, pos.intValue());
 				if (of == null) {
@@ -37,6 +37,13 @@ public class OverlapUtils {
 		genesByChr = BEDFileIO.loadFromFileByReferenceName(bedFile, referenceSizes);
 	}
 	
+	/**
+	 * @return Genes by chromosome
+	 */
+	public Map<String, FeatureCollection<Gene>> getGenesByChr() {
+		return genesByChr;
+	}
+	
 	/**
 	 * Get genes overlapping an interval
 	 * @param chr Interval chr
@@ -10,17 +10,27 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
 import nextgen.core.annotation.Annotation;
 import nextgen.core.annotation.Gene;
 
-import broad.pda.annotation.BEDFileParser;
+import util.BinaryAnnotationStore;
 
 /**
  * @author prussell
@@ -38,7 +48,7 @@ public class BedFileFilter {
 	public BedFileFilter(String mainGenesBed) throws IOException {
 		logger.info("");
 		logger.info("Loading genes from file " + mainGenesBed + ".");
-		regions = BEDFileParser.loadDataByChr(new File(mainGenesBed));
+		regions = BinaryAnnotationStore.loadDataByChr(mainGenesBed);
 		int numRegions = 0;
 		for(String chr : regions.keySet()) {
 			numRegions += regions.get(chr).size();
@@ -94,6 +104,20 @@ public class BedFileFilter {
 	 * @throws IOException
 	 */
 	public void filterGenesByOverlap(String otherGenesBedFile, String outBedFile, boolean keepOverlappers, boolean ignoreOrientation, boolean ignoreIfSelf) throws IOException {
+		filterGenesByOverlap(otherGenesBedFile, outBedFile, keepOverlappers, ignoreOrientation, ignoreIfSelf, 1);
+	}
+	
+	/**
+	 * Filter genes by overlap with another set of genes and write filtered genes to file
+	 * @param otherGenesBedFile The other set of genes
+	 * @param outBedFile Output bed file
+	 * @param keepOverlappers Keep overlappers and remove non-overlappers (if false, keep non-overlappers and remove overlappers)
+	 * @param ignoreOrientation Ignore orientation for overlap. If false, genes must have same or unknown orientation to be called overlap.
+	 * @param ignoreIfSelf Do not consider overlap if gene is equal to other gene
+	 * @param numThreads Number of threads to process chromosomes
+	 * @throws IOException
+	 */
+	public void filterGenesByOverlap(String otherGenesBedFile, String outBedFile, boolean keepOverlappers, boolean ignoreOrientation, boolean ignoreIfSelf, int numThreads) throws IOException {
 		
 		logger.info("");
 		logger.info("Filtering genes by overlap with genes in file " + otherGenesBedFile + ".");
@@ -101,8 +125,8 @@ public class BedFileFilter {
 		else logger.info("Removing overlappers.");
 		
 		FileWriter w = new FileWriter(outBedFile);
-		Map<String, Collection<Gene>> otherGenes = BEDFileParser.loadDataByChr(new File(otherGenesBedFile));
-		Map<String, Collection<Gene>> filteredGenes = filterGenesByOverlap(regions, otherGenes, keepOverlappers, ignoreOrientation, ignoreIfSelf);
+		Map<String, Collection<Gene>> otherGenes = BinaryAnnotationStore.loadDataByChr(otherGenesBedFile);
+		Map<String, Collection<Gene>> filteredGenes = filterGenesByOverlap(regions, otherGenes, keepOverlappers, ignoreOrientation, ignoreIfSelf, numThreads);
 		for(String chr : filteredGenes.keySet()) {
 			for(Gene gene : filteredGenes.get(chr)) {
 				w.write(gene.toBED() + "\n");
@@ -124,32 +148,165 @@ public class BedFileFilter {
 	 * @return The filtered set of genes
 	 */
 	public static Map<String, Collection<Gene>> filterGenesByOverlap(Map<String, Collection<Gene>> genes, Map<String, Collection<Gene>> otherGenes, boolean keepOverlappers, boolean ignoreOrientation, boolean ignoreIfSelf) {
+		return filterGenesByOverlap(genes, otherGenes, keepOverlappers, ignoreOrientation, ignoreIfSelf, 1);
+	}
+	
+	/**
+	 * Filter genes by overlap with another set of genes, processing chromosomes in parallel
+	 * @param genes The set of genes to filter (by chromosome name)
+	 * @param otherGenes The other set of genes (by chromosome name)
+	 * @param keepOverlappers Keep overlappers and remove non-overlappers (if false, keep non-overlappers and remove overlappers)
+	 * @param ignoreOrientation Ignore orientation for overlap. If false, genes must have same or unknown orientation to be called overlap.
+	 * @param ignoreIfSelf Do not consider overlap if gene is equal to other gene
+	 * @param numThreads Number of threads
+	 * @return The filtered set of genes
+	 */
+	public static Map<String, Collection<Gene>> filterGenesByOverlap(Map<String, Collection<Gene>> genes, final Map<String, Collection<Gene>> otherGenes, final boolean keepOverlappers, final boolean ignoreOrientation, final boolean ignoreIfSelf, int numThreads) {
 		Map<String, Collection<Gene>> rtrn = new TreeMap<String, Collection<Gene>>();
-		for(String chr : genes.keySet()) {
-			logger.info(chr);
-			Collection<Gene> chrOtherGenes = otherGenes.get(chr);
-			Collection<Gene> chrGenes = new TreeSet<Gene>();
-			chrGenes.addAll(genes.get(chr));
-			for(Gene gene : genes.get(chr)) {
-				boolean foundOverlap = false;
-				for(Gene otherGene : chrOtherGenes) {
-					if(gene.getEnd() < otherGene.getStart() || gene.getStart() > otherGene.getEnd()) {
-						continue;
+		Map<String, Future<Collection<Gene>>> results = new LinkedHashMap<String, Future<Collection<Gene>>>();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			for(final Map.Entry<String, Collection<Gene>> entry : genes.entrySet()) {
+				results.put(entry.getKey(), executor.submit(new Callable<Collection<Gene>>() {
+					@SuppressWarnings("synthetic-access")
+					@Override
+					public Collection<Gene> call() {
+						logger.info(entry.getKey());
+						return filterChrGenesByOverlap(entry.getValue(), otherGenes.get(entry.getKey()), keepOverlappers, ignoreOrientation, ignoreIfSelf);
 					}
-					boolean ignore = ignoreIfSelf && gene.equals(otherGene);
-					boolean overlaps = gene.overlaps(otherGene, ignoreOrientation) && !ignore;
-					if(overlaps) foundOverlap = true;
+				}));
+			}
+			for(String chr : results.keySet()) {
+				rtrn.put(chr, getResult(results.get(chr)));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Filter the genes on one chromosome by overlap with the other genes on the chromosome
+	 * @param chrGenes Genes on the chromosome
+	 * @param chrOtherGenes Other genes on the chromosome, or null if none
+	 * @param keepOverlappers Keep overlappers and remove non-overlappers (if false, keep non-overlappers and remove overlappers)
+	 * @param ignoreOrientation Ignore orientation for overlap
+	 * @param ignoreIfSelf Do not consider overlap if gene is equal to other gene
+	 * @return The genes that are kept
+	 */
+	private static Collection<Gene> filterChrGenesByOverlap(Collection<Gene> chrGenes, Collection<Gene> chrOtherGenes, boolean keepOverlappers, boolean ignoreOrientation, boolean ignoreIfSelf) {
+		Gene[] sortedGenes = sortByStart(chrGenes);
+		List<List<Gene>> candidates = getSpanOverlappers(sortedGenes, chrOtherGenes);
+		Collection<Gene> rtrn = new TreeSet<Gene>();
+		for(int i = 0; i < sortedGenes.length; i++) {
+			Gene gene = sortedGenes[i];
+			boolean foundOverlap = false;
+			for(Gene otherGene : candidates.get(i)) {
+				boolean ignore = ignoreIfSelf && gene.equals(otherGene);
+				if(!ignore && gene.overlaps(otherGene, ignoreOrientation)) {
+					foundOverlap = true;
+					break;
 				}
-				boolean keep = (foundOverlap && keepOverlappers) || (!foundOverlap && !keepOverlappers);
-				if(!keep) {
-					chrGenes.remove(gene);
+			}
+			boolean keep = (foundOverlap && keepOverlappers) || (!foundOverlap && !keepOverlappers);
+			if(keep) {
+				rtrn.add(gene);
+			}
+		}
+		return rtrn;
+	}
+	
+	private static Comparator<Gene> startComparator = new Comparator<Gene>() {
+		@Override
+		public int compare(Gene g1, Gene g2) {
+			return Integer.compare(g1.getStart(), g2.getStart());
+		}
+	};
+	
+	private static Gene[] sortByStart(Collection<Gene> genes) {
+		Gene[] rtrn = genes.toArray(new Gene[genes.size()]);
+		Arrays.sort(rtrn, startComparator);
+		return rtrn;
+	}
+	
+	/**
+	 * For each gene, get the other genes whose span reaches the gene span, including spans that touch at an endpoint
+	 * Genes and other genes are merged in order of start position; each new interval is checked only against
+	 * the intervals of the other set that are still open, and closed intervals are dropped as the sweep passes them
+	 * @param sortedGenes Genes on one chromosome sorted by start
+	 * @param otherGenes Other genes on the chromosome, or null if none
+	 * @return For each gene in order, the other genes whose span reaches it
+	 */
+	private static List<List<Gene>> getSpanOverlappers(Gene[] sortedGenes, Collection<Gene> otherGenes) {
+		List<List<Gene>> rtrn = new ArrayList<List<Gene>>(sortedGenes.length);
+		for(int i = 0; i < sortedGenes.length; i++) {
+			rtrn.add(new ArrayList<Gene>());
+		}
+		if(otherGenes == null) {
+			return rtrn;
+		}
+		Gene[] sortedOthers = sortByStart(otherGenes);
+		List<Integer> openGenes = new ArrayList<Integer>();
+		List<Gene> openOthers = new ArrayList<Gene>();
+		int g = 0;
+		int o = 0;
+		while(g < sortedGenes.length || o < sortedOthers.length) {
+			boolean nextIsGene = o == sortedOthers.length || (g < sortedGenes.length && sortedGenes[g].getStart() <= sortedOthers[o].getStart());
+			if(nextIsGene) {
+				if(o == sortedOthers.length && openOthers.isEmpty()) {
+					// No other gene can reach the remaining genes
+					break;
+				}
+				int start = sortedGenes[g].getStart();
+				int kept = 0;
+				for(int i = 0; i < openOthers.size(); i++) {
+					Gene other = openOthers.get(i);
+					if(other.getEnd() >= start) {
+						rtrn.get(g).add(other);
+						openOthers.set(kept, other);
+						kept++;
+					}
 				}
+				openOthers.subList(kept, openOthers.size()).clear();
+				openGenes.add(Integer.valueOf(g));
+				g++;
+			} else {
+				if(g == sortedGenes.length && openGenes.isEmpty()) {
+					// No gene can reach the remaining other genes
+					break;
+				}
+				Gene other = sortedOthers[o];
+				int start = other.getStart();
+				int kept = 0;
+				for(int i = 0; i < openGenes.size(); i++) {
+					Integer geneIndex = openGenes.get(i);
+					if(sortedGenes[geneIndex.intValue()].getEnd() >= start) {
+						rtrn.get(geneIndex.intValue()).add(other);
+						openGenes.set(kept, geneIndex);
+						kept++;
+					}
+				}
+				openGenes.subList(kept, openGenes.size()).clear();
+				openOthers.add(other);
+				o++;
 			}
-			rtrn.put(chr, chrGenes);
-		}		
+		}
 		return rtrn;
 	}
 	
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
 	/**
 	 * Subtract segments from the genes and write result to bed file
 	 * @param otherGenesBedFile Bed file of segments to subtract
@@ -158,12 +315,24 @@ public class BedFileFilter {
 	 * @throws IOException
 	 */
 	public void subtractSegmentsFromGenes(String otherGenesBedFile, String outBedFile, boolean separateBlocks) throws IOException {
+		subtractSegmentsFromGenes(otherGenesBedFile, outBedFile, separateBlocks, 1);
+	}
+	
+	/**
+	 * Subtract segments from the genes and write result to bed file
+	 * @param otherGenesBedFile Bed file of segments to subtract
+	 * @param outBedFile Output bed file
+	 * @param separateBlocks After subtracting other genes from an annotation, leave the result as separate single-exon annotations. If false, keep the block structure in a single annotation.
+	 * @param numThreads Number of threads to process chromosomes
+	 * @throws IOException
+	 */
+	public void subtractSegmentsFromGenes(String otherGenesBedFile, String outBedFile, boolean separateBlocks, int numThreads) throws IOException {
 		
 		logger.info("");
 		logger.info("Subtracting segments in file " + otherGenesBedFile + ".");
 		
-		Map<String, Collection<Gene>> otherGenes = BEDFileParser.loadDataByChr(new File(otherGenesBedFile));
-		Collection<Annotation> subtracted = subtractSegmentsFromGenes(regions, otherGenes);
+		Map<String, Collection<Gene>> otherGenes = BinaryAnnotationStore.loadDataByChr(otherGenesBedFile);
+		Collection<Annotation> subtracted = subtractSegmentsFromGenes(regions, otherGenes, numThreads);
 		FileWriter w = new FileWriter(outBedFile);
 		for(Annotation region : subtracted) {
 			if(separateBlocks) {
@@ -192,25 +361,63 @@ public class BedFileFilter {
 	 * @return The genes minus the segments
 	 */
 	public static Collection<Annotation> subtractSegmentsFromGenes(Map<String, Collection<Gene>> genes, Map<String, Collection<Gene>> otherGenes) {
+		return subtractSegmentsFromGenes(genes, otherGenes, 1);
+	}
+	
+	/**
+	 * Subtract overlapping segments from genes, processing chromosomes in parallel
+	 * Keep the rest of the gene model
+	 * Each gene is only compared to the segments whose span reaches it
+	 * @param genes The genes
+	 * @param otherGenes The segments to subtract
+	 * @param numThreads Number of threads
+	 * @return The genes minus the segments
+	 */
+	public static Collection<Annotation> subtractSegmentsFromGenes(Map<String, Collection<Gene>> genes, final Map<String, Collection<Gene>> otherGenes, int numThreads) {
 		Collection<Annotation> rtrn = new TreeSet<Annotation>();
-		for(String chr : genes.keySet()) {
-			logger.info(chr);
-			if(!otherGenes.containsKey(chr)) {
-				rtrn.addAll(genes.get(chr));
-				continue;
+		List<Future<Collection<Annotation>>> results = new ArrayList<Future<Collection<Annotation>>>();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			for(final Map.Entry<String, Collection<Gene>> entry : genes.entrySet()) {
+				results.add(executor.submit(new Callable<Collection<Annotation>>() {
+					@SuppressWarnings("synthetic-access")
+					@Override
+					public Collection<Annotation> call() {
+						logger.info(entry.getKey());
+						Collection<Gene> chrOtherGenes = otherGenes.get(entry.getKey());
+						if(chrOtherGenes == null || chrOtherGenes.isEmpty()) {
+							return new ArrayList<Annotation>(entry.getValue());
+						}
+						return subtractChrSegmentsFromGenes(entry.getValue(), chrOtherGenes);
+					}
+				}));
 			}
-			if(otherGenes.get(chr).isEmpty()) {
-				rtrn.addAll(genes.get(chr));
-				continue;
+			for(Future<Collection<Annotation>> result : results) {
+				rtrn.addAll(getResult(result));
 			}
-			Collection<Gene> chrOtherGenes = otherGenes.get(chr);
-			for(Gene gene : genes.get(chr)) {
-				Annotation newGene = gene.minus(chrOtherGenes);
-				if(newGene != null) {
-					if(newGene.size() < 1) continue;
-					newGene.setName(gene.getName());
-					rtrn.add(newGene);
-				}
+		} finally {
+			executor.shutdownNow();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Subtract overlapping segments from the genes on one chromosome
+	 * @param chrGenes Genes on the chromosome
+	 * @param chrOtherGenes Segments on the chromosome
+	 * @return The genes minus the segments
+	 */
+	private static Collection<Annotation> subtractChrSegmentsFromGenes(Collection<Gene> chrGenes, Collection<Gene> chrOtherGenes) {
+		Gene[] sortedGenes = sortByStart(chrGenes);
+		List<List<Gene>> candidates = getSpanOverlappers(sortedGenes, chrOtherGenes);
+		Collection<Annotation> rtrn = new ArrayList<Annotation>();
+		for(int i = 0; i < sortedGenes.length; i++) {
+			Gene gene = sortedGenes[i];
+			Annotation newGene = gene.minus(candidates.get(i));
+			if(newGene != null) {
+				if(newGene.size() < 1) continue;
+				newGene.setName(gene.getName());
+				rtrn.add(newGene);
 			}
 		}
 		return rtrn;
@@ -223,16 +430,17 @@ public class BedFileFilter {
 	public static void main(String[] args) throws IOException {
 		
         CommandLineParser p = new CommandLineParser();
-        p.addStringArg("-b", "Bed file of genes to filter", true);
+        p.addStringArg("-b", "Bed file of genes to filter, or binary annotation file from util.BinaryAnnotationStore", true);
         p.addStringArg("-gk", "File containing list of gene names to keep", false, null);
         p.addStringArg("-og", "Output bed file for genes filtered by gene name. Requires -gk.",false, null);
-        p.addStringArg("-go", "Bed file of other genes for overlap filter", false, null);
+        p.addStringArg("-go", "Bed file or binary annotation file of other genes for overlap filter", false, null);
         p.addStringArg("-oo", "Output bed file for whole genes filtered by overlap. Requires -go.", false, null);
         p.addStringArg("-os", "Output bed file for genes with other segments subtracted from gene model. Requires -go.", false, null);
         p.addBooleanArg("-ko", "For overlap filter, keep overlappers and filter non-overlappers", false, false);
         p.addBooleanArg("-io", "Ignore orientation for overlap filter", false, false);
         p.addBooleanArg("-is", "Ignore gene for overlap feature if gene is equal to other gene", false, false);
         p.addBooleanArg("-ss", "For subtraction of overlappers, separate resulting annotations into contiguous blocks", false, false);
+        p.addIntArg("-p", "Number of threads to process chromosomes for overlap filter and subtraction", false, 1);
         p.parse(args);
         String mainGenesBed = p.getStringArg("-b");
         String geneNamesToKeepFile = p.getStringArg("-gk");
@@ -244,6 +452,7 @@ public class BedFileFilter {
         boolean ignoreOrientation = p.getBooleanArg("-io");
         boolean ignoreIfSelf = p.getBooleanArg("-is");
         boolean separate = p.getBooleanArg("-ss");
+        int numThreads = p.getIntArg("-p");
         
         // Check for valid command line
         if(outBedFile_filterByGeneName != null) {
@@ -267,12 +476,12 @@ public class BedFileFilter {
         	
         // Filter genes by overlap
         if(outBedFile_filterByOverlap != null) {
-         	bff.filterGenesByOverlap(overlapBedFile, outBedFile_filterByOverlap, keepOverlappers, ignoreOrientation, ignoreIfSelf);
+         	bff.filterGenesByOverlap(overlapBedFile, outBedFile_filterByOverlap, keepOverlappers, ignoreOrientation, ignoreIfSelf, numThreads);
         }
         
         // Subtract segments from genes
         if(outBedFile_subtract != null) {
-        	bff.subtractSegmentsFromGenes(overlapBedFile, outBedFile_subtract, separate);
+        	bff.subtractSegmentsFromGenes(overlapBedFile, outBedFile_subtract, separate, numThreads);
         }
         
  	}
@@ -5,7 +5,6 @@ package util.programs.bed;
 
 import guttmanlab.core.util.CommandLineParser;
 
-import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Collection;
@@ -14,7 +13,7 @@ import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
-import broad.pda.annotation.BEDFileParser;
+import util.BinaryAnnotationStore;
 
 import nextgen.core.annotation.Annotation;
 import nextgen.core.annotation.BasicAnnotation;
@@ -32,7 +31,7 @@ public class GeneFeatureWriter {
 	private static Logger logger = Logger.getLogger(GeneFeatureWriter.class.getName());
 	
 	private GeneFeatureWriter(String bedFile) throws IOException {
-		genes = BEDFileParser.loadData(new File(bedFile));
+		genes = BinaryAnnotationStore.loadData(bedFile);
 	}
 	
 	private Collection<Gene> getOriginalGenes() {
@@ -273,7 +272,7 @@ public class GeneFeatureWriter {
 	public static void main(String[] args) throws IOException {
 		
 		CommandLineParser p = new CommandLineParser();
-		p.addStringArg("-i", "Input bed file", true);
+		p.addStringArg("-i", "Input bed file, or binary annotation file from util.BinaryAnnotationStore", true);
 		p.addBooleanArg("--orig", "Write original genes", false, false);
 		p.addBooleanArg("--intron_sets", "Write intron set for each gene", false, false);
 		p.addBooleanArg("--ind_introns", "Write each individual intron for each gene", false, false);
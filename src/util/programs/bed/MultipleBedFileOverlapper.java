@@ -1,27 +1,34 @@
 package util.programs.bed;
 
+import java.io.BufferedReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
 import util.FileUtils;
 import guttmanlab.core.annotation.Annotation.Strand;
-import guttmanlab.core.annotation.Gene;
 import guttmanlab.core.annotation.SingleInterval;
-import guttmanlab.core.annotation.io.BEDFileIO;
-import guttmanlab.core.annotationcollection.FeatureCollection;
 import guttmanlab.core.util.CommandLineParser;
 
+/**
+ * Finds contiguous intervals covered by at least a minimum number of annotations from a set of bed files
+ * Coverage is computed per chromosome from sorted block start and end events, so memory grows with the number of blocks rather than the number of bases
+ * @author prussell
+ *
+ */
 public class MultipleBedFileOverlapper {
 	
 	
-	private Map<String, Map<Integer, Integer>> overlappersByPosition;
+	private Map<String, IntList> blockStartsByChr;
+	private Map<String, IntList> blockEndsByChr;
 	private boolean countIntrons;
 	private static Logger logger = Logger.getLogger(MultipleBedFileOverlapper.class.getName());
 	
@@ -45,79 +52,115 @@ public class MultipleBedFileOverlapper {
 		initializeOverlapperCountsFromBedFiles(FileUtils.fileLinesAsList(bedFileList), chrSizeFile);
 	}
 	
+	/**
+	 * Stream the bed files and record the start and end of every block on chromosomes in the size file
+	 * @param bedFiles Bed files
+	 * @param chrSizeFile Chromosome size file
+	 * @throws IOException
+	 */
 	private void initializeOverlapperCountsFromBedFiles(Collection<String> bedFiles, String chrSizeFile) throws IOException {
 		logger.info("");
-		overlappersByPosition = new TreeMap<String, Map<Integer, Integer>>();
-		int totalPos = 0;
+		Set<String> chrs = new HashSet<String>();
+		for(String line : FileUtils.fileLinesAsList(chrSizeFile)) {
+			if(!line.isEmpty()) {
+				chrs.add(line.split("\\s+")[0]);
+			}
+		}
+		blockStartsByChr = new TreeMap<String, IntList>();
+		blockEndsByChr = new TreeMap<String, IntList>();
+		long totalPos = 0;
 		for(String bedFile : bedFiles) {
 			logger.info("Reading file " + bedFile + "...");
-			Map<String, FeatureCollection<Gene>> genes = BEDFileIO.loadFromFileByReferenceName(bedFile, chrSizeFile);
-			for(String chr : genes.keySet()) {
-				if(!overlappersByPosition.containsKey(chr)) {
-					overlappersByPosition.put(chr, new TreeMap<Integer, Integer>());
-					logger.info("Added chromosome " + chr + ".");
-				}
-				for(Gene gene : genes.get(chr)) {
-					Gene geneToUse = countIntrons ? new Gene(new SingleInterval(gene.getReferenceName(), gene.getReferenceStartPosition(), gene.getReferenceEndPosition(), gene.getOrientation())) : gene;
-					Iterator<SingleInterval> iter = geneToUse.getBlocks();
-					while(iter.hasNext()) {
-						SingleInterval block = iter.next();
-						for(int i = block.getReferenceStartPosition(); i < block.getReferenceEndPosition(); i++) {
-							Integer pos = Integer.valueOf(i);
-							if(!overlappersByPosition.get(chr).containsKey(pos)) {
-								overlappersByPosition.get(chr).put(pos, Integer.valueOf(0));
-							}
-							overlappersByPosition.get(chr).put(pos, Integer.valueOf(overlappersByPosition.get(chr).get(pos).intValue() + 1));
-							totalPos++;
-						}
+			BufferedReader r = FileUtils.openReader(bedFile, 1);
+			try {
+				String line;
+				while((line = r.readLine()) != null) {
+					if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+						continue;
+					}
+					String[] fields = line.split("\t");
+					if(fields.length < 3) {
+						throw new IllegalArgumentException("Bed line must have at least 3 fields: " + line);
+					}
+					String chr = fields[0];
+					if(!chrs.contains(chr)) {
+						continue;
+					}
+					if(!blockStartsByChr.containsKey(chr)) {
+						blockStartsByChr.put(chr, new IntList());
+						blockEndsByChr.put(chr, new IntList());
+						logger.info("Added chromosome " + chr + ".");
+					}
+					IntList starts = blockStartsByChr.get(chr);
+					IntList ends = blockEndsByChr.get(chr);
+					int start = Integer.parseInt(fields[1]);
+					int end = Integer.parseInt(fields[2]);
+					if(countIntrons || fields.length < 12) {
+						starts.add(start);
+						ends.add(end);
+						totalPos += end - start;
+						continue;
+					}
+					int blockCount = Integer.parseInt(fields[9]);
+					String[] sizes = fields[10].split(",");
+					String[] relativeStarts = fields[11].split(",");
+					if(sizes.length < blockCount || relativeStarts.length < blockCount) {
+						throw new IllegalArgumentException("Block count does not match block sizes and starts: " + line);
+					}
+					for(int i = 0; i < blockCount; i++) {
+						int blockStart = start + Integer.parseInt(relativeStarts[i]);
+						int blockSize = Integer.parseInt(sizes[i]);
+						starts.add(blockStart);
+						ends.add(blockStart + blockSize);
+						totalPos += blockSize;
 					}
 				}
+			} finally {
+				r.close();
 			}
 			logger.info("Done reading file " + bedFile + ". Total coverage of all positions: " + totalPos + ".");
 		}
 	}
 	
+	/**
+	 * Sweep the sorted block starts and ends of each chromosome, keeping the number of blocks covering the current position
+	 * @param minCount Min number of blocks covering each position
+	 * @return Maximal intervals whose positions are all covered by at least minCount blocks (and at least one block)
+	 */
 	private Collection<SingleInterval> getContiguousIntervalsWithMinCount(int minCount) {
 		logger.info("");
 		logger.info("Getting contiguous intervals with min count " + minCount + "...");
+		int threshold = Math.max(minCount, 1);
 		Collection<SingleInterval> rtrn = new ArrayList<SingleInterval>();
-		for(String chr : overlappersByPosition.keySet()) {
+		for(String chr : blockStartsByChr.keySet()) {
+			int[] starts = blockStartsByChr.get(chr).toSortedArray();
+			int[] ends = blockEndsByChr.get(chr).toSortedArray();
 			int numIntervals = 0;
+			int count = 0;
 			boolean withinInterval = false;
 			int currentIntervalStart = 0;
-			int currentIntervalMax = 0;
-			Iterator<Integer> iter = overlappersByPosition.get(chr).keySet().iterator();
-			while(iter.hasNext()) {
-				int pos = iter.next().intValue();
-				int count = overlappersByPosition.get(chr).get(Integer.valueOf(pos)).intValue();
-				if(count >= minCount) {
-					if(withinInterval) {
-						if(pos == currentIntervalMax + 1) {
-							// Continue with current interval
-							currentIntervalMax = pos;
-							continue;
-						} else {
-							// Write previous interval and start new interval here
-							rtrn.add(new SingleInterval(chr, currentIntervalStart, currentIntervalMax));
-							numIntervals++;
-							currentIntervalStart = pos;
-							currentIntervalMax = pos;
-						}
-					} else {
-						// Start new interval here
-						currentIntervalStart = pos;
-						currentIntervalMax = pos;
-						withinInterval = true;
-					}
-				} else {
-					if(withinInterval) {
-						// Write previous interval and exit interval
-						rtrn.add(new SingleInterval(chr, currentIntervalStart, currentIntervalMax));
-						numIntervals++;
-						withinInterval = false;
-					} else {
-						continue;
-					}
+			int s = 0;
+			int e = 0;
+			while(e < ends.length) {
+				int pos = s < starts.length ? Math.min(starts[s], ends[e]) : ends[e];
+				// Apply all events at this position before checking the count, so abutting blocks continue the interval
+				while(s < starts.length && starts[s] == pos) {
+					count++;
+					s++;
+				}
+				while(e < ends.length && ends[e] == pos) {
+					count--;
+					e++;
+				}
+				if(count >= threshold && !withinInterval) {
+					// Start new interval here
+					currentIntervalStart = pos;
+					withinInterval = true;
+				} else if(count < threshold && withinInterval) {
+					// Write interval ending here
+					rtrn.add(new SingleInterval(chr, currentIntervalStart, pos));
+					numIntervals++;
+					withinInterval = false;
 				}
 			}
 			logger.info("Got " + numIntervals + " intervals on chromosome " + chr + ".");
@@ -159,6 +202,25 @@ public class MultipleBedFileOverlapper {
 		w.close();
 	}
 	
+	/**
+	 * Growable array of ints
+	 */
+	private static class IntList {
+		int[] values = new int[1024];
+		int size = 0;
+		void add(int value) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+		int[] toSortedArray() {
+			int[] rtrn = Arrays.copyOf(values, size);
+			Arrays.sort(rtrn);
+			return rtrn;
+		}
+	}
+	
 	public static void main(String[] args) throws IOException {
 		
 		CommandLineParser p = new CommandLineParser();
@@ -168,7 +230,7 @@ public class MultipleBedFileOverlapper {
 		p.addIntArg("-mo", "Min number of overlappers per position", true);
 		p.addIntArg("-ms", "Min size of interval to write", false, 0);
 		p.addStringArg("-o", "Output bed file", true);
-		p.addStringArg("-c", "Chromosome size file", true);
+		p.addStringArg("-c", "Chromosome size file; annotations on other chromosomes are ignored", true);
 		p.parse(args);
 		String listFile = p.getStringArg("-l");
 		boolean fullSpan = p.getBooleanArg("-s");
@@ -5,7 +5,6 @@ package util.programs.bed;
 
 import guttmanlab.core.util.CommandLineParser;
 
-import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Collection;
@@ -15,7 +14,7 @@ import org.apache.log4j.Logger;
 import nextgen.core.annotation.Gene;
 import nextgen.core.feature.GeneWindow;
 
-import broad.pda.annotation.BEDFileParser;
+import util.BinaryAnnotationStore;
 
 /**
  * @author prussell
@@ -31,7 +30,7 @@ public class WindowWriter {
 	 * @throws IOException
 	 */
 	public WindowWriter(String genesBed) throws IOException {
-		genes = BEDFileParser.loadData(new File(genesBed));
+		genes = BinaryAnnotationStore.loadData(genesBed);
 	}
 	
 	/**
@@ -60,7 +59,7 @@ public class WindowWriter {
 	public static void main(String[] args) throws IOException {
 		
 		CommandLineParser p = new CommandLineParser();
-		p.addStringArg("-b", "Bed file of genes", true);
+		p.addStringArg("-b", "Bed file of genes, or binary annotation file from util.BinaryAnnotationStore", true);
 		p.addIntArg("-w", "Window size", true);
 		p.addIntArg("-s", "Step size", true);
 		p.addStringArg("-o", "Output bed file of windows", true);
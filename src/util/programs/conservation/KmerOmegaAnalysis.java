@@ -6,6 +6,7 @@ package util.programs.conservation;
 import guttmanlab.core.util.CommandLineParser;
 import guttmanlab.core.util.CountLogger;
 
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Collection;
@@ -15,6 +16,7 @@ import java.util.TreeSet;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import util.OmegaBinaryStore;
 import util.OmegaKmerFileReader;
 import broad.core.siphy.EvolutionaryModel.OmegaFit;
 import broad.pda.annotation.BEDFileParser;
@@ -31,6 +33,7 @@ public class KmerOmegaAnalysis {
 	
 	private OmegaKmerFileReader kmerFileReader;
 	private Map<String, Collection<Gene>> genes;
+	private int numThreads;
 	private static Logger logger = Logger.getLogger(KmerOmegaAnalysis.class.getName());
 	
 	/**
@@ -52,6 +55,15 @@ public class KmerOmegaAnalysis {
 	public KmerOmegaAnalysis(OmegaKmerFileReader k, Map<String, Collection<Gene>> genesByChr) {
 		kmerFileReader = k;
 		genes = genesByChr;
+		numThreads = 1;
+	}
+	
+	/**
+	 * Set the number of threads used to process genes when writing output
+	 * @param threads Number of threads
+	 */
+	public void setNumThreads(int threads) {
+		numThreads = threads;
 	}
 	
 	/**
@@ -78,8 +90,23 @@ public class KmerOmegaAnalysis {
 		writeOmegaQuantiles(quantile, outFile, null);
 	}
 		
-	private void writeOmegaQuantiles(double quantile, String outFile, String singleChr) throws IOException {
+	private void writeOmegaQuantiles(final double quantile, String outFile, String singleChr) throws IOException {
 		logger.info("Writing " + quantile + " omega quantile for each gene to file " + outFile + "...");
+		if(numThreads > 1) {
+			BufferedWriter w = new BufferedWriter(new FileWriter(outFile));
+			try {
+				new ParallelGeneWriter(numThreads).write(ParallelGeneWriter.getGenesInOrder(genes, singleChr), new ParallelGeneWriter.GeneOutput() {
+					@Override
+					public String getOutput(Gene gene) throws IOException {
+						return gene.getName() + "\t" + kmerFileReader.getOmegaQuantile(gene, quantile) + "\n";
+					}
+				}, w);
+			} finally {
+				w.close();
+			}
+			logger.info("Done writing file.");
+			return;
+		}
 		FileWriter w = new FileWriter(outFile);
 		int totalGenes = 0;
 		Collection<String> chrsToUse = new TreeSet<String>();
@@ -110,8 +137,28 @@ public class KmerOmegaAnalysis {
 		writeMergedSignificantKmers(pvalCutoff, outBed, null);
 	}
 	
-	private void writeMergedSignificantKmers(double pvalCutoff, String outBed, String singleChr) throws IOException {
+	private void writeMergedSignificantKmers(final double pvalCutoff, String outBed, String singleChr) throws IOException {
 		logger.info("Writing merged kmers with P value < " + pvalCutoff + " to file " + outBed + "...");
+		if(numThreads > 1) {
+			BufferedWriter w = new BufferedWriter(new FileWriter(outBed));
+			try {
+				new ParallelGeneWriter(numThreads).write(ParallelGeneWriter.getGenesInOrder(genes, singleChr), new ParallelGeneWriter.GeneOutput() {
+					@Override
+					public String getOutput(Gene gene) throws IOException {
+						StringBuilder rtrn = new StringBuilder();
+						for(Annotation region : getMergedSignificantKmers(gene, pvalCutoff)) {
+							region.setName(gene.getName() + ":" + region.toUCSC());
+							rtrn.append(region.toBED() + "\n");
+						}
+						return rtrn.toString();
+					}
+				}, w);
+			} finally {
+				w.close();
+			}
+			logger.info("Done writing file.");
+			return;
+		}
 		FileWriter w = new FileWriter(outBed);
 		int totalGenes = 0;
 		Collection<String> chrsToUse = new TreeSet<String>();
@@ -157,6 +204,9 @@ public class KmerOmegaAnalysis {
 		p.addDoubleArg("-p", "P value cutoff for significant kmer", false, 0.01);
 		p.addBooleanArg("-cs", "Use score cache so omega files are only read once", false, true);
 		p.addStringArg("-chr", "Single chromosome to use", false, null);
+		p.addIntArg("-t", "Number of threads", false, 1);
+		p.addIntArg("-cm", "Memory budget for the score cache in MB", false, (int) (OmegaKmerFileReader.DEFAULT_MAX_CACHE_BYTES >> 20));
+		p.addStringArg("-b", "Directory of binary omega files made with OmegaBinaryStore, to use instead of text omega files", false, null);
 		p.parse(args);
 		boolean debug = p.getBooleanArg("-d");
 		if(debug) {
@@ -173,8 +223,16 @@ public class KmerOmegaAnalysis {
 		double pvalCutoff = p.getDoubleArg("-p");
 		boolean cache = p.getBooleanArg("-cs");
 		String singleChr = p.getStringArg("-chr");
+		int numThreads = p.getIntArg("-t");
+		String binaryDir = p.getStringArg("-b");
+		long cacheBytes = (long) p.getIntArg("-cm") << 20;
 		
-		KmerOmegaAnalysis ka = new KmerOmegaAnalysis(omegaDirectory, kmerSize, fileChunkSize, geneBedFile, cache);
+		OmegaKmerFileReader reader = new OmegaKmerFileReader(omegaDirectory, kmerSize, fileChunkSize, cache, cacheBytes);
+		if(binaryDir != null) {
+			reader.setBinaryStore(new OmegaBinaryStore(binaryDir, kmerSize));
+		}
+		KmerOmegaAnalysis ka = new KmerOmegaAnalysis(reader, BEDFileParser.loadDataByChr(geneBedFile));
+		ka.setNumThreads(numThreads);
 		
 		if(outQuantile != null) {
 			ka.writeOmegaQuantiles(quantile, outQuantile, singleChr);
@@ -184,6 +242,10 @@ public class KmerOmegaAnalysis {
 			ka.writeMergedSignificantKmers(pvalCutoff, outSigKmerBed, singleChr);
 		}
 		
+		if(cache) {
+			reader.logCacheStats();
+		}
+		
 		logger.info("");
 		logger.info("All done.");
 	}
@@ -0,0 +1,331 @@
+/**
+ *
+ */
+package util.programs.conservation;
+
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Index of the alignment blocks in a MAF file by their span on the reference sequence
+ * The index records the byte offset, length and reference span of each block and is saved next to the MAF file,
+ * so the blocks overlapping a region can be copied out of a memory mapped MAF without parsing the rest of the file
+ * @author prussell
+ *
+ */
+public class MafBlockIndex {
+
+	private String mafFile;
+	private long[] offsets;
+	private int[] lengths;
+	private int[] starts;
+	private int[] ends;
+	/**
+	 * Maximum block end over blocks 0..i, for binary search of the first block that can overlap a position
+	 */
+	private int[] maxEnds;
+	private static Logger logger = Logger.getLogger(MafBlockIndex.class.getName());
+	private static int MAGIC = 0x4d414631;
+	private static String MAF_HEADER = "##maf version=1\n\n";
+
+	private MafBlockIndex(String maf, long[] blockOffsets, int[] blockLengths, int[] blockStarts, int[] blockEnds) {
+		mafFile = maf;
+		int n = blockOffsets.length;
+		// Sort blocks by reference start
+		Integer[] order = new Integer[n];
+		for(int i = 0; i < n; i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		final int[] unsortedStarts = blockStarts;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Integer.compare(unsortedStarts[i1.intValue()], unsortedStarts[i2.intValue()]);
+			}
+		});
+		offsets = new long[n];
+		lengths = new int[n];
+		starts = new int[n];
+		ends = new int[n];
+		maxEnds = new int[n];
+		for(int i = 0; i < n; i++) {
+			int j = order[i].intValue();
+			offsets[i] = blockOffsets[j];
+			lengths[i] = blockLengths[j];
+			starts[i] = blockStarts[j];
+			ends[i] = blockEnds[j];
+			maxEnds[i] = i == 0 ? ends[i] : Math.max(maxEnds[i - 1], ends[i]);
+		}
+	}
+
+	/**
+	 * @param mafFile MAF file
+	 * @return Name of the index file
+	 */
+	public static String getIndexFileName(String mafFile) {
+		return mafFile + ".blockidx";
+	}
+
+	/**
+	 * Load the index for a MAF file, building and saving it first if it does not exist or is out of date
+	 * @param mafFile MAF file
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static MafBlockIndex load(String mafFile) throws IOException {
+		File maf = new File(mafFile);
+		File idx = new File(getIndexFileName(mafFile));
+		if(idx.exists() && idx.lastModified() >= maf.lastModified()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+			try {
+				if(in.readInt() == MAGIC && in.readLong() == maf.length()) {
+					int n = in.readInt();
+					long[] blockOffsets = new long[n];
+					int[] blockLengths = new int[n];
+					int[] blockStarts = new int[n];
+					int[] blockEnds = new int[n];
+					for(int i = 0; i < n; i++) {
+						blockOffsets[i] = in.readLong();
+						blockLengths[i] = in.readInt();
+						blockStarts[i] = in.readInt();
+						blockEnds[i] = in.readInt();
+					}
+					logger.debug("Loaded index of " + n + " blocks for " + mafFile);
+					return new MafBlockIndex(mafFile, blockOffsets, blockLengths, blockStarts, blockEnds);
+				}
+			} finally {
+				in.close();
+			}
+			logger.warn("Rebuilding out of date index " + idx);
+		}
+		MafBlockIndex rtrn = build(mafFile);
+		rtrn.write(idx.getPath());
+		return rtrn;
+	}
+
+	/**
+	 * Scan a MAF file and record each block
+	 * The reference span of a block is taken from its first sequence line
+	 * @param mafFile MAF file
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static MafBlockIndex build(String mafFile) throws IOException {
+		logger.info("Indexing alignment blocks in " + mafFile + "...");
+		LongList blockOffsets = new LongList();
+		IntList blockLengths = new IntList();
+		IntList blockStarts = new IntList();
+		IntList blockEnds = new IntList();
+		InputStream in = new BufferedInputStream(new FileInputStream(mafFile), 1 << 20);
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		long offset = 0;
+		long blockOffset = -1;
+		boolean haveReference = false;
+		int refStart = 0;
+		int refEnd = 0;
+		try {
+			while(true) {
+				long lineOffset = offset;
+				line.reset();
+				int c;
+				while((c = in.read()) != -1) {
+					offset++;
+					if(c == '\n') {
+						break;
+					}
+					line.write(c);
+				}
+				if(c == -1 && line.size() == 0) {
+					break;
+				}
+				String text = line.toString("US-ASCII").trim();
+				if(text.startsWith("a")) {
+					if(blockOffset >= 0 && haveReference) {
+						add(blockOffsets, blockLengths, blockStarts, blockEnds, blockOffset, lineOffset, refStart, refEnd);
+					}
+					blockOffset = lineOffset;
+					haveReference = false;
+				} else if(text.startsWith("s") && blockOffset >= 0 && !haveReference) {
+					// s src start size strand srcSize text
+					String[] fields = text.split("\\s+");
+					int start = Integer.parseInt(fields[2]);
+					int size = Integer.parseInt(fields[3]);
+					if(fields[4].equals("-")) {
+						start = Integer.parseInt(fields[5]) - start - size;
+					}
+					refStart = start;
+					refEnd = start + size;
+					haveReference = true;
+				} else if(text.isEmpty() && blockOffset >= 0) {
+					// The blank line ending the block is not included
+					if(haveReference) {
+						add(blockOffsets, blockLengths, blockStarts, blockEnds, blockOffset, lineOffset, refStart, refEnd);
+					}
+					blockOffset = -1;
+				}
+			}
+			if(blockOffset >= 0 && haveReference) {
+				add(blockOffsets, blockLengths, blockStarts, blockEnds, blockOffset, offset, refStart, refEnd);
+			}
+		} finally {
+			in.close();
+		}
+		logger.info("Indexed " + blockOffsets.size + " blocks.");
+		return new MafBlockIndex(mafFile, blockOffsets.toArray(), blockLengths.toArray(), blockStarts.toArray(), blockEnds.toArray());
+	}
+
+	private static void add(LongList blockOffsets, IntList blockLengths, IntList blockStarts, IntList blockEnds, long from, long to, int refStart, int refEnd) {
+		long length = to - from;
+		if(length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Alignment block at byte " + from + " is too long.");
+		}
+		blockOffsets.add(from);
+		blockLengths.add((int) length);
+		blockStarts.add(refStart);
+		blockEnds.add(refEnd);
+	}
+
+	/**
+	 * Save the index
+	 * @param indexFile Index file
+	 * @throws IOException
+	 */
+	private void write(String indexFile) throws IOException {
+		File tmp = new File(indexFile + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(new File(mafFile).length());
+			out.writeInt(offsets.length);
+			for(int i = 0; i < offsets.length; i++) {
+				out.writeLong(offsets[i]);
+				out.writeInt(lengths[i]);
+				out.writeInt(starts[i]);
+				out.writeInt(ends[i]);
+			}
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(new File(indexFile))) {
+			throw new IOException("Could not rename " + tmp + " to " + indexFile);
+		}
+		logger.info("Wrote index " + indexFile);
+	}
+
+	/**
+	 * @return Number of blocks
+	 */
+	public int getNumBlocks() {
+		return offsets.length;
+	}
+
+	/**
+	 * Write a MAF file containing only the blocks that overlap a reference interval
+	 * @param start Zero based start of interval on the reference
+	 * @param end End of interval, exclusive
+	 * @param outFile Output MAF file
+	 * @return Number of blocks written
+	 * @throws IOException
+	 */
+	public int writeOverlappingBlocks(int start, int end, String outFile) throws IOException {
+		// First block whose running maximum end is past the start
+		int lo = 0;
+		int hi = maxEnds.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(maxEnds[mid] <= start) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		FileOutputStream out = new FileOutputStream(outFile);
+		RandomAccessFile raf = new RandomAccessFile(mafFile, "r");
+		int numWritten = 0;
+		try {
+			FileChannel outChannel = out.getChannel();
+			out.write(MAF_HEADER.getBytes(StandardCharsets.US_ASCII));
+			FileChannel mafChannel = raf.getChannel();
+			for(int i = lo; i < starts.length && starts[i] < end; i++) {
+				if(ends[i] <= start) {
+					continue;
+				}
+				MappedByteBuffer block = mafChannel.map(FileChannel.MapMode.READ_ONLY, offsets[i], lengths[i]);
+				while(block.hasRemaining()) {
+					outChannel.write(block);
+				}
+				out.write('\n');
+				numWritten++;
+			}
+		} finally {
+			raf.close();
+			out.close();
+		}
+		return numWritten;
+	}
+
+	/**
+	 * Growable array of longs
+	 */
+	private static class LongList {
+		long[] values = new long[1024];
+		int size = 0;
+		void add(long value) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+		long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Growable array of ints
+	 */
+	private static class IntList {
+		int[] values = new int[1024];
+		int size = 0;
+		void add(int value) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-m", "MAF file to index", true);
+		p.parse(args);
+		String maf = p.getStringArg("-m");
+		build(maf).write(getIndexFileName(maf));
+	}
+
+}
@@ -6,10 +6,12 @@ package util.programs.conservation;
 import guttmanlab.core.util.CommandLineParser;
 import guttmanlab.core.util.CountLogger;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeSet;
 
@@ -30,6 +32,8 @@ public class Omega {
 	
 	private String alnDir;
 	private File modFile;
+	private boolean useBlockIndex;
+	private Map<String, MafBlockIndex> blockIndexes;
 	private static Logger logger = Logger.getLogger(Omega.class.getName());
 	
 	/**
@@ -39,6 +43,30 @@ public class Omega {
 	public Omega(String alignmentDir, String modelFile) {
 		alnDir = alignmentDir;
 		modFile = new File(modelFile);
+		useBlockIndex = false;
+		blockIndexes = new HashMap<String, MafBlockIndex>();
+	}
+	
+	/**
+	 * Fit omega to each region using only the alignment blocks that overlap it, found with an index of each maf file
+	 * Indexes are built the first time a maf file is used and saved next to it
+	 * @param useIndex Whether to use block indexes
+	 */
+	public void setUseBlockIndex(boolean useIndex) {
+		useBlockIndex = useIndex;
+	}
+	
+	/**
+	 * Get the block index for a chromosome, loading or building it the first time
+	 * @param chr Chromosome
+	 * @return Block index of the chromosome maf file
+	 * @throws IOException
+	 */
+	private synchronized MafBlockIndex getBlockIndex(String chr) throws IOException {
+		if(!blockIndexes.containsKey(chr)) {
+			blockIndexes.put(chr, MafBlockIndex.load(alnDir + "/" + chr + ".maf"));
+		}
+		return blockIndexes.get(chr);
 	}
 	
 	/**
@@ -49,11 +77,23 @@ public class Omega {
 	 */
 	public OmegaFit getOmegaFit(Annotation region) throws Exception {
 		String alnFile = alnDir + "/" + region.getChr() + ".maf";
+		File regionAlnFile = null;
+		if(useBlockIndex) {
+			regionAlnFile = File.createTempFile("omega_region_", ".maf");
+			alnFile = regionAlnFile.getPath();
+			int numBlocks = getBlockIndex(region.getChr()).writeOverlappingBlocks(region.getStart(), region.getEnd(), alnFile);
+			logger.debug(region.getName() + " overlaps " + numBlocks + " alignment blocks.");
+		}
 		try {
 			return EstimateOmegaPerExon.fitOmega(region, modFile, alnFile, "maf");
 		} catch (IllegalArgumentException e) {
 			logger.warn("Caught exception when fitting omega for gene " + region.getName() + ". Returning null.");
 			return null;
+		} finally {
+			if(regionAlnFile != null) {
+				@SuppressWarnings("unused")
+				boolean deleted = regionAlnFile.delete();
+			}
 		}
 	}
 	
@@ -90,6 +130,36 @@ public class Omega {
 	 * @throws Exception
 	 */
 	public void writeOmegaAsBedScore(Map<String, Collection<Gene>> genesByChr, String outBed, String singleChr) throws Exception {
+		writeOmegaAsBedScore(genesByChr, outBed, singleChr, 1);
+	}
+	
+	/**
+	 * Write regions to bed file with fitted omega score in score field, fitting genes in parallel
+	 * @param genesByChr Gene collection by chromosome
+	 * @param outBed Output file
+	 * @param singleChr Single chromosome to write or null if all chromosomes
+	 * @param numThreads Number of threads
+	 * @throws Exception
+	 */
+	public void writeOmegaAsBedScore(Map<String, Collection<Gene>> genesByChr, String outBed, String singleChr, int numThreads) throws Exception {
+		if(numThreads > 1) {
+			logger.info("Writing omega scores as bed score to file " + outBed + " with " + numThreads + " threads...");
+			BufferedWriter w = new BufferedWriter(new FileWriter(outBed));
+			try {
+				new ParallelGeneWriter(numThreads).write(ParallelGeneWriter.getGenesInOrder(genesByChr, singleChr), new ParallelGeneWriter.GeneOutput() {
+					@Override
+					public String getOutput(Gene gene) throws Exception {
+						gene.setBedScore(getOmega(gene));
+						logger.debug(gene.getName() + "\t" + gene.getBedScore());
+						return gene.toBED() + "\n";
+					}
+				}, w);
+			} finally {
+				w.close();
+			}
+			logger.info("Done writing bed file.");
+			return;
+		}
 		FileWriter w = new FileWriter(outBed);
 		logger.info("Writing omega scores as bed score to file " + outBed + "...");
 		Collection<String> chrs = new TreeSet<String>();
@@ -131,6 +201,8 @@ public class Omega {
 		p.addStringArg("-o", "Output bed file with fitted omega score in score field", false, null);
 		p.addStringArg("-c", "Single chromosome to use", false, null);
 		p.addBooleanArg("-d", "Debug logging", false, false);
+		p.addIntArg("-t", "Number of threads", false, 1);
+		p.addBooleanArg("-x", "Index alignment blocks in each maf file and read only the blocks overlapping each region", false, false);
 		p.parse(args);
 		boolean debug = p.getBooleanArg("-d");
 		if(debug) {
@@ -141,11 +213,14 @@ public class Omega {
 		String modelFile = p.getStringArg("-m");
 		String outputBed = p.getStringArg("-o");
 		String singleChr = p.getStringArg("-c");
+		int numThreads = p.getIntArg("-t");
+		boolean useIndex = p.getBooleanArg("-x");
 		
 		Omega omega = new Omega(alignmentDir, modelFile);
+		omega.setUseBlockIndex(useIndex);
 		
 		if(outputBed != null) {
-			omega.writeOmegaAsBedScore(BEDFileParser.loadDataByChr(inputBed), outputBed, singleChr);
+			omega.writeOmegaAsBedScore(BEDFileParser.loadDataByChr(inputBed), outputBed, singleChr, numThreads);
 		}
 	}
 
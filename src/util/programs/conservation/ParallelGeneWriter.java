@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package util.programs.conservation;
+
+import guttmanlab.core.util.CountLogger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import nextgen.core.annotation.Gene;
+
+/**
+ * Computes output for genes on a pool of threads and writes it in the original gene order
+ * At most a fixed number of genes per thread are in flight, so memory does not grow with the number of genes
+ * @author prussell
+ *
+ */
+public class ParallelGeneWriter {
+
+	private int numThreads;
+	private static Logger logger = Logger.getLogger(ParallelGeneWriter.class.getName());
+
+	/**
+	 * Maximum number of submitted genes per thread whose output has not been written
+	 */
+	private static int GENES_IN_FLIGHT_PER_THREAD = 64;
+
+	/**
+	 * @param threads Number of threads
+	 */
+	public ParallelGeneWriter(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+		}
+		numThreads = threads;
+	}
+
+	/**
+	 * Computes the output for one gene
+	 */
+	public interface GeneOutput {
+		/**
+		 * @param gene The gene
+		 * @return Text to write for the gene, possibly empty
+		 * @throws Exception
+		 */
+		public String getOutput(Gene gene) throws Exception;
+	}
+
+	/**
+	 * Get genes in the order chromosomes are written
+	 * @param genesByChr Genes by chromosome
+	 * @param singleChr Single chromosome to use or null if all chromosomes
+	 * @return Genes sorted by chromosome name, in the collection order within each chromosome
+	 */
+	public static List<Gene> getGenesInOrder(Map<String, Collection<Gene>> genesByChr, String singleChr) {
+		Collection<String> chrs = new TreeSet<String>();
+		if(singleChr != null) {
+			chrs.add(singleChr);
+		} else {
+			chrs.addAll(genesByChr.keySet());
+		}
+		List<Gene> rtrn = new ArrayList<Gene>();
+		for(String chr : chrs) {
+			rtrn.addAll(genesByChr.get(chr));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Compute output for all genes in parallel and write it in gene order
+	 * @param genes Genes in output order
+	 * @param output Output to compute for each gene
+	 * @param writer Writer
+	 * @throws IOException
+	 */
+	public void write(List<Gene> genes, final GeneOutput output, Writer writer) throws IOException {
+		logger.info("Processing " + genes.size() + " genes with " + numThreads + " threads...");
+		CountLogger countLogger = new CountLogger(genes.size(), 100);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+		int maxPending = numThreads * GENES_IN_FLIGHT_PER_THREAD;
+		try {
+			for(final Gene gene : genes) {
+				if(pending.size() >= maxPending) {
+					writer.write(getResult(pending.removeFirst()));
+					countLogger.advance();
+				}
+				pending.addLast(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return output.getOutput(gene);
+					}
+				}));
+			}
+			while(!pending.isEmpty()) {
+				writer.write(getResult(pending.removeFirst()));
+				countLogger.advance();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static String getResult(Future<String> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+}
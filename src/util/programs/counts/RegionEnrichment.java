@@ -18,6 +18,7 @@ import org.apache.log4j.Logger;
 import org.ggf.drmaa.DrmaaException;
 
 import util.NormalizationUtils;
+import util.programs.wig.BigWigWriter;
 import guttmanlab.core.pipeline.Job;
 import guttmanlab.core.pipeline.JobUtils;
 import guttmanlab.core.pipeline.LSFJob;
@@ -87,7 +88,6 @@ public class RegionEnrichment {
 		String bam2 = p.getStringArg("-b2");
 		String bed = p.getStringArg("-g");
 		String wigPrefix = p.getStringArg("-w");
-		String wigToBigWig = p.getStringArg("-u");
 		String sizeFile = p.getStringArg("-s");
 		String featureBed = p.getStringArg("-f");
 		String outFeatureBedPrefix = p.getStringArg("-fb");
@@ -100,7 +100,6 @@ public class RegionEnrichment {
 		argsToIgnore.add("-bc");
 		argsToIgnore.add("-j");
 		argsToIgnore.add("-s");
-		argsToIgnore.add("-u");
 		argsToIgnore.add("-fb");
 		String argString = p.getArgString(argsToIgnore);
 		ArrayList<Job> jobs = new ArrayList<Job>();
@@ -174,8 +173,9 @@ public class RegionEnrichment {
 			}
 			w.close();
 			logger.info("Done writing combined wig file.");
-			if(wigToBigWig != null && sizeFile != null) {
-				NormalizationUtils.makeBigWig(wigPrefix, wigToBigWig, sizeFile);
+			if(sizeFile != null) {
+				// Stream the chromosome wigs straight into the bigwig rather than reading back the combined file
+				BigWigWriter.convert(chrWigs, sizeFile, wigPrefix + ".bw");
 			}
 		}
 
@@ -198,7 +198,6 @@ public class RegionEnrichment {
 		p.addBooleanArg("-bc", "For wig file, run each chromosome separately on LSF. Requires -w.", false, false);
 		p.addStringArg("-j", "Jar file for batched run", false, null);
 		p.addStringArg("-s", "Chromosome size file to make bigwig", false, null);
-		p.addStringArg("-u", "UCSC wigToBigWig executable", false, null);
 		p.addStringArg("-f", "Input feature bed file", false, null);
 		p.addStringArg("-cfb", "Prefix for output bed file of comparative feature enrichments", false, null);
 		p.addStringArg("-gfb", "Prefix for output bed file of feature enrichments over gene", false, null);
@@ -211,7 +210,6 @@ public class RegionEnrichment {
 		String chr = p.getStringArg("-c");
 		boolean batch = p.getBooleanArg("-bc");
 		String chrSizeFile = p.getStringArg("-s");
-		String wigToBigWig = p.getStringArg("-u");
 		String featureBed = p.getStringArg("-f");
 		String outComparisonBed = p.getStringArg("-cfb");
 		String outEnrichmentOverGeneBed = p.getStringArg("-gfb");
@@ -225,7 +223,7 @@ public class RegionEnrichment {
 					throw new IllegalArgumentException("Must provide bed file of features.");
 				}				
 				NormalizationUtils.writeFeatureEnrichmentBed(c.features, c.comparativeEnrichments, outComparisonBed);
-				if(wigPrefix != null) NormalizationUtils.writePositionLevelDataAllGenes(c.comparativeEnrichments, c.features, wigPrefix, wigToBigWig, chrSizeFile);
+				if(wigPrefix != null) NormalizationUtils.writePositionLevelDataAllGenes(c.comparativeEnrichments, c.features, wigPrefix, chrSizeFile);
 			}
 			if(outEnrichmentOverGeneBed != null) {
 				logger.info("");
@@ -234,7 +232,7 @@ public class RegionEnrichment {
 					throw new IllegalArgumentException("Must provide bed file of features.");
 				}
 				NormalizationUtils.writeFeatureEnrichmentBed(c.features, c.enrichments, outEnrichmentOverGeneBed);
-				if(wigPrefix != null) NormalizationUtils.writePositionLevelDataAllGenes(c.enrichments, c.features, wigPrefix, wigToBigWig, chrSizeFile);
+				if(wigPrefix != null) NormalizationUtils.writePositionLevelDataAllGenes(c.enrichments, c.features, wigPrefix, chrSizeFile);
 			}
 		} else {
 			batchRunAllChromosomes(p);
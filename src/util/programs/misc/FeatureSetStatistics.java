@@ -6,18 +6,33 @@ package util.programs.misc;
 import guttmanlab.core.util.CommandLineParser;
 import guttmanlab.core.util.StringParser;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
@@ -45,6 +60,7 @@ public class FeatureSetStatistics {
 	private String outputDir;
 	private boolean useExistingFiles;
 	protected String bedAnnotation;
+	private String bedFeatures;
 
 	protected Map<ExpressionQuantileBin, EmpiricalDistribution> distNumFeaturesPerGene;
 	protected Map<ExpressionQuantileBin, EmpiricalDistribution> distPctFeaturesPerGene;
@@ -54,7 +70,9 @@ public class FeatureSetStatistics {
 	protected Map<ExpressionQuantileBin, EmpiricalDistribution> distMaxDistanceBtwConsecutiveFeatures;
 	protected Map<ExpressionQuantileBin, EmpiricalDistribution> distMedianDistanceBtwConsecutiveFeatures;
 	
-	private SampleData expressionData;
+	private Map<Gene, Boolean> expressedGenes;
+	private int numThreads;
+	private List<GeneStatistics> geneStatistics;
 	protected double[] sortedExpressionLevels;
 	protected Map<Gene, Double> expressionLevels;
 	private Map<Gene, Double> expressionQuantiles;
@@ -72,15 +90,30 @@ public class FeatureSetStatistics {
 	
 	private static boolean DEFAULT_FIRST_READ_TRANSCRIPTION_STRAND = false;
 	
+	private static int DEFAULT_NUM_THREADS = 1;
+	
+	/**
+	 * Number of genes computed together by one task
+	 */
+	private static int GENES_PER_TASK = 1000;
+	
+	private static int BINARY_CACHE_MAGIC = 0x46474d31;
+	private static String BINARY_CACHE_SUFFIX = ".bin";
+	
 	protected static Logger logger = Logger.getLogger(FeatureSetStatistics.class.getName());
 	
 	private FeatureSetStatistics(String bedGenes, String bedFeatures, String outDir, boolean readFromExistingFiles) throws IOException {
-		this(bedGenes, bedFeatures, outDir, readFromExistingFiles, null, 1, DEFAULT_NUM_QUANTILE_BINS, DEFAULT_FIRST_READ_TRANSCRIPTION_STRAND);
+		this(bedGenes, bedFeatures, outDir, readFromExistingFiles, null, 1, DEFAULT_NUM_QUANTILE_BINS, DEFAULT_FIRST_READ_TRANSCRIPTION_STRAND, DEFAULT_NUM_THREADS);
 	}
 	
-	private FeatureSetStatistics(String bedGenes, String bedFeatures, String outDir, boolean readFromExistingFiles, String expressionBamFile, double expressionPvalCutoff, int numQuantileBins, boolean firstReadTranscriptionStrand) throws IOException {
+	private FeatureSetStatistics(String bedGenes, String bedFeatures, String outDir, boolean readFromExistingFiles, String expressionBamFile, double expressionPvalCutoff, int numQuantileBins, boolean firstReadTranscriptionStrand, int threads) throws IOException {
 		
+		if(threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+		}
+		numThreads = threads;
 		bedAnnotation = bedGenes;
+		this.bedFeatures = bedFeatures;
 		
 		outputDir = outDir;
 		File outDirFile = new File(outputDir);
@@ -148,8 +181,12 @@ public class FeatureSetStatistics {
 		} else {
 			checkExpression = true;
 			logger.info("Loading expression data...");
-			expressionData = new SampleData(expressionBamFile, firstReadTranscriptionStrand, genesByChr, 0, 0, expressionPvalCutoff, true, true);
-			computeExpressionLevels();
+			// One instance per thread, each reading the bam file through its own handle; only needed until expression is computed
+			BlockingQueue<SampleData> expressionData = new ArrayBlockingQueue<SampleData>(numThreads);
+			for(int i = 0; i < numThreads; i++) {
+				expressionData.add(new SampleData(expressionBamFile, firstReadTranscriptionStrand, genesByChr, 0, 0, expressionPvalCutoff, true, true));
+			}
+			computeExpressionLevels(expressionData);
 			computeExpressionQuantiles();
 			logger.info("Done loading expression data.");
 		}
@@ -157,31 +194,84 @@ public class FeatureSetStatistics {
 	}
 	
 	/**
-	 * Compute and store expression levels of genes
+	 * Expression of a range of genes
+	 */
+	private static class ExpressionChunk {
+		double[] levels;
+		boolean[] expressed;
+	}
+	
+	/**
+	 * Compute and store expression levels of genes, or read them from the expression score file, and whether each gene is expressed
+	 * @param expressionData One expression data instance per thread, each taken by a task while it runs
 	 * @throws IOException 
 	 */
-	private void computeExpressionLevels() throws IOException {
+	private void computeExpressionLevels(final BlockingQueue<SampleData> expressionData) throws IOException {
 		
 		logger.info("");
 		logger.info("Computing expression levels...");
 		
 		ExpressionScoreFile e = new ExpressionScoreFile();
-		if(e.readFromFile()) {
+		final boolean levelsFromFile = e.readFromFile();
+		
+		// Every gene is checked for expression, but levels are kept for one gene per name, as in the expression score file
+		final List<Gene> genes = new ArrayList<Gene>();
+		for(String chr : genesByChr.keySet()) {
+			genes.addAll(genesByChr.get(chr));
+		}
+		List<ExpressionChunk> chunks = runInChunks(genes.size(), new ChunkTask<ExpressionChunk>() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public ExpressionChunk compute(int start, int end) {
+				SampleData data;
+				try {
+					data = expressionData.take();
+				} catch (InterruptedException ie) {
+					throw new IllegalStateException(ie);
+				}
+				try {
+					ExpressionChunk rtrn = new ExpressionChunk();
+					rtrn.levels = new double[end - start];
+					rtrn.expressed = new boolean[end - start];
+					for(int i = start; i < end; i++) {
+						Gene gene = genes.get(i);
+						if(!levelsFromFile && isNamedGene(gene)) {
+							double p = data.getGeneScanPval(gene);
+							rtrn.levels[i - start] = -1 * Math.log(p);
+						}
+						rtrn.expressed[i - start] = data.isExpressed(gene);
+					}
+					return rtrn;
+				} finally {
+					expressionData.add(data);
+				}
+			}
+		});
+		expressedGenes = new TreeMap<Gene, Boolean>();
+		int numDone = 0;
+		for(ExpressionChunk chunk : chunks) {
+			for(int i = 0; i < chunk.expressed.length; i++) {
+				expressedGenes.put(genes.get(numDone), Boolean.valueOf(chunk.expressed[i]));
+				numDone++;
+			}
+		}
+		if(levelsFromFile) {
 			return;
 		}
 		
 		ArrayList<Double> levelsList = new ArrayList<Double>();
 		expressionLevels = new TreeMap<Gene, Double>();
-		int numDone = 0;
-		for(String name : genesByName.keySet()) {
-			Gene gene = genesByName.get(name);
-			double p = expressionData.getGeneScanPval(gene);
-			double level = -1 * Math.log(p);
-			expressionLevels.put(gene, Double.valueOf(level));
-			levelsList.add(Double.valueOf(level));
-			numDone++;
-			if(numDone % 1000 == 0) {
-				logger.info("Finished " + numDone + " genes.");
+		numDone = 0;
+		for(ExpressionChunk chunk : chunks) {
+			for(int i = 0; i < chunk.levels.length; i++) {
+				Gene gene = genes.get(numDone);
+				numDone++;
+				if(!isNamedGene(gene)) {
+					continue;
+				}
+				Double level = Double.valueOf(chunk.levels[i]);
+				expressionLevels.put(gene, level);
+				levelsList.add(level);
 			}
 		}
 		sortedExpressionLevels = new double[levelsList.size()];
@@ -194,6 +284,14 @@ public class FeatureSetStatistics {
 		
 	}
 	
+	/**
+	 * @param gene The gene
+	 * @return True iff the gene is the one stored under its name, when several genes share a name
+	 */
+	private boolean isNamedGene(Gene gene) {
+		return genesByName.get(gene.getName()) == gene;
+	}
+	
 	/**
 	 * Compute and store expression quantiles of genes
 	 */
@@ -216,7 +314,186 @@ public class FeatureSetStatistics {
 	 */
 	private boolean isExpressed(Gene gene) {
 		if(!checkExpression) return true;
-		return expressionData.isExpressed(gene);
+		return expressedGenes.get(gene).booleanValue();
+	}
+	
+	/**
+	 * A computation over a range of indices
+	 * @param <T> Result type
+	 */
+	private interface ChunkTask<T> {
+		/**
+		 * @param start First index
+		 * @param end Index after the last index
+		 * @return Result for the range
+		 */
+		public T compute(int start, int end);
+	}
+	
+	/**
+	 * Split the indices 0 to n into chunks, compute the chunks on a thread pool and return the results in order
+	 * @param n Number of indices
+	 * @param task Task for one chunk
+	 * @return Result of each chunk, in order of index
+	 */
+	private <T> List<T> runInChunks(int n, final ChunkTask<T> task) {
+		List<T> rtrn = new ArrayList<T>();
+		if(numThreads == 1) {
+			for(int start = 0; start < n; start += GENES_PER_TASK) {
+				rtrn.add(task.compute(start, Math.min(n, start + GENES_PER_TASK)));
+				logger.info("Finished " + Math.min(n, start + GENES_PER_TASK) + " genes.");
+			}
+			return rtrn;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for(int start = 0; start < n; start += GENES_PER_TASK) {
+				final int chunkStart = start;
+				final int chunkEnd = Math.min(n, start + GENES_PER_TASK);
+				futures.add(executor.submit(new Callable<T>() {
+					@Override
+					public T call() {
+						return task.compute(chunkStart, chunkEnd);
+					}
+				}));
+			}
+			int numDone = 0;
+			for(Future<T> future : futures) {
+				rtrn.add(future.get());
+				numDone = Math.min(n, numDone + GENES_PER_TASK);
+				logger.info("Finished " + numDone + " genes.");
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * All statistics of one gene, computed in a single visit
+	 * A group of statistics is null if the gene is skipped for that group
+	 */
+	private static class GeneStatistics {
+		Gene gene;
+		boolean expressed;
+		boolean hasQuantile;
+		double quantile;
+		int geneSize;
+		int numFeatures;
+		double[] coverage; // Number of features, percent covered
+		double[] featureStats; // Average distance between features, median feature size; genes with at least one feature
+		double[] consecutiveStats; // Median and max distance between consecutive features; genes with at least two features
+	}
+	
+	/**
+	 * Compute the statistics of every gene on a thread pool, once
+	 * @return Statistics of each gene in chromosome and gene order
+	 */
+	private List<GeneStatistics> getGeneStatistics() {
+		if(geneStatistics != null) {
+			return geneStatistics;
+		}
+		logger.info("");
+		logger.info("Computing statistics of each gene with " + numThreads + " threads...");
+		final List<Gene> genes = new ArrayList<Gene>();
+		for(String chr : genesByChr.keySet()) {
+			genes.addAll(genesByChr.get(chr));
+		}
+		List<List<GeneStatistics>> chunks = runInChunks(genes.size(), new ChunkTask<List<GeneStatistics>>() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public List<GeneStatistics> compute(int start, int end) {
+				List<GeneStatistics> rtrn = new ArrayList<GeneStatistics>();
+				for(int i = start; i < end; i++) {
+					rtrn.add(computeGeneStatistics(genes.get(i)));
+				}
+				return rtrn;
+			}
+		});
+		geneStatistics = new ArrayList<GeneStatistics>();
+		for(List<GeneStatistics> chunk : chunks) {
+			geneStatistics.addAll(chunk);
+		}
+		logger.info("Done computing statistics of each gene.");
+		return geneStatistics;
+	}
+	
+	/**
+	 * @param gene The gene
+	 * @return All statistics for the gene
+	 */
+	private GeneStatistics computeGeneStatistics(Gene gene) {
+		GeneStatistics rtrn = new GeneStatistics();
+		rtrn.gene = gene;
+		rtrn.expressed = isExpressed(gene);
+		if(!rtrn.expressed) {
+			return rtrn;
+		}
+		Collection<Gene> features = featuresByGene.get(gene);
+		try {
+			rtrn.quantile = expressionQuantiles.get(gene).doubleValue();
+			rtrn.geneSize = gene.getSize();
+			rtrn.numFeatures = features.size();
+			rtrn.hasQuantile = true;
+		} catch (NullPointerException e) {
+			logger.warn("Caught exception when getting stats for gene " + gene.getName());
+			e.printStackTrace();
+			return rtrn;
+		}
+		int numBasesInFeatures = -1;
+		try {
+			numBasesInFeatures = getNumBasesCoveredByFeatures(gene);
+			double p = (double)numBasesInFeatures / (double)rtrn.geneSize;
+			rtrn.coverage = new double[] {rtrn.numFeatures, p};
+		} catch (NullPointerException e) {
+			logger.warn("Caught exception when getting stats for gene " + gene.getName());
+			e.printStackTrace();
+		}
+		if(rtrn.numFeatures > 0 && numBasesInFeatures >= 0) {
+			try {
+				int basesNotCovered = rtrn.geneSize - numBasesInFeatures;
+				double avgDistBtwFeatures = (double)basesNotCovered / (double)rtrn.numFeatures;
+				Collection<Double> sizes = new ArrayList<Double>();
+				for(Gene feature : features) {
+					sizes.add(Double.valueOf(feature.getSize()));
+				}
+				double medianSize = Statistics.median(sizes);
+				rtrn.featureStats = new double[] {avgDistBtwFeatures, medianSize};
+			} catch (NullPointerException e) {
+				logger.warn("Caught exception when getting stats for gene " + gene.getName());
+				e.printStackTrace();
+			}
+		}
+		if(rtrn.numFeatures >= 2) {
+			try {
+				Collection<Double> distancesBtwConsecutiveFeatures = new ArrayList<Double>();
+				ArrayList<Gene> featuresInOrder = new ArrayList<Gene>();
+				for(Gene feature : features) {
+					featuresInOrder.add(feature);
+				}
+				for(int i=0; i<featuresInOrder.size() - 1; i++) {
+					Gene feature1 = featuresInOrder.get(i);
+					Gene feature2 = featuresInOrder.get(i+1);
+					double dist = transcriptDistanceBetweenFeatures(gene, feature1, feature2);
+					distancesBtwConsecutiveFeatures.add(Double.valueOf(dist));
+				}
+				double median = Statistics.median(distancesBtwConsecutiveFeatures);
+				double max = Statistics.max(distancesBtwConsecutiveFeatures);
+				rtrn.consecutiveStats = new double[] {median, max};
+			} catch (NullPointerException e) {
+				logger.warn("Caught exception when getting stats for gene " + gene.getName());
+				e.printStackTrace();
+			}
+		}
+		return rtrn;
 	}
 	
 	
@@ -231,25 +508,26 @@ public class FeatureSetStatistics {
 		logger.info("Identifying features with genes...");
 		
 		if(useExistingFiles) {
+			if(readFeatureGeneMappingFromBinaryFile(cachedFeatureGeneMappingFile + BINARY_CACHE_SUFFIX)) {
+				return;
+			}
 			if(readFeatureGeneMappingFromCachedFile(cachedFeatureGeneMappingFile)) {
+				writeFeatureGeneMappingBinary(cachedFeatureGeneMappingFile + BINARY_CACHE_SUFFIX);
 				return;
 			}
 		}
 		
 		featuresByGene.clear();
 		for(String chr : genesByChr.keySet()) {
+			for(Gene gene : genesByChr.get(chr)) {
+				featuresByGene.put(gene, new TreeSet<Gene>());
+			}
+			if(featuresByChr.containsKey(chr)) {
+				sweepOverlaps(genesByChr.get(chr), featuresByChr.get(chr));
+			}
 			int numGenes = 0;
 			int numFeatures = 0;
 			for(Gene gene : genesByChr.get(chr)) {
-				Collection<Gene> geneFeatures = new TreeSet<Gene>();
-				if (featuresByChr.containsKey(chr)) {
-					for(Gene feature : featuresByChr.get(chr)) {
-						if(feature.overlaps(gene)) {
-							geneFeatures.add(feature);
-						}
-					}
-				}				
-				featuresByGene.put(gene, geneFeatures);
 				int f = featuresByGene.get(gene).size();
 				if(f > 0) {
 					numGenes++;
@@ -263,10 +541,92 @@ public class FeatureSetStatistics {
 		
 		if(useExistingFiles) {
 			writeFeatureGeneMapping(cachedFeatureGeneMappingFile);
+			writeFeatureGeneMappingBinary(cachedFeatureGeneMappingFile + BINARY_CACHE_SUFFIX);
 		}
 		
 	}
 	
+	private static Comparator<Gene> startComparator = new Comparator<Gene>() {
+		@Override
+		public int compare(Gene g1, Gene g2) {
+			return Integer.compare(g1.getStart(), g2.getStart());
+		}
+	};
+	
+	/**
+	 * Add each feature to the collections of the genes it overlaps on one chromosome
+	 * Genes and features are merged in order of start position; each new interval is checked only against
+	 * the intervals of the other set that are still open, and closed intervals are dropped as the sweep passes them
+	 * @param genes Genes on the chromosome
+	 * @param features Features on the chromosome
+	 */
+	private void sweepOverlaps(Collection<Gene> genes, Collection<Gene> features) {
+		Gene[] sortedGenes = genes.toArray(new Gene[genes.size()]);
+		Gene[] sortedFeatures = features.toArray(new Gene[features.size()]);
+		Arrays.sort(sortedGenes, startComparator);
+		Arrays.sort(sortedFeatures, startComparator);
+		List<Gene> openGenes = new ArrayList<Gene>();
+		List<Gene> openFeatures = new ArrayList<Gene>();
+		int g = 0;
+		int f = 0;
+		while(g < sortedGenes.length || f < sortedFeatures.length) {
+			boolean nextIsGene = f == sortedFeatures.length || (g < sortedGenes.length && sortedGenes[g].getStart() <= sortedFeatures[f].getStart());
+			if(nextIsGene) {
+				if(f == sortedFeatures.length && openFeatures.isEmpty()) {
+					// No feature can overlap the remaining genes
+					break;
+				}
+				Gene gene = sortedGenes[g];
+				for(Gene feature : closeAndGetOpen(openFeatures, gene.getStart())) {
+					addIfOverlaps(gene, feature);
+				}
+				openGenes.add(gene);
+				g++;
+			} else {
+				if(g == sortedGenes.length && openGenes.isEmpty()) {
+					// No gene can overlap the remaining features
+					break;
+				}
+				Gene feature = sortedFeatures[f];
+				for(Gene gene : closeAndGetOpen(openGenes, feature.getStart())) {
+					addIfOverlaps(gene, feature);
+				}
+				openFeatures.add(feature);
+				f++;
+			}
+		}
+	}
+	
+	/**
+	 * Remove intervals ending before a position
+	 * @param open Intervals whose start is at or before the position
+	 * @param pos Position
+	 * @return The same list, now holding only the intervals that reach the position
+	 */
+	private static List<Gene> closeAndGetOpen(List<Gene> open, int pos) {
+		int kept = 0;
+		for(int i = 0; i < open.size(); i++) {
+			Gene interval = open.get(i);
+			if(interval.getEnd() >= pos) {
+				open.set(kept, interval);
+				kept++;
+			}
+		}
+		open.subList(kept, open.size()).clear();
+		return open;
+	}
+	
+	/**
+	 * Record the feature for the gene if their blocks overlap
+	 * @param gene Gene whose span overlaps the feature span
+	 * @param feature Feature
+	 */
+	private void addIfOverlaps(Gene gene, Gene feature) {
+		if(feature.overlaps(gene)) {
+			featuresByGene.get(gene).add(feature);
+		}
+	}
+	
 	/**
 	 * Construct name of cached file for mapping of features to genes
 	 * @param bedAnnotation Annotation bed file
@@ -317,6 +677,144 @@ public class FeatureSetStatistics {
 		
 	}
 	
+	/**
+	 * Write feature to gene mapping to a binary file
+	 * The file holds the sizes and modification times of the input bed files, the feature names once,
+	 * and for each gene with features its name followed by the indices of its features
+	 * @param binaryFile File to write
+	 * @throws IOException
+	 */
+	private void writeFeatureGeneMappingBinary(String binaryFile) throws IOException {
+		
+		logger.info("Writing feature to gene mapping to binary file " + binaryFile + "...");
+		
+		Map<Gene, Integer> featureIndex = new HashMap<Gene, Integer>();
+		List<Gene> featureList = new ArrayList<Gene>();
+		for(Gene gene : featuresByGene.keySet()) {
+			for(Gene feature : featuresByGene.get(gene)) {
+				if(!featureIndex.containsKey(feature)) {
+					featureIndex.put(feature, Integer.valueOf(featureList.size()));
+					featureList.add(feature);
+				}
+			}
+		}
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFile)));
+		try {
+			out.writeInt(BINARY_CACHE_MAGIC);
+			writeFileStamp(out, bedAnnotation);
+			writeFileStamp(out, bedFeatures);
+			out.writeInt(featureList.size());
+			for(Gene feature : featureList) {
+				out.writeUTF(feature.getName());
+			}
+			int numGenes = 0;
+			for(Gene gene : featuresByGene.keySet()) {
+				if(!featuresByGene.get(gene).isEmpty()) {
+					numGenes++;
+				}
+			}
+			out.writeInt(numGenes);
+			for(Gene gene : featuresByGene.keySet()) {
+				Collection<Gene> geneFeatures = featuresByGene.get(gene);
+				if(geneFeatures.isEmpty()) {
+					continue;
+				}
+				out.writeUTF(gene.getName());
+				out.writeInt(geneFeatures.size());
+				for(Gene feature : geneFeatures) {
+					out.writeInt(featureIndex.get(feature).intValue());
+				}
+			}
+		} finally {
+			out.close();
+		}
+		
+		logger.info("Done writing to file.");
+		
+	}
+	
+	private static void writeFileStamp(DataOutputStream out, String file) throws IOException {
+		File f = new File(file);
+		out.writeLong(f.length());
+		out.writeLong(f.lastModified());
+	}
+	
+	private static boolean fileStampMatches(DataInputStream in, String file) throws IOException {
+		File f = new File(file);
+		long length = in.readLong();
+		long lastModified = in.readLong();
+		return length == f.length() && lastModified == f.lastModified();
+	}
+	
+	/**
+	 * Read feature to gene mapping from a binary file written by writeFeatureGeneMappingBinary and store
+	 * @param binaryFile Binary file
+	 * @return Whether the operation was successful; false if either bed file has changed since the file was written
+	 */
+	private boolean readFeatureGeneMappingFromBinaryFile(String binaryFile) {
+		
+		File cachedFile = new File(binaryFile);
+		if(!cachedFile.exists()) return false;
+		
+		logger.info("Trying to read feature to gene mapping from binary file " + binaryFile + "...");
+		
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryFile)));
+			try {
+				if(in.readInt() != BINARY_CACHE_MAGIC) {
+					logger.info("Not a feature to gene mapping file: " + binaryFile);
+					return false;
+				}
+				if(!fileStampMatches(in, bedAnnotation) || !fileStampMatches(in, bedFeatures)) {
+					logger.info("Bed files have changed since " + binaryFile + " was written.");
+					return false;
+				}
+				Gene[] features = new Gene[in.readInt()];
+				for(int i = 0; i < features.length; i++) {
+					String featureName = in.readUTF();
+					features[i] = featuresByName.get(featureName);
+					if(features[i] == null) {
+						logger.warn("Feature name " + featureName + " not recognized. Skipping its mappings.");
+					}
+				}
+				featuresByGene.clear();
+				for(String chr : genesByChr.keySet()) {
+					for(Gene gene : genesByChr.get(chr)) {
+						featuresByGene.put(gene, new TreeSet<Gene>());
+					}
+				}
+				int numGenes = in.readInt();
+				for(int i = 0; i < numGenes; i++) {
+					String geneName = in.readUTF();
+					Gene gene = genesByName.get(geneName);
+					if(gene == null) {
+						logger.warn("Gene name " + geneName + " not recognized. Skipping its mappings.");
+					}
+					int n = in.readInt();
+					for(int j = 0; j < n; j++) {
+						Gene feature = features[in.readInt()];
+						if(gene != null && feature != null) {
+							featuresByGene.get(gene).add(feature);
+						}
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch(IOException e) {
+			logger.info("Could not read gene to feature mapping from binary file: " + binaryFile);
+			logger.info("Due to exception:");
+			e.printStackTrace();
+			return false;
+		}
+		
+		logger.info("Done reading from file.");
+		
+		return true;
+		
+	}
+	
 	/**
 	 * Read feature to gene mapping from file and store
 	 * @param cachedFeatureGeneMappingFile Cached file
@@ -458,40 +956,35 @@ public class FeatureSetStatistics {
 		}
 		
 		int numNotExpressed = 0;
-		for(String chr : genesByChr.keySet()) {
-			logger.info(chr);
-			for(Gene gene : genesByChr.get(chr)) {
-				
-				try {
-					// Check gene expression
-					if(!isExpressed(gene)) {
-						numNotExpressed++;
-						continue;
-					}
-					
-					double quantile = expressionQuantiles.get(gene).doubleValue();
-					
-					// Make stats
-					int count = featuresByGene.get(gene).size();
-					int geneSize = gene.getSize();
-					double p = (double)getNumBasesCoveredByFeatures(gene) / (double)geneSize;
-					
-					for (ExpressionQuantileBin bin : expressionQuantileBins) {
-						if(bin.inBin(quantile)) {
-							// Add stats
-							pctPerGene.get(bin).add(Double.valueOf(p));
-							countPerGene.get(bin).add(Double.valueOf(count));
-						}
-					}
-					// Write to tables
-					wn.write(gene.getName() + "\t" + geneSize + "\t" + quantile + "\t" + count + "\n");
-					wp.write(gene.getName() + "\t" + geneSize + "\t" + quantile + "\t" + p + "\n");
-				} catch (NullPointerException e) {
-					logger.warn("Caught exception when getting stats for gene " + gene.getName());
-					e.printStackTrace();
+		for(GeneStatistics stats : getGeneStatistics()) {
+			// Check gene expression
+			if(!stats.expressed) {
+				numNotExpressed++;
+				continue;
+			}
+			if(!stats.hasQuantile) {
+				continue;
+			}
+			if(stats.coverage == null) {
+				continue;
+			}
+			
+			Gene gene = stats.gene;
+			double quantile = stats.quantile;
+			int count = (int) stats.coverage[0];
+			int geneSize = stats.geneSize;
+			double p = stats.coverage[1];
+			
+			for (ExpressionQuantileBin bin : expressionQuantileBins) {
+				if(bin.inBin(quantile)) {
+					// Add stats
+					pctPerGene.get(bin).add(Double.valueOf(p));
+					countPerGene.get(bin).add(Double.valueOf(count));
 				}
-				
 			}
+			// Write to tables
+			wn.write(gene.getName() + "\t" + geneSize + "\t" + quantile + "\t" + count + "\n");
+			wp.write(gene.getName() + "\t" + geneSize + "\t" + quantile + "\t" + p + "\n");
 		}
 		
 		logger.warn("Skipped " + numNotExpressed + " genes that are not expressed.");
@@ -541,55 +1034,42 @@ public class FeatureSetStatistics {
 		
 		int numNotExpressed = 0;
 		int numNoFeatures = 0;
-		for(String chr : genesByChr.keySet()) {
-			logger.info(chr);
-			for(Gene gene : genesByChr.get(chr)) {
-				
-				try {
-					// Check gene expression
-					if(!isExpressed(gene)) {
-						numNotExpressed++;
-						continue;
-					}
-					
-					double quantile = expressionQuantiles.get(gene).doubleValue();
-					
-					// Check if gene has features
-					Collection<Gene> features = featuresByGene.get(gene);
-					int numFeatures = features.size();
-					if(numFeatures == 0) {
-						numNoFeatures++;
-						continue;
-					}
-					
-					// Make stats
-					int len = gene.getSize();
-					int numBasesInFeatures = getNumBasesCoveredByFeatures(gene);
-					int basesNotCovered = len - numBasesInFeatures;
-					double avgDistBtwFeatures = (double)basesNotCovered / (double)numFeatures;
-					Collection<Double> sizes = new ArrayList<Double>();
-					for(Gene feature : features) {
-						sizes.add(Double.valueOf(feature.getSize()));
-					}
-					double medianSize = Statistics.median(sizes);
-					
+		for(GeneStatistics stats : getGeneStatistics()) {
+			// Check gene expression
+			if(!stats.expressed) {
+				numNotExpressed++;
+				continue;
+			}
+			if(!stats.hasQuantile) {
+				continue;
+			}
+			
+			// Check if gene has features
+			if(stats.numFeatures == 0) {
+				numNoFeatures++;
+				continue;
+			}
+			if(stats.featureStats == null) {
+				continue;
+			}
+			
+			Gene gene = stats.gene;
+			int numFeatures = stats.numFeatures;
+			double avgDistBtwFeatures = stats.featureStats[0];
+			double medianSize = stats.featureStats[1];
+			
+			// Add stats
+			for (ExpressionQuantileBin bin : expressionQuantileBins) {
+				if(bin.inBin(stats.quantile)) {
 					// Add stats
-					for (ExpressionQuantileBin bin : expressionQuantileBins) {
-						if(bin.inBin(quantile)) {
-							// Add stats
-							avgDistances.get(bin).add(Double.valueOf(avgDistBtwFeatures));
-							medianSizePerGene.get(bin).add(Double.valueOf(medianSize));
-						}
-					}
-					
-					// Write to tables
-					wa.write(gene.getName() + "\t" + gene.getSize() + "\t" + numFeatures + "\t" + avgDistBtwFeatures + "\n");
-					wm.write(gene.getName() + "\t" + numFeatures + "\t" + medianSize + "\n");
-				} catch (NullPointerException e) {
-					logger.warn("Caught exception when getting stats for gene " + gene.getName());
-					e.printStackTrace();
+					avgDistances.get(bin).add(Double.valueOf(avgDistBtwFeatures));
+					medianSizePerGene.get(bin).add(Double.valueOf(medianSize));
 				}
 			}
+			
+			// Write to tables
+			wa.write(gene.getName() + "\t" + stats.geneSize + "\t" + numFeatures + "\t" + avgDistBtwFeatures + "\n");
+			wm.write(gene.getName() + "\t" + numFeatures + "\t" + medianSize + "\n");
 		}
 		logger.warn("Skipped " + numNotExpressed + " genes that are not expressed.");
 		logger.warn("Skipped " + numNoFeatures + " genes that have no features.");
@@ -641,60 +1121,42 @@ public class FeatureSetStatistics {
 		
 		int numNotExpressed = 0;
 		int numLessThanTwoFeatures = 0;
-		for(String chr : genesByChr.keySet()) {
-			logger.info(chr);
-			for(Gene gene : genesByChr.get(chr)) {
-				
-				try {
-					// Check gene expression
-					if(!isExpressed(gene)) {
-						numNotExpressed++;
-						continue;
-					}
-					
-					double quantile = expressionQuantiles.get(gene).doubleValue();
-					
-					// Check if gene has features
-					Collection<Gene> features = featuresByGene.get(gene);
-					int numFeatures = features.size();
-					if(numFeatures < 2) {
-						numLessThanTwoFeatures++;
-						continue;
-					}
-					
-					// Make stats
-					Collection<Double> distancesBtwConsecutiveFeatures = new ArrayList<Double>();
-					ArrayList<Gene> featuresInOrder = new ArrayList<Gene>();
-					for(Gene feature : features) {
-						featuresInOrder.add(feature);
-					}
-					for(int i=0; i<featuresInOrder.size() - 1; i++) {
-						Gene feature1 = featuresInOrder.get(i);
-						Gene feature2 = featuresInOrder.get(i+1);
-						double dist = transcriptDistanceBetweenFeatures(gene, feature1, feature2);
-						distancesBtwConsecutiveFeatures.add(Double.valueOf(dist));
-					}
-					double median = Statistics.median(distancesBtwConsecutiveFeatures);
-					double max = Statistics.max(distancesBtwConsecutiveFeatures);
-					
+		for(GeneStatistics stats : getGeneStatistics()) {
+			// Check gene expression
+			if(!stats.expressed) {
+				numNotExpressed++;
+				continue;
+			}
+			if(!stats.hasQuantile) {
+				continue;
+			}
+			
+			// Check if gene has features
+			if(stats.numFeatures < 2) {
+				numLessThanTwoFeatures++;
+				continue;
+			}
+			if(stats.consecutiveStats == null) {
+				continue;
+			}
+			
+			Gene gene = stats.gene;
+			int numFeatures = stats.numFeatures;
+			double median = stats.consecutiveStats[0];
+			double max = stats.consecutiveStats[1];
+			
+			// Add stats
+			for (ExpressionQuantileBin bin : expressionQuantileBins) {
+				if(bin.inBin(stats.quantile)) {
 					// Add stats
-					for (ExpressionQuantileBin bin : expressionQuantileBins) {
-						if(bin.inBin(quantile)) {
-							// Add stats
-							medianDistances.get(bin).add(Double.valueOf(median));
-							longestDistances.get(bin).add(Double.valueOf(max));
-						}
-					}
-
-					
-					// Write to tables
-					wl.write(gene.getName() + "\t" + numFeatures + "\t" + max + "\n");
-					wm.write(gene.getName() + "\t" + numFeatures + "\t" + median + "\n");
-				} catch (NullPointerException e) {
-					logger.warn("Caught exception when getting stats for gene " + gene.getName());
-					e.printStackTrace();
+					medianDistances.get(bin).add(Double.valueOf(median));
+					longestDistances.get(bin).add(Double.valueOf(max));
 				}
 			}
+			
+			// Write to tables
+			wl.write(gene.getName() + "\t" + numFeatures + "\t" + max + "\n");
+			wm.write(gene.getName() + "\t" + numFeatures + "\t" + median + "\n");
 		}
 		logger.warn("Skipped " + numNotExpressed + " genes that are not expressed.");
 		logger.warn("Skipped " + numLessThanTwoFeatures + " genes that have fewer than 2 features.");
@@ -850,6 +1312,7 @@ public class FeatureSetStatistics {
 		p.addDoubleArg("-ep", "P-value cutoff for gene expression (required to check gene expression)", false, 0.01);
 		p.addIntArg("-nb", "Number of expression quantile bins (>=1)", false, DEFAULT_NUM_QUANTILE_BINS);
 		p.addBooleanArg("-ft", "First read is transcription strand", false, DEFAULT_FIRST_READ_TRANSCRIPTION_STRAND);
+		p.addIntArg("-p", "Number of threads for gene expression and gene statistics", false, DEFAULT_NUM_THREADS);
 		p.parse(args);
 		String geneBed = p.getStringArg("-g");
 		String featureBed = p.getStringArg("-f");
@@ -859,8 +1322,9 @@ public class FeatureSetStatistics {
 		double expressionPvalCutoff = p.getDoubleArg("-ep");
 		int numQuantileBins = p.getIntArg("-nb");
 		boolean firstReadTranscriptionStrand = p.getBooleanArg("-ft");
+		int numThreads = p.getIntArg("-p");
 		
-		FeatureSetStatistics f = new FeatureSetStatistics(geneBed, featureBed, outDir, useExisting, expressionBam, expressionPvalCutoff, numQuantileBins, firstReadTranscriptionStrand);
+		FeatureSetStatistics f = new FeatureSetStatistics(geneBed, featureBed, outDir, useExisting, expressionBam, expressionPvalCutoff, numQuantileBins, firstReadTranscriptionStrand, numThreads);
 		
 		f.writeDistributions(f.statAvgDistBtwFeatures);
 		f.writeDistributions(f.statFeatureSize);
@@ -2,16 +2,17 @@ package util.programs.vcf;
 
 import guttmanlab.core.util.CommandLineParser;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
+import util.FileUtils;
+import vcf.VCFLine;
+import vcf.VCFReader;
 import vcf.VCFRecord;
 
 /**
@@ -38,68 +39,64 @@ public final class ConvertPositionsToVariantModifiedSequence {
 	
 	/**
 	 * Convert a whole VCF file and write new file
+	 * Records are read one chromosome at a time, so each chromosome's records must be contiguous in the file
+	 * Input and output may be compressed with bgzip
 	 * @param origVcf Original VCF file
-	 * @param outVcf Output VCF file
+	 * @param outVcf Output VCF file; compressed with bgzip if the name ends in .gz
 	 * @param appendToRefName String to append to reference sequence name for each returned record
+	 * @param numThreads Number of threads for bgzip compression and decompression
 	 * @throws IOException
 	 */
-	private static void convertFile(String origVcf, String outVcf, String appendToRefName) throws IOException {
-		Map<String, TreeSet<VCFRecord>> recordsByChr = fromVcfFile(origVcf);
-		FileWriter w = new FileWriter(outVcf);
-		BufferedReader b = new BufferedReader(new FileReader(origVcf));
-		while(b.ready()) { // Copy header section
-			String line = b.readLine();
-			if(line.startsWith("#")) {
-				w.write(line + "\n");
-			} else break;
-		}
-		for(String chr : recordsByChr.keySet()) {
-			TreeSet<VCFRecord> converted = convertPositions(recordsByChr.get(chr), appendToRefName);
-			for(VCFRecord record : converted) {
-				w.write(record.toString() + "\n");
+	private static void convertFile(String origVcf, String outVcf, String appendToRefName, int numThreads) throws IOException {
+		VCFReader reader = new VCFReader(origVcf, numThreads);
+		BufferedWriter w = FileUtils.openWriter(outVcf, numThreads);
+		try {
+			for(String headerLine : reader.getHeaderLines()) {
+				w.write(headerLine + "\n");
+			}
+			VCFLine line = reader.next();
+			if(line == null) {
+				throw new IllegalArgumentException("Nothing after header line");
+			}
+			Collection<String> chrsDone = new HashSet<String>();
+			String currentChr = null;
+			TreeSet<VCFRecord> chrRecords = new TreeSet<VCFRecord>();
+			while(line != null) {
+				VCFRecord record = line.toVCFRecord();
+				String chr = record.getChrom();
+				if(!chr.equals(currentChr)) {
+					if(currentChr != null) {
+						writeConverted(chrRecords, appendToRefName, w);
+					}
+					if(chrsDone.contains(chr)) {
+						throw new IllegalArgumentException("Records for " + chr + " are not contiguous. Sort the file by chromosome.");
+					}
+					chrsDone.add(chr);
+					currentChr = chr;
+					chrRecords = new TreeSet<VCFRecord>();
+				}
+				chrRecords.add(record);
+				line = reader.next();
 			}
+			writeConverted(chrRecords, appendToRefName, w);
+		} finally {
+			reader.close();
+			w.close();
 		}
-		b.close();
-		w.close();
 	}
 	
 	/**
-	 * Read records from VCF file and organize by reference name
-	 * @param file VCF file
-	 * @return Map of reference sequence name to sorted set of all records on the reference sequence
+	 * Convert the records for one reference sequence and write them
+	 * @param origRecords All the records for the reference sequence
+	 * @param appendToRefName String to append to reference sequence name for each returned record
+	 * @param w Writer
 	 * @throws IOException
 	 */
-	private static Map<String, TreeSet<VCFRecord>> fromVcfFile(String file) throws IOException {
-		BufferedReader b = new BufferedReader(new FileReader(file));
-		Map<String, TreeSet<VCFRecord>> rtrn = new TreeMap<String, TreeSet<VCFRecord>>();
-		String header = null;
-		while(b.ready()) {
-			String line = b.readLine();
-			if(line.startsWith("##")) continue;
-			if(line.startsWith("#")) {
-				header = line;
-				break;
-			}
-		}
-		if(!b.ready()) {
-			b.close();
-			throw new IllegalArgumentException("Nothing after header line");
-		}
-		while(b.ready()) {
-			String line = b.readLine();
-			if(line.substring(0, 1).equals("#")) {
-				b.close();
-				throw new IllegalArgumentException("Comment line after header line");
-			}
-			VCFRecord record = new VCFRecord(line, header);
-			String chr = record.getChrom();
-			if(!rtrn.containsKey(chr)) {
-				rtrn.put(chr, new TreeSet<VCFRecord>());
-			}
-			rtrn.get(chr).add(record);
+	private static void writeConverted(TreeSet<VCFRecord> origRecords, String appendToRefName, Writer w) throws IOException {
+		TreeSet<VCFRecord> converted = convertPositions(origRecords, appendToRefName);
+		for(VCFRecord record : converted) {
+			w.write(record.toString() + "\n");
 		}
-		b.close();
-		return rtrn;
 	}
 		
 	/**
@@ -142,8 +139,9 @@ public final class ConvertPositionsToVariantModifiedSequence {
 		p.addStringArg("-i", "Input VCF", true);
 		p.addStringArg("-o", "Output VCF", true);
 		p.addStringArg("-a", "Append string to reference names", false, "");
+		p.addIntArg("-p", "Number of threads for bgzip compression and decompression", false, 1);
 		p.parse(args);
-		convertFile(p.getStringArg("-i"), p.getStringArg("-o"), p.getStringArg("-a"));
+		convertFile(p.getStringArg("-i"), p.getStringArg("-o"), p.getStringArg("-a"), p.getIntArg("-p"));
 		
 	}
 	
@@ -6,18 +6,33 @@ import guttmanlab.core.sequence.FastaFileIOImpl;
 import guttmanlab.core.sequence.Sequence;
 import guttmanlab.core.util.CommandLineParser;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import util.FileUtils;
 import util.OverlapUtils;
+import vcf.IndexedTranscript;
+import vcf.VCFLine;
+import vcf.VCFReader;
 import vcf.VCFRecord;
 import net.sf.samtools.util.CloseableIterator;
 
@@ -31,9 +46,19 @@ public class ConvertVCFToTranscriptCoords {
 	
 	private OverlapUtils overlapUtils;
 	private Map<String, Sequence> transcriptSequences;
-	private String header;
+	private int numThreads;
 	private static Logger logger = Logger.getLogger(ConvertVCFToTranscriptCoords.class.getName());
 	
+	/**
+	 * Number of records converted together by one task
+	 */
+	private static int BATCH_SIZE = 10000;
+	
+	/**
+	 * Maximum number of submitted batches per thread whose output has not been written
+	 */
+	private static int BATCHES_IN_FLIGHT_PER_THREAD = 4;
+	
 	/**
 	 * @param geneBedFile Gene annotation in bed format
 	 * @param referenceSizes Reference genome size file. Line format: chr   size
@@ -43,6 +68,96 @@ public class ConvertVCFToTranscriptCoords {
 	private ConvertVCFToTranscriptCoords(String geneBedFile, String referenceSizes, String transcriptSeqFastaFile) throws IOException {
 		overlapUtils = new OverlapUtils(geneBedFile, referenceSizes);
 		transcriptSequences = new FastaFileIOImpl().readFromFileByName(transcriptSeqFastaFile);
+		numThreads = 1;
+	}
+	
+	/**
+	 * @param threads Number of threads for bgzip compression and decompression and to convert batches of sorted records
+	 */
+	private void setNumThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+		}
+		numThreads = threads;
+	}
+	
+	/**
+	 * Transcripts overlapping positions visited in sorted order
+	 * Transcripts of each chromosome are sorted by start; a transcript joins the active set when the sweep reaches its start
+	 * and leaves it when the sweep passes its end, so each lookup only checks the transcripts spanning the position
+	 */
+	private static class TranscriptSweep {
+		
+		private Map<String, IndexedTranscript[]> transcriptsByChr;
+		private Collection<String> chrsDone;
+		private String currentChr;
+		private IndexedTranscript[] transcripts;
+		private int next;
+		private List<IndexedTranscript> active;
+		private int lastPos;
+		
+		TranscriptSweep(Map<String, FeatureCollection<Gene>> genesByChr) {
+			transcriptsByChr = new HashMap<String, IndexedTranscript[]>();
+			for(String chr : genesByChr.keySet()) {
+				List<IndexedTranscript> list = new ArrayList<IndexedTranscript>();
+				CloseableIterator<Gene> iter = genesByChr.get(chr).sortedIterator();
+				while(iter.hasNext()) {
+					list.add(new IndexedTranscript(iter.next()));
+				}
+				iter.close();
+				IndexedTranscript[] arr = list.toArray(new IndexedTranscript[list.size()]);
+				Arrays.sort(arr, new Comparator<IndexedTranscript>() {
+					@Override
+					public int compare(IndexedTranscript t1, IndexedTranscript t2) {
+						return Integer.compare(t1.getStart(), t2.getStart());
+					}
+				});
+				transcriptsByChr.put(chr, arr);
+			}
+			chrsDone = new HashSet<String>();
+			active = new ArrayList<IndexedTranscript>();
+		}
+		
+		/**
+		 * @param chr Chromosome
+		 * @param pos Zero based position, not less than the previous position on the chromosome
+		 * @return Transcripts with a block containing the position, in order of start position
+		 */
+		List<IndexedTranscript> getOverlappers(String chr, int pos) {
+			if(!chr.equals(currentChr)) {
+				if(chrsDone.contains(chr)) {
+					throw new IllegalArgumentException("VCF records for " + chr + " are not contiguous. Sort the file or use the unsorted option.");
+				}
+				chrsDone.add(chr);
+				currentChr = chr;
+				transcripts = transcriptsByChr.containsKey(chr) ? transcriptsByChr.get(chr) : new IndexedTranscript[0];
+				next = 0;
+				active.clear();
+				lastPos = Integer.MIN_VALUE;
+			}
+			if(pos < lastPos) {
+				throw new IllegalArgumentException("VCF records are not sorted by position: " + chr + ":" + (pos + 1) + " follows " + chr + ":" + (lastPos + 1) + ". Sort the file or use the unsorted option.");
+			}
+			lastPos = pos;
+			while(next < transcripts.length && transcripts[next].getStart() <= pos) {
+				active.add(transcripts[next]);
+				next++;
+			}
+			Iterator<IndexedTranscript> iter = active.iterator();
+			while(iter.hasNext()) {
+				if(iter.next().getEnd() <= pos) {
+					iter.remove();
+				}
+			}
+			List<IndexedTranscript> rtrn = new ArrayList<IndexedTranscript>();
+			for(IndexedTranscript transcript : active) {
+				if(transcript.blockContains(pos)) {
+					rtrn.add(transcript);
+				}
+			}
+			return rtrn;
+		}
+		
 	}
 	
 	/**
@@ -65,8 +180,108 @@ public class ConvertVCFToTranscriptCoords {
 		return rtrn;
 	}
 	
+	/**
+	 * Write entire converted VCF file from a VCF sorted by position within each chromosome
+	 * Overlapping transcripts are found by a sweep over the sorted records; records overlapping no transcript are not parsed.
+	 * Batches of records are converted in parallel and written in input order.
+	 * @param inputVCF Input VCF file
+	 * @param outputVCF File to write
+	 * @throws IOException
+	 */
+	private void writeConvertedFileSorted(String inputVCF, String outputVCF) throws IOException {
+		logger.info("");
+		logger.info("Converting records from sorted file " + inputVCF + " to transcript coordinates with " + numThreads + " threads and writing to " + outputVCF + "...");
+		TranscriptSweep sweep = new TranscriptSweep(overlapUtils.getGenesByChr());
+		VCFReader reader = new VCFReader(inputVCF, numThreads);
+		BufferedWriter writer = FileUtils.openWriter(outputVCF, numThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+		int maxPending = numThreads * BATCHES_IN_FLIGHT_PER_THREAD;
+		List<VCFLine> lines = new ArrayList<VCFLine>();
+		List<List<IndexedTranscript>> overlappers = new ArrayList<List<IndexedTranscript>>();
+		int numDone = 0;
+		try {
+			for(String headerLine : reader.getHeaderLines()) {
+				writer.write(headerLine + "\n");
+			}
+			VCFLine line;
+			while((line = reader.next()) != null) {
+				numDone++;
+				if(numDone % 1000000 == 0) {
+					logger.info("Finished " + numDone + " records.");
+				}
+				// Only chromosome and position are parsed until the record is known to overlap a transcript
+				List<IndexedTranscript> transcripts = sweep.getOverlappers(line.getChrom(), line.getZeroBasedPos());
+				if(transcripts.isEmpty()) {
+					continue;
+				}
+				lines.add(line);
+				overlappers.add(transcripts);
+				if(lines.size() == BATCH_SIZE) {
+					if(pending.size() >= maxPending) {
+						writer.write(getResult(pending.removeFirst()));
+					}
+					pending.addLast(submitBatch(executor, lines, overlappers));
+					lines = new ArrayList<VCFLine>();
+					overlappers = new ArrayList<List<IndexedTranscript>>();
+				}
+			}
+			if(!lines.isEmpty()) {
+				pending.addLast(submitBatch(executor, lines, overlappers));
+			}
+			while(!pending.isEmpty()) {
+				writer.write(getResult(pending.removeFirst()));
+			}
+		} finally {
+			executor.shutdownNow();
+			reader.close();
+			writer.close();
+		}
+		logger.info("Done writing converted file.");
+	}
+	
+	/**
+	 * Convert a batch of records on the executor
+	 * @param executor Executor
+	 * @param lines VCF records
+	 * @param overlappers Transcripts overlapping the position of each record
+	 * @return Converted lines for the batch, in order
+	 */
+	private Future<String> submitBatch(ExecutorService executor, final List<VCFLine> lines, final List<List<IndexedTranscript>> overlappers) {
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() {
+				StringBuilder rtrn = new StringBuilder();
+				for(int i = 0; i < lines.size(); i++) {
+					VCFRecord record = lines.get(i).toVCFRecord();
+					for(IndexedTranscript transcript : overlappers.get(i)) {
+						VCFRecord converted = VCFRecord.convertToTranscriptCoords(record, transcript, transcriptSequences.get(transcript.getName()));
+						if(converted != null) {
+							rtrn.append(converted.toString() + "\n");
+						}
+					}
+				}
+				return rtrn.toString();
+			}
+		});
+	}
+	
+	private static String getResult(Future<String> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
 	/**
 	 * Write entire converted VCF file
+	 * Looks up the overlapping transcripts of each record separately, so the input does not need to be sorted
 	 * @param inputVCF Input VCF file
 	 * @param outputVCF File to write
 	 * @throws IOException
@@ -74,39 +289,38 @@ public class ConvertVCFToTranscriptCoords {
 	private void writeConvertedFile(String inputVCF, String outputVCF) throws IOException {
 		logger.info("");
 		logger.info("Converting records from " + inputVCF + " to transcript coordinates and writing to " + outputVCF + "...");
-		BufferedReader reader = new BufferedReader(new FileReader(inputVCF));
-		FileWriter writer = new FileWriter(outputVCF);
-		int numDone = 0;
-		while(reader.ready()) {
-			numDone++;
-			if(numDone % 100000 == 0) {
-				logger.info("Finished " + numDone + " records.");
+		VCFReader reader = new VCFReader(inputVCF, numThreads);
+		BufferedWriter writer = FileUtils.openWriter(outputVCF, numThreads);
+		try {
+			for(String headerLine : reader.getHeaderLines()) {
+				writer.write(headerLine + "\n");
 			}
-			String line = reader.readLine();
-			if(line.startsWith("#")) {
-				writer.write(line + "\n");
-				if(line.startsWith("#CHROM")) {
-					header = line;
+			int numDone = 0;
+			VCFLine line;
+			while((line = reader.next()) != null) {
+				numDone++;
+				if(numDone % 100000 == 0) {
+					logger.info("Finished " + numDone + " records.");
 				}
-				continue;
-			}
-			VCFRecord record = new VCFRecord(line, header);
+				VCFRecord record = line.toVCFRecord();
 //			String origChr = record.getChrom();
 //			int origZeroBasedPos = record.getZeroBasedPos();
 //			String origRef = record.getRefAllele().getSequenceBases();
 //			String origAlt = record.getAlternateAllele().toString();
-			Collection<VCFRecord> convertedRecords = getConvertedRecords(record);
-			for(VCFRecord converted : convertedRecords) {
+				Collection<VCFRecord> convertedRecords = getConvertedRecords(record);
+				for(VCFRecord converted : convertedRecords) {
 //				String newChr = converted.getChrom();
 //				int newZeroBasedPos = converted.getZeroBasedPos();
 //				String newRef = converted.getRefAllele().getSequenceBases();
 //				String newAlt = converted.getAlternateAllele().toString();
 //				logger.debug(origChr + "\t" + origZeroBasedPos + "\t" + origRef + "\t" + origAlt + "\t" + newChr + "\t" + newZeroBasedPos + "\t" + newRef + "\t" + newAlt);
-				writer.write(converted.toString() + "\n");
+					writer.write(converted.toString() + "\n");
+				}
 			}
+		} finally {
+			reader.close();
+			writer.close();
 		}
-		reader.close();
-		writer.close();
 		logger.info("Done writing converted file.");
 	}
 	
@@ -117,18 +331,27 @@ public class ConvertVCFToTranscriptCoords {
 		CommandLineParser p = new CommandLineParser();
 		p.addStringArg("-g", "Gene annotation bed file", true);
 		p.addStringArg("-c", "Chromosome size file", true);
-		p.addStringArg("-i", "Input VCF file", true);
-		p.addStringArg("-o", "Output VCF file", true);
+		p.addStringArg("-i", "Input VCF file, plain or compressed with gzip or bgzip", true);
+		p.addStringArg("-o", "Output VCF file; compressed with bgzip if the name ends in .gz", true);
 		p.addStringArg("-t", "Fasta file of transcript sequences", true);
+		p.addIntArg("-p", "Number of threads for bgzip compression and decompression and for converting sorted input", false, 1);
+		p.addBooleanArg("-u", "Input VCF is not sorted by position; look up overlapping transcripts for each record", false, false);
 		p.parse(args);
 		String geneBed = p.getStringArg("-g");
 		String chrFile = p.getStringArg("-c");
 		String inputVCF = p.getStringArg("-i");
 		String outputVCF = p.getStringArg("-o");
 		String transcriptFasta = p.getStringArg("-t");
+		int numThreads = p.getIntArg("-p");
+		boolean unsorted = p.getBooleanArg("-u");
 		
 		ConvertVCFToTranscriptCoords c = new ConvertVCFToTranscriptCoords(geneBed, chrFile, transcriptFasta);
-		c.writeConvertedFile(inputVCF, outputVCF);
+		c.setNumThreads(numThreads);
+		if(unsorted) {
+			c.writeConvertedFile(inputVCF, outputVCF);
+		} else {
+			c.writeConvertedFileSorted(inputVCF, outputVCF);
+		}
 		
 		logger.info("");
 		logger.info("All done.");
@@ -0,0 +1,343 @@
+/**
+ *
+ */
+package util.programs.wig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads values from a BigWig file through its R tree index, so a region can be queried without reading the rest of the file
+ * Reads files written by BigWigWriter or by the UCSC tools, in either byte order and with bedGraph, variableStep or fixedStep sections
+ * @author prussell
+ *
+ */
+public class BigWigReader {
+
+	private String fileName;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private ByteOrder order;
+	private long fullIndexOffset;
+	private int uncompressBufSize;
+	private Map<String, Integer> chrIds;
+	private Map<String, Integer> chrSizes;
+	private static Logger logger = Logger.getLogger(BigWigReader.class.getName());
+
+	/**
+	 * @param bigWigFile BigWig file
+	 * @throws IOException
+	 */
+	public BigWigReader(String bigWigFile) throws IOException {
+		fileName = bigWigFile;
+		raf = new RandomAccessFile(bigWigFile, "r");
+		channel = raf.getChannel();
+		ByteBuffer header = read(0, 64);
+		order = getByteOrder(header);
+		if(order == null) {
+			raf.close();
+			throw new IllegalArgumentException("Not a bigwig file: " + bigWigFile);
+		}
+		header.order(order);
+		long chromTreeOffset = header.getLong(8);
+		fullIndexOffset = header.getLong(24);
+		uncompressBufSize = header.getInt(52);
+		chrIds = new TreeMap<String, Integer>();
+		chrSizes = new TreeMap<String, Integer>();
+		readChromTree(chromTreeOffset);
+		logger.debug("Opened bigwig file " + bigWigFile + " with " + chrIds.size() + " chromosomes.");
+	}
+
+	/**
+	 * @param file File
+	 * @return True iff the file starts with the BigWig magic number in either byte order
+	 * @throws IOException
+	 */
+	public static boolean isBigWig(String file) throws IOException {
+		File f = new File(file);
+		if(!f.isFile() || f.length() < 4) {
+			return false;
+		}
+		RandomAccessFile r = new RandomAccessFile(f, "r");
+		try {
+			byte[] magic = new byte[4];
+			r.readFully(magic);
+			return getByteOrder(ByteBuffer.wrap(magic)) != null;
+		} finally {
+			r.close();
+		}
+	}
+
+	private static ByteOrder getByteOrder(ByteBuffer header) {
+		if(header.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == BigWigWriter.MAGIC) {
+			return ByteOrder.LITTLE_ENDIAN;
+		}
+		if(header.order(ByteOrder.BIG_ENDIAN).getInt(0) == BigWigWriter.MAGIC) {
+			return ByteOrder.BIG_ENDIAN;
+		}
+		return null;
+	}
+
+	/**
+	 * Read bytes at a file offset
+	 * Positional reads do not move the channel position, so queries can run on several threads
+	 * @param offset File offset
+	 * @param length Number of bytes
+	 * @return Buffer in the file's byte order
+	 * @throws IOException
+	 */
+	private ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer rtrn = ByteBuffer.allocate(length);
+		while(rtrn.hasRemaining()) {
+			if(channel.read(rtrn, offset + rtrn.position()) < 0) {
+				throw new IOException("Unexpected end of file " + fileName + " at offset " + (offset + rtrn.position()));
+			}
+		}
+		rtrn.flip();
+		rtrn.order(order == null ? ByteOrder.LITTLE_ENDIAN : order);
+		return rtrn;
+	}
+
+	private void readChromTree(long offset) throws IOException {
+		ByteBuffer header = read(offset, 32);
+		if(header.getInt() != BigWigWriter.CHROM_TREE_MAGIC) {
+			throw new IllegalArgumentException("Bad chromosome tree in " + fileName);
+		}
+		header.getInt();
+		int keySize = header.getInt();
+		int valSize = header.getInt();
+		readChromNode(offset + 32, keySize, valSize);
+	}
+
+	private void readChromNode(long offset, int keySize, int valSize) throws IOException {
+		ByteBuffer nodeHeader = read(offset, 4);
+		boolean isLeaf = nodeHeader.get() != 0;
+		nodeHeader.get();
+		int count = nodeHeader.getShort() & 0xffff;
+		ByteBuffer items = read(offset + 4, count * (keySize + (isLeaf ? valSize : 8)));
+		byte[] key = new byte[keySize];
+		for(int i = 0; i < count; i++) {
+			items.get(key);
+			if(isLeaf) {
+				int length = 0;
+				while(length < keySize && key[length] != 0) {
+					length++;
+				}
+				String chr = new String(key, 0, length, StandardCharsets.US_ASCII);
+				chrIds.put(chr, Integer.valueOf(items.getInt()));
+				chrSizes.put(chr, Integer.valueOf(items.getInt()));
+				items.position(items.position() + valSize - 8);
+			} else {
+				long childOffset = items.getLong();
+				int next = items.position();
+				readChromNode(childOffset, keySize, valSize);
+				items.position(next);
+			}
+		}
+	}
+
+	/**
+	 * @return Chromosome names
+	 */
+	public Set<String> getChrs() {
+		return chrSizes.keySet();
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @return Size of the chromosome
+	 */
+	public int getChrSize(String chr) {
+		return chrSizes.get(chr).intValue();
+	}
+
+	/**
+	 * Get values at single positions in a region
+	 * @param chr Chromosome
+	 * @param start Zero based start
+	 * @param end Exclusive end
+	 * @return Value by zero based position, for positions with data
+	 * @throws IOException
+	 */
+	public TreeMap<Integer, Double> getValues(String chr, int start, int end) throws IOException {
+		final TreeMap<Integer, Double> rtrn = new TreeMap<Integer, Double>();
+		forEachInterval(chr, start, end, new IntervalHandler() {
+			@Override
+			public void handle(int intervalStart, int intervalEnd, float value) {
+				Double v = Double.valueOf(value);
+				for(int pos = intervalStart; pos < intervalEnd; pos++) {
+					rtrn.put(Integer.valueOf(pos), v);
+				}
+			}
+		});
+		return rtrn;
+	}
+
+	/**
+	 * Receives the data intervals overlapping a query, clipped to the query
+	 */
+	public interface IntervalHandler {
+		/**
+		 * @param start Zero based start
+		 * @param end Exclusive end
+		 * @param value Value
+		 */
+		public void handle(int start, int end, float value);
+	}
+
+	/**
+	 * Pass each data interval overlapping a region, in order, to a handler
+	 * @param chr Chromosome
+	 * @param start Zero based start
+	 * @param end Exclusive end
+	 * @param handler Handler
+	 * @throws IOException
+	 */
+	public void forEachInterval(String chr, int start, int end, IntervalHandler handler) throws IOException {
+		Integer chrId = chrIds.get(chr);
+		if(chrId == null || end <= start) {
+			return;
+		}
+		ByteBuffer header = read(fullIndexOffset, 48);
+		if(header.getInt() != BigWigWriter.R_TREE_MAGIC) {
+			throw new IllegalArgumentException("Bad index in " + fileName);
+		}
+		List<long[]> blocks = new ArrayList<long[]>();
+		findBlocks(fullIndexOffset + 48, chrId.intValue(), start, end, blocks);
+		Inflater inflater = new Inflater();
+		try {
+			for(long[] block : blocks) {
+				ByteBuffer data = decompress(read(block[0], (int) block[1]), inflater);
+				readSection(data, chrId.intValue(), start, end, handler);
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Collect the offsets and sizes of data blocks overlapping a region
+	 * @param nodeOffset Offset of an R tree node
+	 * @param chrId Chromosome id
+	 * @param start Zero based start
+	 * @param end Exclusive end
+	 * @param blocks List to add offset and size pairs to
+	 * @throws IOException
+	 */
+	private void findBlocks(long nodeOffset, int chrId, int start, int end, List<long[]> blocks) throws IOException {
+		ByteBuffer nodeHeader = read(nodeOffset, 4);
+		boolean isLeaf = nodeHeader.get() != 0;
+		nodeHeader.get();
+		int count = nodeHeader.getShort() & 0xffff;
+		ByteBuffer items = read(nodeOffset + 4, count * (isLeaf ? 32 : 24));
+		for(int i = 0; i < count; i++) {
+			int startChr = items.getInt();
+			int startBase = items.getInt();
+			int endChr = items.getInt();
+			int endBase = items.getInt();
+			boolean overlaps = compare(startChr, startBase, chrId, end) < 0 && compare(endChr, endBase, chrId, start) > 0;
+			if(isLeaf) {
+				long offset = items.getLong();
+				long size = items.getLong();
+				if(overlaps) {
+					blocks.add(new long[] {offset, size});
+				}
+			} else {
+				long childOffset = items.getLong();
+				if(overlaps) {
+					findBlocks(childOffset, chrId, start, end, blocks);
+				}
+			}
+		}
+	}
+
+	private static int compare(int chr1, int base1, int chr2, int base2) {
+		if(chr1 != chr2) {
+			return chr1 < chr2 ? -1 : 1;
+		}
+		return Integer.compare(base1, base2);
+	}
+
+	private ByteBuffer decompress(ByteBuffer compressed, Inflater inflater) throws IOException {
+		if(uncompressBufSize == 0) {
+			return compressed;
+		}
+		inflater.reset();
+		inflater.setInput(compressed.array(), 0, compressed.limit());
+		byte[] buffer = new byte[uncompressBufSize];
+		int length = 0;
+		try {
+			while(!inflater.finished() && length < buffer.length) {
+				int n = inflater.inflate(buffer, length, buffer.length - length);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt data block in " + fileName, e);
+		}
+		return ByteBuffer.wrap(buffer, 0, length).order(order);
+	}
+
+	private static void readSection(ByteBuffer data, int chrId, int start, int end, IntervalHandler handler) {
+		int sectionChr = data.getInt();
+		int sectionStart = data.getInt();
+		data.getInt();
+		int itemStep = data.getInt();
+		int itemSpan = data.getInt();
+		byte type = data.get();
+		data.get();
+		int count = data.getShort() & 0xffff;
+		if(sectionChr != chrId) {
+			return;
+		}
+		for(int i = 0; i < count; i++) {
+			int s;
+			int e;
+			switch(type) {
+			case 1:
+				s = data.getInt();
+				e = data.getInt();
+				break;
+			case 2:
+				s = data.getInt();
+				e = s + itemSpan;
+				break;
+			case 3:
+				s = sectionStart + i * itemStep;
+				e = s + itemSpan;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown bigwig section type " + type);
+			}
+			float value = data.getFloat();
+			if(s < end && e > start) {
+				handler.handle(Math.max(s, start), Math.min(e, end), value);
+			}
+		}
+	}
+
+	/**
+	 * Close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+
+}
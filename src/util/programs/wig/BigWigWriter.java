@@ -0,0 +1,668 @@
+/**
+ *
+ */
+package util.programs.wig;
+
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a BigWig file directly from values streamed in genome order, without an intermediate text wig or the UCSC wigToBigWig binary
+ * Runs of adjacent positions with the same value are stored as bedGraph items in zlib compressed sections indexed by an R tree,
+ * and summaries at several zoom levels are accumulated on the fly and written with their own R tree indices when the file is closed
+ * Each chromosome must be written in one contiguous run with increasing positions; chromosomes can come in any order
+ * @author prussell
+ *
+ */
+public class BigWigWriter {
+
+	static int MAGIC = 0x888FFC26;
+	static int CHROM_TREE_MAGIC = 0x78CA8C91;
+	static int R_TREE_MAGIC = 0x2468ACE0;
+	private static int VERSION = 4;
+	private static int HEADER_SIZE = 64;
+	private static int ZOOM_HEADER_SIZE = 24;
+	private static int TOTAL_SUMMARY_SIZE = 40;
+	private static int SECTION_HEADER_SIZE = 24;
+	private static int BED_GRAPH_ITEM_SIZE = 12;
+	private static int ZOOM_RECORD_SIZE = 32;
+	private static int R_TREE_HEADER_SIZE = 48;
+	private static int R_TREE_LEAF_ITEM_SIZE = 32;
+	private static int R_TREE_NODE_ITEM_SIZE = 24;
+	private static int ITEMS_PER_SLOT = 1024;
+	private static int BLOCK_SIZE = 256;
+	private static int MAX_ZOOM_LEVELS = 10;
+	private static int FIRST_REDUCTION = 32;
+	private static int ZOOM_FACTOR = 4;
+	private static byte BED_GRAPH_TYPE = 1;
+	private static Logger logger = Logger.getLogger(BigWigWriter.class.getName());
+
+	private String outFile;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private Map<String, Integer> chrSizes;
+	// Chromosome ids in order of first appearance in the data
+	private Map<String, Integer> chrIds;
+	private Deflater deflater;
+	private int maxBlockSize;
+
+	// Section being filled
+	private String currentChr;
+	private int currentChrId;
+	private int[] itemStarts;
+	private int[] itemEnds;
+	private float[] itemValues;
+	private int numItems;
+	private long totalItems;
+	private int lastEnd;
+
+	private BlockBounds sections;
+	private ZoomLevel[] zoomLevels;
+
+	// Totals over all data
+	private long basesCovered;
+	private double minVal;
+	private double maxVal;
+	private double sumData;
+	private double sumSquares;
+
+	/**
+	 * @param bigWigFile Output BigWig file
+	 * @param chromosomeSizes Size of each chromosome that may be written
+	 * @throws IOException
+	 */
+	public BigWigWriter(String bigWigFile, Map<String, Integer> chromosomeSizes) throws IOException {
+		outFile = bigWigFile;
+		chrSizes = chromosomeSizes;
+		chrIds = new LinkedHashMap<String, Integer>();
+		raf = new RandomAccessFile(bigWigFile, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		deflater = new Deflater();
+		itemStarts = new int[ITEMS_PER_SLOT];
+		itemEnds = new int[ITEMS_PER_SLOT];
+		itemValues = new float[ITEMS_PER_SLOT];
+		sections = new BlockBounds();
+		zoomLevels = new ZoomLevel[MAX_ZOOM_LEVELS];
+		int reduction = FIRST_REDUCTION;
+		for(int i = 0; i < MAX_ZOOM_LEVELS; i++) {
+			zoomLevels[i] = new ZoomLevel(reduction);
+			reduction *= ZOOM_FACTOR;
+		}
+		minVal = Double.POSITIVE_INFINITY;
+		maxVal = Double.NEGATIVE_INFINITY;
+		// Header, zoom headers and total summary are filled in by close(); data starts with the section count
+		channel.position(HEADER_SIZE + MAX_ZOOM_LEVELS * ZOOM_HEADER_SIZE + TOTAL_SUMMARY_SIZE + 8);
+	}
+
+	/**
+	 * Read a chromosome size file
+	 * @param chrSizeFile File with lines of chromosome name and size
+	 * @return Size by chromosome
+	 * @throws IOException
+	 */
+	public static Map<String, Integer> readChrSizes(String chrSizeFile) throws IOException {
+		Map<String, Integer> rtrn = new TreeMap<String, Integer>();
+		BufferedReader b = new BufferedReader(new FileReader(chrSizeFile));
+		String line;
+		while((line = b.readLine()) != null) {
+			String[] fields = line.trim().split("\\s+");
+			if(fields.length < 2) {
+				continue;
+			}
+			rtrn.put(fields[0], Integer.valueOf(fields[1]));
+		}
+		b.close();
+		return rtrn;
+	}
+
+	/**
+	 * Add the value at a single position
+	 * @param chr Chromosome
+	 * @param pos Zero based position
+	 * @param value Value
+	 * @throws IOException
+	 */
+	public void add(String chr, int pos, double value) throws IOException {
+		add(chr, pos, pos + 1, value);
+	}
+
+	/**
+	 * Add a value over an interval
+	 * @param chr Chromosome
+	 * @param start Zero based start
+	 * @param end Exclusive end
+	 * @param value Value
+	 * @throws IOException
+	 */
+	public void add(String chr, int start, int end, double value) throws IOException {
+		if(!chr.equals(currentChr)) {
+			startChr(chr);
+		}
+		if(start < lastEnd) {
+			throw new IllegalArgumentException("Values for " + chr + " are not in increasing order: " + start + " follows " + lastEnd);
+		}
+		if(end > chrSizes.get(chr).intValue() || end <= start) {
+			throw new IllegalArgumentException("Invalid interval " + chr + ":" + start + "-" + end + " for chromosome size " + chrSizes.get(chr));
+		}
+		float v = (float) value;
+		lastEnd = end;
+		addToSummaries(start, end, v);
+		// Extend the previous item if adjacent with the same value
+		if(numItems > 0 && itemEnds[numItems - 1] == start && itemValues[numItems - 1] == v) {
+			itemEnds[numItems - 1] = end;
+			return;
+		}
+		if(numItems == ITEMS_PER_SLOT) {
+			writeSection();
+		}
+		itemStarts[numItems] = start;
+		itemEnds[numItems] = end;
+		itemValues[numItems] = v;
+		numItems++;
+		totalItems++;
+	}
+
+	/**
+	 * Add values at single positions for one chromosome
+	 * @param chr Chromosome
+	 * @param values Value by zero based position
+	 * @throws IOException
+	 */
+	public void add(String chr, TreeMap<Integer, Double> values) throws IOException {
+		for(Integer pos : values.keySet()) {
+			add(chr, pos.intValue(), values.get(pos).doubleValue());
+		}
+	}
+
+	private void startChr(String chr) throws IOException {
+		if(!chrSizes.containsKey(chr)) {
+			throw new IllegalArgumentException("Chromosome " + chr + " is not in the chromosome sizes.");
+		}
+		if(chrIds.containsKey(chr)) {
+			throw new IllegalArgumentException("Values for chromosome " + chr + " are not contiguous.");
+		}
+		if(numItems > 0) {
+			writeSection();
+		}
+		for(ZoomLevel zoom : zoomLevels) {
+			zoom.flushRecord();
+		}
+		currentChr = chr;
+		currentChrId = chrIds.size();
+		chrIds.put(chr, Integer.valueOf(currentChrId));
+		lastEnd = 0;
+	}
+
+	private void addToSummaries(int start, int end, float value) throws IOException {
+		long length = end - start;
+		basesCovered += length;
+		minVal = Math.min(minVal, value);
+		maxVal = Math.max(maxVal, value);
+		sumData += (double) value * length;
+		sumSquares += (double) value * value * length;
+		for(ZoomLevel zoom : zoomLevels) {
+			zoom.add(start, end, value);
+		}
+	}
+
+	/**
+	 * Compress and write the current section of bedGraph items
+	 * @throws IOException
+	 */
+	private void writeSection() throws IOException {
+		ByteBuffer section = newBuffer(SECTION_HEADER_SIZE + numItems * BED_GRAPH_ITEM_SIZE);
+		section.putInt(currentChrId).putInt(itemStarts[0]).putInt(itemEnds[numItems - 1]);
+		section.putInt(0).putInt(0).put(BED_GRAPH_TYPE).put((byte) 0).putShort((short) numItems);
+		for(int i = 0; i < numItems; i++) {
+			section.putInt(itemStarts[i]).putInt(itemEnds[i]).putFloat(itemValues[i]);
+		}
+		long offset = channel.position();
+		long size = writeCompressed(section.array());
+		sections.add(currentChrId, itemStarts[0], currentChrId, itemEnds[numItems - 1], offset, size);
+		numItems = 0;
+	}
+
+	/**
+	 * Write a zlib compressed block at the current position
+	 * @param block Uncompressed block
+	 * @return Number of bytes written
+	 * @throws IOException
+	 */
+	private long writeCompressed(byte[] block) throws IOException {
+		maxBlockSize = Math.max(maxBlockSize, block.length);
+		deflater.reset();
+		deflater.setInput(block);
+		deflater.finish();
+		byte[] buffer = new byte[block.length + 64];
+		long rtrn = 0;
+		while(!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			writeFully(ByteBuffer.wrap(buffer, 0, n));
+			rtrn += n;
+		}
+		return rtrn;
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	static ByteBuffer newBuffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Finish writing the data, zoom levels, indices and chromosome tree, then fill in the header
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(numItems > 0) {
+			writeSection();
+		}
+		for(ZoomLevel zoom : zoomLevels) {
+			zoom.flushRecord();
+			zoom.closeTmp();
+		}
+		long fullIndexOffset = channel.position();
+		writeRTree(sections, fullIndexOffset);
+		// Keep zoom levels that reduce the number of records at least by half
+		List<ZoomLevel> keptLevels = new ArrayList<ZoomLevel>();
+		long prevCount = totalItems;
+		for(ZoomLevel zoom : zoomLevels) {
+			if(zoom.numRecords > 0 && zoom.numRecords * 2 <= prevCount) {
+				zoom.write();
+				keptLevels.add(zoom);
+				prevCount = zoom.numRecords;
+			}
+			zoom.deleteTmp();
+		}
+		long chromTreeOffset = channel.position();
+		writeChromTree();
+		// Header
+		ByteBuffer header = newBuffer(HEADER_SIZE + MAX_ZOOM_LEVELS * ZOOM_HEADER_SIZE + TOTAL_SUMMARY_SIZE + 8);
+		long totalSummaryOffset = HEADER_SIZE + MAX_ZOOM_LEVELS * ZOOM_HEADER_SIZE;
+		long fullDataOffset = totalSummaryOffset + TOTAL_SUMMARY_SIZE;
+		header.putInt(MAGIC).putShort((short) VERSION).putShort((short) keptLevels.size());
+		header.putLong(chromTreeOffset).putLong(fullDataOffset).putLong(fullIndexOffset);
+		header.putShort((short) 0).putShort((short) 0).putLong(0);
+		header.putLong(totalSummaryOffset).putInt(maxBlockSize).putLong(0);
+		for(ZoomLevel zoom : keptLevels) {
+			header.putInt(zoom.reduction).putInt(0).putLong(zoom.dataOffset).putLong(zoom.indexOffset);
+		}
+		header.position((int) totalSummaryOffset);
+		boolean empty = basesCovered == 0;
+		header.putLong(basesCovered).putDouble(empty ? 0 : minVal).putDouble(empty ? 0 : maxVal).putDouble(sumData).putDouble(sumSquares);
+		header.putLong(sections.size);
+		header.flip();
+		channel.position(0);
+		writeFully(header);
+		deflater.end();
+		raf.close();
+		logger.info("Wrote " + totalItems + " items in " + sections.size + " sections with " + keptLevels.size() + " zoom levels to " + outFile);
+	}
+
+	/**
+	 * Write the B+ tree mapping chromosome names to ids and sizes
+	 * Keys are sorted by name; ids are assigned in data order with chromosomes not in the data last
+	 * @throws IOException
+	 */
+	private void writeChromTree() throws IOException {
+		for(String chr : chrSizes.keySet()) {
+			if(!chrIds.containsKey(chr)) {
+				chrIds.put(chr, Integer.valueOf(chrIds.size()));
+			}
+		}
+		// Keys are sorted by their bytes
+		byte[][] sorted = new byte[chrSizes.size()][];
+		int keySize = 1;
+		int n = 0;
+		for(String chr : chrSizes.keySet()) {
+			sorted[n] = chr.getBytes(StandardCharsets.US_ASCII);
+			keySize = Math.max(keySize, sorted[n].length);
+			n++;
+		}
+		Arrays.sort(sorted, new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] b1, byte[] b2) {
+				return compareBytes(b1, b2);
+			}
+		});
+		int blockSize = Math.max(1, Math.min(n, BLOCK_SIZE));
+		int nodeSize = 4 + blockSize * (keySize + 8);
+		// Number of nodes at each level, leaves first
+		List<Integer> levelCounts = new ArrayList<Integer>();
+		int count = Math.max(1, (n + blockSize - 1) / blockSize);
+		levelCounts.add(Integer.valueOf(count));
+		while(count > 1) {
+			count = (count + blockSize - 1) / blockSize;
+			levelCounts.add(Integer.valueOf(count));
+		}
+		ByteBuffer header = newBuffer(32);
+		header.putInt(CHROM_TREE_MAGIC).putInt(blockSize).putInt(keySize).putInt(8).putLong(n).putLong(0);
+		header.flip();
+		writeFully(header);
+		long levelOffset = channel.position();
+		// Write levels from the root down; each item of a node at level L spans blockSize^L keys and is keyed by the first one
+		for(int level = levelCounts.size() - 1; level >= 0; level--) {
+			int numNodes = levelCounts.get(level).intValue();
+			int numChildren = level == 0 ? n : levelCounts.get(level - 1).intValue();
+			long childLevelOffset = levelOffset + (long) numNodes * nodeSize;
+			long keysPerItem = 1;
+			for(int i = 0; i < level; i++) {
+				keysPerItem *= blockSize;
+			}
+			for(int node = 0; node < numNodes; node++) {
+				ByteBuffer buffer = newBuffer(nodeSize);
+				int first = node * blockSize;
+				int last = Math.min(first + blockSize, numChildren);
+				buffer.put((byte) (level == 0 ? 1 : 0)).put((byte) 0).putShort((short) Math.max(last - first, 0));
+				for(int i = first; i < last; i++) {
+					byte[] name = sorted[(int) (i * keysPerItem)];
+					buffer.put(name);
+					buffer.position(buffer.position() + keySize - name.length);
+					if(level == 0) {
+						String chr = new String(name, StandardCharsets.US_ASCII);
+						buffer.putInt(chrIds.get(chr).intValue()).putInt(chrSizes.get(chr).intValue());
+					} else {
+						buffer.putLong(childLevelOffset + (long) i * nodeSize);
+					}
+				}
+				buffer.position(0);
+				writeFully(buffer);
+			}
+			levelOffset = childLevelOffset;
+		}
+	}
+
+	static int compareBytes(byte[] b1, byte[] b2) {
+		int n = Math.min(b1.length, b2.length);
+		for(int i = 0; i < n; i++) {
+			int c = (b1[i] & 0xff) - (b2[i] & 0xff);
+			if(c != 0) {
+				return c;
+			}
+		}
+		return b1.length - b2.length;
+	}
+
+	/**
+	 * Write an R tree index of blocks at the current position
+	 * @param blocks Blocks in genome order
+	 * @param dataEnd File offset of the end of the indexed data
+	 * @throws IOException
+	 */
+	private void writeRTree(BlockBounds blocks, long dataEnd) throws IOException {
+		int n = blocks.size;
+		// Bounds of the nodes at each level, leaves first
+		List<BlockBounds> levels = new ArrayList<BlockBounds>();
+		BlockBounds children = blocks;
+		do {
+			BlockBounds parents = new BlockBounds();
+			for(int first = 0; first < Math.max(children.size, 1); first += BLOCK_SIZE) {
+				int last = Math.min(first + BLOCK_SIZE, children.size) - 1;
+				if(last < first) {
+					parents.add(0, 0, 0, 0, 0, 0);
+					continue;
+				}
+				int endChr = children.endChrs[first];
+				int endBase = children.endBases[first];
+				for(int i = first + 1; i <= last; i++) {
+					if(children.endChrs[i] > endChr || (children.endChrs[i] == endChr && children.endBases[i] > endBase)) {
+						endChr = children.endChrs[i];
+						endBase = children.endBases[i];
+					}
+				}
+				parents.add(children.startChrs[first], children.startBases[first], endChr, endBase, 0, 0);
+			}
+			levels.add(parents);
+			children = parents;
+		} while(children.size > 1);
+		BlockBounds root = levels.get(levels.size() - 1);
+		ByteBuffer header = newBuffer(R_TREE_HEADER_SIZE);
+		header.putInt(R_TREE_MAGIC).putInt(BLOCK_SIZE).putLong(n);
+		header.putInt(root.startChrs[0]).putInt(root.startBases[0]).putInt(root.endChrs[0]).putInt(root.endBases[0]);
+		header.putLong(dataEnd).putInt(ITEMS_PER_SLOT).putInt(0);
+		header.flip();
+		writeFully(header);
+		int leafNodeSize = 4 + BLOCK_SIZE * R_TREE_LEAF_ITEM_SIZE;
+		int internalNodeSize = 4 + BLOCK_SIZE * R_TREE_NODE_ITEM_SIZE;
+		long levelOffset = channel.position();
+		// Write levels from the root down; every node is padded to the full block size so child offsets can be computed
+		for(int level = levels.size() - 1; level >= 0; level--) {
+			BlockBounds nodes = levels.get(level);
+			BlockBounds items = level == 0 ? blocks : levels.get(level - 1);
+			int nodeSize = level == 0 ? leafNodeSize : internalNodeSize;
+			long childLevelOffset = levelOffset + (long) nodes.size * nodeSize;
+			int childNodeSize = level == 1 ? leafNodeSize : internalNodeSize;
+			for(int node = 0; node < nodes.size; node++) {
+				ByteBuffer buffer = newBuffer(nodeSize);
+				int first = node * BLOCK_SIZE;
+				int last = Math.min(first + BLOCK_SIZE, items.size);
+				buffer.put((byte) (level == 0 ? 1 : 0)).put((byte) 0).putShort((short) Math.max(last - first, 0));
+				for(int i = first; i < last; i++) {
+					buffer.putInt(items.startChrs[i]).putInt(items.startBases[i]).putInt(items.endChrs[i]).putInt(items.endBases[i]);
+					if(level == 0) {
+						buffer.putLong(items.offsets[i]).putLong(items.sizes[i]);
+					} else {
+						buffer.putLong(childLevelOffset + (long) i * childNodeSize);
+					}
+				}
+				buffer.position(0);
+				writeFully(buffer);
+			}
+			levelOffset = childLevelOffset;
+		}
+	}
+
+	/**
+	 * Growable arrays of block bounds and file locations
+	 */
+	private static class BlockBounds {
+		int[] startChrs = new int[1024];
+		int[] startBases = new int[1024];
+		int[] endChrs = new int[1024];
+		int[] endBases = new int[1024];
+		long[] offsets = new long[1024];
+		long[] sizes = new long[1024];
+		int size = 0;
+		void add(int startChr, int startBase, int endChr, int endBase, long offset, long blockSize) {
+			if(size == offsets.length) {
+				startChrs = Arrays.copyOf(startChrs, size * 2);
+				startBases = Arrays.copyOf(startBases, size * 2);
+				endChrs = Arrays.copyOf(endChrs, size * 2);
+				endBases = Arrays.copyOf(endBases, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+				sizes = Arrays.copyOf(sizes, size * 2);
+			}
+			startChrs[size] = startChr;
+			startBases[size] = startBase;
+			endChrs[size] = endChr;
+			endBases[size] = endBase;
+			offsets[size] = offset;
+			sizes[size] = blockSize;
+			size++;
+		}
+	}
+
+	/**
+	 * Summaries over fixed size bins, spooled to a temporary file until the data is finished
+	 */
+	private class ZoomLevel {
+
+		int reduction;
+		File tmp;
+		DataOutputStream tmpOut;
+		long numRecords;
+		long dataOffset;
+		long indexOffset;
+		// Record being filled
+		int binStart = -1;
+		int start;
+		int end;
+		int validCount;
+		float min;
+		float max;
+		double sum;
+		double sumSq;
+
+		ZoomLevel(int reductionLevel) throws IOException {
+			reduction = reductionLevel;
+			tmp = File.createTempFile("bigwig_zoom_" + reduction + "_", ".tmp");
+			tmp.deleteOnExit();
+			tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		}
+
+		void add(int intervalStart, int intervalEnd, float value) throws IOException {
+			int s = intervalStart;
+			while(s < intervalEnd) {
+				int bin = s - s % reduction;
+				if(bin != binStart) {
+					flushRecord();
+					binStart = bin;
+					start = s;
+					min = value;
+					max = value;
+				}
+				int e = Math.min(intervalEnd, bin + reduction);
+				int length = e - s;
+				end = e;
+				validCount += length;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				sum += (double) value * length;
+				sumSq += (double) value * value * length;
+				s = e;
+			}
+		}
+
+		void flushRecord() throws IOException {
+			if(binStart < 0) {
+				return;
+			}
+			// Spool in the order records are written to the BigWig file
+			ByteBuffer record = newBuffer(ZOOM_RECORD_SIZE);
+			record.putInt(currentChrId).putInt(start).putInt(end).putInt(validCount);
+			record.putFloat(min).putFloat(max).putFloat((float) sum).putFloat((float) sumSq);
+			tmpOut.write(record.array());
+			numRecords++;
+			binStart = -1;
+			validCount = 0;
+			sum = 0;
+			sumSq = 0;
+		}
+
+		void closeTmp() throws IOException {
+			tmpOut.close();
+		}
+
+		void deleteTmp() {
+			if(!tmp.delete()) {
+				logger.warn("Could not delete temporary file " + tmp);
+			}
+		}
+
+		/**
+		 * Write the record count, compressed blocks of records and their index at the current position
+		 * @throws IOException
+		 */
+		void write() throws IOException {
+			dataOffset = channel.position();
+			ByteBuffer count = newBuffer(4);
+			count.putInt((int) numRecords).flip();
+			writeFully(count);
+			BlockBounds blocks = new BlockBounds();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tmp), 1 << 16));
+			byte[] block = new byte[ITEMS_PER_SLOT * ZOOM_RECORD_SIZE];
+			try {
+				long remaining = numRecords;
+				while(remaining > 0) {
+					int n = (int) Math.min(remaining, ITEMS_PER_SLOT);
+					byte[] records = n == ITEMS_PER_SLOT ? block : new byte[n * ZOOM_RECORD_SIZE];
+					in.readFully(records);
+					ByteBuffer b = ByteBuffer.wrap(records).order(ByteOrder.LITTLE_ENDIAN);
+					int startChr = b.getInt(0);
+					int startBase = b.getInt(4);
+					int endChr = b.getInt((n - 1) * ZOOM_RECORD_SIZE);
+					int endBase = b.getInt((n - 1) * ZOOM_RECORD_SIZE + 8);
+					long offset = channel.position();
+					long size = writeCompressed(records);
+					blocks.add(startChr, startBase, endChr, endBase, offset, size);
+					remaining -= n;
+				}
+			} catch (EOFException e) {
+				throw new IllegalStateException("Temporary zoom file " + tmp + " is truncated.", e);
+			} finally {
+				in.close();
+			}
+			indexOffset = channel.position();
+			writeRTree(blocks, indexOffset);
+		}
+
+	}
+
+	/**
+	 * Write a BigWig file from wig or bedGraph files
+	 * @param wigFiles Wig or bedGraph files; together they must list each chromosome in one contiguous run with increasing positions
+	 * @param chrSizeFile Chromosome size file
+	 * @param bigWigFile Output BigWig file
+	 * @throws IOException
+	 */
+	public static void convert(List<String> wigFiles, String chrSizeFile, String bigWigFile) throws IOException {
+		logger.info("Writing bigwig file " + bigWigFile + "...");
+		BigWigWriter writer = new BigWigWriter(bigWigFile, readChrSizes(chrSizeFile));
+		for(String wig : wigFiles) {
+			logger.info(wig);
+			WigStreamReader reader = new WigStreamReader(wig);
+			while(reader.next()) {
+				writer.add(reader.getChr(), reader.getPosition(), reader.getValue());
+			}
+			reader.close();
+		}
+		writer.close();
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-w", "Input wig or bedGraph file", true);
+		p.addStringArg("-s", "Chromosome size file", true);
+		p.addStringArg("-o", "Output bigwig file", true);
+		p.parse(args);
+		List<String> wigs = new ArrayList<String>();
+		wigs.add(p.getStringArg("-w"));
+		convert(wigs, p.getStringArg("-s"), p.getStringArg("-o"));
+	}
+
+}
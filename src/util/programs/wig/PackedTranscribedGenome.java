@@ -0,0 +1,426 @@
+/**
+ *
+ */
+package util.programs.wig;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.Gene;
+
+/**
+ * Transcribed bases of all exonic positions, packed four bits per base, for fast base and dinucleotide counts over a wig track
+ * The transcribed region on each strand of a chromosome is the union of the exons of genes on that strand. Its positions are numbered
+ * in genomic order, so moving along the direction of transcription is a step of one in that numbering, across introns.
+ * A strand mask marks positions that are transcribed on both strands, which have no well defined transcribed base.
+ * Wig positions are looked up in one linear sweep per chromosome, and chromosomes are counted in parallel.
+ * @author prussell
+ *
+ */
+public class PackedTranscribedGenome {
+
+	private Map<String, StrandTable[]> tablesByChr;
+	private static Logger logger = Logger.getLogger(PackedTranscribedGenome.class.getName());
+
+	/**
+	 * Bases in code order; codes fit in four bits
+	 */
+	private static char[] BASES = {'A', 'C', 'G', 'T', 'a', 'c', 'g', 't', 'N'};
+	private static byte N = 8;
+	private static byte[] COMPLEMENT = {3, 2, 1, 0, 7, 6, 5, 4, 8};
+	private static byte[] CODES = new byte[128];
+	static {
+		Arrays.fill(CODES, N);
+		for(byte i = 0; i < BASES.length; i++) {
+			CODES[BASES[i]] = i;
+		}
+	}
+	private static String[] UPPER_CASE_BASES = {"A", "C", "G", "T", "N"};
+	private static int PLUS = 0;
+	private static int MINUS = 1;
+
+	/**
+	 * Transcribed region on one strand of a chromosome
+	 */
+	private static class StrandTable {
+		// Merged exon intervals, sorted
+		int[] starts;
+		int[] ends;
+		// Number of transcribed positions before each interval
+		long[] ranks;
+		long length;
+		// Four bit base codes, two per byte, indexed by rank
+		byte[] codes;
+		// Ranks that are also transcribed on the other strand
+		BitSet ambiguous;
+
+		StrandTable(List<int[]> exons) {
+			sortAndMerge(exons);
+			int n = exons.size();
+			starts = new int[n];
+			ends = new int[n];
+			ranks = new long[n];
+			length = 0;
+			for(int i = 0; i < n; i++) {
+				starts[i] = exons.get(i)[0];
+				ends[i] = exons.get(i)[1];
+				ranks[i] = length;
+				length += ends[i] - starts[i];
+			}
+			if(length > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many transcribed positions: " + length);
+			}
+			codes = new byte[(int) ((length + 1) / 2)];
+			// Positions missing from the fasta are N
+			Arrays.fill(codes, (byte) ((N << 4) | N));
+			ambiguous = new BitSet();
+		}
+
+		void set(long rank, byte code) {
+			int i = (int) (rank >>> 1);
+			if((rank & 1) == 0) {
+				codes[i] = (byte) ((codes[i] & 0xf0) | code);
+			} else {
+				codes[i] = (byte) ((codes[i] & 0x0f) | (code << 4));
+			}
+		}
+
+		byte get(long rank) {
+			int b = codes[(int) (rank >>> 1)];
+			return (byte) ((rank & 1) == 0 ? b & 0x0f : (b >>> 4) & 0x0f);
+		}
+
+		/**
+		 * @param rank Rank
+		 * @return True iff the rank is a transcribed position with a well defined transcribed base
+		 */
+		boolean isUsable(long rank) {
+			return rank >= 0 && rank < length && !ambiguous.get((int) rank);
+		}
+
+	}
+
+	/**
+	 * Looks up positions in increasing order by advancing through the intervals of a strand table
+	 */
+	private static class Cursor {
+		StrandTable table;
+		int interval;
+		Cursor(StrandTable t) {
+			table = t;
+			interval = 0;
+		}
+		/**
+		 * @param pos Genomic position, at least the previous position looked up
+		 * @return Rank of the position or -1 if not transcribed on this strand
+		 */
+		long getRank(int pos) {
+			while(interval < table.starts.length && table.ends[interval] <= pos) {
+				interval++;
+			}
+			if(interval < table.starts.length && table.starts[interval] <= pos) {
+				return table.ranks[interval] + pos - table.starts[interval];
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Sort intervals and merge overlapping or adjacent ones
+	 * @param intervals Start and end of each interval; replaced by the merged intervals
+	 */
+	private static void sortAndMerge(List<int[]> intervals) {
+		Collections.sort(intervals, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] i1, int[] i2) {
+				return Integer.compare(i1[0], i2[0]);
+			}
+		});
+		List<int[]> merged = new ArrayList<int[]>();
+		for(int[] interval : intervals) {
+			if(!merged.isEmpty() && interval[0] <= merged.get(merged.size() - 1)[1]) {
+				int[] last = merged.get(merged.size() - 1);
+				last[1] = Math.max(last[1], interval[1]);
+			} else {
+				merged.add(new int[] {interval[0], interval[1]});
+			}
+		}
+		intervals.clear();
+		intervals.addAll(merged);
+	}
+
+	/**
+	 * @param genomeFasta Genome fasta file
+	 * @param genes Genes by chromosome
+	 * @throws IOException
+	 */
+	public PackedTranscribedGenome(String genomeFasta, Map<String, Collection<Gene>> genes) throws IOException {
+		logger.info("Packing transcribed bases of exonic positions...");
+		tablesByChr = new TreeMap<String, StrandTable[]>();
+		for(String chr : genes.keySet()) {
+			List<int[]> plusExons = new ArrayList<int[]>();
+			List<int[]> minusExons = new ArrayList<int[]>();
+			for(Gene gene : genes.get(chr)) {
+				List<int[]> exons = null;
+				if(gene.getOrientation().equals(Strand.POSITIVE)) {
+					exons = plusExons;
+				} else if(gene.getOrientation().equals(Strand.NEGATIVE)) {
+					exons = minusExons;
+				} else {
+					continue;
+				}
+				for(Annotation exon : gene.getBlocks()) {
+					exons.add(new int[] {exon.getStart(), exon.getEnd()});
+				}
+			}
+			StrandTable[] tables = new StrandTable[2];
+			tables[PLUS] = new StrandTable(plusExons);
+			tables[MINUS] = new StrandTable(minusExons);
+			markAmbiguous(tables[PLUS], tables[MINUS]);
+			tablesByChr.put(chr, tables);
+		}
+		readBases(genomeFasta);
+		logger.info("Done packing transcribed bases.");
+	}
+
+	/**
+	 * Mark positions transcribed on both strands
+	 */
+	private static void markAmbiguous(StrandTable plus, StrandTable minus) {
+		int i = 0;
+		int j = 0;
+		while(i < plus.starts.length && j < minus.starts.length) {
+			int start = Math.max(plus.starts[i], minus.starts[j]);
+			int end = Math.min(plus.ends[i], minus.ends[j]);
+			if(start < end) {
+				plus.ambiguous.set((int) (plus.ranks[i] + start - plus.starts[i]), (int) (plus.ranks[i] + end - plus.starts[i]));
+				minus.ambiguous.set((int) (minus.ranks[j] + start - minus.starts[j]), (int) (minus.ranks[j] + end - minus.starts[j]));
+			}
+			if(plus.ends[i] < minus.ends[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Stream the fasta file and fill in the transcribed base of every exonic position, without holding chromosome sequences in memory
+	 * @param genomeFasta Genome fasta file
+	 * @throws IOException
+	 */
+	private void readBases(String genomeFasta) throws IOException {
+		BufferedReader b = new BufferedReader(new FileReader(genomeFasta));
+		StrandTable[] tables = null;
+		int[] intervals = new int[2];
+		int pos = 0;
+		String line;
+		while((line = b.readLine()) != null) {
+			if(line.startsWith(">")) {
+				String chr = line.substring(1).trim().split("\\s+")[0];
+				tables = tablesByChr.get(chr);
+				intervals[PLUS] = 0;
+				intervals[MINUS] = 0;
+				pos = 0;
+				continue;
+			}
+			if(tables == null) {
+				continue;
+			}
+			line = line.trim();
+			int lineEnd = pos + line.length();
+			for(int strand = PLUS; strand <= MINUS; strand++) {
+				StrandTable table = tables[strand];
+				while(intervals[strand] < table.starts.length && table.ends[intervals[strand]] <= pos) {
+					intervals[strand]++;
+				}
+				for(int i = intervals[strand]; i < table.starts.length && table.starts[i] < lineEnd; i++) {
+					int from = Math.max(table.starts[i], pos);
+					int to = Math.min(table.ends[i], lineEnd);
+					for(int p = from; p < to; p++) {
+						char c = line.charAt(p - pos);
+						byte code = c < 128 ? CODES[c] : N;
+						table.set(table.ranks[i] + p - table.starts[i], strand == PLUS ? code : COMPLEMENT[code]);
+					}
+				}
+			}
+			pos = lineEnd;
+		}
+		b.close();
+	}
+
+	/**
+	 * Sum the wig values at each transcribed base
+	 * Wig positions that are not transcribed, or transcribed on both strands, are skipped
+	 * @param track Wig track
+	 * @param numThreads Number of chromosomes to count at the same time
+	 * @return Total wig value by base, with upper and lower case bases counted separately
+	 */
+	public Map<String, Double> getBaseCounts(final WigTrack track, int numThreads) {
+		logger.info("Computing base counts from packed genome with " + numThreads + " threads...");
+		double[] counts = sumOverChrs(track, numThreads, BASES.length, new ChrCounter() {
+			@Override
+			public long count(String chr, StrandTable[] tables, double[] chrCounts) {
+				long skipped = 0;
+				Cursor plus = new Cursor(tables[PLUS]);
+				Cursor minus = new Cursor(tables[MINUS]);
+				for(int i = 0; i < track.size(chr); i++) {
+					int pos = track.getPosition(chr, i);
+					long plusRank = plus.getRank(pos);
+					long minusRank = minus.getRank(pos);
+					if((plusRank >= 0) == (minusRank >= 0)) {
+						skipped++;
+						continue;
+					}
+					byte code = plusRank >= 0 ? tables[PLUS].get(plusRank) : tables[MINUS].get(minusRank);
+					chrCounts[code] += track.getValue(chr, i);
+				}
+				return skipped;
+			}
+		});
+		Map<String, Double> rtrn = new TreeMap<String, Double>();
+		for(int i = 0; i < BASES.length; i++) {
+			rtrn.put(Character.toString(BASES[i]), Double.valueOf(counts[i]));
+		}
+		logger.info("Done computing base counts.");
+		return rtrn;
+	}
+
+	/**
+	 * Sum the wig values at each transcribed dinucleotide, with bases converted to upper case
+	 * Positions are skipped if the wig position or either base of the dinucleotide is not transcribed on exactly one strand
+	 * @param track Wig track
+	 * @param firstPosRelative First position of dinucleotide relative to the wig position, in the direction of transcription
+	 * @param numThreads Number of chromosomes to count at the same time
+	 * @return Total wig value by dinucleotide, for dinucleotides that occur
+	 */
+	public Map<String, Double> getDinucleotideCounts(final WigTrack track, final int firstPosRelative, int numThreads) {
+		logger.info("Computing dinucleotide counts from packed genome with " + numThreads + " threads...");
+		final int numUpper = UPPER_CASE_BASES.length;
+		// Totals for each dinucleotide followed by the number of occurrences of each
+		double[] counts = sumOverChrs(track, numThreads, 2 * numUpper * numUpper, new ChrCounter() {
+			@Override
+			public long count(String chr, StrandTable[] tables, double[] chrCounts) {
+				long skipped = 0;
+				Cursor plus = new Cursor(tables[PLUS]);
+				Cursor minus = new Cursor(tables[MINUS]);
+				for(int i = 0; i < track.size(chr); i++) {
+					int pos = track.getPosition(chr, i);
+					long plusRank = plus.getRank(pos);
+					long minusRank = minus.getRank(pos);
+					if((plusRank >= 0) == (minusRank >= 0)) {
+						skipped++;
+						continue;
+					}
+					StrandTable table = plusRank >= 0 ? tables[PLUS] : tables[MINUS];
+					long direction = plusRank >= 0 ? 1 : -1;
+					long first = (plusRank >= 0 ? plusRank : minusRank) + direction * firstPosRelative;
+					long second = first + direction;
+					if(!table.isUsable(first) || !table.isUsable(second)) {
+						skipped++;
+						continue;
+					}
+					int d = toUpper(table.get(first)) * numUpper + toUpper(table.get(second));
+					chrCounts[d] += track.getValue(chr, i);
+					chrCounts[numUpper * numUpper + d]++;
+				}
+				return skipped;
+			}
+		});
+		Map<String, Double> rtrn = new TreeMap<String, Double>();
+		for(int d = 0; d < numUpper * numUpper; d++) {
+			if(counts[numUpper * numUpper + d] > 0) {
+				rtrn.put(UPPER_CASE_BASES[d / numUpper] + UPPER_CASE_BASES[d % numUpper], Double.valueOf(counts[d]));
+			}
+		}
+		logger.info("Done computing dinucleotide counts.");
+		return rtrn;
+	}
+
+	private static int toUpper(byte code) {
+		return code == N ? 4 : code % 4;
+	}
+
+	/**
+	 * Counts one chromosome into an array
+	 */
+	private interface ChrCounter {
+		/**
+		 * @param chr Chromosome
+		 * @param tables Strand tables of the chromosome
+		 * @param chrCounts Array to add counts to
+		 * @return Number of wig positions skipped
+		 */
+		public long count(String chr, StrandTable[] tables, double[] chrCounts);
+	}
+
+	/**
+	 * Count each chromosome on a pool of threads and add up the counts in chromosome order
+	 * @param track Wig track
+	 * @param numThreads Number of threads
+	 * @param numCounts Size of count array
+	 * @param counter Counter for one chromosome
+	 * @return Sum of counts over chromosomes
+	 */
+	private double[] sumOverChrs(WigTrack track, int numThreads, final int numCounts, final ChrCounter counter) {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		Map<String, Future<double[]>> futures = new TreeMap<String, Future<double[]>>();
+		final long[] skipped = new long[1];
+		for(final String chr : track.getChrs()) {
+			final StrandTable[] tables = tablesByChr.get(chr);
+			if(tables == null) {
+				logger.warn("No genes on " + chr + "; skipping " + track.size(chr) + " positions.");
+				continue;
+			}
+			futures.put(chr, executor.submit(new Callable<double[]>() {
+				@Override
+				public double[] call() {
+					double[] rtrn = new double[numCounts];
+					long chrSkipped = counter.count(chr, tables, rtrn);
+					synchronized(skipped) {
+						skipped[0] += chrSkipped;
+					}
+					return rtrn;
+				}
+			}));
+		}
+		double[] rtrn = new double[numCounts];
+		try {
+			for(String chr : futures.keySet()) {
+				double[] chrCounts = futures.get(chr).get();
+				logger.info(chr);
+				for(int i = 0; i < numCounts; i++) {
+					rtrn[i] += chrCounts[i];
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		logger.info("Skipped " + skipped[0] + " wig positions that are not transcribed on exactly one strand.");
+		return rtrn;
+	}
+
+}
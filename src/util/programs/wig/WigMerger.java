@@ -0,0 +1,356 @@
+/**
+ *
+ */
+package util.programs.wig;
+
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+import util.FileUtils;
+
+/**
+ * Combines any number of wig or bedGraph tracks position by position without loading them into memory
+ * Inputs are read at the same time and k-way merged by chromosome and position, and the combined value is written as soon as a position is complete
+ * Each input must be sorted by position within each chromosome, and all inputs must list their chromosomes in a consistent order
+ * The order is either given as a list or found in a first pass over the chromosome declarations of the inputs, so karyotype and lexicographic order both work
+ * @author prussell
+ *
+ */
+public class WigMerger {
+
+	private static Logger logger = Logger.getLogger(WigMerger.class.getName());
+
+	/**
+	 * Combines the values of all inputs at one position
+	 */
+	public interface CombineFunction {
+		/**
+		 * @param values Value of each input at the position, NaN for inputs with no value
+		 * @return Combined value, or NaN if nothing should be written for the position
+		 */
+		public double combine(double[] values);
+	}
+
+	/**
+	 * Built in combine functions
+	 * Inputs with no value at a position count as zero for the sum and mean, and are ignored by the max
+	 */
+	public static enum Operation implements CombineFunction {
+
+		SUM,
+		MEAN,
+		MAX,
+		RATIO; // First input divided by second; nothing is written where the second input is missing or zero
+
+		@Override
+		public double combine(double[] values) {
+			switch(this) {
+			case SUM:
+				return sum(values);
+			case MEAN:
+				return sum(values) / values.length;
+			case MAX:
+				double max = Double.NEGATIVE_INFINITY;
+				for(int i = 0; i < values.length; i++) {
+					if(!Double.isNaN(values[i]) && values[i] > max) {
+						max = values[i];
+					}
+				}
+				return max;
+			case RATIO:
+				if(Double.isNaN(values[1]) || values[1] == 0) {
+					return Double.NaN;
+				}
+				return (Double.isNaN(values[0]) ? 0 : values[0]) / values[1];
+			default:
+				throw new IllegalArgumentException("Operation not supported: " + this);
+			}
+		}
+
+		private static double sum(double[] values) {
+			double rtrn = 0;
+			for(int i = 0; i < values.length; i++) {
+				if(!Double.isNaN(values[i])) {
+					rtrn += values[i];
+				}
+			}
+			return rtrn;
+		}
+
+	}
+
+	/**
+	 * Rank of each chromosome in the merge order
+	 */
+	private static class ChromosomeOrder {
+		Map<String, Integer> ranks = new HashMap<String, Integer>();
+
+		/**
+		 * @param chrs Chromosomes in order
+		 */
+		ChromosomeOrder(List<String> chrs) {
+			for(String chr : chrs) {
+				if(!ranks.containsKey(chr)) {
+					ranks.put(chr, Integer.valueOf(ranks.size()));
+				}
+			}
+		}
+
+		int getRank(String chr) {
+			Integer rank = ranks.get(chr);
+			if(rank == null) {
+				throw new IllegalArgumentException("Chromosome " + chr + " is not in the chromosome list");
+			}
+			return rank.intValue();
+		}
+	}
+
+	/**
+	 * Find a chromosome order consistent with every input, keeping chromosomes in the order they first appear where the inputs do not constrain it
+	 * @param wigFiles Input wig or bedGraph files
+	 * @return Chromosomes in merge order
+	 * @throws IOException
+	 */
+	private static List<String> getChromosomeOrder(List<String> wigFiles) throws IOException {
+		// Each chromosome must come after the chromosomes that precede it in any input
+		Map<String, Integer> indices = new LinkedHashMap<String, Integer>();
+		List<List<Integer>> successors = new ArrayList<List<Integer>>();
+		List<Integer> numPredecessors = new ArrayList<Integer>();
+		for(String wigFile : wigFiles) {
+			List<String> fileOrder = WigStreamReader.getChromosomeOrder(wigFile);
+			int prev = -1;
+			for(String chr : fileOrder) {
+				if(!indices.containsKey(chr)) {
+					indices.put(chr, Integer.valueOf(indices.size()));
+					successors.add(new ArrayList<Integer>());
+					numPredecessors.add(Integer.valueOf(0));
+				}
+				int index = indices.get(chr).intValue();
+				if(prev >= 0) {
+					successors.get(prev).add(Integer.valueOf(index));
+					numPredecessors.set(index, Integer.valueOf(numPredecessors.get(index).intValue() + 1));
+				}
+				prev = index;
+			}
+		}
+		List<String> chrs = new ArrayList<String>(indices.keySet());
+		PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+		for(int i = 0; i < chrs.size(); i++) {
+			if(numPredecessors.get(i).intValue() == 0) {
+				ready.add(Integer.valueOf(i));
+			}
+		}
+		List<String> rtrn = new ArrayList<String>();
+		while(!ready.isEmpty()) {
+			int index = ready.poll().intValue();
+			rtrn.add(chrs.get(index));
+			for(Integer next : successors.get(index)) {
+				int remaining = numPredecessors.get(next.intValue()).intValue() - 1;
+				numPredecessors.set(next.intValue(), Integer.valueOf(remaining));
+				if(remaining == 0) {
+					ready.add(next);
+				}
+			}
+		}
+		if(rtrn.size() < chrs.size()) {
+			throw new IllegalArgumentException("Input files list chromosomes in conflicting orders or list a chromosome in more than one place. Sort each file by chromosome in the same order.");
+		}
+		logger.info("Merging chromosomes in order " + rtrn);
+		return rtrn;
+	}
+
+	/**
+	 * An input and its current position
+	 */
+	private static class Cursor {
+		int index;
+		WigStreamReader reader;
+		ChromosomeOrder order;
+		String chr;
+		int chrRank;
+		int pos;
+		double value;
+
+		Cursor(int i, WigStreamReader r, ChromosomeOrder o) {
+			index = i;
+			reader = r;
+			order = o;
+		}
+
+		/**
+		 * Advance to the next position of the input
+		 * @return False if the input is finished
+		 * @throws IOException
+		 */
+		boolean advance() throws IOException {
+			String prevChr = chr;
+			int prevRank = chrRank;
+			int prevPos = pos;
+			if(!reader.next()) {
+				return false;
+			}
+			if(!reader.getChr().equals(prevChr)) {
+				chr = reader.getChr();
+				chrRank = order.getRank(chr);
+			}
+			pos = reader.getPosition();
+			value = reader.getValue();
+			if(prevChr != null) {
+				if(chrRank < prevRank) {
+					throw new IllegalArgumentException("Chromosome order of file " + reader.getFileName() + " is not consistent with the merge order: " + chr + " follows " + prevChr + ". Order the inputs the same way as the chromosome list.");
+				}
+				if(chrRank == prevRank && pos < prevPos) {
+					throw new IllegalArgumentException("File " + reader.getFileName() + " is not sorted by position: " + chr + ":" + (pos + 1) + " follows " + prevChr + ":" + (prevPos + 1));
+				}
+			}
+			return true;
+		}
+	}
+
+	private static Comparator<Cursor> cursorComparator = new Comparator<Cursor>() {
+		@Override
+		public int compare(Cursor c1, Cursor c2) {
+			int c = Integer.compare(c1.chrRank, c2.chrRank);
+			if(c != 0) {
+				return c;
+			}
+			return Integer.compare(c1.pos, c2.pos);
+		}
+	};
+
+	/**
+	 * Merge sorted wig files and write the combined track in variableStep format
+	 * The chromosome order is found in a first pass over the inputs
+	 * @param wigFiles Input wig or bedGraph files, each sorted by position within chromosomes in a consistent chromosome order
+	 * @param function Function to combine the values at each position
+	 * @param outFile Output wig file
+	 * @throws IOException
+	 */
+	public static void merge(List<String> wigFiles, CombineFunction function, String outFile) throws IOException {
+		merge(wigFiles, function, null, outFile);
+	}
+
+	/**
+	 * Merge sorted wig files and write the combined track in variableStep format
+	 * @param wigFiles Input wig or bedGraph files, each sorted by position within chromosomes in a consistent chromosome order
+	 * @param function Function to combine the values at each position
+	 * @param chrOrder Chromosomes in the order of the inputs, or null to find the order in a first pass over the inputs
+	 * @param outFile Output wig file
+	 * @throws IOException
+	 */
+	public static void merge(List<String> wigFiles, CombineFunction function, List<String> chrOrder, String outFile) throws IOException {
+		logger.info("Merging " + wigFiles.size() + " wig files and writing to " + outFile + "...");
+		BufferedWriter w = new BufferedWriter(new FileWriter(outFile));
+		try {
+			merge(wigFiles, function, chrOrder, w);
+		} finally {
+			w.close();
+		}
+		logger.info("Done writing merged wig file.");
+	}
+
+	/**
+	 * Merge sorted wig files and write the combined track in variableStep format
+	 * @param wigFiles Input wig or bedGraph files, each sorted by position within chromosomes in a consistent chromosome order
+	 * @param function Function to combine the values at each position
+	 * @param chrOrder Chromosomes in the order of the inputs, or null to find the order in a first pass over the inputs
+	 * @param w Writer for output
+	 * @throws IOException
+	 */
+	public static void merge(List<String> wigFiles, CombineFunction function, List<String> chrOrder, Writer w) throws IOException {
+		if(wigFiles.isEmpty()) {
+			throw new IllegalArgumentException("Must provide at least one wig file");
+		}
+		if(function == Operation.RATIO && wigFiles.size() != 2) {
+			throw new IllegalArgumentException("Ratio requires exactly two wig files");
+		}
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(wigFiles.size(), cursorComparator);
+		Cursor[] cursors = new Cursor[wigFiles.size()];
+		ChromosomeOrder order = new ChromosomeOrder(chrOrder != null ? chrOrder : getChromosomeOrder(wigFiles));
+		try {
+			for(int i = 0; i < cursors.length; i++) {
+				cursors[i] = new Cursor(i, new WigStreamReader(wigFiles.get(i)), order);
+				if(cursors[i].advance()) {
+					queue.add(cursors[i]);
+				}
+			}
+			double[] values = new double[cursors.length];
+			String currentChr = null;
+			while(!queue.isEmpty()) {
+				Arrays.fill(values, Double.NaN);
+				Cursor first = queue.peek();
+				String chr = first.chr;
+				int chrRank = first.chrRank;
+				int pos = first.pos;
+				// Collect every input at this position; an input repeating a position keeps its last value
+				while(!queue.isEmpty() && queue.peek().pos == pos && queue.peek().chrRank == chrRank) {
+					Cursor c = queue.poll();
+					values[c.index] = c.value;
+					if(c.advance()) {
+						queue.add(c);
+					}
+				}
+				double combined = function.combine(values);
+				if(Double.isNaN(combined)) {
+					continue;
+				}
+				if(!chr.equals(currentChr)) {
+					logger.info(chr);
+					w.write("variableStep chrom=" + chr + "\n");
+					currentChr = chr;
+				}
+				w.write((pos + 1) + "\t" + (float) combined + "\n");
+			}
+		} finally {
+			for(int i = 0; i < cursors.length; i++) {
+				if(cursors[i] != null) {
+					cursors[i].reader.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-l", "File containing list of wig or bedGraph files to merge, each sorted by position within chromosomes, with chromosomes in the same order in every file (e.g. all karyotype or all lexicographic order)", true);
+		p.addStringArg("-f", "Combine function: " + Arrays.toString(Operation.values()), false, Operation.SUM.toString());
+		p.addStringArg("-c", "Chromosome size file or chromosome list giving the chromosome order of the inputs in the first column. If not given, the order is found in a first pass over the inputs", false, null);
+		p.addStringArg("-o", "Output wig file", true);
+		p.parse(args);
+		List<String> wigFiles = FileUtils.fileLinesAsList(p.getStringArg("-l"));
+		Operation op = Operation.valueOf(p.getStringArg("-f").toUpperCase());
+		String outFile = p.getStringArg("-o");
+		String chrFile = p.getStringArg("-c");
+		List<String> chrOrder = null;
+		if(chrFile != null) {
+			chrOrder = new ArrayList<String>();
+			for(String line : FileUtils.fileLinesAsList(chrFile)) {
+				if(!line.isEmpty()) {
+					chrOrder.add(line.split("\\s+")[0]);
+				}
+			}
+		}
+		merge(wigFiles, op, chrOrder, outFile);
+		logger.info("");
+		logger.info("All done.");
+	}
+
+}
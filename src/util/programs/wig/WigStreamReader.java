@@ -0,0 +1,193 @@
+/**
+ *
+ */
+package util.programs.wig;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a wig or bedGraph file one position at a time
+ * Handles variableStep, fixedStep (with start, step and span) and four column bedGraph lines
+ * Positions are returned zero based; intervals are expanded to single positions lazily so memory does not depend on file size
+ * @author prussell
+ *
+ */
+public class WigStreamReader {
+
+	private String fileName;
+	private BufferedReader reader;
+	private String declaredChr;
+	private boolean fixedStep;
+	private int nextFixedPos;
+	private int step;
+	private int span;
+	// Interval currently being expanded
+	private String intervalChr;
+	private int intervalPos;
+	private int intervalEnd;
+	private double intervalValue;
+	// Current position
+	private String chr;
+	private int pos;
+	private double value;
+
+	/**
+	 * @param wigFile Wig or bedGraph file
+	 * @throws IOException
+	 */
+	public WigStreamReader(String wigFile) throws IOException {
+		fileName = wigFile;
+		reader = new BufferedReader(new FileReader(wigFile));
+		intervalPos = 0;
+		intervalEnd = 0;
+	}
+
+	/**
+	 * Advance to the next position
+	 * @return False if the end of the file has been reached
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while(intervalPos >= intervalEnd) {
+			if(!readInterval()) {
+				return false;
+			}
+		}
+		chr = intervalChr;
+		pos = intervalPos;
+		value = intervalValue;
+		intervalPos++;
+		return true;
+	}
+
+	/**
+	 * Read data lines until one defining a nonempty interval is found
+	 * @return False if the end of the file has been reached
+	 * @throws IOException
+	 */
+	private boolean readInterval() throws IOException {
+		String line;
+		while((line = reader.readLine()) != null) {
+			if(line.isEmpty() || line.startsWith("track") || line.startsWith("browser") || line.startsWith("#")) {
+				continue;
+			}
+			if(line.startsWith("variableStep") || line.startsWith("fixedStep")) {
+				fixedStep = line.startsWith("fixedStep");
+				step = 1;
+				span = 1;
+				for(String field : line.split("\\s+")) {
+					if(field.startsWith("chrom=")) {
+						declaredChr = field.substring(6);
+					} else if(field.startsWith("start=")) {
+						nextFixedPos = Integer.parseInt(field.substring(6)) - 1;
+					} else if(field.startsWith("step=")) {
+						step = Integer.parseInt(field.substring(5));
+					} else if(field.startsWith("span=")) {
+						span = Integer.parseInt(field.substring(5));
+					}
+				}
+				continue;
+			}
+			String[] fields = line.trim().split("\\s+");
+			if(fields.length == 4) {
+				// bedGraph: chr start end value with zero based half open interval
+				intervalChr = fields[0];
+				intervalPos = Integer.parseInt(fields[1]);
+				intervalEnd = Integer.parseInt(fields[2]);
+				intervalValue = Double.parseDouble(fields[3]);
+				return true;
+			}
+			if(declaredChr == null) {
+				throw new IllegalArgumentException("Data line before declaration line in " + fileName + ": " + line);
+			}
+			intervalChr = declaredChr;
+			if(fixedStep) {
+				intervalPos = nextFixedPos;
+				intervalValue = Double.parseDouble(fields[0]);
+				nextFixedPos += step;
+			} else {
+				intervalPos = Integer.parseInt(fields[0]) - 1;
+				intervalValue = Double.parseDouble(fields[1]);
+			}
+			intervalEnd = intervalPos + span;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Read the chromosome of each declaration or bedGraph line without expanding positions
+	 * @param wigFile Wig or bedGraph file
+	 * @return Chromosomes in the order they appear in the file, listing each run of lines on the same chromosome once
+	 * @throws IOException
+	 */
+	public static List<String> getChromosomeOrder(String wigFile) throws IOException {
+		List<String> rtrn = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new FileReader(wigFile));
+		try {
+			String line;
+			while((line = r.readLine()) != null) {
+				String lineChr = null;
+				if(line.startsWith("variableStep") || line.startsWith("fixedStep")) {
+					for(String field : line.split("\\s+")) {
+						if(field.startsWith("chrom=")) {
+							lineChr = field.substring(6);
+						}
+					}
+				} else if(!line.isEmpty() && !line.startsWith("track") && !line.startsWith("browser") && !line.startsWith("#")) {
+					String[] fields = line.trim().split("\\s+");
+					if(fields.length == 4) {
+						lineChr = fields[0];
+					}
+				}
+				if(lineChr != null && (rtrn.isEmpty() || !rtrn.get(rtrn.size() - 1).equals(lineChr))) {
+					rtrn.add(lineChr);
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Chromosome of the current position
+	 */
+	public String getChr() {
+		return chr;
+	}
+
+	/**
+	 * @return Zero based current position
+	 */
+	public int getPosition() {
+		return pos;
+	}
+
+	/**
+	 * @return Value at the current position
+	 */
+	public double getValue() {
+		return value;
+	}
+
+	/**
+	 * @return The file name
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
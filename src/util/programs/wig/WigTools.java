@@ -6,10 +6,14 @@ package util.programs.wig;
 import guttmanlab.core.util.CommandLineParser;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -23,9 +27,7 @@ import broad.core.sequence.Sequence;
 import broad.core.sequence.TranscribedRegions;
 import nextgen.core.annotation.Annotation;
 import nextgen.core.annotation.Gene;
-import nextgen.core.readers.WigReader;
 import nextgen.core.utils.CountLogger;
-import nextgen.core.writers.WigWriter;
 
 /**
  * @author prussell
@@ -33,12 +35,17 @@ import nextgen.core.writers.WigWriter;
  */
 public class WigTools {
 
-	private WigReader wigReader;
-	private Map<String, TreeMap<Integer,Double>> wigData;
+	private String wigFileName;
+	private WigTrack wigData;
+	private BigWigReader bigWig;
 	private static Logger logger = Logger.getLogger(WigTools.class.getName());
 	private Map<String, Double> baseCounts;
 	private Map<String, Double> dinucleotideCounts;
 	private TranscribedRegions transcribedRegions;
+	private String genomeFastaFile;
+	private PackedTranscribedGenome packedGenome;
+	private boolean usePackedGenome;
+	private int numThreads;
 	private static String[] bases = {"A", "C", "G", "T", "N"};
 	
 	/**
@@ -69,15 +76,61 @@ public class WigTools {
 		if(genomeFasta != null && bedFile != null) {
 			transcribedRegions = new TranscribedRegions(genomeFasta, bedFile);
 		}
+		genomeFastaFile = genomeFasta;
+		usePackedGenome = false;
+		numThreads = 1;
 		// Read wig file
 		if(wigFile != null) {
-			wigReader = new WigReader(wigFile);
-			wigData = wigReader.getAllValues();
+			wigFileName = wigFile;
+			if(BigWigReader.isBigWig(wigFile)) {
+				// Tasks that need every position load the whole track on first use; region queries go through the index
+				bigWig = new BigWigReader(wigFile);
+			} else {
+				wigData = WigTrack.read(wigFile);
+			}
 		}
 		baseCounts = new TreeMap<String, Double>();
 		dinucleotideCounts = new TreeMap<String, Double>();
 	}
 	
+	/**
+	 * Compute base and dinucleotide counts from a packed table of transcribed bases instead of looking up each position
+	 * @param usePacked Whether to use the packed table
+	 * @param threads Number of chromosomes to count at the same time
+	 */
+	public void setUsePackedGenome(boolean usePacked, int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+		}
+		usePackedGenome = usePacked;
+		numThreads = threads;
+	}
+	
+	/**
+	 * @return Packed transcribed bases, built the first time
+	 * @throws IOException
+	 */
+	private PackedTranscribedGenome getPackedGenome() throws IOException {
+		if(packedGenome == null) {
+			packedGenome = new PackedTranscribedGenome(genomeFastaFile, transcribedRegions.getGenes());
+		}
+		return packedGenome;
+	}
+	
+	/**
+	 * @return The whole wig track, read from the file the first time if the input is a bigwig
+	 * @throws IOException
+	 */
+	private WigTrack getWigData() throws IOException {
+		if(wigData == null) {
+			if(wigFileName == null) {
+				throw new IllegalStateException("No input wig file provided");
+			}
+			wigData = WigTrack.read(wigFileName);
+		}
+		return wigData;
+	}
+	
 	/**
 	 * Shift all values in wig file to another position
 	 * Shift is specified by an offset, in direction of transcription
@@ -86,27 +139,27 @@ public class WigTools {
 	 * @param offset Offset along direction of transcription (can be negative)
 	 * @return Shifted values by chromosome
 	 */
-	private Map<String, TreeMap<Integer,Double>> shiftWig(int offset) {
+	private WigTrack shiftWig(int offset) throws IOException {
+		WigTrack track = getWigData();
 		logger.info("Getting track with all values shifted along direction of transcription...");
-		Map<String, TreeMap<Integer, Double>> rtrn = new TreeMap<String, TreeMap<Integer, Double>>();
-		for(String chr : wigData.keySet()) {
+		WigTrack.Builder rtrn = new WigTrack.Builder();
+		for(String chr : track.getChrs()) {
 			logger.info(chr);
-			TreeMap<Integer, Double> shiftedCountsThisChr = new TreeMap<Integer, Double>();
-			for(Integer origPos : wigData.get(chr).keySet()) {
+			rtrn.addChr(chr);
+			for(int i = 0; i < track.size(chr); i++) {
+				int origPos = track.getPosition(chr, i);
 				try {
-					Integer shiftedPos = Integer.valueOf(transcribedRegions.shiftPosition(chr, origPos.intValue(), offset));
-					Double shiftedVal = wigData.get(chr).get(origPos);
-					shiftedCountsThisChr.put(shiftedPos, shiftedVal);
+					int shiftedPos = transcribedRegions.shiftPosition(chr, origPos, offset);
+					rtrn.add(chr, shiftedPos, track.getValue(chr, i));
 				} catch (IllegalArgumentException e) {
-					logger.debug("Skipping original position " + chr + " " + origPos.toString() + ": " + e.getMessage());
+					logger.debug("Skipping original position " + chr + " " + origPos + ": " + e.getMessage());
 				} catch (UnsupportedOperationException e) {
-					logger.debug("Skipping original position " + chr + " " + origPos.toString() + ": " + e.getMessage());
+					logger.debug("Skipping original position " + chr + " " + origPos + ": " + e.getMessage());
 				}
 			}
-			rtrn.put(chr, shiftedCountsThisChr);
 		}
 		logger.info("Done getting shifted track.");
-		return rtrn;
+		return rtrn.build();
 	}
 	
 	/**
@@ -116,12 +169,12 @@ public class WigTools {
 	 * @throws IOException
 	 */
 	private void writeShiftedWig(String outFile, int offset) throws IOException {
-		Map<String, TreeMap<Integer, Double>> shiftedWig = shiftWig(offset);
-		FileWriter w = new FileWriter(outFile);
+		WigTrack shiftedWig = shiftWig(offset);
+		BufferedWriter w = new BufferedWriter(new FileWriter(outFile));
 		logger.info("Writing shifted wig file to " + outFile + "...");
-		for(String chr : shiftedWig.keySet()) {
+		for(String chr : shiftedWig.getChrs()) {
 			logger.info(chr);
-			WigWriter.write(w, chr, shiftedWig.get(chr), false);
+			shiftedWig.write(w, chr);
 		}
 		w.close();
 		logger.info("Done writing shifted file.");
@@ -135,28 +188,32 @@ public class WigTools {
 	 * @return Map of nucleotide to chromosome-based count data
 	 * @throws IOException 
 	 */
-	private Map<String, Map<String, TreeMap<Integer, Double>>> getTracksByNucleotide() throws IOException {
+	private Map<String, WigTrack> getTracksByNucleotide() throws IOException {
+		WigTrack track = getWigData();
 		logger.info("Getting separate tracks for each nucleotide...");
 		// Initialize data structure
-		Map<String, Map<String, TreeMap<Integer, Double>>> rtrn = new TreeMap<String, Map<String, TreeMap<Integer, Double>>>();
+		Map<String, WigTrack.Builder> builders = new TreeMap<String, WigTrack.Builder>();
 		for(int i=0; i<bases.length; i++) {
-			Map<String, TreeMap<Integer, Double>> trackThisBase = new TreeMap<String, TreeMap<Integer, Double>>();
-			for(String chr : wigData.keySet()) {
-				TreeMap<Integer, Double> trackThisChr = new TreeMap<Integer, Double>();
-				trackThisBase.put(chr, trackThisChr);
+			WigTrack.Builder trackThisBase = new WigTrack.Builder();
+			for(String chr : track.getChrs()) {
+				trackThisBase.addChr(chr);
 			}
-			rtrn.put(bases[i], trackThisBase);
+			builders.put(bases[i], trackThisBase);
 		}
 		// Make tracks
-		for(String chr : wigData.keySet()) {
+		for(String chr : track.getChrs()) {
 			logger.info(chr);
-			for(Integer pos : wigData.get(chr).keySet()) {
-				Double val = wigData.get(chr).get(pos);
-				char[] base = {transcribedRegions.getTranscribedBase(chr, pos.intValue())};
+			for(int i = 0; i < track.size(chr); i++) {
+				int pos = track.getPosition(chr, i);
+				char[] base = {transcribedRegions.getTranscribedBase(chr, pos)};
 				String baseString = new String(base);
-				rtrn.get(baseString).get(chr).put(pos, val);
+				builders.get(baseString).add(chr, pos, track.getValue(chr, i));
 			}
 		}
+		Map<String, WigTrack> rtrn = new TreeMap<String, WigTrack>();
+		for(String base : builders.keySet()) {
+			rtrn.put(base, builders.get(base).build());
+		}
 		logger.info("Done getting separate tracks for each nucleotide.");
 		return rtrn;
 	}
@@ -168,14 +225,12 @@ public class WigTools {
 	 */
 	private void writeTracksByNuceotide(String outFilePrefix) throws IOException{
 		logger.info("Writing separate nucleotide tracks...");
-		Map<String, Map<String, TreeMap<Integer, Double>>> tracksByNuc = getTracksByNucleotide();
+		Map<String, WigTrack> tracksByNuc = getTracksByNucleotide();
 		for(int i=0; i<bases.length; i++) {
 			String base = bases[i];
 			String outFile = outFilePrefix + "_" + base + ".wig";
-			FileWriter w = new FileWriter(outFile);
-			for(String chr : tracksByNuc.get(base).keySet()) {
-				WigWriter.write(w, chr, tracksByNuc.get(base).get(chr), false);
-			}
+			BufferedWriter w = new BufferedWriter(new FileWriter(outFile));
+			tracksByNuc.get(base).write(w);
 			w.close();
 		}
 		logger.info("Done writing separate tracks.");
@@ -184,49 +239,16 @@ public class WigTools {
 	
 	/**
 	 * Add values from two wig files and write merged wig file
-	 * @param wig1 Wig file 1
-	 * @param wig2 Wig file 2
+	 * @param wig1 Wig file 1, sorted by position within chromosomes
+	 * @param wig2 Wig file 2, sorted by position within chromosomes, with chromosomes in the same order as wig file 1
 	 * @param outFile Output file to write
 	 * @throws IOException
 	 */
 	private static void mergeWigFiles(String wig1, String wig2, String outFile) throws IOException {
-		logger.info("Merging wig files " + wig1 + " and " + wig2 + " and writing to file " + outFile + "...");
-		WigReader r1 = new WigReader(wig1);
-		WigReader r2 = new WigReader(wig2);
-		Map<String, TreeMap<Integer, Double>> vals1 = r1.getAllValues();
-		Map<String, TreeMap<Integer, Double>> vals2 = r2.getAllValues();
-		Collection<String> allChrs = new TreeSet<String>();
-		allChrs.addAll(vals1.keySet());
-		allChrs.addAll(vals2.keySet());
-		FileWriter w = new FileWriter(outFile);
-		for(String chr : allChrs) {
-			logger.info(chr);
-			if(!vals1.containsKey(chr)) {
-				WigWriter.write(w, chr, vals2.get(chr), false);
-				continue;
-			}
-			if(!vals2.containsKey(chr)) {
-				WigWriter.write(w, chr, vals1.get(chr), false);
-				continue;
-			}
-			TreeMap<Integer, Double> valsThisChr = new TreeMap<Integer, Double>();
-			Collection<Integer> positions = new TreeSet<Integer>();
-			positions.addAll(vals1.get(chr).keySet());
-			positions.addAll(vals2.get(chr).keySet());
-			for(Integer pos : positions) {
-				double val = 0;
-				if(vals1.get(chr).containsKey(pos)) {
-					val += vals1.get(chr).get(pos).doubleValue();
-				}
-				if(vals2.get(chr).containsKey(pos)) {
-					val += vals2.get(chr).get(pos).doubleValue();
-				}
-				valsThisChr.put(pos, Double.valueOf(val));
-			}
-			WigWriter.write(w, chr, valsThisChr, false);
-		}
-		w.close();
-		logger.info("Done writing merged wig file.");
+		List<String> wigs = new ArrayList<String>();
+		wigs.add(wig1);
+		wigs.add(wig2);
+		WigMerger.merge(wigs, WigMerger.Operation.SUM, outFile);
 	}
 	
 	
@@ -277,16 +299,21 @@ public class WigTools {
 	 * @throws IOException 
 	 */
 	private void computeBaseCounts() throws IOException {
+		WigTrack track = getWigData();
+		if(usePackedGenome) {
+			baseCounts.putAll(getPackedGenome().getBaseCounts(track, numThreads));
+			return;
+		}
 		logger.info("Computing base counts...");
 		double[] counts = new double[10];
 		for(int i = 0; i < counts.length; i++) {
 			counts[i] = 0;
 		}
-		for(String chr : wigData.keySet()) {
+		for(String chr : track.getChrs()) {
 			logger.info(chr);
-			for(Integer pos : wigData.get(chr).keySet()) {
-				double value = wigData.get(chr).get(pos).doubleValue();
-				char base = transcribedRegions.getTranscribedBase(chr, pos.intValue());
+			for(int i = 0; i < track.size(chr); i++) {
+				double value = track.getValue(chr, i);
+				char base = transcribedRegions.getTranscribedBase(chr, track.getPosition(chr, i));
 				switch(base) {
 					case 'A':  counts[Sequence.SHORT_ENCODED_A] += value;
 					break;
@@ -329,17 +356,24 @@ public class WigTools {
 	 * @throws IOException
 	 */
 	private void computeDinucleotideCounts(int firstPosRelative) throws IOException {
+		WigTrack track = getWigData();
+		if(usePackedGenome) {
+			dinucleotideCounts.clear();
+			dinucleotideCounts.putAll(getPackedGenome().getDinucleotideCounts(track, firstPosRelative, numThreads));
+			return;
+		}
 		
 		logger.info("Computing dinucleotide counts...");
 		dinucleotideCounts.clear();
 		
-		for(String chr : wigData.keySet()) {
+		for(String chr : track.getChrs()) {
 			logger.info(chr);
-			for(Integer pos : wigData.get(chr).keySet()) {
-				double value = wigData.get(chr).get(pos).doubleValue();
+			for(int i = 0; i < track.size(chr); i++) {
+				double value = track.getValue(chr, i);
+				int pos = track.getPosition(chr, i);
 				try {
-					char firstBase = transcribedRegions.getTranscribedBase(chr, transcribedRegions.shiftPosition(chr, pos.intValue(), firstPosRelative));
-					char secondBase = transcribedRegions.getTranscribedBase(chr, transcribedRegions.shiftPosition(chr, pos.intValue(), firstPosRelative + 1));
+					char firstBase = transcribedRegions.getTranscribedBase(chr, transcribedRegions.shiftPosition(chr, pos, firstPosRelative));
+					char secondBase = transcribedRegions.getTranscribedBase(chr, transcribedRegions.shiftPosition(chr, pos, firstPosRelative + 1));
 					char[] dinuc = new char[2];
 					dinuc[0] = firstBase;
 					dinuc[1] = secondBase;
@@ -350,10 +384,10 @@ public class WigTools {
 					}
 					dinucleotideCounts.put(dinucString, Double.valueOf(dinucleotideCounts.get(dinucString).doubleValue() + value));
 				} catch(UnsupportedOperationException e) {
-					logger.debug("Skipping " + chr + ":" + pos.toString());
+					logger.debug("Skipping " + chr + ":" + pos);
 					continue;
 				} catch(IllegalArgumentException e) {
-					logger.debug("Skipping " + chr + ":" + pos.toString());
+					logger.debug("Skipping " + chr + ":" + pos);
 					continue;
 				}
 			}			
@@ -374,67 +408,64 @@ public class WigTools {
 		String fileG = outWigFilePrefix + "_G.wig";
 		String fileT = outWigFilePrefix + "_T.wig";
 		logger.info("Writing binary transcribed nucleotide tracks to files " + fileA + ", " + fileC + ", " + fileG + ", " + fileT + "...");
-		FileWriter writerA = new FileWriter(fileA);
-		FileWriter writerC = new FileWriter(fileC);
-		FileWriter writerG = new FileWriter(fileG);
-		FileWriter writerT = new FileWriter(fileT);
+		BufferedWriter writerA = new BufferedWriter(new FileWriter(fileA));
+		BufferedWriter writerC = new BufferedWriter(new FileWriter(fileC));
+		BufferedWriter writerG = new BufferedWriter(new FileWriter(fileG));
+		BufferedWriter writerT = new BufferedWriter(new FileWriter(fileT));
 		Map<String, Collection<Gene>> genes = transcribedRegions.getGenes();
 		for(String chr : genes.keySet()) {
 			logger.info(chr);
-			// Initialize the four tracks
-			TreeMap<Integer, Double> transcribedA = new TreeMap<Integer, Double>();
-			TreeMap<Integer, Double> transcribedC = new TreeMap<Integer, Double>();
-			TreeMap<Integer, Double> transcribedG = new TreeMap<Integer, Double>();
-			TreeMap<Integer, Double> transcribedT = new TreeMap<Integer, Double>();
-			// First list all postions contained in any exon
-			Collection<Integer> allPositions = new TreeSet<Integer>();
+			// Sorted exon intervals; positions are visited in order without listing them all
+			List<int[]> exons = new ArrayList<int[]>();
+			long numPositions = 0;
 			for(Gene gene : genes.get(chr)) {
 				for(Annotation exon : gene.getBlocks()) {
-					for(int i = exon.getStart(); i < exon.getEnd(); i++) {
-						allPositions.add(Integer.valueOf(i));
-					}
+					exons.add(new int[] {exon.getStart(), exon.getEnd()});
+					numPositions += exon.getEnd() - exon.getStart();
 				}
 			}
-			// Now get transcribed nucleotide for each position and add to tracks
-			int numPositions = allPositions.size();
-			CountLogger c = new CountLogger(numPositions,10);
-			for(Integer pos : allPositions) {
-				c.advance();
-				char base = transcribedRegions.getTranscribedBase(chr, pos.intValue());
-				switch(base) {
-				case 'A':
-					transcribedA.put(pos, Double.valueOf(1));
-					break;
-				case 'a':
-					transcribedA.put(pos, Double.valueOf(1));
-					break;
-				case 'C':
-					transcribedC.put(pos, Double.valueOf(1));
-					break;
-				case 'c':
-					transcribedC.put(pos, Double.valueOf(1));
-					break;
-				case 'G':
-					transcribedG.put(pos, Double.valueOf(1));
-					break;
-				case 'g':
-					transcribedG.put(pos, Double.valueOf(1));
-					break;
-				case 'T':
-					transcribedT.put(pos, Double.valueOf(1));
-					break;
-				case 't':
-					transcribedT.put(pos, Double.valueOf(1));
-					break;
-				default:
-					break;
+			Collections.sort(exons, new Comparator<int[]>() {
+				@Override
+				public int compare(int[] e1, int[] e2) {
+					return Integer.compare(e1[0], e2[0]);
+				}
+			});
+			writerA.write("variableStep chrom=" + chr + "\n");
+			writerC.write("variableStep chrom=" + chr + "\n");
+			writerG.write("variableStep chrom=" + chr + "\n");
+			writerT.write("variableStep chrom=" + chr + "\n");
+			// Now get transcribed nucleotide for each position and write to tracks
+			CountLogger c = new CountLogger((int) Math.min(numPositions, Integer.MAX_VALUE), 10);
+			// First position not yet visited
+			int next = Integer.MIN_VALUE;
+			for(int[] exon : exons) {
+				for(int pos = Math.max(exon[0], next); pos < exon[1]; pos++) {
+					c.advance();
+					char base = transcribedRegions.getTranscribedBase(chr, pos);
+					String line = (pos + 1) + "\t" + 1.0f + "\n";
+					switch(base) {
+					case 'A':
+					case 'a':
+						writerA.write(line);
+						break;
+					case 'C':
+					case 'c':
+						writerC.write(line);
+						break;
+					case 'G':
+					case 'g':
+						writerG.write(line);
+						break;
+					case 'T':
+					case 't':
+						writerT.write(line);
+						break;
+					default:
+						break;
+					}
 				}
+				next = Math.max(next, exon[1]);
 			}
-			// Write tracks
-			WigWriter.write(writerA, chr, transcribedA, false);
-			WigWriter.write(writerC, chr, transcribedC, false);
-			WigWriter.write(writerG, chr, transcribedG, false);
-			WigWriter.write(writerT, chr, transcribedT, false);
 		}
 		writerA.close();
 		writerC.close();
@@ -450,12 +481,18 @@ public class WigTools {
 	 * @param identifier Identifier to append to name of returned gene
 	 * @return A gene whose blocks consist of contiguous positions with wig value over the min, intersected with the gene
 	 */
-	private Gene getWigOverlappingPositionsAsGene(Gene gene, double minWigValue, String identifier) {
+	private Gene getWigOverlappingPositionsAsGene(Gene gene, double minWigValue, String identifier) throws IOException {
 		String chr = gene.getChr();
 		// Get all wig values for positions overlapping exons of the gene
 		TreeMap<Integer, Double> exonicWigValues = new TreeMap<Integer, Double>();
 		for(Annotation exon : gene.getExonSet()) {
-			exonicWigValues.putAll(wigReader.getValues(chr, exon.getStart(), exon.getEnd()));
+			if(bigWig != null) {
+				exonicWigValues.putAll(bigWig.getValues(chr, exon.getStart(), exon.getEnd()));
+				continue;
+			}
+			for(int i = wigData.getFirstIndexAtOrAfter(chr, exon.getStart()); i < wigData.size(chr) && wigData.getPosition(chr, i) < exon.getEnd(); i++) {
+				exonicWigValues.put(Integer.valueOf(wigData.getPosition(chr, i)), Double.valueOf(wigData.getValue(chr, i)));
+			}
 		}
 		if(exonicWigValues.isEmpty()) {
 			logger.debug("Gene " + gene.getName() + " has no overlapping wig positions with value >" + minWigValue + ". Returning null.");
@@ -468,7 +505,7 @@ public class WigTools {
 		int end = start;
 		while(posIter.hasNext()) {
 			Integer n = posIter.next();
-			if(wigData.get(chr).get(n).doubleValue() < minWigValue) {
+			if(exonicWigValues.get(n).doubleValue() < minWigValue) {
 				continue;
 			}
 			int next = n.intValue();
@@ -496,19 +533,20 @@ public class WigTools {
 	 * @throws IOException
 	 */
 	private void writeWigFilteredByChrs(String chrListFile, String outputWig) throws IOException {
+		WigTrack track = getWigData();
 		logger.info("");
 		logger.info("Writing wig data for chromosomes in " + chrListFile + " to file " + outputWig + "...");
 		BufferedReader b = new BufferedReader(new FileReader(chrListFile));
 		List<String> chrs = FileUtils.fileLinesAsList(chrListFile);
 		for(String chr : chrs) {
-			if(!wigData.containsKey(chr)) {
+			if(!track.hasChr(chr)) {
 				throw new IllegalArgumentException("Wig data does not contain key " + chr + ".");
 			}
 		}
-		FileWriter w = new FileWriter(outputWig);
+		BufferedWriter w = new BufferedWriter(new FileWriter(outputWig));
 		for(String chr : chrs) {
 			logger.info(chr);
-			WigWriter.write(w, chr, wigData.get(chr), false);
+			track.write(w, chr);
 		}
 		w.close();
 		logger.info("Done writing filtered file.");
@@ -552,7 +590,7 @@ public class WigTools {
 		description += "Task 1: write table of total base counts (requires -w, -g, -b, -ot)\n";
 		description += "Task 2: write tracks for each nucleotide (requires -w, -g, -b, -on)\n";
 		description += "Task 3: write shifted wig file (requires -w, -g, -b, -of, -os)\n";
-		description += "Task 4: merge two wig files (requires -w, -w2, -om)\n";
+		description += "Task 4: merge two wig files sorted by position within chromosomes, with chromosomes in the same order in both files (requires -w, -w2, -om); see WigMerger to combine more files\n";
 		description += "Task 5: write binary wig tracks of transcribed nucleotides at all exonic positions (requires -g, -b, -ob)\n";
 		description += "Task 6: write bed file of genes whose blocks consist of contiguous positions with wig value over a min value, intersected with each gene (requires -w, -g, -b, -mw, -id, -oi)\n";
 		description += "Task 7: write table of total dinucleotide counts (requires -w, -g, -b, -otd)\n";
@@ -562,7 +600,7 @@ public class WigTools {
 		p.addStringArg("-g", "For task 1, 2, 3, 5 or 7: genome fasta", false, null);
 		p.addStringArg("-b", "For task 1, 2, 3, 5 or 7: bed annotation", false, null);
 		p.addStringArg("-w2", "For task 4: other wig file to merge", false, null);
-		p.addStringArg("-w", "For task 1, 2, 3, 4, 6, 7 or 8: input wig file", false, null);
+		p.addStringArg("-w", "For task 1, 2, 3, 4, 6, 7 or 8: input wig file; for tasks other than 4 can also be a bigwig file", false, null);
 		p.addStringArg("-ot", "For task 1: output file for table of total base counts", false, null);
 		p.addStringArg("-on", "For task 2: prefix for separate output wig tracks for each nucleotide", false, null);
 		p.addStringArg("-os", "For task 3: output wig file where values have been shifted to a new position in direction of transcription, specified by an offset", false, null);
@@ -576,6 +614,8 @@ public class WigTools {
 		p.addIntArg("-wfd", "For task 7: first position of dinucleotide relative to wig position", false, 0);
 		p.addStringArg("-c", "For task 8: file containing list of chromosomes to keep", false, null);
 		p.addStringArg("-ofc", "For task 8: output wig file filtered by chromosomes", false, null);
+		p.addBooleanArg("-pk", "For task 1 or 7: count from a packed table of transcribed bases of all exonic positions; skips positions transcribed on both strands", false, false);
+		p.addIntArg("-t", "For task 1 or 7 with -pk: number of threads", false, 1);
 		
 		p.parse(args);
 		if(p.getFlagsAndValues().isEmpty()) {
@@ -599,6 +639,8 @@ public class WigTools {
 		int dinucFirstPos = p.getIntArg("-wfd");
 		String chrsToKeep = p.getStringArg("-c");
 		String outChrFilteredWig = p.getStringArg("-ofc");
+		boolean usePacked = p.getBooleanArg("-pk");
+		int numThreads = p.getIntArg("-t");
 		
 		if(wigFile != null && chrsToKeep != null && outChrFilteredWig != null) {
 			WigTools w = new WigTools(wigFile);
@@ -617,6 +659,7 @@ public class WigTools {
 				throw new IllegalArgumentException("Must provide wig file with -w option");
 			}
 			WigTools wsc = new WigTools(wigFile, genomeFasta, bedFile);
+			wsc.setUsePackedGenome(usePacked, numThreads);
 			if(outTable != null) wsc.writeBaseCountsToTable(outTable);
 			if(outNucTracks != null) wsc.writeTracksByNuceotide(outNucTracks);
 			if(outShifted != null) wsc.writeShiftedWig(outShifted, offset);
@@ -0,0 +1,294 @@
+/**
+ *
+ */
+package util.programs.wig;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compact in-memory wig track
+ * Each chromosome is stored as a sorted array of zero based positions and a parallel array of float values
+ * Reads variableStep, fixedStep and bedGraph lines or bigwig files; writes variableStep with one based positions
+ * @author prussell
+ *
+ */
+public class WigTrack {
+
+	private Map<String, ChrTrack> tracks;
+	private static Logger logger = Logger.getLogger(WigTrack.class.getName());
+
+	/**
+	 * Positions and values for one chromosome
+	 */
+	private static class ChrTrack {
+		int[] positions;
+		float[] values;
+		ChrTrack(int[] pos, float[] vals) {
+			positions = pos;
+			values = vals;
+		}
+	}
+
+	private WigTrack() {
+		tracks = new TreeMap<String, ChrTrack>();
+	}
+
+	/**
+	 * Builds a track from positions added in any order
+	 * If a position is added more than once the last value is kept
+	 */
+	public static class Builder {
+
+		private Map<String, ChrBuilder> chrBuilders = new TreeMap<String, ChrBuilder>();
+
+		/**
+		 * Add a value
+		 * @param chr Chromosome
+		 * @param pos Zero based position
+		 * @param value Value
+		 */
+		public void add(String chr, int pos, double value) {
+			ChrBuilder b = chrBuilders.get(chr);
+			if(b == null) {
+				b = new ChrBuilder();
+				chrBuilders.put(chr, b);
+			}
+			b.add(pos, (float) value);
+		}
+
+		/**
+		 * Make sure the chromosome is in the track even if it has no values
+		 * @param chr Chromosome
+		 */
+		public void addChr(String chr) {
+			if(!chrBuilders.containsKey(chr)) {
+				chrBuilders.put(chr, new ChrBuilder());
+			}
+		}
+
+		/**
+		 * @return The track
+		 */
+		public WigTrack build() {
+			WigTrack rtrn = new WigTrack();
+			for(String chr : chrBuilders.keySet()) {
+				rtrn.tracks.put(chr, chrBuilders.get(chr).build());
+			}
+			chrBuilders.clear();
+			return rtrn;
+		}
+
+	}
+
+	/**
+	 * Growable arrays for one chromosome
+	 */
+	private static class ChrBuilder {
+
+		private int[] positions = new int[1024];
+		private float[] values = new float[1024];
+		private int size = 0;
+		private boolean sorted = true;
+
+		void add(int pos, float value) {
+			if(size == positions.length) {
+				positions = Arrays.copyOf(positions, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			if(size > 0 && pos <= positions[size - 1]) {
+				sorted = false;
+			}
+			positions[size] = pos;
+			values[size] = value;
+			size++;
+		}
+
+		ChrTrack build() {
+			if(!sorted) {
+				// Stable sort of indices by position so the last value added for a position is last
+				long[] keys = new long[size];
+				for(int i = 0; i < size; i++) {
+					keys[i] = ((long) positions[i] << 32) | i;
+				}
+				Arrays.sort(keys);
+				int[] sortedPositions = new int[size];
+				float[] sortedValues = new float[size];
+				int n = 0;
+				for(int i = 0; i < size; i++) {
+					int index = (int) (keys[i] & 0xffffffffL);
+					int pos = (int) (keys[i] >> 32);
+					if(n > 0 && sortedPositions[n - 1] == pos) {
+						sortedValues[n - 1] = values[index];
+					} else {
+						sortedPositions[n] = pos;
+						sortedValues[n] = values[index];
+						n++;
+					}
+				}
+				positions = sortedPositions;
+				values = sortedValues;
+				size = n;
+			}
+			return new ChrTrack(Arrays.copyOf(positions, size), Arrays.copyOf(values, size));
+		}
+
+	}
+
+	/**
+	 * Read a wig, bedGraph or bigwig file
+	 * @param wigFile Wig file
+	 * @return The track
+	 * @throws IOException
+	 */
+	public static WigTrack read(String wigFile) throws IOException {
+		logger.info("Reading wig file " + wigFile + "...");
+		Builder builder = new Builder();
+		if(BigWigReader.isBigWig(wigFile)) {
+			BigWigReader bigWig = new BigWigReader(wigFile);
+			addAll(bigWig, builder);
+			bigWig.close();
+		} else {
+			WigStreamReader reader = new WigStreamReader(wigFile);
+			while(reader.next()) {
+				builder.add(reader.getChr(), reader.getPosition(), reader.getValue());
+			}
+			reader.close();
+		}
+		WigTrack rtrn = builder.build();
+		logger.info("Read " + rtrn.getNumPositions() + " positions on " + rtrn.getChrs().size() + " chromosomes.");
+		return rtrn;
+	}
+
+	/**
+	 * Add every position of a bigwig file to a builder
+	 * @param bigWig Bigwig reader
+	 * @param builder Builder
+	 * @throws IOException
+	 */
+	private static void addAll(BigWigReader bigWig, final Builder builder) throws IOException {
+		for(final String chr : bigWig.getChrs()) {
+			builder.addChr(chr);
+			bigWig.forEachInterval(chr, 0, bigWig.getChrSize(chr), new BigWigReader.IntervalHandler() {
+				@Override
+				public void handle(int start, int end, float value) {
+					for(int pos = start; pos < end; pos++) {
+						builder.add(chr, pos, value);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return Chromosome names in sorted order
+	 */
+	public Set<String> getChrs() {
+		return tracks.keySet();
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @return True iff the track has the chromosome
+	 */
+	public boolean hasChr(String chr) {
+		return tracks.containsKey(chr);
+	}
+
+	/**
+	 * @return Total number of positions with a value
+	 */
+	public long getNumPositions() {
+		long rtrn = 0;
+		for(ChrTrack t : tracks.values()) {
+			rtrn += t.positions.length;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @return Number of positions with a value on the chromosome
+	 */
+	public int size(String chr) {
+		ChrTrack t = tracks.get(chr);
+		return t == null ? 0 : t.positions.length;
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @param i Index
+	 * @return Zero based position at the index
+	 */
+	public int getPosition(String chr, int i) {
+		return tracks.get(chr).positions[i];
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @param i Index
+	 * @return Value at the index
+	 */
+	public float getValue(String chr, int i) {
+		return tracks.get(chr).values[i];
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @param pos Zero based position
+	 * @return Index of the first position at or after the position
+	 */
+	public int getFirstIndexAtOrAfter(String chr, int pos) {
+		ChrTrack t = tracks.get(chr);
+		if(t == null) {
+			return 0;
+		}
+		int i = Arrays.binarySearch(t.positions, pos);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	/**
+	 * Write one chromosome in variableStep format
+	 * @param w Writer
+	 * @param chr Chromosome
+	 * @throws IOException
+	 */
+	public void write(Writer w, String chr) throws IOException {
+		ChrTrack t = tracks.get(chr);
+		writeChr(w, chr, t.positions, t.values, t.positions.length);
+	}
+
+	/**
+	 * Write all chromosomes in variableStep format
+	 * @param w Writer
+	 * @throws IOException
+	 */
+	public void write(Writer w) throws IOException {
+		for(String chr : tracks.keySet()) {
+			write(w, chr);
+		}
+	}
+
+	/**
+	 * Write values for one chromosome in variableStep format
+	 * @param w Writer
+	 * @param chr Chromosome
+	 * @param positions Sorted zero based positions
+	 * @param values Values
+	 * @param size Number of positions to write
+	 * @throws IOException
+	 */
+	public static void writeChr(Writer w, String chr, int[] positions, float[] values, int size) throws IOException {
+		w.write("variableStep chrom=" + chr + "\n");
+		for(int i = 0; i < size; i++) {
+			w.write((positions[i] + 1) + "\t" + values[i] + "\n");
+		}
+	}
+
+}
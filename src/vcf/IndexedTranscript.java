@@ -0,0 +1,163 @@
+package vcf;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.SingleInterval;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A transcript with its exon blocks in arrays and the cumulative exon length before each block
+ * Maps a genomic position to transcript coordinates by binary search over the blocks
+ * @author prussell
+ *
+ */
+public final class IndexedTranscript {
+
+	private Annotation transcript;
+	private int[] blockStarts;
+	private int[] blockEnds;
+	private int[] cumulativeLengths;
+	private int length;
+	private int start;
+	private int end;
+
+	/**
+	 * @param annotation The transcript
+	 */
+	public IndexedTranscript(Annotation annotation) {
+		transcript = annotation;
+		int n = annotation.getNumberOfBlocks();
+		blockStarts = new int[n];
+		blockEnds = new int[n];
+		cumulativeLengths = new int[n];
+		Iterator<SingleInterval> iter = annotation.getBlocks();
+		int i = 0;
+		while(iter.hasNext()) {
+			SingleInterval block = iter.next();
+			blockStarts[i] = block.getReferenceStartPosition();
+			blockEnds[i] = block.getReferenceEndPosition();
+			i++;
+		}
+		// Blocks are normally in genomic order already
+		if(!isSorted()) {
+			sortBlocks();
+		}
+		length = 0;
+		start = n == 0 ? 0 : blockStarts[0];
+		end = 0;
+		for(int j = 0; j < n; j++) {
+			cumulativeLengths[j] = length;
+			length += blockEnds[j] - blockStarts[j];
+			end = Math.max(end, blockEnds[j]);
+		}
+	}
+
+	private boolean isSorted() {
+		for(int i = 1; i < blockStarts.length; i++) {
+			if(blockStarts[i] < blockStarts[i - 1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void sortBlocks() {
+		long[] keys = new long[blockStarts.length];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = ((long) blockStarts[i] << 32) | (blockEnds[i] & 0xffffffffL);
+		}
+		Arrays.sort(keys);
+		for(int i = 0; i < keys.length; i++) {
+			blockStarts[i] = (int) (keys[i] >> 32);
+			blockEnds[i] = (int) keys[i];
+		}
+	}
+
+	/**
+	 * @return The transcript
+	 */
+	public Annotation getAnnotation() {
+		return transcript;
+	}
+
+	/**
+	 * @return Transcript name
+	 */
+	public String getName() {
+		return transcript.getName();
+	}
+
+	/**
+	 * @return Transcript strand
+	 */
+	public Strand getOrientation() {
+		return transcript.getOrientation();
+	}
+
+	/**
+	 * @return Genomic start of the first block
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * @return Genomic end of the last block
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * @param pos Genomic position
+	 * @return Index of the block containing the position or -1 if none
+	 */
+	private int getBlockIndex(int pos) {
+		int i = Arrays.binarySearch(blockStarts, pos);
+		if(i < 0) {
+			i = -i - 2;
+		}
+		if(i < 0 || pos >= blockEnds[i]) {
+			return -1;
+		}
+		return i;
+	}
+
+	/**
+	 * @param start Genomic start
+	 * @param end Genomic end, exclusive
+	 * @return True iff the interval is entirely within one block
+	 */
+	public boolean blockContains(int start, int end) {
+		int i = getBlockIndex(start);
+		return i >= 0 && end <= blockEnds[i];
+	}
+
+	/**
+	 * @param pos Genomic position
+	 * @return True iff the position is in a block
+	 */
+	public boolean blockContains(int pos) {
+		return getBlockIndex(pos) >= 0;
+	}
+
+	/**
+	 * Get the distance of a position from the 5' end of the transcript, counting exonic positions only
+	 * @param pos Genomic position
+	 * @return Zero based transcript coordinate or -1 if the position is not in a block
+	 */
+	public int getRelativePositionFrom5PrimeOfFeature(int pos) {
+		int i = getBlockIndex(pos);
+		if(i < 0) {
+			return -1;
+		}
+		int fromLeft = cumulativeLengths[i] + pos - blockStarts[i];
+		if(transcript.getOrientation().equals(Strand.NEGATIVE)) {
+			return length - 1 - fromLeft;
+		}
+		return fromLeft;
+	}
+
+}
@@ -0,0 +1,113 @@
+package vcf;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.broad.tribble.readers.TabixReader;
+
+/**
+ * Reads the records of a region from a bgzip compressed VCF file with a tabix index (file.vcf.gz.tbi)
+ * Records are returned as VCFLines sharing the sample IDs parsed once from the header
+ * Not thread safe; use one reader per thread
+ * @author prussell
+ *
+ */
+public class TabixVCFReader {
+
+	private String fileName;
+	private TabixReader tabix;
+	private List<String> headerLines;
+	private List<String> sampleIDs;
+	private Map<String, Integer> sampleIndex;
+	private static Logger logger = Logger.getLogger(TabixVCFReader.class.getName());
+
+	/**
+	 * @param bgzippedVcf VCF file compressed with bgzip and indexed with tabix
+	 * @throws IOException
+	 */
+	public TabixVCFReader(String bgzippedVcf) throws IOException {
+		fileName = bgzippedVcf;
+		VCFReader headerReader = new VCFReader(bgzippedVcf);
+		headerLines = headerReader.getHeaderLines();
+		sampleIDs = headerReader.getSampleIDs();
+		sampleIndex = headerReader.getSampleIndex();
+		headerReader.close();
+		tabix = new TabixReader(bgzippedVcf);
+		logger.debug("Opened tabix index for " + fileName + " with " + tabix.mChr2tid.size() + " chromosomes.");
+	}
+
+	/**
+	 * @return All header lines including the line beginning with #CHROM
+	 */
+	public List<String> getHeaderLines() {
+		return headerLines;
+	}
+
+	/**
+	 * @return Sample IDs, or null if the header has no FORMAT column
+	 */
+	public List<String> getSampleIDs() {
+		return sampleIDs;
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @return True iff the index has records for the chromosome
+	 */
+	public boolean hasChr(String chr) {
+		return tabix.mChr2tid.containsKey(chr);
+	}
+
+	/**
+	 * Records overlapping a region, in file order
+	 */
+	public class RegionIterator {
+
+		private TabixReader.Iterator iter;
+
+		private RegionIterator(TabixReader.Iterator iter) {
+			this.iter = iter;
+		}
+
+		/**
+		 * @return The next record or null if there are no more records in the region
+		 * @throws IOException
+		 */
+		public VCFLine next() throws IOException {
+			if(iter == null) {
+				return null;
+			}
+			String line = iter.next();
+			if(line == null) {
+				iter = null;
+				return null;
+			}
+			return new VCFLine(line, sampleIDs, sampleIndex);
+		}
+
+	}
+
+	/**
+	 * Get the records whose reference allele overlaps a region
+	 * @param chr Chromosome
+	 * @param start Zero based start
+	 * @param end Exclusive end
+	 * @return Iterator over the records
+	 */
+	public RegionIterator query(String chr, int start, int end) {
+		if(!hasChr(chr) || end <= start) {
+			return new RegionIterator(null);
+		}
+		return new RegionIterator(tabix.query(tabix.mChr2tid.get(chr).intValue(), start, end));
+	}
+
+	/**
+	 * Close the file
+	 */
+	public void close() {
+		tabix.close();
+	}
+
+}
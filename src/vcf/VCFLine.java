@@ -0,0 +1,211 @@
+package vcf;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A VCF record backed by its raw line
+ * Fields are sliced out of the line when requested and genotype columns are located only when a genotype is requested,
+ * so records that are only checked for position cost one tab scan
+ * Sample IDs are shared with the VCFReader that produced the record
+ * @author prussell
+ *
+ */
+public final class VCFLine {
+
+	private static final int NUM_FIXED_TABS = 8;
+
+	private String line;
+	private List<String> sampleIDs;
+	private Map<String, Integer> sampleIndex;
+	private int[] tabs; // Offsets of the first tabs in the line, found on first access
+	private int numTabs;
+	private int pos; // One based, or -1 before it is parsed
+
+	/**
+	 * @param line Raw VCF line
+	 * @param sampleIDs Sample IDs from the header, or null if the header has no FORMAT column
+	 * @param sampleIndex Index of each sample ID in the genotype columns
+	 */
+	VCFLine(String line, List<String> sampleIDs, Map<String, Integer> sampleIndex) {
+		this.line = line;
+		this.sampleIDs = sampleIDs;
+		this.sampleIndex = sampleIndex;
+		pos = -1;
+	}
+
+	private void findTabs() {
+		if(tabs != null) {
+			return;
+		}
+		int[] t = new int[NUM_FIXED_TABS];
+		int n = 0;
+		int tab = line.indexOf('\t');
+		while(tab >= 0 && n < t.length) {
+			t[n] = tab;
+			n++;
+			tab = line.indexOf('\t', tab + 1);
+		}
+		if(n < 7) {
+			throw new IllegalArgumentException("Line must have at least 8 fields: " + line);
+		}
+		numTabs = n;
+		tabs = t;
+	}
+
+	/**
+	 * @param i Zero based index of one of the first nine fields
+	 * @return The field, or null if the line does not have it
+	 */
+	private String getField(int i) {
+		findTabs();
+		if(i > numTabs) {
+			return null;
+		}
+		int start = i == 0 ? 0 : tabs[i - 1] + 1;
+		if(i < numTabs) {
+			return line.substring(start, tabs[i]);
+		}
+		// Last field of a line with no genotypes, or FORMAT
+		int end = line.indexOf('\t', start);
+		return end < 0 ? line.substring(start) : line.substring(start, end);
+	}
+
+	/**
+	 * @return The raw line
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	 * @return Chromosome name
+	 */
+	public String getChrom() {
+		return getField(0);
+	}
+
+	/**
+	 * Get the position as one based
+	 * @return One based position
+	 */
+	public int getOneBasedPos() {
+		if(pos < 0) {
+			findTabs();
+			pos = Integer.parseInt(line.substring(tabs[0] + 1, tabs[1]));
+		}
+		return pos;
+	}
+
+	/**
+	 * Get the position as zero based
+	 * @return Zero based position
+	 */
+	public int getZeroBasedPos() {
+		return getOneBasedPos() - 1;
+	}
+
+	/**
+	 * @return ID field
+	 */
+	public String getId() {
+		return getField(2);
+	}
+
+	/**
+	 * @return Reference allele bases
+	 */
+	public String getRef() {
+		return getField(3);
+	}
+
+	/**
+	 * @return Alternate allele field
+	 */
+	public String getAlt() {
+		return getField(4);
+	}
+
+	/**
+	 * @return Quality field
+	 */
+	public String getQual() {
+		return getField(5);
+	}
+
+	/**
+	 * @return Filter field
+	 */
+	public String getFilter() {
+		return getField(6);
+	}
+
+	/**
+	 * @return Info field
+	 */
+	public String getInfo() {
+		return getField(7);
+	}
+
+	/**
+	 * @return Format field or null if the line has no genotypes
+	 */
+	public String getFormat() {
+		return getField(8);
+	}
+
+	/**
+	 * @return Sample IDs from the header, or null if the header has no FORMAT column
+	 */
+	public List<String> getSampleIDs() {
+		return sampleIDs;
+	}
+
+	/**
+	 * Get the genotype field for a sample by scanning to its column
+	 * @param sampleNumber Zero based index of the sample in the header
+	 * @return The genotype field
+	 */
+	public String getGenotype(int sampleNumber) {
+		findTabs();
+		if(numTabs < NUM_FIXED_TABS) {
+			throw new IllegalStateException("Line has no genotype columns: " + line);
+		}
+		// Skip FORMAT and the genotype columns before this one
+		int start = tabs[NUM_FIXED_TABS - 1];
+		for(int i = 0; i <= sampleNumber; i++) {
+			start = line.indexOf('\t', start + 1);
+			if(start < 0) {
+				throw new IllegalArgumentException("Line has fewer than " + (sampleNumber + 1) + " genotype columns: " + line);
+			}
+		}
+		int end = line.indexOf('\t', start + 1);
+		return end < 0 ? line.substring(start + 1) : line.substring(start + 1, end);
+	}
+
+	/**
+	 * Get the genotype field for a sample
+	 * @param sampleID Sample ID from the header line
+	 * @return The genotype field or null if the sample is not in the file
+	 */
+	public String getGenotype(String sampleID) {
+		Integer i = sampleIndex == null ? null : sampleIndex.get(sampleID);
+		if(i == null) {
+			return null;
+		}
+		return getGenotype(i.intValue());
+	}
+
+	/**
+	 * Fully parse the line
+	 * @return A VCFRecord sharing this line's sample IDs
+	 */
+	public VCFRecord toVCFRecord() {
+		return new VCFRecord(line, sampleIDs);
+	}
+
+	public String toString() {
+		return line;
+	}
+
+}
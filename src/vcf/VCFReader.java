@@ -0,0 +1,139 @@
+package vcf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import util.FileUtils;
+
+/**
+ * Reads a VCF file one record at a time
+ * The header is read and the sample IDs parsed once when the file is opened; each record is returned as a VCFLine over the raw line
+ * @author prussell
+ *
+ */
+public class VCFReader {
+
+	private String fileName;
+	private BufferedReader reader;
+	private List<String> headerLines;
+	private String headerLine;
+	private List<String> sampleIDs;
+	private Map<String, Integer> sampleIndex;
+	private String nextLine;
+	private static Logger logger = Logger.getLogger(VCFReader.class.getName());
+
+	/**
+	 * Open the file and read the header
+	 * @param vcfFile VCF file, plain or compressed with gzip or bgzip
+	 * @throws IOException
+	 */
+	public VCFReader(String vcfFile) throws IOException {
+		this(vcfFile, 1);
+	}
+
+	/**
+	 * Open the file and read the header
+	 * @param vcfFile VCF file, plain or compressed with gzip or bgzip
+	 * @param numThreads Number of threads to decompress a bgzip file
+	 * @throws IOException
+	 */
+	public VCFReader(String vcfFile, int numThreads) throws IOException {
+		this(FileUtils.openReader(vcfFile, numThreads), vcfFile);
+	}
+
+	/**
+	 * Read the header from an open reader
+	 * @param reader Reader positioned at the start of the VCF
+	 * @param name Name of the input for messages
+	 * @throws IOException
+	 */
+	public VCFReader(BufferedReader reader, String name) throws IOException {
+		fileName = name;
+		this.reader = reader;
+		headerLines = new ArrayList<String>();
+		nextLine = reader.readLine();
+		while(nextLine != null && nextLine.startsWith("#")) {
+			headerLines.add(nextLine);
+			if(nextLine.startsWith("#CHROM")) {
+				headerLine = nextLine;
+			}
+			nextLine = reader.readLine();
+		}
+		if(headerLine == null) {
+			reader.close();
+			throw new IllegalArgumentException("No header line beginning with #CHROM in " + fileName);
+		}
+		headerLines = Collections.unmodifiableList(headerLines);
+		sampleIDs = VCFRecord.parseSampleIDs(headerLine);
+		if(sampleIDs != null) {
+			sampleIndex = new HashMap<String, Integer>();
+			for(int i = 0; i < sampleIDs.size(); i++) {
+				sampleIndex.put(sampleIDs.get(i), Integer.valueOf(i));
+			}
+		}
+		logger.debug("Read " + headerLines.size() + " header lines from " + fileName + ".");
+	}
+
+	/**
+	 * @return All header lines including the line beginning with #CHROM
+	 */
+	public List<String> getHeaderLines() {
+		return headerLines;
+	}
+
+	/**
+	 * @return The header line beginning with #CHROM
+	 */
+	public String getHeaderLine() {
+		return headerLine;
+	}
+
+	/**
+	 * @return Sample IDs, or null if the header has no FORMAT column
+	 */
+	public List<String> getSampleIDs() {
+		return sampleIDs;
+	}
+
+	/**
+	 * @return Index of each sample ID in the genotype columns, or null if the header has no FORMAT column
+	 */
+	Map<String, Integer> getSampleIndex() {
+		return sampleIndex;
+	}
+
+	/**
+	 * @return The next record or null if there are no more records
+	 * @throws IOException
+	 */
+	public VCFLine next() throws IOException {
+		while(nextLine != null && nextLine.isEmpty()) {
+			nextLine = reader.readLine();
+		}
+		if(nextLine == null) {
+			return null;
+		}
+		if(nextLine.startsWith("#")) {
+			throw new IllegalArgumentException("Comment line after header line in " + fileName + ": " + nextLine);
+		}
+		VCFLine rtrn = new VCFLine(nextLine, sampleIDs, sampleIndex);
+		nextLine = reader.readLine();
+		return rtrn;
+	}
+
+	/**
+	 * Close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
@@ -8,8 +8,8 @@ import guttmanlab.core.util.StringParser;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -127,6 +127,7 @@ public final class VCFRecord implements Comparable<VCFRecord> {
 	private String info;
 	private String format;
 	private List<String> sampleIDs;
+	private String genotypeColumns; // Raw tab separated genotype columns, split only when genotypes are requested
 	private Map<String, String> genotypes;
 	
 	private VCFRecord() {}
@@ -148,6 +149,7 @@ public final class VCFRecord implements Comparable<VCFRecord> {
 		rtrn.info = record.info;
 		rtrn.format = record.format;
 		rtrn.sampleIDs = record.sampleIDs;
+		rtrn.genotypeColumns = record.genotypeColumns;
 		rtrn.genotypes = record.genotypes;
 		return rtrn;
 	}
@@ -171,50 +173,106 @@ public final class VCFRecord implements Comparable<VCFRecord> {
 		rtrn.info = record.info;
 		rtrn.format = record.format;
 		rtrn.sampleIDs = record.sampleIDs;
+		rtrn.genotypeColumns = record.genotypeColumns;
 		rtrn.genotypes = record.genotypes;
 		return rtrn;
 	}
 	
 	/**
+	 * Parses the header line for this record only
+	 * When reading a file, use VCFReader, which parses the header once
 	 * @param line VCF file line
 	 * @param headerLine Header line beginning with #CHROM
 	 */
 	public VCFRecord(String line, String headerLine) {
-		loadHeader(headerLine);
-		StringParser s = new StringParser();
-		s.parse(line);
-		chrom = s.asString(0);
-		pos = s.asInt(1);
-		id = s.asString(2);
-		ref = new Sequence(s.asString(3));
-		alt = new AlternateAllele(s.asString(4));
-		qual = s.asDouble(5);
-		filter = s.asString(6);
-		info = s.asString(7);
-		if(s.getFieldCount() > 8) {
+		this(line, parseSampleIDs(headerLine));
+	}
+	
+	/**
+	 * @param line VCF file line
+	 * @param sampleIDs Sample IDs from the header line, or null if the header has no FORMAT column; shared, not copied
+	 */
+	public VCFRecord(String line, List<String> sampleIDs) {
+		this.sampleIDs = sampleIDs;
+		int[] tabs = new int[8];
+		int numTabs = 0;
+		int tab = line.indexOf('\t');
+		while(tab >= 0 && numTabs < tabs.length) {
+			tabs[numTabs] = tab;
+			numTabs++;
+			tab = line.indexOf('\t', tab + 1);
+		}
+		if(numTabs < 7) {
+			throw new IllegalArgumentException("Line must have at least 8 fields: " + line);
+		}
+		chrom = line.substring(0, tabs[0]);
+		pos = Integer.parseInt(line.substring(tabs[0] + 1, tabs[1]));
+		id = line.substring(tabs[1] + 1, tabs[2]);
+		ref = new Sequence(line.substring(tabs[2] + 1, tabs[3]));
+		alt = new AlternateAllele(line.substring(tabs[3] + 1, tabs[4]));
+		qual = Double.parseDouble(line.substring(tabs[4] + 1, tabs[5]));
+		filter = line.substring(tabs[5] + 1, tabs[6]);
+		if(numTabs == 7) {
+			info = line.substring(tabs[6] + 1);
+		} else {
 			// There are genotypes in the file
-			format = s.asString(8);
+			info = line.substring(tabs[6] + 1, tabs[7]);
+			int formatEnd = line.indexOf('\t', tabs[7] + 1);
+			format = formatEnd < 0 ? line.substring(tabs[7] + 1) : line.substring(tabs[7] + 1, formatEnd);
+			genotypeColumns = formatEnd < 0 ? "" : line.substring(formatEnd + 1);
 		}
-		genotypes = new HashMap<String, String>();
 		if(sampleIDs != null) {
-			format = s.asString(8);
-			if(s.getFieldCount() != sampleIDs.size() + 9) {
-				throw new IllegalArgumentException("Line must have 9 more fields (" + s.getFieldCount() +  ") than sample IDs (" + sampleIDs.size() + ")");
+			int numFields = numTabs + 1;
+			if(genotypeColumns != null && !genotypeColumns.isEmpty()) {
+				numFields++;
+				for(int i = 0; i < genotypeColumns.length(); i++) {
+					if(genotypeColumns.charAt(i) == '\t') {
+						numFields++;
+					}
+				}
 			}
-			for(int i = 0; i < sampleIDs.size(); i++) {
-				genotypes.put(sampleIDs.get(i), s.asString(i + 9));
+			if(numFields != sampleIDs.size() + 9) {
+				throw new IllegalArgumentException("Line must have 9 more fields (" + numFields +  ") than sample IDs (" + sampleIDs.size() + ")");
 			}
 		}
 	}
 	
-	private void loadHeader(String headerLine) {
+	/**
+	 * Get the sample IDs from the header line
+	 * @param headerLine Header line beginning with #CHROM
+	 * @return Unmodifiable list of sample IDs, or null if the header has no FORMAT column
+	 */
+	public static List<String> parseSampleIDs(String headerLine) {
 		StringParser p = new StringParser();
 		p.parse(headerLine);
-		if(p.getFieldCount() < 9) return;
-		sampleIDs = new ArrayList<String>();
+		if(p.getFieldCount() < 9) return null;
+		List<String> rtrn = new ArrayList<String>();
 		for(int i = 9; i < p.getFieldCount(); i++) {
-			sampleIDs.add(p.asString(i));
+			rtrn.add(p.asString(i));
 		}
+		return Collections.unmodifiableList(rtrn);
+	}
+	
+	/**
+	 * Get the genotype field for a sample
+	 * Genotype columns are split the first time a genotype is requested
+	 * @param sampleID Sample ID from the header line
+	 * @return The genotype field or null if the sample is not in the file
+	 */
+	public String getGenotype(String sampleID) {
+		if(sampleIDs == null) {
+			return null;
+		}
+		if(genotypes == null) {
+			Map<String, String> map = new HashMap<String, String>();
+			StringParser s = new StringParser();
+			s.parse(genotypeColumns, "\t");
+			for(int i = 0; i < sampleIDs.size(); i++) {
+				map.put(sampleIDs.get(i), s.asString(i));
+			}
+			genotypes = map;
+		}
+		return genotypes.get(sampleID);
 	}
 	
 	/**
@@ -286,8 +344,8 @@ public final class VCFRecord implements Comparable<VCFRecord> {
 		String rtrn = chrom + "\t" + pos + "\t" + id + "\t" + ref.getSequenceBases() + "\t" + alt.toString() + "\t" + qual + "\t" + filter + "\t" + info;
 		if(sampleIDs != null) {
 			rtrn += "\t" + format;
-			for(String sample : sampleIDs) {
-				rtrn += "\t" + genotypes.get(sample);
+			if(!sampleIDs.isEmpty()) {
+				rtrn += "\t" + genotypeColumns;
 			}
 		}
 		return rtrn;
@@ -329,20 +387,22 @@ public final class VCFRecord implements Comparable<VCFRecord> {
 	 * @return The converted record or null if position doesn't overlap transcript
 	 */
 	public static VCFRecord convertToTranscriptCoords(VCFRecord record, Annotation transcript, Sequence transcriptSequence) {
+		return convertToTranscriptCoords(record, new IndexedTranscript(transcript), transcriptSequence);
+	}
+	
+	/**
+	 * Convert the entire record to transcript coordinates
+	 * @param record The record
+	 * @param transcript The transcript with its blocks indexed
+	 * @param transcriptSequence Transcript sequence
+	 * @return The converted record or null if position doesn't overlap transcript
+	 */
+	public static VCFRecord convertToTranscriptCoords(VCFRecord record, IndexedTranscript transcript, Sequence transcriptSequence) {
 		// Make sure ref allele is fully contained within a single block of the transcript
 		Annotation refAllele = record.getRefAlleleAsAnnotation();
 		int refStart = refAllele.getReferenceStartPosition();
 		int refEnd = refAllele.getReferenceEndPosition();
-		boolean contains = false;
-		Iterator<SingleInterval> blockIter = transcript.getBlocks();
-		while(blockIter.hasNext()) {
-			SingleInterval block = blockIter.next();
-			if(refStart >= block.getReferenceStartPosition() && refEnd <= block.getReferenceEndPosition()) {
-				contains = true;
-				break;
-			}
-		}
-		if(!contains) {
+		if(!transcript.blockContains(refStart, refEnd)) {
 			//logger.info(transcript.getName() + " does not contain ref allele " + record.getRefAlleleAsAnnotation().toUCSC());
 			return null;
 		}